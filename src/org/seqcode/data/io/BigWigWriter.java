@@ -0,0 +1,598 @@
+package org.seqcode.data.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+
+/**
+ * <code>BigWigWriter</code>: writes an indexed, compressed, multi-resolution bigWig file (UCSC bbi format, version 4).
+ *
+ * Data are bedGraph-type sections of up to ITEMS_PER_SLOT intervals, zlib-compressed, and indexed by an R-tree.
+ * Each zoom level holds per-bin summaries (covered bases, min, max, sum, sum of squares) over bins of its reduction size,
+ * also compressed and indexed. The chromosome names are stored in a B+ tree, as UCSC tools expect.
+ *
+ * Usage: make the writer with every chromosome that may have data, fill a Chrom for each chromosome with startChrom()
+ * and Chrom.add() (Chroms can be filled on different threads at once), and pass them to write() in chromosome name order.
+ * Then call close(). Zoom data are spooled through temporary files, so memory holds only the Chrom being filled.
+ */
+public class BigWigWriter {
+
+	public static final int MAGIC = 0x888FFC26;
+	public static final int VERSION = 4;
+	public static final int BPT_MAGIC = 0x78CA8C91;
+	public static final int CIR_MAGIC = 0x2468ACE0;
+	public static final int ITEMS_PER_SLOT = 1024;
+	public static final int BLOCK_SIZE = 256;
+	public static final int HEADER_BYTES = 64, ZOOM_HEADER_BYTES = 24, SUMMARY_BYTES = 40;
+	public static final int MAX_ZOOM_LEVELS = 10;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final byte BEDGRAPH_SECTION = 1;
+	private static final int SECTION_HEADER_BYTES = 24, ITEM_BYTES = 12, ZOOM_RECORD_BYTES = 32;
+
+	private File file;
+	private CountingOutput out;
+	private List<String> chromNames;
+	private Map<String, Integer> chromIDs = new HashMap<String, Integer>();
+	private Map<String, Integer> chromSizes;
+	private int[] reductions;
+	private int nextChromID = 0;
+	private int maxUncompressed = 0;
+	private long dataCountOffset, sectionCount = 0;
+	private List<IndexEntry> dataIndex = new ArrayList<IndexEntry>();
+	private File[] zoomFiles;
+	private CountingOutput[] zoomOut;
+	private List<List<IndexEntry>> zoomIndex = new ArrayList<List<IndexEntry>>();
+	private long[] zoomRecords;
+	private Summary total = new Summary();
+
+	/**
+	 * @param f output file
+	 * @param chromSizes sizes of all chromosomes that may have data, by name as it should appear in the file
+	 * @param reductions zoom level bin sizes, increasing (at most MAX_ZOOM_LEVELS)
+	 * @throws IOException
+	 */
+	public BigWigWriter(File f, Map<String, Integer> chromSizes, int[] reductions) throws IOException{
+		if(reductions.length>MAX_ZOOM_LEVELS)
+			throw new IllegalArgumentException("At most "+MAX_ZOOM_LEVELS+" zoom levels");
+		file = f;
+		this.chromSizes = new HashMap<String, Integer>(chromSizes);
+		this.reductions = reductions.clone();
+		chromNames = new ArrayList<String>(chromSizes.keySet());
+		Collections.sort(chromNames);
+		for(int i=0; i<chromNames.size(); i++)
+			chromIDs.put(chromNames.get(i), i);
+
+		out = new CountingOutput(new BufferedOutputStream(new FileOutputStream(f), 1<<20));
+		out.write(new byte[HEADER_BYTES+ZOOM_HEADER_BYTES*reductions.length+SUMMARY_BYTES]); //Filled in by close()
+		writeChromTree();
+		dataCountOffset = out.count;
+		out.writeLong(0); //Filled in by close()
+
+		zoomFiles = new File[reductions.length];
+		zoomOut = new CountingOutput[reductions.length];
+		zoomRecords = new long[reductions.length];
+		for(int z=0; z<reductions.length; z++){
+			zoomFiles[z] = File.createTempFile("bigwig-zoom", ".tmp", f.getAbsoluteFile().getParentFile());
+			zoomFiles[z].deleteOnExit();
+			zoomOut[z] = new CountingOutput(new BufferedOutputStream(new FileOutputStream(zoomFiles[z]), 1<<16));
+			zoomIndex.add(new ArrayList<IndexEntry>());
+		}
+	}
+
+	/**
+	 * Start the data for a chromosome
+	 * @param chrom name as given to the constructor
+	 * @return
+	 */
+	public Chrom startChrom(String chrom){
+		if(!chromIDs.containsKey(chrom))
+			throw new IllegalArgumentException("Unknown chromosome "+chrom);
+		return new Chrom(chromIDs.get(chrom), chromSizes.get(chrom));
+	}
+
+	/**
+	 * Write a finished chromosome. Chromosomes must be written in name order (the order of their IDs).
+	 * @param c
+	 * @throws IOException
+	 */
+	public synchronized void write(Chrom c) throws IOException{
+		c.finish();
+		if(c.id<nextChromID)
+			throw new IllegalStateException("Chromosomes must be written in name order");
+		nextChromID = c.id+1;
+		for(Block b : c.blocks){
+			dataIndex.add(new IndexEntry(c.id, b.start, c.id, b.end, out.count, b.data.length));
+			out.write(b.data);
+			sectionCount++;
+		}
+		for(int z=0; z<reductions.length; z++){
+			for(Block b : c.zoomBlocks.get(z)){
+				zoomIndex.get(z).add(new IndexEntry(c.id, b.start, c.id, b.end, zoomOut[z].count, b.data.length));
+				zoomOut[z].write(b.data);
+			}
+			zoomRecords[z] += c.zoomCounts[z];
+		}
+		maxUncompressed = Math.max(maxUncompressed, c.maxUncompressed);
+		total.add(c.summary);
+		c.blocks = null;
+		c.zoomBlocks = null;
+	}
+
+	/**
+	 * Write the indexes and zoom levels, and fill in the header
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException{
+		long dataEnd = out.count;
+		long indexOffset = out.count;
+		writeRTree(dataIndex, dataEnd);
+
+		long[] zoomDataOffsets = new long[reductions.length], zoomIndexOffsets = new long[reductions.length];
+		for(int z=0; z<reductions.length; z++){
+			zoomOut[z].close();
+			zoomDataOffsets[z] = out.count;
+			out.writeInt((int)zoomRecords[z]);
+			long base = out.count;
+			InputStream in = new FileInputStream(zoomFiles[z]);
+			try{
+				byte[] buf = new byte[1<<16];
+				int r;
+				while((r=in.read(buf))>0)
+					out.write(buf, 0, r);
+			}finally{
+				in.close();
+			}
+			zoomFiles[z].delete();
+			List<IndexEntry> entries = zoomIndex.get(z);
+			for(IndexEntry e : entries)
+				e.offset += base;
+			zoomIndexOffsets[z] = out.count;
+			writeRTree(entries, zoomIndexOffsets[z]);
+		}
+		out.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES+ZOOM_HEADER_BYTES*reductions.length+SUMMARY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			long chromTreeOffset = HEADER_BYTES+ZOOM_HEADER_BYTES*reductions.length+SUMMARY_BYTES;
+			h.putInt(MAGIC);
+			h.putShort((short)VERSION);
+			h.putShort((short)reductions.length);
+			h.putLong(chromTreeOffset);
+			h.putLong(dataCountOffset);
+			h.putLong(indexOffset);
+			h.putShort((short)0); //fieldCount
+			h.putShort((short)0); //definedFieldCount
+			h.putLong(0); //autoSqlOffset
+			h.putLong(HEADER_BYTES+ZOOM_HEADER_BYTES*reductions.length); //totalSummaryOffset
+			h.putInt(maxUncompressed);
+			h.putLong(0); //extensionOffset
+			for(int z=0; z<reductions.length; z++){
+				h.putInt(reductions[z]);
+				h.putInt(0);
+				h.putLong(zoomDataOffsets[z]);
+				h.putLong(zoomIndexOffsets[z]);
+			}
+			h.putLong(total.validCount);
+			h.putDouble(total.validCount==0 ? 0 : total.min);
+			h.putDouble(total.validCount==0 ? 0 : total.max);
+			h.putDouble(total.sum);
+			h.putDouble(total.sumSquares);
+			raf.write(h.array());
+			raf.seek(dataCountOffset);
+			ByteBuffer c = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			c.putLong(sectionCount);
+			raf.write(c.array());
+		}finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Chromosome B+ tree: one key per chromosome (zero-padded name), valued by ID and size.
+	 */
+	private void writeChromTree() throws IOException{
+		int n = chromNames.size();
+		int keySize = 1;
+		for(String name : chromNames)
+			keySize = Math.max(keySize, name.getBytes(LATIN1).length);
+		int bs = Math.max(1, Math.min(n, BLOCK_SIZE));
+		int itemBytes = keySize+8;
+		int nodeBytes = 4+bs*itemBytes;
+
+		out.writeInt(BPT_MAGIC);
+		out.writeInt(bs);
+		out.writeInt(keySize);
+		out.writeInt(8);
+		out.writeLong(n);
+		out.writeLong(0);
+
+		int[] levelNodes = levelNodes(n, bs);
+		int levels = levelNodes.length;
+		long[] levelOffsets = levelOffsets(levelNodes, out.count, nodeBytes, nodeBytes);
+		for(int l=levels-1; l>=0; l--){
+			long itemsPerItem = pow(bs, l); //Keys covered by each item of a node at this level
+			for(int node=0; node<levelNodes[l]; node++){
+				int first = node*bs;
+				int count = childCount(l, node, bs, n, levelNodes);
+				out.writeByte(l==0 ? 1 : 0);
+				out.writeByte(0);
+				out.writeShort(count);
+				for(int i=0; i<count; i++){
+					int key = (int)((first+i)*itemsPerItem);
+					out.write(paddedKey(chromNames.get(key), keySize));
+					if(l==0){
+						out.writeInt(key);
+						out.writeInt(chromSizes.get(chromNames.get(key)));
+					}else{
+						out.writeLong(levelOffsets[l-1]+(long)(first+i)*nodeBytes);
+					}
+				}
+				for(int i=count; i<bs; i++)
+					out.write(new byte[itemBytes]);
+			}
+		}
+	}
+
+	/**
+	 * R-tree over data blocks (one item per block), with BLOCK_SIZE items per node
+	 * @param entries sorted, non-overlapping blocks
+	 * @param dataEnd end of the indexed data
+	 */
+	private void writeRTree(List<IndexEntry> entries, long dataEnd) throws IOException{
+		int n = entries.size();
+		int bs = BLOCK_SIZE;
+		out.writeInt(CIR_MAGIC);
+		out.writeInt(bs);
+		out.writeLong(n);
+		out.writeInt(n==0 ? 0 : entries.get(0).startChrom);
+		out.writeInt(n==0 ? 0 : entries.get(0).startBase);
+		out.writeInt(n==0 ? 0 : entries.get(n-1).endChrom);
+		out.writeInt(n==0 ? 0 : entries.get(n-1).endBase);
+		out.writeLong(dataEnd);
+		out.writeInt(1); //itemsPerSlot
+		out.writeInt(0);
+
+		int leafBytes = 4+bs*32, nodeBytes = 4+bs*24;
+		int[] levelNodes = levelNodes(n, bs);
+		int levels = levelNodes.length;
+		long[] levelOffsets = levelOffsets(levelNodes, out.count, nodeBytes, leafBytes);
+		for(int l=levels-1; l>=0; l--){
+			long itemsPerItem = pow(bs, l);
+			for(int node=0; node<levelNodes[l]; node++){
+				int first = node*bs;
+				int count = childCount(l, node, bs, n, levelNodes);
+				out.writeByte(l==0 ? 1 : 0);
+				out.writeByte(0);
+				out.writeShort(count);
+				for(int i=0; i<count; i++){
+					int from = (int)((first+i)*itemsPerItem);
+					int to = (int)Math.min(n, (first+i+1)*itemsPerItem)-1;
+					IndexEntry a = entries.get(from), b = entries.get(to);
+					out.writeInt(a.startChrom);
+					out.writeInt(a.startBase);
+					out.writeInt(b.endChrom);
+					out.writeInt(b.endBase);
+					if(l==0){
+						out.writeLong(a.offset);
+						out.writeLong(a.size);
+					}else{
+						out.writeLong(levelOffsets[l-1]+(long)(first+i)*(l-1==0 ? leafBytes : nodeBytes));
+					}
+				}
+				for(int i=count; i<bs; i++)
+					out.write(new byte[l==0 ? 32 : 24]);
+			}
+		}
+	}
+
+	/** number of nodes at each level of a tree over n items (level 0 = leaves); always at least one node */
+	private static int[] levelNodes(int n, int bs){
+		List<Integer> nodes = new ArrayList<Integer>();
+		int count = Math.max(1, ceilDiv(n, bs));
+		nodes.add(count);
+		while(count>1){
+			count = ceilDiv(count, bs);
+			nodes.add(count);
+		}
+		int[] x = new int[nodes.size()];
+		for(int i=0; i<x.length; i++)
+			x[i] = nodes.get(i);
+		return x;
+	}
+
+	/** file offset of each level, written from the root down */
+	private static long[] levelOffsets(int[] levelNodes, long start, int nodeBytes, int leafBytes){
+		long[] offsets = new long[levelNodes.length];
+		long pos = start;
+		for(int l=levelNodes.length-1; l>=0; l--){
+			offsets[l] = pos;
+			pos += (long)levelNodes[l]*(l==0 ? leafBytes : nodeBytes);
+		}
+		return offsets;
+	}
+
+	/** number of items in a node: children (or keys, at the leaves) that exist */
+	private static int childCount(int level, int node, int bs, int n, int[] levelNodes){
+		int below = level==0 ? n : levelNodes[level-1];
+		return Math.max(0, Math.min(bs, below-node*bs));
+	}
+
+	private static int ceilDiv(long a, long b){return (int)((a+b-1)/b);}
+	private static long pow(int b, int e){
+		long x=1;
+		for(int i=0; i<e; i++)
+			x*=b;
+		return x;
+	}
+
+	private static byte[] paddedKey(String name, int keySize){
+		byte[] k = new byte[keySize];
+		byte[] b = name.getBytes(LATIN1);
+		System.arraycopy(b, 0, k, 0, b.length);
+		return k;
+	}
+
+	private static byte[] compress(ByteBuffer buf){
+		Deflater d = new Deflater();
+		try{
+			d.setInput(buf.array(), 0, buf.position());
+			d.finish();
+			byte[] out = new byte[buf.position()+buf.position()/1000+64];
+			int n=0;
+			while(!d.finished()){
+				if(n==out.length)
+					out = Arrays.copyOf(out, out.length*2);
+				n += d.deflate(out, n, out.length-n);
+			}
+			return Arrays.copyOf(out, n);
+		}finally{
+			d.end();
+		}
+	}
+
+	/**
+	 * The data for one chromosome: bedGraph intervals, compressed into blocks as they are added,
+	 * and the zoom level summaries of those intervals.
+	 */
+	public class Chrom{
+		int id, size;
+		List<Block> blocks = new ArrayList<Block>();
+		List<List<Block>> zoomBlocks = new ArrayList<List<Block>>();
+		long[] zoomCounts;
+		int maxUncompressed = 0;
+		Summary summary = new Summary();
+		boolean finished = false;
+		//Current data section
+		ByteBuffer section = ByteBuffer.allocate(SECTION_HEADER_BYTES+ITEMS_PER_SLOT*ITEM_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		int items = 0, sectionStart, sectionEnd, lastEnd = 0;
+		//Current zoom records and blocks
+		ZoomRecord[] zoom;
+		ByteBuffer[] zoomSection;
+		int[] zoomItems;
+		int[] zoomStart, zoomEnd;
+
+		Chrom(int id, int size){
+			this.id = id;
+			this.size = size;
+			zoom = new ZoomRecord[reductions.length];
+			zoomSection = new ByteBuffer[reductions.length];
+			zoomItems = new int[reductions.length];
+			zoomStart = new int[reductions.length];
+			zoomEnd = new int[reductions.length];
+			zoomCounts = new long[reductions.length];
+			for(int z=0; z<reductions.length; z++){
+				zoomBlocks.add(new ArrayList<Block>());
+				zoomSection[z] = ByteBuffer.allocate(ITEMS_PER_SLOT*ZOOM_RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+
+		public int getSize(){return size;}
+
+		/**
+		 * Add an interval. Intervals must be added in order and must not overlap.
+		 * @param start 0-based start
+		 * @param end end (exclusive)
+		 * @param value
+		 */
+		public void add(int start, int end, float value){
+			if(finished)
+				throw new IllegalStateException("Chromosome is finished");
+			if(start<lastEnd || end<=start || end>size)
+				throw new IllegalArgumentException("Interval "+start+"-"+end+" is out of order or outside the chromosome");
+			lastEnd = end;
+			if(items==0){
+				section.position(SECTION_HEADER_BYTES);
+				sectionStart = start;
+			}
+			section.putInt(start);
+			section.putInt(end);
+			section.putFloat(value);
+			sectionEnd = end;
+			if(++items==ITEMS_PER_SLOT)
+				flushSection();
+			summary.add(value, end-start);
+
+			for(int z=0; z<reductions.length; z++){
+				int red = reductions[z];
+				for(int b=start/red; (long)b*red<end; b++){
+					int bs = b*red, be = (int)Math.min((long)bs+red, size);
+					int overlap = Math.min(end, be)-Math.max(start, bs);
+					if(zoom[z]!=null && zoom[z].start!=bs)
+						flushZoomRecord(z);
+					if(zoom[z]==null)
+						zoom[z] = new ZoomRecord(bs, be);
+					zoom[z].summary.add(value, overlap);
+				}
+			}
+		}
+
+		private void flushSection(){
+			if(items==0)
+				return;
+			int len = section.position();
+			section.position(0);
+			section.putInt(id);
+			section.putInt(sectionStart);
+			section.putInt(sectionEnd);
+			section.putInt(0); //itemStep
+			section.putInt(0); //itemSpan
+			section.put(BEDGRAPH_SECTION);
+			section.put((byte)0);
+			section.putShort((short)items);
+			section.position(len);
+			maxUncompressed = Math.max(maxUncompressed, len);
+			blocks.add(new Block(sectionStart, sectionEnd, compress(section)));
+			section.clear();
+			items=0;
+		}
+
+		private void flushZoomRecord(int z){
+			ZoomRecord r = zoom[z];
+			if(r==null)
+				return;
+			ByteBuffer s = zoomSection[z];
+			if(zoomItems[z]==0)
+				zoomStart[z] = r.start;
+			s.putInt(id);
+			s.putInt(r.start);
+			s.putInt(r.end);
+			s.putInt((int)r.summary.validCount);
+			s.putFloat((float)r.summary.min);
+			s.putFloat((float)r.summary.max);
+			s.putFloat((float)r.summary.sum);
+			s.putFloat((float)r.summary.sumSquares);
+			zoomEnd[z] = r.end;
+			zoomCounts[z]++;
+			zoom[z] = null;
+			if(++zoomItems[z]==ITEMS_PER_SLOT)
+				flushZoomSection(z);
+		}
+
+		private void flushZoomSection(int z){
+			if(zoomItems[z]==0)
+				return;
+			maxUncompressed = Math.max(maxUncompressed, zoomSection[z].position());
+			zoomBlocks.get(z).add(new Block(zoomStart[z], zoomEnd[z], compress(zoomSection[z])));
+			zoomSection[z].clear();
+			zoomItems[z]=0;
+		}
+
+		/**
+		 * Compress the last blocks. Called by write() if it hasn't been called already.
+		 */
+		public void finish(){
+			if(finished)
+				return;
+			flushSection();
+			for(int z=0; z<reductions.length; z++){
+				flushZoomRecord(z);
+				flushZoomSection(z);
+			}
+			finished = true;
+		}
+	}
+
+	private static class ZoomRecord{
+		int start, end;
+		Summary summary = new Summary();
+		ZoomRecord(int start, int end){
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	private static class Summary{
+		long validCount = 0;
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0, sumSquares = 0;
+		void add(double value, int bases){
+			validCount += bases;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value*bases;
+			sumSquares += value*value*bases;
+		}
+		void add(Summary s){
+			validCount += s.validCount;
+			min = Math.min(min, s.min);
+			max = Math.max(max, s.max);
+			sum += s.sum;
+			sumSquares += s.sumSquares;
+		}
+	}
+
+	private static class Block{
+		int start, end;
+		byte[] data;
+		Block(int start, int end, byte[] data){
+			this.start = start;
+			this.end = end;
+			this.data = data;
+		}
+	}
+
+	private static class IndexEntry{
+		int startChrom, startBase, endChrom, endBase;
+		long offset, size;
+		IndexEntry(int startChrom, int startBase, int endChrom, int endBase, long offset, long size){
+			this.startChrom = startChrom;
+			this.startBase = startBase;
+			this.endChrom = endChrom;
+			this.endBase = endBase;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Little-endian output that keeps track of its position
+	 */
+	private static class CountingOutput{
+		OutputStream out;
+		long count = 0;
+		ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		CountingOutput(OutputStream out){this.out = out;}
+		void write(byte[] x) throws IOException{write(x, 0, x.length);}
+		void write(byte[] x, int off, int len) throws IOException{
+			out.write(x, off, len);
+			count += len;
+		}
+		void writeByte(int v) throws IOException{
+			out.write(v);
+			count++;
+		}
+		void writeShort(int v) throws IOException{
+			b.clear();
+			b.putShort((short)v);
+			write(b.array(), 0, 2);
+		}
+		void writeInt(int v) throws IOException{
+			b.clear();
+			b.putInt(v);
+			write(b.array(), 0, 4);
+		}
+		void writeLong(long v) throws IOException{
+			b.clear();
+			b.putLong(v);
+			write(b.array(), 0, 8);
+		}
+		void close() throws IOException{out.close();}
+	}
+}
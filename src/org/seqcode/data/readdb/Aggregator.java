@@ -4,10 +4,24 @@ import java.io.IOException;
 import java.util.TreeMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+/**
+ * ReadOnlyClient over several ReadDB servers, eg when alignments are sharded across servers.
+ * Each query is sent to all of the member clients at once and their histograms are summed
+ * with a k-way merge of the sorted primitive arrays.  The member clients must be thread-safe
+ * (Client and ClientPool are).
+ */
 public class Aggregator implements ReadOnlyClient {
 
     private ArrayList<ReadOnlyClient> clients;
+    private ExecutorService executor;
     public Aggregator() {
         clients = new ArrayList<ReadOnlyClient>();        
     }
@@ -67,34 +81,106 @@ public class Aggregator implements ReadOnlyClient {
     
 
     public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        IntHistogram h = getIntHistogram(alignid,chromid,isType2,paired,extension,binsize,start,stop,minWeight,plusStrand);
+        return h == null ? null : h.toTreeMap();
+    }
+    public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        FloatHistogram h = getFloatHistogram(alignid,chromid,isType2,paired,extension,binsize,start,stop,minWeight,plusStrand);
+        return h == null ? null : h.toTreeMap();
+    }
+
+    public IntHistogram getIntHistogram(final String alignid, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
         if (clients.size() == 0) {
-            return new TreeMap<Integer,Integer>();
+            return IntHistogram.empty();
         }
-        TreeMap<Integer,Integer> output = clients.get(0).getHistogram(alignid,chromid,isType2,paired,extension,binsize,start,stop,minWeight,plusStrand);
-        for (int i = 1; i < clients.size(); i++) {
-            TreeMap<Integer,Integer> o = clients.get(i).getHistogram(alignid,chromid,isType2,paired,extension,binsize,start,stop,minWeight,plusStrand);
-            output = mergeHistogramsII(o,output);
+        List<Callable<IntHistogram>> queries = new ArrayList<Callable<IntHistogram>>();
+        for (final ReadOnlyClient c : clients) {
+            queries.add(new Callable<IntHistogram>() {
+                    public IntHistogram call() throws IOException, ClientException {
+                        return c.getIntHistogram(alignid,chromid,isType2,paired,extension,binsize,start,stop,minWeight,plusStrand);
+                    }
+                });
         }
-        return output;
+        return IntHistogram.merge(fanOut(queries));
     }
-
-
-    public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+    public FloatHistogram getFloatHistogram(final String alignid, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) throws IOException, ClientException {
         if (clients.size() == 0) {
-            return new TreeMap<Integer,Float>();
+            return FloatHistogram.empty();
+        }
+        List<Callable<FloatHistogram>> queries = new ArrayList<Callable<FloatHistogram>>();
+        for (final ReadOnlyClient c : clients) {
+            queries.add(new Callable<FloatHistogram>() {
+                    public FloatHistogram call() throws IOException, ClientException {
+                        return c.getFloatHistogram(alignid,chromid,isType2,paired,extension,binsize,start,stop,minWeight,plusStrand);
+                    }
+                });
+        }
+        return FloatHistogram.merge(fanOut(queries));
+    }
+
+    /* runs the first query on the calling thread and the rest on the executor.  Returns the results in
+     * the same order as the queries.  If any query fails, throws its exception once all of them have finished.
+     */
+    private <T> List<T> fanOut(List<Callable<T>> queries) throws IOException, ClientException {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        ExecutorService e = queries.size() > 1 ? getExecutor() : null;
+        for (int i = 1; i < queries.size(); i++) {
+            futures.add(e.submit(queries.get(i)));
+        }
+        List<T> results = new ArrayList<T>();
+        Exception failure = null;
+        try {
+            results.add(queries.get(0).call());
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        for (Future<T> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException ex) {
+                if (failure == null && ex.getCause() instanceof Exception) {
+                    failure = (Exception)ex.getCause();
+                } else if (failure == null) {
+                    throw new RuntimeException(ex.getCause());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for ReadDB servers");
+            }
         }
-        TreeMap<Integer,Float> output = clients.get(0).getWeightHistogram(alignid,chromid,isType2,paired,extension,binsize,start,stop,minWeight,plusStrand);
-        for (int i = 1; i < clients.size(); i++) {
-            TreeMap<Integer,Float> o = clients.get(i).getWeightHistogram(alignid,chromid,isType2,paired,extension,binsize,start,stop,minWeight,plusStrand);
-            output = mergeHistogramsFF(o,output);
+        if (failure instanceof IOException) {
+            throw (IOException)failure;
+        } else if (failure instanceof ClientException) {
+            throw (ClientException)failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
         }
-        return output;
+        return results;
+    }
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Aggregator");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return executor;
     }
 
     public void close() {
+        synchronized(this) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
         for (ReadOnlyClient c : clients) {
             c.close();
         }
-
     }
-}
\ No newline at end of file
+}
@@ -61,6 +61,64 @@ public class Bits {
             b.put(i, Float.intBitsToFloat(Integer.reverseBytes(Float.floatToRawIntBits(b.get(i)))));
         }
     }
+    /**
+     * Releases the memory mapping behind a MappedByteBuffer right away rather than
+     * waiting for the garbage collector.  The buffer and any slices or views of it
+     * must not be used afterwards.  Returns false (and does nothing) for
+     * non-direct buffers or if this JVM doesn't provide a way to do it.
+     */
+    public static boolean unmap(ByteBuffer b) {
+        if (b == null || !b.isDirect() || unmapper == null) {
+            return false;
+        }
+        try {
+            if (unmapperArg == null) {
+                unmapper.invoke(null, b);
+            } else {
+                unmapper.invoke(unmapperArg, b);
+            }
+            return true;
+        } catch (Exception e) {
+            /* eg, b is a slice or duplicate rather than the buffer that owns the mapping */
+            return false;
+        }
+    }
+    public static boolean canUnmap() {return unmapper != null;}
+
+    /* how to unmap a buffer on this JVM: sun.misc.Unsafe.invokeCleaner() on java 9 and
+       later, DirectBuffer.cleaner().clean() on java 8.  Looked up reflectively so this
+       compiles and runs on either */
+    private static java.lang.reflect.Method unmapper;
+    private static Object unmapperArg;
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            java.lang.reflect.Method m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            java.lang.reflect.Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unmapperArg = f.get(null);
+            unmapper = m;
+        } catch (Exception e) {
+            try {
+                final java.lang.reflect.Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                final java.lang.reflect.Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                unmapper = Bits.class.getDeclaredMethod("cleanJava8", ByteBuffer.class);
+                unmapperArg = null;
+                java8Cleaner = cleaner;
+                java8Clean = clean;
+            } catch (Exception e2) {
+                unmapper = null;
+            }
+        }
+    }
+    private static java.lang.reflect.Method java8Cleaner, java8Clean;
+    private static void cleanJava8(ByteBuffer b) throws Exception {
+        Object c = java8Cleaner.invoke(b);
+        if (c != null) {
+            java8Clean.invoke(c);
+        }
+    }
+
     public static ByteBuffer copyByteBuffer(ByteBuffer b) {
         ByteBuffer output = ByteBuffer.allocate(b.limit());
         output.order(b.order());
@@ -120,7 +178,7 @@ public class Bits {
         ByteBuffer bb = ByteBuffer.wrap(buffer);
         while (outputpos < count) {
             bb.position(bytesLeftover);
-            int toread = Math.min((count - outputpos) * 4, buffer.length - bytesLeftover);
+            int toread = Math.min((count - outputpos) * 4 - bytesLeftover, buffer.length - bytesLeftover);
             int bytesavail = instream.read(buffer, bytesLeftover, toread) + bytesLeftover;
             if (bytesavail == -1 && outputpos < count) {
                 IOException e = new IOException(String.format("couldn't read enough bytes : %d %d", outputpos, count));
@@ -132,7 +190,7 @@ public class Bits {
             for (i = 0; i < bytesavail / 4 && outputpos < count; i++) {
                 output[outputpos++] = bb.getInt(i*4);
             }
-            int j = i * 4 + 1;
+            int j = i * 4;
             while (j < bytesavail) {
                 buffer[j - i*4] = buffer[j];
                 j++;
@@ -156,13 +214,13 @@ public class Bits {
         ByteBuffer bb = ByteBuffer.wrap(buffer);
         while (outputpos < count) {
             bb.position(bytesLeftover);
-            int toread = Math.min((count - outputpos) * 4, buffer.length - bytesLeftover);
+            int toread = Math.min((count - outputpos) * 4 - bytesLeftover, buffer.length - bytesLeftover);
             int bytesavail = instream.read(buffer, bytesLeftover, toread) + bytesLeftover;
             int i = 0;
             for (i = 0; i < bytesavail / 4 && outputpos < count; i++) {
                 output[outputpos++] = bb.getFloat(i*4);
             }
-            int j = i * 4 + 1;
+            int j = i * 4;
             while (j < bytesavail) {
                 buffer[j - i*4] = buffer[j];
                 j++;
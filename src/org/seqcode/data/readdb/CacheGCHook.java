@@ -3,24 +3,35 @@ package org.seqcode.data.readdb;
 import java.util.logging.*;
 
 /**
- * wait around and run garbage collection
+ * wait around, log the cache statistics, and run garbage collection if
+ * evicted files can't be unmapped directly on this JVM
  */
 public class CacheGCHook implements Runnable {
 	private Logger logger;
+    private Server server;
     private int gcFrequency;
-    public CacheGCHook(Logger l, int gcFreq) {
+    public CacheGCHook(Logger l, Server s, int gcFreq) {
         logger = l;
+        server = s;
         gcFrequency = gcFreq;
     }
 
     public void run() {
+        long lastGC = 0, lastLog = 0;
+        int loops = 0;
         while (true) {
-            if (LRUCache.removed() > gcFrequency) {
+            long evictions = server.getCacheEvictions();
+            if (!Bits.canUnmap() && evictions - lastGC > gcFrequency) {
                 logger.log(Level.INFO,"running GC");
-                LRUCache.resetRemoved();
+                lastGC = evictions;
                 System.gc();
                 System.runFinalization();
             } 
+            /* every ten minutes or so */
+            if (loops++ % 1200 == 0 && evictions != lastLog) {
+                lastLog = evictions;
+                logger.log(Level.INFO,"cache stats\n" + server.getCacheStats());
+            }
             try {
                 Thread.sleep(500);
             } catch (InterruptedException e) {
@@ -29,4 +40,4 @@ public class CacheGCHook implements Runnable {
         }
     }
 
-}
\ No newline at end of file
+}
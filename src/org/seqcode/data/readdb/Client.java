@@ -81,6 +81,17 @@ public class Client implements ReadOnlyClient {
      * @throws ClientException if the client cannot authenticate to the server
      */
     public Client() throws IOException, ClientException {
+        PropertyResourceBundle bundle = defaultConnectionProperties();
+        String hostname = bundle.getString("hostname");
+        String port = bundle.getString("port");
+        String username = bundle.getString("username");
+        String password = bundle.getString("passwd");
+        init(hostname, Integer.parseInt(port), username, password);
+    }
+    /**
+     * Reads the default connection properties from ~/.readdb_passwd or a readdb_passwd found in the classpath
+     */
+    static PropertyResourceBundle defaultConnectionProperties() throws IOException {
         String homedir = System.getenv("HOME");
         String basename = "readdb_passwd";
         if (System.getenv("READDBROLE") != null) {
@@ -106,11 +117,7 @@ public class Client implements ReadOnlyClient {
                 throw new IOException("Can't read connection properties from " + url);
             }
         }
-        String hostname = bundle.getString("hostname");
-        String port = bundle.getString("port");
-        String username = bundle.getString("username");
-        String password = bundle.getString("passwd");
-        init(hostname, Integer.parseInt(port), username, password);
+        return bundle;
     }
     
     private void init(String hostname,
@@ -268,6 +275,12 @@ public class Client implements ReadOnlyClient {
     /** reads one line from the server.  blocking.
      */
     private String readLine() throws IOException {
+        String out = readLine(instream, buffer);
+        //System.err.println("READ " + out);
+        lastActivityTime = System.currentTimeMillis();
+        return out;
+    }
+    static String readLine(InputStream instream, byte[] buffer) throws IOException {
         int pos = 0;
         int i;
         while ((i = instream.read()) != -1) {
@@ -277,10 +290,16 @@ public class Client implements ReadOnlyClient {
                 buffer[pos++] = (byte)i;
             }
         }
-        String out = new String(buffer,0,pos);
-        //System.err.println("READ " + out);
+        return new String(buffer,0,pos);
+    }
+    /** records activity on the connection, so that the idle timer doesn't close it. 
+     * For callers that use the streams directly (see ClientPool) 
+     */
+    void markActive() {
         lastActivityTime = System.currentTimeMillis();
-        return out;
+    }
+    boolean isOpen() {
+        return connectionOpen;
     }
     /**
      * Tells the server to shut itself down.  Use this to stop the server process.
@@ -297,7 +316,8 @@ public class Client implements ReadOnlyClient {
     	}
     }
     /** this was to fix a bug in the server.  You shouldn't need it for general use.
-     * Regenerate the index for this alignment and chromosome
+     * Regenerate the index for this alignment and chromosome.  Also rebuilds the chromosome's
+     * coverage summary, eg for alignments stored before the server kept summaries.
      */
     public void reIndex(String align, int chrom, boolean isType2, boolean paired) throws IOException, ClientException {
     	synchronized(this){
@@ -336,6 +356,30 @@ public class Client implements ReadOnlyClient {
 	        }
     	}
     }
+    /**
+     * Rewrites the single-ended hits for one chromosome in the server's block-compressed layout,
+     * or back to the raw layout if decompress is true.  Queries return the same results either way.
+     */
+    public void compress(String align, int chrom, boolean isType2, boolean decompress) throws IOException, ClientException {
+    	synchronized(this){
+    		if(!connectionOpen)
+    			reConnect();
+	    	request.clear();
+	        request.type = "compress";
+	        request.alignid = align;
+	        request.chromid = chrom;
+	        request.isType2 = isType2;
+	        if (decompress) {
+	            request.map.put("decompress","true");
+	        }
+	        sendString(request.toString());
+	        outstream.flush();
+	        String response = readLine();
+	        if (!response.equals("OK")) {
+	            throw new ClientException(response);
+	        }
+    	}
+    }
     /**
      * Stores a set of SingleHit objects (representing an un-paired or single-ended read
      * aligned to a genome) in the specified alignment.  The hits are appended
@@ -410,6 +454,52 @@ public class Client implements ReadOnlyClient {
     	}
         socket.setSoTimeout(socketQueryReadTimeout);
     }
+    /**
+     * Stores every chromosome of a SingleHitSorter in one request, streaming the sorted
+     * hits to the server as they're merged.  The server writes each chromosome's files directly,
+     * so the chromosomes must not already exist in the alignment (use storeSingle() to add to them).
+     */
+    public void bulkStoreSingle(String alignid, boolean isType2, SingleHitSorter hits) throws IOException, ClientException {
+        synchronized(this){
+            if(!connectionOpen)
+                reConnect();
+            socket.setSoTimeout(socketLoadDataReadTimeout);
+            try {
+                request.clear();
+                request.type="bulkstoresingle";
+                request.alignid=alignid;
+                request.isType2 = isType2;
+                for (int chromid : hits.getChroms()) {
+                    request.list.add(chromid + " " + hits.getCount(chromid));
+                }
+                sendString(request.toString());
+                String response = readLine();
+                if (!response.equals("OK")) {
+                    System.err.println("not-OK response to request: " + response);
+                    System.err.println("request was " + request);
+                    throw new ClientException(response);
+                }
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outstream, 256 * 1024));
+                for (int chromid : hits.getChroms()) {
+                    hits.merge(chromid, new SingleHitSorter.HitHandler() {
+                            public void hit(int pos, float weight, int las) throws IOException {
+                                out.writeInt(pos);
+                                out.writeFloat(weight);
+                                out.writeInt(las);
+                            }
+                        });
+                    System.err.println("Sent " + hits.getCount(chromid) + " hits to the server for " + chromid + "," + alignid);
+                }
+                out.flush();
+                response = readLine();
+                if (!response.equals("OK")) {
+                    throw new ClientException(response);
+                }
+            } finally {
+                socket.setSoTimeout(socketQueryReadTimeout);
+            }
+        }
+    }
     /**
      * Stores a set of PairedHit objects (representing an paired-ended read
      * aligned to a genome) in the specified alignment.  The hits are appended
@@ -829,32 +919,36 @@ public class Client implements ReadOnlyClient {
 	            }
 	            throw new ClientException(response);
 	        }
-	        List<SingleHit> output = new ArrayList<SingleHit>();
 	        int numhits = Integer.parseInt(readLine());
-	        for (int i = 0; i < numhits; i++) {
-	            output.add(new SingleHit(chromid,0,(float)0.0,false,(short)0));
-	        }
-	        IntBP ints = new IntBP(numhits);
-	        ReadableByteChannel rbc = Channels.newChannel(instream);
-	        Bits.readBytes(ints.bb, rbc);
-	        for (int i = 0; i < numhits; i++) {
-	            output.get(i).pos = ints.get(i);
-	        }
-	        FloatBP floats = new FloatBP(numhits);
-	        Bits.readBytes(floats.bb, rbc);
-	        for (int i = 0; i < numhits; i++) {
-	            output.get(i).weight = floats.get(i);
-	        }
-	        Bits.readBytes(ints.bb, rbc);
-	        for (int i = 0; i < numhits; i++) {
-	            int j = ints.get(i);
-	            SingleHit h = output.get(i);
-	            h.length = Hits.getLengthOne(j);
-	            h.strand = Hits.getStrandOne(j);
-	        }
-	        return output;
+	        return readSingleHits(chromid, numhits, instream);
     	}
     }
+    /** reads the positions, weights, and lengths and strands of numhits single-ended hits */
+    static List<SingleHit> readSingleHits(int chromid, int numhits, InputStream instream) throws IOException {
+        List<SingleHit> output = new ArrayList<SingleHit>();
+        for (int i = 0; i < numhits; i++) {
+            output.add(new SingleHit(chromid,0,(float)0.0,false,(short)0));
+        }
+        IntBP ints = new IntBP(numhits);
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        Bits.readBytes(ints.bb, rbc);
+        for (int i = 0; i < numhits; i++) {
+            output.get(i).pos = ints.get(i);
+        }
+        FloatBP floats = new FloatBP(numhits);
+        Bits.readBytes(floats.bb, rbc);
+        for (int i = 0; i < numhits; i++) {
+            output.get(i).weight = floats.get(i);
+        }
+        Bits.readBytes(ints.bb, rbc);
+        for (int i = 0; i < numhits; i++) {
+            int j = ints.get(i);
+            SingleHit h = output.get(i);
+            h.length = Hits.getLengthOne(j);
+            h.strand = Hits.getStrandOne(j);
+        }
+        return output;
+    }
     public List<PairedHit> getPairedHits(String alignid, int chromid, boolean isLeft, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
     	synchronized(this){
     		if(!connectionOpen)
@@ -885,81 +979,83 @@ public class Client implements ReadOnlyClient {
 	            }
 	            throw new ClientException(String.format("align %s chrom %d: %s", alignid, chromid, response));
 	        }
-	        List<PairedHit> output = new ArrayList<PairedHit>();
 	        int numhits = Integer.parseInt(readLine());
-	        for (int i = 0; i < numhits; i++) {
-	            output.add(new PairedHit(chromid,0,false,(short)0,
-	                                     chromid,0,false,(short)0,(float)0,0));
-	        }
-	        IntBP ints = new IntBP(numhits);
-	        ReadableByteChannel rbc = Channels.newChannel(instream);
-	        Bits.readBytes(ints.bb, rbc);
-	        if (isLeft) {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).leftPos = ints.get(i);
-	            }
-	        } else {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).rightPos = ints.get(i);
-	            }
-	        }
-	        FloatBP floats = new FloatBP(numhits);
-	        Bits.readBytes(floats.bb, rbc);
-	        for (int i = 0; i < numhits; i++) {
-	            output.get(i).weight = floats.get(i);
-	        }
-	
-	        Bits.readBytes(ints.bb, rbc);
-	        for (int i = 0; i < numhits; i++) {
-	            output.get(i).pairCode = ints.get(i);
-	        }
-	        
-	        Bits.readBytes(ints.bb, rbc);
-	        if (isLeft) {
-	            for (int i = 0; i < numhits; i++) {
-	                int j = ints.get(i);
-	                PairedHit h = output.get(i);                
-	                h.leftLength = Hits.getLengthOne(j);
-	                h.leftStrand = Hits.getStrandOne(j);
-	                h.rightLength = Hits.getLengthTwo(j);
-	                h.rightStrand = Hits.getStrandTwo(j);
-	            }
-	        } else {
-	            for (int i = 0; i < numhits; i++) {
-	                int j = ints.get(i);
-	                PairedHit h = output.get(i);                
-	                h.leftLength = Hits.getLengthTwo(j);
-	                h.leftStrand = Hits.getStrandTwo(j);
-	                h.rightLength = Hits.getLengthOne(j);
-	                h.rightStrand = Hits.getStrandOne(j);
-	            }
-	        }
-	        Bits.readBytes(ints.bb, rbc);
-	        if (isLeft) {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).rightChrom = ints.get(i);
-	            }
-	        } else {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).leftChrom = ints.get(i);
-	            }
-	        }
-	
-	        Bits.readBytes(ints.bb, rbc);
-	        if (isLeft) {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).rightPos = ints.get(i);
-	            }
-	        } else {
-	            for (int i = 0; i < numhits; i++) {
-	                output.get(i).leftPos = ints.get(i);
-	            }
-	        }
-	
-	
-	        return output;
+	        return readPairedHits(chromid, isLeft, numhits, instream);
     	}
     }
+    /** reads the fields of numhits paired hits; isLeft says which side of the pair the positions were queried on */
+    static List<PairedHit> readPairedHits(int chromid, boolean isLeft, int numhits, InputStream instream) throws IOException {
+        List<PairedHit> output = new ArrayList<PairedHit>();
+        for (int i = 0; i < numhits; i++) {
+            output.add(new PairedHit(chromid,0,false,(short)0,
+                                     chromid,0,false,(short)0,(float)0,0));
+        }
+        IntBP ints = new IntBP(numhits);
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        Bits.readBytes(ints.bb, rbc);
+        if (isLeft) {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).leftPos = ints.get(i);
+            }
+        } else {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).rightPos = ints.get(i);
+            }
+        }
+        FloatBP floats = new FloatBP(numhits);
+        Bits.readBytes(floats.bb, rbc);
+        for (int i = 0; i < numhits; i++) {
+            output.get(i).weight = floats.get(i);
+        }
+
+        Bits.readBytes(ints.bb, rbc);
+        for (int i = 0; i < numhits; i++) {
+            output.get(i).pairCode = ints.get(i);
+        }
+        
+        Bits.readBytes(ints.bb, rbc);
+        if (isLeft) {
+            for (int i = 0; i < numhits; i++) {
+                int j = ints.get(i);
+                PairedHit h = output.get(i);                
+                h.leftLength = Hits.getLengthOne(j);
+                h.leftStrand = Hits.getStrandOne(j);
+                h.rightLength = Hits.getLengthTwo(j);
+                h.rightStrand = Hits.getStrandTwo(j);
+            }
+        } else {
+            for (int i = 0; i < numhits; i++) {
+                int j = ints.get(i);
+                PairedHit h = output.get(i);                
+                h.leftLength = Hits.getLengthTwo(j);
+                h.leftStrand = Hits.getStrandTwo(j);
+                h.rightLength = Hits.getLengthOne(j);
+                h.rightStrand = Hits.getStrandOne(j);
+            }
+        }
+        Bits.readBytes(ints.bb, rbc);
+        if (isLeft) {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).rightChrom = ints.get(i);
+            }
+        } else {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).leftChrom = ints.get(i);
+            }
+        }
+
+        Bits.readBytes(ints.bb, rbc);
+        if (isLeft) {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).rightPos = ints.get(i);
+            }
+        } else {
+            for (int i = 0; i < numhits; i++) {
+                output.get(i).leftPos = ints.get(i);
+            }
+        }
+        return output;
+    }
 
 
     /**
@@ -992,92 +1088,223 @@ public class Client implements ReadOnlyClient {
     }
     public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
     	synchronized(this){
-    		if(!connectionOpen)
-    			reConnect();
-    		request.clear();
-	        request.type="histogram";
-	        request.alignid=alignid;
-	        request.chromid=chromid;
-	        request.start = start;
-	        request.end = stop;
-	        request.isLeft = isLeft;
-	        request.minWeight = minWeight;
-	        request.isType2 = isType2;
-	        request.isPlusStrand = plusStrand;
-	        request.isPaired = paired;
-	        request.map.put("binsize",Integer.toString(binsize));
-	        if (dedup > 0) {
-	            request.map.put("dedup",Integer.toString(dedup));
-	        }
-	        if (extension != 0) {
-	            request.map.put("extension",Integer.toString(extension));
-	        }
-	        sendString(request.toString());        
-	        String response = readLine();
-	        if (!response.equals("OK")) {
-	            if (printErrors) {
-	                System.err.println("not-OK response to request: " + response);
-	                System.err.println("request was " + request);
-	            }
-	            throw new ClientException(response);
-	        }
-	        int numints = Integer.parseInt(readLine());
-	        int out[] = Bits.readInts(numints, instream, buffer);
-	        TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
-	        for (int i = 0; i < out.length; i += 2) {
-	            output.put(out[i], out[i+1]);
-	        }
-	        return output;
+	        int numints = sendHistogramRequest("histogram", alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft);
+	        return readHistogram(numints, instream, buffer);
+    	}
+    }
+    /**
+     * Same as getHistogram(), but returns the bins as sorted arrays rather than a TreeMap
+     */
+    public IntHistogram getIntHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getIntHistogram(alignid, chromid, isType2, paired, extension, binsize, 0, start, stop, minWeight, plusStrand, true);
+    }
+    public IntHistogram getIntHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+    	synchronized(this){
+	        int numints = sendHistogramRequest("histogram", alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft);
+	        return readIntHistogram(numints, instream, buffer);
     	}
     }
+    /* sends a histogram or weighthistogram request and reads the response header.  Returns the number of values that follow.
+     * Call while synchronized on this.
+     */
+    private int sendHistogramRequest(String type, String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+        if(!connectionOpen)
+            reConnect();
+        request.clear();
+        request.type=type;
+        request.alignid=alignid;
+        request.chromid=chromid;
+        request.start = start;
+        request.end = stop;
+        request.isLeft = isLeft;
+        request.minWeight = minWeight;
+        request.isType2 = isType2;
+        request.isPlusStrand = plusStrand;
+        request.isPaired = paired;
+        request.map.put("binsize",Integer.toString(binsize));
+        if (dedup > 0) {
+            request.map.put("dedup",Integer.toString(dedup));
+        }
+        if (extension != 0) {
+            request.map.put("extension",Integer.toString(extension));
+        }
+        sendString(request.toString());        
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+        return Integer.parseInt(readLine());
+    }
     public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
         return getWeightHistogram(alignid, chromid, isType2, paired, extension, binsize, 0, start,stop,minWeight,plusStrand, true);
     }
     public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
     	synchronized(this){
-    		if(!connectionOpen)
-    			reConnect();
-    		request.clear();
-	        request.type="weighthistogram";
-	        request.alignid=alignid;
-	        request.chromid=chromid;
-	        request.start = start;
-	        request.end = stop;
-	        request.minWeight = minWeight;
-	        request.isType2 = isType2;
-	        request.isPlusStrand = plusStrand;
-	        request.isLeft = isLeft;
-	        request.isPaired = paired;
-	        request.map.put("binsize",Integer.toString(binsize));
-	        if (dedup > 0)
-	            request.map.put("dedup",Integer.toString(dedup));
-	        if (extension!=0)
-	            request.map.put("extension",Integer.toString(extension));
-	        
-	        sendString(request.toString());        
-	        String response = readLine();
-	        if (!response.equals("OK")) {
-	            if (printErrors) {
-	                System.err.println("not-OK response to request: " + response);
-	                System.err.println("request was " + request);
-	            }
-	            throw new ClientException(response);
-	        }
-	        int numints = Integer.parseInt(readLine());
-	        int out[] = Bits.readInts(numints, instream, buffer);
-	        float weight[] = Bits.readFloats(numints, instream,buffer);
-	        TreeMap<Integer,Float> output = new TreeMap<Integer,Float>();
-	        for (int i = 0; i < out.length; i++) {
-	            output.put(out[i], weight[i]);
-	        }
-	        return output;
+	        int numints = sendHistogramRequest("weighthistogram", alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft);
+	        return readWeightHistogram(numints, instream, buffer);
+    	}
+    }
+    /**
+     * Same as getWeightHistogram(), but returns the bins as sorted arrays rather than a TreeMap
+     */
+    public FloatHistogram getFloatHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getFloatHistogram(alignid, chromid, isType2, paired, extension, binsize, 0, start, stop, minWeight, plusStrand, true);
+    }
+    public FloatHistogram getFloatHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+    	synchronized(this){
+	        int numints = sendHistogramRequest("weighthistogram", alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft);
+	        return readFloatHistogram(numints, instream, buffer);
     	}
     }
 
     public TreeMap<Integer,Integer> getHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
         return getHistogram(alignids,chromid,isType2, paired,extension,binsize,0,start,stop,minWeight,plusStrand);
     }
+    /**
+     * Histogram summed over a set of alignments.  The server does the summing and
+     * returns one response, so this costs a single round trip regardless of the number of alignments.
+     * For paired alignments, a non-empty right-side bin replaces the left-side bin of the same alignment.
+     */
     public TreeMap<Integer,Integer> getHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (alignids.isEmpty()) {
+            return getHistogramPerAlignment(alignids,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand);
+        }
+        synchronized(this){
+            int numints = sendMultiHistogramRequest("multihistogram", alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+            if (numints >= 0) {
+                return readHistogram(numints, instream, buffer);
+            }
+        }
+        return getHistogramPerAlignment(alignids,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand);
+    }
+    public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return getWeightHistogram(alignids,chromid,isType2, paired,extension,binsize,0,start,stop,minWeight,plusStrand);
+    }
+    /**
+     * Weight histogram summed over a set of alignments.  See getHistogram(Collection,...)
+     */
+    public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (alignids.isEmpty()) {
+            return getWeightHistogramPerAlignment(alignids,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand);
+        }
+        synchronized(this){
+            int numints = sendMultiHistogramRequest("multiweighthistogram", alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+            if (numints >= 0) {
+                return readWeightHistogram(numints, instream, buffer);
+            }
+        }
+        return getWeightHistogramPerAlignment(alignids,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand);
+    }
+    /** reads a histogram response: numints ints, alternating bin position and count */
+    static TreeMap<Integer,Integer> readHistogram(int numints, InputStream instream, byte[] buffer) throws IOException {
+        int out[] = Bits.readInts(numints, instream, buffer);
+        TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
+        for (int i = 0; i < out.length; i += 2) {
+            output.put(out[i], out[i+1]);
+        }
+        return output;
+    }
+    static IntHistogram readIntHistogram(int numints, InputStream instream, byte[] buffer) throws IOException {
+        int out[] = Bits.readInts(numints, instream, buffer);
+        int[] positions = new int[numints/2], counts = new int[numints/2];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = out[2*i];
+            counts[i] = out[2*i+1];
+        }
+        return new IntHistogram(positions, counts);
+    }
+    /** reads a weight histogram response: numints bin positions, then numints weights */
+    static TreeMap<Integer,Float> readWeightHistogram(int numints, InputStream instream, byte[] buffer) throws IOException {
+        int out[] = Bits.readInts(numints, instream, buffer);
+        float weight[] = Bits.readFloats(numints, instream,buffer);
+        TreeMap<Integer,Float> output = new TreeMap<Integer,Float>();
+        for (int i = 0; i < out.length; i++) {
+            output.put(out[i], weight[i]);
+        }
+        return output;
+    }
+    static FloatHistogram readFloatHistogram(int numints, InputStream instream, byte[] buffer) throws IOException {
+        int out[] = Bits.readInts(numints, instream, buffer);
+        float weight[] = Bits.readFloats(numints, instream,buffer);
+        return new FloatHistogram(out, weight);
+    }
+    /**
+     * Same as getHistogram(Collection,...), but returns the bins as sorted arrays rather than a TreeMap
+     */
+    public IntHistogram getIntHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (alignids.isEmpty()) {
+            return IntHistogram.empty();
+        }
+        synchronized(this){
+            int numints = sendMultiHistogramRequest("multihistogram", alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+            if (numints >= 0) {
+                return readIntHistogram(numints, instream, buffer);
+            }
+        }
+        return IntHistogram.fromMap(getHistogramPerAlignment(alignids,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand));
+    }
+    /**
+     * Same as getWeightHistogram(Collection,...), but returns the bins as sorted arrays rather than a TreeMap
+     */
+    public FloatHistogram getFloatHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if (alignids.isEmpty()) {
+            return FloatHistogram.empty();
+        }
+        synchronized(this){
+            int numints = sendMultiHistogramRequest("multiweighthistogram", alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+            if (numints >= 0) {
+                return readFloatHistogram(numints, instream, buffer);
+            }
+        }
+        return FloatHistogram.fromMap(getWeightHistogramPerAlignment(alignids,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand));
+    }
+    /* sends a multihistogram request and reads the response header.  Returns the number of values that follow, 
+     * or -1 if the server doesn't support multihistogram.  Call while synchronized on this.
+     */
+    private int sendMultiHistogramRequest(String type, Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        if(!connectionOpen)
+            reConnect();
+        setMultiHistogramRequest(type, alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+        sendString(request.toString());        
+        String response = readLine();
+        if (!response.equals("OK")) {
+            if (response.startsWith(OLDSERVERRESPONSE)) {
+                return -1;
+            }
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+        return Integer.parseInt(readLine());
+    }
+    /* servers that predate multihistogram treat it as a request on a single alignment with no alignid */
+    static final String OLDSERVERRESPONSE = "null or empty alignment";
+    private void setMultiHistogramRequest(String type, Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) {
+        request.clear();
+        request.type=type;
+        request.chromid=chromid;
+        request.start = start;
+        request.end = stop;
+        request.minWeight = minWeight;
+        request.isType2 = isType2;
+        request.isPlusStrand = plusStrand;
+        request.isLeft = true;
+        request.isPaired = paired;
+        request.map.put("binsize",Integer.toString(binsize));
+        if (dedup > 0)
+            request.map.put("dedup",Integer.toString(dedup));
+        if (extension!=0)
+            request.map.put("extension",Integer.toString(extension));
+        request.list.addAll(alignids);
+    }
+    /* one request per alignment, for servers that don't support multihistogram */
+    private TreeMap<Integer,Integer> getHistogramPerAlignment(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
         TreeMap<Integer,Integer> output = null;
         for (String alignid : alignids) {
             TreeMap<Integer,Integer> o = getHistogram(alignid,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand,true);
@@ -1104,10 +1331,7 @@ public class Client implements ReadOnlyClient {
         }
         return output;
     }
-    public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
-        return getWeightHistogram(alignids,chromid,isType2, paired,extension,binsize,0,start,stop,minWeight,plusStrand);
-    }
-    public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+    private TreeMap<Integer,Float> getWeightHistogramPerAlignment(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
         TreeMap<Integer,Float> output = null;
         for (String alignid : alignids) {
             TreeMap<Integer,Float> o = getWeightHistogram(alignid,chromid,isType2, paired,extension,binsize,dedup,start,stop,minWeight,plusStrand, true);
@@ -0,0 +1,651 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * <p>API for remote access to the readdb server over a pool of connections, with pipelined and asynchronous queries.
+ *
+ * <p>Each connection is authenticated once, when the pool is created.  A query goes to the connection with the
+ * fewest requests outstanding.  Requests are written to a connection without waiting for the responses to earlier
+ * requests, up to maxInFlight at a time; the server handles the requests on a connection in order,
+ * so a reader thread for each connection matches the responses to the requests in the order they were sent.
+ *
+ * <p>The ...Async methods return a CompletableFuture that the connection's reader thread completes.
+ * Stages attached with the non-Async CompletableFuture methods run on that thread too, so they must not block.
+ * The blocking methods take the same parameters as the corresponding Client methods, and unlike Client,
+ * any number of threads may call them at once.  If every connection has maxInFlight requests outstanding,
+ * new requests wait for a slot.
+ *
+ * <p>An IOException on a connection (eg, a socket timeout) fails every request outstanding on that connection,
+ * and the connection is re-opened for its next request.  Error responses from the server (ClientException) only
+ * fail their own request.
+ */
+public class ClientPool implements ReadOnlyClient {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    private static final int BUFFERLEN = 8192*20;
+    private Connection[] connections;
+    private AtomicInteger nextConnection = new AtomicInteger(0);
+    private volatile boolean closed = false;
+    private boolean printErrors = false;
+    private String hostname, username;
+    private int portnum;
+
+    /** Connects poolSize times to a ReadDB server on the specified host and port using the specified
+     * username and password.
+     * @param maxInFlight maximum number of outstanding requests on each connection
+     * @throws IOException on network errors
+     * @throws ClientException if the client cannot authenticate to the server
+     */
+    public ClientPool(String hostname, int portnum, String username, String passwd, int poolSize, int maxInFlight) throws IOException, ClientException {
+        init(hostname, portnum, username, passwd, poolSize, maxInFlight);
+    }
+    /**
+     * Creates poolSize connections as specified by ~/.readdb_passwd or a readdb_passwd found in the classpath
+     * (see Client())
+     * @throws IOException on network errors
+     * @throws ClientException if the client cannot authenticate to the server
+     */
+    public ClientPool(int poolSize) throws IOException, ClientException {
+        PropertyResourceBundle bundle = Client.defaultConnectionProperties();
+        init(bundle.getString("hostname"), Integer.parseInt(bundle.getString("port")),
+             bundle.getString("username"), bundle.getString("passwd"), poolSize, DEFAULT_MAX_IN_FLIGHT);
+    }
+    private void init(String hostname, int portnum, String username, String passwd, int poolSize, int maxInFlight) throws IOException, ClientException {
+        if (poolSize < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("poolSize and maxInFlight must be at least 1");
+        }
+        this.hostname = hostname;
+        this.portnum = portnum;
+        this.username = username;
+        connections = new Connection[poolSize];
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                connections[i] = new Connection(new Client(hostname, portnum, username, passwd), maxInFlight);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (ClientException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Return some basic information about the server
+     * @return string
+     */
+    public String getServerInfo(){
+    	return("ReadDB\t"+hostname+"\t"+portnum+"\t"+username+"\tpool="+connections.length);
+    }
+    /**
+     * Determines whether the pool will print error messages to STDERR.
+     */
+    public void printErrors(boolean b) {printErrors = b;}
+    public int getPoolSize() {return connections.length;}
+
+    /**
+     * Closes all of the connections.  Outstanding requests fail with an IOException.
+     */
+    public void close() {
+        closed = true;
+        for (Connection c : connections) {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /* -------------------------------------------------------------------------
+     * Asynchronous queries
+     * ------------------------------------------------------------------------- */
+
+    /** See Client.exists() */
+    public CompletableFuture<Boolean> existsAsync(String alignid) {
+        Request request = new Request();
+        request.type="exists";
+        request.alignid=alignid;
+        return submit(new Call<Boolean>(request) {
+                Boolean read(InputStream in, byte[] buffer) throws IOException {
+                    return readLine(in, buffer).equals("exists");
+                }
+            });
+    }
+    /** See Client.getChroms() */
+    public CompletableFuture<Set<Integer>> getChromsAsync(String alignid, boolean isType2, boolean isPaired, Boolean isLeft) {
+        Request request = new Request();
+        request.type="getchroms";
+        request.isType2 = isType2;
+        request.isLeft = isLeft;
+        request.isPaired = isPaired;
+        request.alignid=alignid;
+        return submit(new Call<Set<Integer>>(request) {
+                Set<Integer> read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numchroms = Integer.parseInt(readLine(in, buffer));
+                    Set<Integer> output = new HashSet<Integer>();
+                    while (numchroms-- > 0) {
+                        output.add(Integer.parseInt(readLine(in, buffer)));
+                    }
+                    return output;
+                }
+            });
+    }
+    /** See Client.getCount() */
+    public CompletableFuture<Integer> getCountAsync(String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Request request = rangeRequest("count", alignid, chromid, isType2, paired, start, stop, minWeight, isLeft == null ? true : isLeft, plusStrand);
+        return submit(new Call<Integer>(request) {
+                Integer read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    return Integer.parseInt(readLine(in, buffer));
+                }
+            });
+    }
+    /** See Client.getWeight() */
+    public CompletableFuture<Double> getWeightAsync(String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Request request = rangeRequest("weight", alignid, chromid, isType2, paired, start, stop, minWeight, isLeft == null ? true : isLeft, plusStrand);
+        return submit(new Call<Double>(request) {
+                Double read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    return Double.parseDouble(readLine(in, buffer));
+                }
+            });
+    }
+    /** See Client.getPositions() */
+    public CompletableFuture<int[]> getPositionsAsync(String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Request request = rangeRequest("gethits", alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand);
+        request.map.put("wantpositions","1");
+        return submit(new Call<int[]>(request) {
+                int[] read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numhits = Integer.parseInt(readLine(in, buffer));
+                    return Bits.readInts(numhits, in, buffer);
+                }
+            });
+    }
+    /** See Client.getWeightsRange() */
+    public CompletableFuture<float[]> getWeightsRangeAsync(String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Request request = rangeRequest("gethits", alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand);
+        request.map.put("wantweights","1");
+        return submit(new Call<float[]>(request) {
+                float[] read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numhits = Integer.parseInt(readLine(in, buffer));
+                    return Bits.readFloats(numhits, in, buffer);
+                }
+            });
+    }
+    /** See Client.getSingleHits() */
+    public CompletableFuture<List<SingleHit>> getSingleHitsAsync(String alignid, final int chromid, boolean isType2, Integer start, Integer stop, Float minWeight, Boolean plusStrand) {
+        Request request = rangeRequest("gethits", alignid, chromid, isType2, false, start, stop, minWeight, true, plusStrand);
+        request.map.put("wantpositions","1");
+        request.map.put("wantweights","1");
+        request.map.put("wantlengthsandstrands","1");
+        return submit(new Call<List<SingleHit>>(request) {
+                List<SingleHit> read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numhits = Integer.parseInt(readLine(in, buffer));
+                    return Client.readSingleHits(chromid, numhits, in);
+                }
+            });
+    }
+    /** See Client.getPairedHits() */
+    public CompletableFuture<List<PairedHit>> getPairedHitsAsync(String alignid, final int chromid, final boolean isLeft, Integer start, Integer stop, Float minWeight, Boolean plusStrand) {
+        Request request = rangeRequest("gethits", alignid, chromid, false, true, start, stop, minWeight, isLeft, plusStrand);
+        request.map.put("wantpositions","1");
+        request.map.put("wantweights","1");
+        request.map.put("wantpaircodes","1");
+        request.map.put("wantlengthsandstrands","1");
+        request.map.put("wantotherchroms","1");
+        request.map.put("wantotherpositions","1");
+        return submit(new Call<List<PairedHit>>(request) {
+                List<PairedHit> read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numhits = Integer.parseInt(readLine(in, buffer));
+                    return Client.readPairedHits(chromid, isLeft, numhits, in);
+                }
+            });
+    }
+    /** See Client.getHistogram() */
+    public CompletableFuture<TreeMap<Integer,Integer>> getHistogramAsync(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) {
+        Request request = rangeRequest("histogram", alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand);
+        setHistogramParams(request, extension, binsize, dedup);
+        return submit(new Call<TreeMap<Integer,Integer>>(request) {
+                TreeMap<Integer,Integer> read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numints = Integer.parseInt(readLine(in, buffer));
+                    return Client.readHistogram(numints, in, buffer);
+                }
+            });
+    }
+    /** See Client.getWeightHistogram() */
+    public CompletableFuture<TreeMap<Integer,Float>> getWeightHistogramAsync(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) {
+        Request request = rangeRequest("weighthistogram", alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand);
+        setHistogramParams(request, extension, binsize, dedup);
+        return submit(new Call<TreeMap<Integer,Float>>(request) {
+                TreeMap<Integer,Float> read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numints = Integer.parseInt(readLine(in, buffer));
+                    return Client.readWeightHistogram(numints, in, buffer);
+                }
+            });
+    }
+    /** See Client.getIntHistogram() */
+    public CompletableFuture<IntHistogram> getIntHistogramAsync(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) {
+        Request request = rangeRequest("histogram", alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand);
+        setHistogramParams(request, extension, binsize, dedup);
+        return submit(new Call<IntHistogram>(request) {
+                IntHistogram read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numints = Integer.parseInt(readLine(in, buffer));
+                    return Client.readIntHistogram(numints, in, buffer);
+                }
+            });
+    }
+    /** See Client.getFloatHistogram() */
+    public CompletableFuture<FloatHistogram> getFloatHistogramAsync(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) {
+        Request request = rangeRequest("weighthistogram", alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand);
+        setHistogramParams(request, extension, binsize, dedup);
+        return submit(new Call<FloatHistogram>(request) {
+                FloatHistogram read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    readOK(in, buffer);
+                    int numints = Integer.parseInt(readLine(in, buffer));
+                    return Client.readFloatHistogram(numints, in, buffer);
+                }
+            });
+    }
+    /** Histogram summed over a set of alignments.  See Client.getHistogram(Collection,...) */
+    public CompletableFuture<TreeMap<Integer,Integer>> getHistogramAsync(final Collection<String> alignids, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final int dedup, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) {
+        if (alignids.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Request request = multiHistogramRequest("multihistogram", alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+        CompletableFuture<TreeMap<Integer,Integer>> f = submit(new Call<TreeMap<Integer,Integer>>(request) {
+                TreeMap<Integer,Integer> read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    if (readOKOrOldServer(in, buffer)) {
+                        int numints = Integer.parseInt(readLine(in, buffer));
+                        return Client.readHistogram(numints, in, buffer);
+                    }
+                    return null;
+                }
+            });
+        //servers that don't support multihistogram get one request per alignment
+        return f.thenComposeAsync(new Function<TreeMap<Integer,Integer>, CompletionStage<TreeMap<Integer,Integer>>>() {
+                public CompletionStage<TreeMap<Integer,Integer>> apply(TreeMap<Integer,Integer> output) {
+                    if (output != null) {
+                        return CompletableFuture.completedFuture(output);
+                    }
+                    final List<CompletableFuture<TreeMap<Integer,Integer>>> parts = new ArrayList<CompletableFuture<TreeMap<Integer,Integer>>>();
+                    for (String alignid : alignids) {
+                        parts.add(getHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, true));
+                        if (paired) {
+                            parts.add(getHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, false));
+                        }
+                    }
+                    return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(new Function<Void, TreeMap<Integer,Integer>>() {
+                            public TreeMap<Integer,Integer> apply(Void v) {
+                                TreeMap<Integer,Integer> output = null;
+                                for (int i = 0; i < parts.size(); i += (paired ? 2 : 1)) {
+                                    TreeMap<Integer,Integer> o = parts.get(i).join();
+                                    if (paired) {
+                                        o.putAll(parts.get(i+1).join());
+                                    }
+                                    output = Aggregator.mergeHistogramsII(o, output);
+                                }
+                                return output;
+                            }
+                        });
+                }
+            });
+    }
+    /** Weight histogram summed over a set of alignments.  See Client.getWeightHistogram(Collection,...) */
+    public CompletableFuture<TreeMap<Integer,Float>> getWeightHistogramAsync(final Collection<String> alignids, final int chromid, final boolean isType2, final boolean paired, final int extension, final int binsize, final int dedup, final Integer start, final Integer stop, final Float minWeight, final Boolean plusStrand) {
+        if (alignids.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Request request = multiHistogramRequest("multiweighthistogram", alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand);
+        CompletableFuture<TreeMap<Integer,Float>> f = submit(new Call<TreeMap<Integer,Float>>(request) {
+                TreeMap<Integer,Float> read(InputStream in, byte[] buffer) throws IOException, ClientException {
+                    if (readOKOrOldServer(in, buffer)) {
+                        int numints = Integer.parseInt(readLine(in, buffer));
+                        return Client.readWeightHistogram(numints, in, buffer);
+                    }
+                    return null;
+                }
+            });
+        return f.thenComposeAsync(new Function<TreeMap<Integer,Float>, CompletionStage<TreeMap<Integer,Float>>>() {
+                public CompletionStage<TreeMap<Integer,Float>> apply(TreeMap<Integer,Float> output) {
+                    if (output != null) {
+                        return CompletableFuture.completedFuture(output);
+                    }
+                    final List<CompletableFuture<TreeMap<Integer,Float>>> parts = new ArrayList<CompletableFuture<TreeMap<Integer,Float>>>();
+                    for (String alignid : alignids) {
+                        parts.add(getWeightHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, true));
+                        if (paired) {
+                            parts.add(getWeightHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, false));
+                        }
+                    }
+                    return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(new Function<Void, TreeMap<Integer,Float>>() {
+                            public TreeMap<Integer,Float> apply(Void v) {
+                                TreeMap<Integer,Float> output = null;
+                                for (int i = 0; i < parts.size(); i += (paired ? 2 : 1)) {
+                                    TreeMap<Integer,Float> o = parts.get(i).join();
+                                    if (paired) {
+                                        o.putAll(parts.get(i+1).join());
+                                    }
+                                    output = Aggregator.mergeHistogramsFF(o, output);
+                                }
+                                return output;
+                            }
+                        });
+                }
+            });
+    }
+
+    /* -------------------------------------------------------------------------
+     * Blocking queries
+     * ------------------------------------------------------------------------- */
+
+    public boolean exists(String alignid) throws IOException, ClientException {
+        return get(existsAsync(alignid));
+    }
+    public Set<Integer> getChroms(String alignid, boolean isType2, boolean isPaired, Boolean isLeft) throws IOException, ClientException {
+        return get(getChromsAsync(alignid, isType2, isPaired, isLeft));
+    }
+    public int getCount(String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        return get(getCountAsync(alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    public double getWeight(String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        return get(getWeightAsync(alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    public int[] getPositions(String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        return get(getPositionsAsync(alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    public float[] getWeightsRange(String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) throws IOException, ClientException {
+        return get(getWeightsRangeAsync(alignid, chromid, isType2, paired, start, stop, minWeight, isLeft, plusStrand));
+    }
+    public List<SingleHit> getSingleHits(String alignid, int chromid, boolean isType2, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return get(getSingleHitsAsync(alignid, chromid, isType2, start, stop, minWeight, plusStrand));
+    }
+    public List<PairedHit> getPairedHits(String alignid, int chromid, boolean isLeft, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return get(getPairedHitsAsync(alignid, chromid, isLeft, start, stop, minWeight, plusStrand));
+    }
+    public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return get(getHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, 0, start, stop, minWeight, plusStrand, true));
+    }
+    public TreeMap<Integer,Integer> getHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+        return get(getHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft));
+    }
+    public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return get(getWeightHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, 0, start, stop, minWeight, plusStrand, true));
+    }
+    public TreeMap<Integer,Float> getWeightHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand, boolean isLeft) throws IOException, ClientException {
+        return get(getWeightHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand, isLeft));
+    }
+    public IntHistogram getIntHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return get(getIntHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, 0, start, stop, minWeight, plusStrand, true));
+    }
+    public FloatHistogram getFloatHistogram(String alignid, int chromid, boolean isType2, boolean paired, int extension, int binsize, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return get(getFloatHistogramAsync(alignid, chromid, isType2, paired, extension, binsize, 0, start, stop, minWeight, plusStrand, true));
+    }
+    public TreeMap<Integer,Integer> getHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return get(getHistogramAsync(alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand));
+    }
+    public TreeMap<Integer,Float> getWeightHistogram(Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) throws IOException, ClientException {
+        return get(getWeightHistogramAsync(alignids, chromid, isType2, paired, extension, binsize, dedup, start, stop, minWeight, plusStrand));
+    }
+
+    /**
+     * Waits for a query and rethrows its IOException or ClientException
+     */
+    public static <T> T get(CompletableFuture<T> f) throws IOException, ClientException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for readdb");
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            while (t instanceof CompletionException && t.getCause() != null) {
+                t = t.getCause();
+            }
+            if (t instanceof IOException) {
+                throw (IOException)t;
+            } else if (t instanceof ClientException) {
+                throw (ClientException)t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException)t;
+            }
+            throw new IOException(t);
+        }
+    }
+
+    /* -------------------------------------------------------------------------
+     * Requests and connections
+     * ------------------------------------------------------------------------- */
+
+    /* like Client.readLine(), but a closed connection is an error rather than a short line */
+    private static String readLine(InputStream in, byte[] buffer) throws IOException {
+        int pos = 0;
+        int i;
+        while ((i = in.read()) != '\n') {
+            if (i == -1) {
+                throw new EOFException("readdb server closed the connection");
+            }
+            buffer[pos++] = (byte)i;
+        }
+        return new String(buffer,0,pos);
+    }
+
+    private static Request rangeRequest(String type, String alignid, int chromid, boolean isType2, boolean paired, Integer start, Integer stop, Float minWeight, Boolean isLeft, Boolean plusStrand) {
+        Request request = new Request();
+        request.type=type;
+        request.alignid=alignid;
+        request.chromid=chromid;
+        request.start = start;
+        request.end = stop;
+        request.minWeight = minWeight;
+        request.isType2 = isType2;
+        request.isPlusStrand = plusStrand;
+        request.isPaired = paired;
+        request.isLeft = isLeft;
+        return request;
+    }
+    private static void setHistogramParams(Request request, int extension, int binsize, int dedup) {
+        request.map.put("binsize",Integer.toString(binsize));
+        if (dedup > 0)
+            request.map.put("dedup",Integer.toString(dedup));
+        if (extension!=0)
+            request.map.put("extension",Integer.toString(extension));
+    }
+    private static Request multiHistogramRequest(String type, Collection<String> alignids, int chromid, boolean isType2, boolean paired, int extension, int binsize, int dedup, Integer start, Integer stop, Float minWeight, Boolean plusStrand) {
+        Request request = rangeRequest(type, null, chromid, isType2, paired, start, stop, minWeight, true, plusStrand);
+        setHistogramParams(request, extension, binsize, dedup);
+        request.list.addAll(alignids);
+        return request;
+    }
+
+    /* sends the call on the connection with the fewest outstanding requests */
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        int n = connections.length;
+        int first = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % n;
+        Connection best = connections[first];
+        for (int i = 1; i < n; i++) {
+            Connection c = connections[(first + i) % n];
+            if (c.inFlight.get() < best.inFlight.get()) {
+                best = c;
+            }
+        }
+        best.send(call);
+        return call.future;
+    }
+
+    /**
+     * One request and the parsing of its response.
+     */
+    private abstract class Call<T> {
+        Request request;
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        Connection connection;
+        InputStream in; //the stream of the socket the request was sent on
+        AtomicBoolean done = new AtomicBoolean(false);
+        Call(Request r) {
+            request = r;
+        }
+        /** reads the whole response to the request */
+        abstract T read(InputStream in, byte[] buffer) throws IOException, ClientException;
+
+        void readOK(InputStream in, byte[] buffer) throws IOException, ClientException {
+            String response = readLine(in, buffer);
+            if (!response.equals("OK")) {
+                notOK(response);
+            }
+        }
+        /* returns false if the server is too old to know the request */
+        boolean readOKOrOldServer(InputStream in, byte[] buffer) throws IOException, ClientException {
+            String response = readLine(in, buffer);
+            if (response.equals("OK")) {
+                return true;
+            } else if (response.startsWith(Client.OLDSERVERRESPONSE)) {
+                return false;
+            }
+            notOK(response);
+            return false;
+        }
+        void notOK(String response) throws ClientException {
+            if (printErrors) {
+                System.err.println("not-OK response to request: " + response);
+                System.err.println("request was " + request);
+            }
+            throw new ClientException(response);
+        }
+        /* the call may be failed by both the sender and the reader, so only the first completion releases its slot */
+        void complete(T value) {
+            if (done.compareAndSet(false, true)) {
+                connection.release();
+                future.complete(value);
+            }
+        }
+        void fail(Throwable t) {
+            if (done.compareAndSet(false, true)) {
+                connection.release();
+                future.completeExceptionally(t);
+            }
+        }
+        /* reads the response and completes the future.  Only IOExceptions leave the stream in an unknown state */
+        void readResponse(byte[] buffer) throws IOException {
+            T value;
+            try {
+                value = read(in, buffer);
+            } catch (ClientException e) {
+                fail(e);
+                return;
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected response from readdb server: " + e.getMessage());
+            }
+            complete(value);
+        }
+    }
+
+    /**
+     * A pooled connection: an authenticated Client whose streams are used directly for pipelining,
+     * and a reader thread that completes the outstanding requests in order.
+     */
+    private class Connection implements Runnable {
+        Client client;
+        Semaphore slots;
+        AtomicInteger inFlight = new AtomicInteger(0);
+        LinkedBlockingQueue<Call<?>> pending = new LinkedBlockingQueue<Call<?>>();
+        Thread reader;
+        byte[] buffer = new byte[BUFFERLEN];
+
+        Connection(Client client, int maxInFlight) {
+            this.client = client;
+            slots = new Semaphore(maxInFlight);
+            reader = new Thread(this, "ReadDB ClientPool reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(Call<?> call) {
+            call.connection = this;
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                call.future.completeExceptionally(new InterruptedIOException("Interrupted waiting for a readdb connection"));
+                return;
+            }
+            inFlight.incrementAndGet();
+            synchronized(this) {
+                if (closed) {
+                    call.fail(new IOException("ClientPool is closed"));
+                    return;
+                }
+                if (!client.isOpen()) {
+                    client.reConnect();
+                    if (!client.isOpen()) {
+                        call.fail(new IOException("Can't reconnect to readdb server " + hostname + ":" + portnum));
+                        return;
+                    }
+                }
+                call.in = client.instream;
+                pending.add(call);
+                try {
+                    client.outstream.write(call.request.toString().getBytes());
+                    client.outstream.flush();
+                    client.markActive();
+                } catch (IOException e) {
+                    failConnection(call.in, e);
+                }
+            }
+        }
+        void release() {
+            inFlight.decrementAndGet();
+            slots.release();
+        }
+        /* closes the connection if it is still on the failed stream, and fails all of its outstanding requests */
+        synchronized void failConnection(InputStream failed, IOException e) {
+            if (failed != client.instream) {
+                return;
+            }
+            client.close();
+            List<Call<?>> calls = new ArrayList<Call<?>>();
+            pending.drainTo(calls);
+            for (Call<?> c : calls) {
+                c.fail(e);
+            }
+        }
+        void close() {
+            reader.interrupt();
+            failConnection(client.instream, new IOException("ClientPool is closed"));
+        }
+        public void run() {
+            while (true) {
+                Call<?> call;
+                try {
+                    call = pending.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    call.readResponse(buffer);
+                    client.markActive();
+                } catch (IOException e) {
+                    call.fail(e);
+                    failConnection(call.in, e);
+                } catch (RuntimeException e) {
+                    IOException ioe = new IOException("Error reading response from readdb server", e);
+                    call.fail(ioe);
+                    failConnection(call.in, ioe);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+/**
+ * Block-compressed layout for the single-end hits of one chromosome.  It replaces the three
+ * raw .spositions/.sweights/.slas files with one .scompressed file (.st2compressed for type 2 hits).
+ *
+ * <p>Hits are stored in blocks of BLOCKSIZE hits, which is the number of hits in a Header page.
+ * Within a block, positions are the first position followed by the varint-encoded differences
+ * between successive positions.  Weights and LAS values are run-length encoded as (varint run
+ * length, value) pairs, so the usual constant weight of 1.0 costs a few bytes per block.
+ *
+ * <p>The file is mapped rather than read, and decode() only touches the blocks that cover the
+ * hits it's asked for.  The result is an in-memory SingleHits that the rest of the server uses
+ * just like one read from the raw files.
+ *
+ * <p>File layout (big-endian):
+ * <pre>
+ * int magic, int version, int numHits, int numBlocks
+ * int[numBlocks+1] index of the first hit in each block; the last entry is numHits
+ * long[numBlocks+1] byte offset of each block; the last entry is the end of the file
+ * block data
+ * </pre>
+ */
+public class CompressedHits implements Closeable {
+
+    public static final int MAGIC = 0x52444243;
+    public static final int FORMAT_VERSION = 1;
+    public static final int BLOCKSIZE = 4096;
+
+    private int chrom;
+    private int numHits;
+    private int[] blockStarts;
+    private long[] blockOffsets;
+    private ByteBuffer bb;
+
+    public CompressedHits(String prefix, int chrom, boolean type2) throws IOException {
+        this.chrom = chrom;
+        RandomAccessFile raf = new RandomAccessFile(getFname(prefix, chrom, type2),"r");
+        try {
+            FileChannel fc = raf.getChannel();
+            bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            raf.close();
+        }
+        if (bb.getInt(0) != MAGIC) {
+            throw new IOException("Not a compressed hits file: " + getFname(prefix, chrom, type2));
+        }
+        int version = bb.getInt(4);
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Unknown compressed hits version " + version + " in " + getFname(prefix, chrom, type2));
+        }
+        numHits = bb.getInt(8);
+        int numBlocks = bb.getInt(12);
+        blockStarts = new int[numBlocks + 1];
+        blockOffsets = new long[numBlocks + 1];
+        int p = 16;
+        for (int i = 0; i <= numBlocks; i++) {
+            blockStarts[i] = bb.getInt(p);
+            p += 4;
+        }
+        for (int i = 0; i <= numBlocks; i++) {
+            blockOffsets[i] = bb.getLong(p);
+            p += 8;
+        }
+    }
+    public int getNumHits() {return numHits;}
+    public long getMappedBytes() {return bb.capacity();}
+    public void close() {
+        Bits.unmap(bb);
+        bb = null;
+    }
+
+    /**
+     * Decodes the blocks that contain the hits from firstindex (inclusive) to lastindex (exclusive),
+     * eg the values returned by Header.getFirstIndex() and Header.getLastIndex().  The result
+     * starts and ends on block boundaries, so it usually includes some hits on either side.
+     */
+    public SingleHits decode(int firstindex, int lastindex) {
+        firstindex = Math.max(0, Math.min(firstindex, numHits));
+        lastindex = Math.max(firstindex, Math.min(lastindex, numHits));
+        if (firstindex == lastindex) {
+            return new SingleHits(chrom, new IntBP(0), new FloatBP(0), new IntBP(0));
+        }
+        int firstblock = findBlock(firstindex);
+        int lastblock = findBlock(lastindex - 1);
+        int offset = blockStarts[firstblock];
+        int n = blockStarts[lastblock + 1] - offset;
+        IntBP positions = new IntBP(n);
+        FloatBP weights = new FloatBP(n);
+        IntBP las = new IntBP(n);
+        for (int b = firstblock; b <= lastblock; b++) {
+            decodeBlock(b, positions, weights, las, blockStarts[b] - offset);
+        }
+        return new SingleHits(chrom, positions, weights, las);
+    }
+    public SingleHits decodeAll() {
+        return decode(0, numHits);
+    }
+    /* index of the block containing hit i */
+    private int findBlock(int i) {
+        int b = Arrays.binarySearch(blockStarts, i);
+        if (b < 0) {
+            b = -b - 2;
+        }
+        /* blocks are never empty, so an exact match is the start of block b */
+        return Math.min(b, blockStarts.length - 2);
+    }
+    private void decodeBlock(int b, IntBP positions, FloatBP weights, IntBP las, int out) {
+        int n = blockStarts[b+1] - blockStarts[b];
+        int[] p = new int[1];
+        p[0] = (int)blockOffsets[b];
+        int pos = bb.getInt(p[0]);
+        p[0] += 4;
+        positions.put(out, pos);
+        for (int i = 1; i < n; i++) {
+            pos += readVarint(p);
+            positions.put(out + i, pos);
+        }
+        int i = 0;
+        while (i < n) {
+            int run = readVarint(p);
+            float w = bb.getFloat(p[0]);
+            p[0] += 4;
+            for (int j = 0; j < run; j++) {
+                weights.put(out + i++, w);
+            }
+        }
+        i = 0;
+        while (i < n) {
+            int run = readVarint(p);
+            int l = readVarint(p);
+            for (int j = 0; j < run; j++) {
+                las.put(out + i++, l);
+            }
+        }
+    }
+    /* reads an unsigned varint at p[0] and advances p[0] past it */
+    private int readVarint(int[] p) {
+        int v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bb.get(p[0]++);
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    /**
+     * Writes hits, which must be sorted, in the compressed layout.  The file is written under a temporary
+     * name and renamed into place.
+     */
+    public static void write(Hits hits, String prefix, int chrom, boolean type2) throws IOException {
+        IntBP positions = hits.getPositionsBuffer();
+        FloatBP weights = hits.getWeightsBuffer();
+        IntBP las = hits.getLASBuffer();
+        int n = positions.limit();
+        int numBlocks = (n + BLOCKSIZE - 1) / BLOCKSIZE;
+        int tablesize = 16 + (numBlocks + 1) * 12;
+        String fname = getFname(prefix, chrom, type2);
+        RandomAccessFile raf = new RandomAccessFile(fname + ".tmp","rw");
+        raf.setLength(0);
+        FileChannel fc = raf.getChannel();
+        fc.position(tablesize);
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(fc), 1<<16));
+        DataOutputStream out = new DataOutputStream(counter);
+        ByteBuffer table = ByteBuffer.allocate(tablesize);
+        table.putInt(MAGIC);
+        table.putInt(FORMAT_VERSION);
+        table.putInt(n);
+        table.putInt(numBlocks);
+        long[] offsets = new long[numBlocks + 1];
+        for (int b = 0; b < numBlocks; b++) {
+            int start = b * BLOCKSIZE;
+            int end = Math.min(n, start + BLOCKSIZE);
+            table.putInt(start);
+            offsets[b] = tablesize + counter.count;
+            out.writeInt(positions.get(start));
+            for (int i = start + 1; i < end; i++) {
+                writeVarint(out, positions.get(i) - positions.get(i-1));
+            }
+            int i = start;
+            while (i < end) {
+                float w = weights.get(i);
+                int run = 1;
+                while (i + run < end && Float.floatToIntBits(weights.get(i + run)) == Float.floatToIntBits(w)) {
+                    run++;
+                }
+                writeVarint(out, run);
+                out.writeFloat(w);
+                i += run;
+            }
+            i = start;
+            while (i < end) {
+                int l = las.get(i);
+                int run = 1;
+                while (i + run < end && las.get(i + run) == l) {
+                    run++;
+                }
+                writeVarint(out, run);
+                writeVarint(out, l);
+                i += run;
+            }
+        }
+        out.flush();
+        table.putInt(n);
+        offsets[numBlocks] = tablesize + counter.count;
+        for (int b = 0; b <= numBlocks; b++) {
+            table.putLong(offsets[b]);
+        }
+        table.flip();
+        fc.position(0);
+        while (table.hasRemaining()) {
+            fc.write(table);
+        }
+        raf.close();
+        (new File(fname + ".tmp")).renameTo(new File(fname));
+    }
+    /* unsigned varint: seven bits per byte, low bits first.  Deltas between sorted positions
+       are non-negative, and LAS values are treated as unsigned so paired LAS words still fit in five bytes */
+    private static void writeVarint(OutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Rewrites the raw single-end files for this chromosome in the compressed layout and removes
+     * the raw files.  The Header doesn't change.
+     */
+    public static void compress(String prefix, int chrom, boolean type2) throws IOException {
+        SingleHits hits = new SingleHits(prefix, chrom, type2);
+        try {
+            write(hits, prefix, chrom, type2);
+        } finally {
+            hits.close();
+        }
+        SingleHits.deleteSegment(prefix, chrom, type2, 0);
+    }
+    /**
+     * Rewrites a compressed chromosome as the raw single-end files and removes the compressed file.
+     */
+    public static void decompress(String prefix, int chrom, boolean type2) throws IOException {
+        CompressedHits compressed = new CompressedHits(prefix, chrom, type2);
+        try {
+            SingleHits hits = compressed.decodeAll();
+            SingleHits.writeSingleHits(hits.getPositionsBuffer(), hits.getWeightsBuffer(), hits.getLASBuffer(),
+                                       prefix, chrom, type2);
+        } finally {
+            compressed.close();
+        }
+        delete(prefix, chrom, type2);
+    }
+    public static boolean exists(String prefix, int chrom, boolean type2) {
+        return (new File(getFname(prefix, chrom, type2))).exists();
+    }
+    public static boolean delete(String prefix, int chrom, boolean type2) {
+        return (new File(getFname(prefix, chrom, type2))).delete();
+    }
+    public static String getFname(String prefix, int chrom, boolean type2) {
+        return prefix + chrom + (type2 ? ".st2compressed" : ".scompressed");
+    }
+}
@@ -0,0 +1,200 @@
+package org.seqcode.data.readdb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Thread-safe cache of Closeable objects, each associated with a key and a weight.
+ * The cache holds at most budget total weight (eg, mapped bytes for Hits or
+ * one per entry for Headers and ACLs).  Lookups don't take any global lock: the
+ * entries live in a ConcurrentHashMap and recency is tracked with a reference bit
+ * per entry that the eviction sweep (CLOCK, an O(1) approximation of LRU) clears and checks.
+ *
+ * Objects returned by get() or passed to add() are reference counted.  The calling
+ * thread holds its references until it calls releaseAll(), in the same way that
+ * Lock tracks locks per thread until Lock.releaseLocks().  When an object
+ * falls out of the cache or is removed, its close() method is called as soon as no
+ * thread holds a reference, so a buffer that's being sent to a client is never
+ * unmapped underneath it.
+ */
+public class ConcurrentCache<X extends Closeable> {
+
+    private static class Entry<X> {
+        String key;
+        X value;
+        long weight;
+        int refs;
+        boolean evicted;
+        volatile boolean referenced;
+        Entry(String k, X v, long w) {
+            key = k;
+            value = v;
+            weight = w;
+            refs = 0;
+            evicted = false;
+            referenced = true;
+        }
+    }
+
+    private ConcurrentHashMap<String,Entry<X>> map;
+    /* the clock hand: entries in insertion order, rotated by evict() */
+    private ConcurrentLinkedQueue<Entry<X>> clock;
+    private long budget;
+    private AtomicLong weight, hits, misses, evictions;
+    private ThreadLocal<List<Entry<X>>> held;
+
+    public ConcurrentCache(long budget) {
+        this.budget = budget;
+        map = new ConcurrentHashMap<String,Entry<X>>();
+        clock = new ConcurrentLinkedQueue<Entry<X>>();
+        weight = new AtomicLong(0);
+        hits = new AtomicLong(0);
+        misses = new AtomicLong(0);
+        evictions = new AtomicLong(0);
+        held = new ThreadLocal<List<Entry<X>>>() {
+            protected List<Entry<X>> initialValue() {
+                return new ArrayList<Entry<X>>();
+            }
+        };
+    }
+
+    public boolean contains(String k) {
+        return map.containsKey(k);
+    }
+    public void printKeys() {
+        System.err.println(map.keySet().toString());
+    }
+    /**
+     * Returns the object for k, or null if it isn't cached.  The
+     * calling thread holds a reference to the object until releaseAll().
+     */
+    public X get(String k) {
+        Entry<X> e = map.get(k);
+        if (e != null && acquire(e)) {
+            e.referenced = true;
+            hits.incrementAndGet();
+            return e.value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+    /**
+     * Adds o to the cache with a weight of one
+     */
+    public void add(String k, X o) {
+        add(k,o,1);
+    }
+    /**
+     * Adds o to the cache, replacing any existing object for k.  The calling thread
+     * holds a reference to o until releaseAll().
+     */
+    public void add(String k, X o, long w) {
+        Entry<X> e = new Entry<X>(k,o,w);
+        acquire(e);
+        weight.addAndGet(w);
+        Entry<X> old = map.put(k,e);
+        clock.add(e);
+        if (old != null) {
+            clock.remove(old);
+            evict(old);
+        }
+        evictOverBudget();
+    }
+    public void remove(String k) {
+        Entry<X> e = map.remove(k);
+        if (e != null) {
+            clock.remove(e);
+            evict(e);
+        }
+    }
+    /**
+     * Releases all the references held by the calling thread.  Evicted objects
+     * are closed once their last reference is released.
+     */
+    public void releaseAll() {
+        List<Entry<X>> l = held.get();
+        for (Entry<X> e : l) {
+            release(e);
+        }
+        l.clear();
+    }
+
+    public long getHits() {return hits.get();}
+    public long getMisses() {return misses.get();}
+    public long getEvictions() {return evictions.get();}
+    public long getWeight() {return weight.get();}
+    public long getBudget() {return budget;}
+    public int size() {return map.size();}
+    public String toString() {
+        return String.format("%d entries, weight %d of %d, hits %d, misses %d, evictions %d",
+                             size(), getWeight(), getBudget(), getHits(), getMisses(), getEvictions());
+    }
+
+    private boolean acquire(Entry<X> e) {
+        synchronized(e) {
+            if (e.evicted) {
+                return false;
+            }
+            e.refs++;
+        }
+        held.get().add(e);
+        return true;
+    }
+    private void release(Entry<X> e) {
+        synchronized(e) {
+            e.refs--;
+            if (e.refs == 0 && e.evicted) {
+                close(e);
+            }
+        }
+    }
+    /* marks e as evicted; it's closed now if nobody is using it or
+       otherwise by the last release() */
+    private void evict(Entry<X> e) {
+        synchronized(e) {
+            if (e.evicted) {
+                return;
+            }
+            e.evicted = true;
+            if (e.refs == 0) {
+                close(e);
+            }
+        }
+        weight.addAndGet(-e.weight);
+        evictions.incrementAndGet();
+    }
+    private void close(Entry<X> e) {
+        try {
+            e.value.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        e.value = null;
+    }
+    /* sweeps the clock until the cache is back under budget.  Entries that have been used
+       since the last sweep get a second chance.  The most recently added entry is never
+       evicted by itself, even if it's bigger than the budget */
+    private void evictOverBudget() {
+        synchronized(clock) {
+            while (weight.get() > budget && map.size() > 1) {
+                Entry<X> e = clock.poll();
+                if (e == null) {
+                    break;
+                }
+                if (e.evicted) {
+                    continue;
+                }
+                if (e.referenced) {
+                    e.referenced = false;
+                    clock.add(e);
+                    continue;
+                }
+                if (map.remove(e.key, e)) {
+                    evict(e);
+                }
+            }
+        }
+    }
+}
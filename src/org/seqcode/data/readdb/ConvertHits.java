@@ -0,0 +1,182 @@
+package org.seqcode.data.readdb;
+
+import org.apache.commons.cli.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>Converts the single-end hits in a ReadDB data directory between the raw layout and the
+ * block-compressed layout (CompressedHits), and optionally compares the two.  Works directly on
+ * the files, so the server must not be running against the directory.  Use
+ * <pre>Resort --compress alignment</pre> to convert through a running server instead.
+ *
+ * <p>Usage:
+ * <pre>java org.seqcode.data.readdb.ConvertHits --datadir /path/to/data [--align a --align b] [--decompress] [--compare 1000] [--dryrun]</pre>
+ *
+ * <p>--compare N times N random 10kb histogram queries per chromosome against each layout and
+ * reports the sizes and the average time per query.  --dryrun leaves the files in their original layout.
+ */
+public class ConvertHits {
+
+    private String datadir;
+    private List<String> aligns;
+    private boolean decompress, dryrun;
+    private int compare;
+    private long rawBytes, compressedBytes;
+    private double rawMillis, compressedMillis;
+    private int queries;
+
+    public static void main(String args[]) throws Exception {
+        ConvertHits converter = new ConvertHits();
+        converter.parseArgs(args);
+        converter.run();
+    }
+    public ConvertHits() {
+        aligns = new ArrayList<String>();
+        decompress = false;
+        dryrun = false;
+        compare = 0;
+    }
+    public void parseArgs(String args[]) throws ParseException {
+        Options options = new Options();
+        options.addOption("d","datadir",true,"ReadDB data directory");
+        options.addOption("a","align",true,"alignment to convert.  May be repeated; default is every alignment");
+        options.addOption("u","decompress",false,"convert compressed files back to the raw layout");
+        options.addOption("c","compare",true,"time this many random queries per chromosome in each layout");
+        options.addOption("n","dryrun",false,"don't change the layout on disk");
+        options.addOption("h","help",false,"print help message");
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = parser.parse( options, args, false );
+        if (line.hasOption("help") || !line.hasOption("datadir")) {
+            printHelp();
+            System.exit(0);
+        }
+        datadir = line.getOptionValue("datadir");
+        if (line.hasOption("align")) {
+            aligns.addAll(Arrays.asList(line.getOptionValues("align")));
+        }
+        decompress = line.hasOption("decompress");
+        dryrun = line.hasOption("dryrun");
+        if (line.hasOption("compare")) {
+            compare = Integer.parseInt(line.getOptionValue("compare"));
+        }
+    }
+    public void printHelp() {
+        System.out.println("Convert ReadDB single-end hits between the raw and compressed layouts.  Stop the server first.");
+        System.out.println("usage: java org.seqcode.data.readdb.ConvertHits --datadir /path/to/data");
+        System.out.println(" [--align name]  convert only this alignment.  May be repeated");
+        System.out.println(" [--decompress]  convert compressed chromosomes back to the raw layout");
+        System.out.println(" [--compare 1000]  time this many random 10kb histogram queries per chromosome in each layout");
+        System.out.println(" [--dryrun]  leave the files in their original layout");
+    }
+    public void run() throws IOException {
+        if (aligns.size() == 0) {
+            File[] dirs = (new File(datadir)).listFiles();
+            if (dirs != null) {
+                for (File d : dirs) {
+                    if (d.isDirectory()) {
+                        aligns.add(d.getName());
+                    }
+                }
+            }
+        }
+        Collections.sort(aligns);
+        for (String align : aligns) {
+            String prefix = datadir + System.getProperty("file.separator") + align + System.getProperty("file.separator");
+            File[] files = (new File(prefix)).listFiles();
+            if (files == null) {
+                System.err.println("No such alignment " + align);
+                continue;
+            }
+            for (File f : files) {
+                String name = f.getName();
+                if (name.matches("\\d+\\.singleindex")) {
+                    convert(prefix, Integer.parseInt(name.substring(0, name.indexOf('.'))), false);
+                } else if (name.matches("\\d+\\.singlet2index")) {
+                    convert(prefix, Integer.parseInt(name.substring(0, name.indexOf('.'))), true);
+                }
+            }
+        }
+        if (compare > 0 && queries > 0) {
+            System.out.println(String.format("total\traw %d bytes\tcompressed %d bytes (%.1f%%)\traw %.3f ms/query\tcompressed %.3f ms/query",
+                                             rawBytes, compressedBytes, 100.0 * compressedBytes / rawBytes,
+                                             rawMillis / queries, compressedMillis / queries));
+        }
+    }
+    private void convert(String prefix, int chrom, boolean type2) throws IOException {
+        boolean compressed = CompressedHits.exists(prefix, chrom, type2);
+        if (compressed == !decompress && compare == 0) {
+            return;
+        }
+        /* get both layouts on disk */
+        if (compressed) {
+            CompressedHits c = new CompressedHits(prefix, chrom, type2);
+            SingleHits hits = c.decodeAll();
+            c.close();
+            SingleHits.writeSingleHits(hits.getPositionsBuffer(), hits.getWeightsBuffer(), hits.getLASBuffer(), prefix, chrom, type2);
+        } else {
+            SingleHits hits = new SingleHits(prefix, chrom, type2);
+            CompressedHits.write(hits, prefix, chrom, type2);
+            hits.close();
+        }
+        if (compare > 0) {
+            compare(prefix, chrom, type2);
+        }
+        /* and then keep the one we want */
+        if (dryrun ? compressed : !decompress) {
+            SingleHits.deleteSegment(prefix, chrom, type2, 0);
+        } else {
+            CompressedHits.delete(prefix, chrom, type2);
+        }
+    }
+    private void compare(String prefix, int chrom, boolean type2) throws IOException {
+        SingleHits raw = new SingleHits(prefix, chrom, type2);
+        Header header = new Header(raw.getPositionsBuffer().getib());
+        CompressedHits compressed = new CompressedHits(prefix, chrom, type2);
+        long rawsize = raw.getMappedBytes();
+        long compressedsize = compressed.getMappedBytes();
+        IntBP positions = raw.getPositionsBuffer();
+        if (positions.limit() == 0) {
+            raw.close();
+            compressed.close();
+            return;
+        }
+        int numhits = positions.limit();
+        int min = positions.get(0), max = positions.get(numhits - 1);
+        Random random = new Random(chrom);
+        int[] starts = new int[compare];
+        for (int i = 0; i < compare; i++) {
+            starts[i] = min + (int)(random.nextDouble() * Math.max(1, (long)max - min));
+        }
+        /* one untimed pass over each so that both are paged in */
+        long rawtotal = 0, compressedtotal = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long t = System.nanoTime();
+            for (int i = 0; i < compare; i++) {
+                int first = header.getFirstIndex(starts[i]), last = header.getLastIndex(starts[i] + 10000);
+                raw.histogram(first, last, starts[i], starts[i] + 10000, 100, 0, null, null, 0);
+            }
+            long rawtime = System.nanoTime() - t;
+            t = System.nanoTime();
+            for (int i = 0; i < compare; i++) {
+                /* what the server does for a compressed chromosome */
+                SingleHits decoded = compressed.decode(header.getFirstIndex(starts[i]), header.getLastIndex(starts[i] + 10000));
+                Header h = new Header(decoded.getPositionsBuffer().getib());
+                decoded.histogram(h.getFirstIndex(starts[i]), h.getLastIndex(starts[i] + 10000), starts[i], starts[i] + 10000, 100, 0, null, null, 0);
+            }
+            rawtotal = rawtime;
+            compressedtotal = System.nanoTime() - t;
+        }
+        raw.close();
+        compressed.close();
+        rawBytes += rawsize;
+        compressedBytes += compressedsize;
+        rawMillis += rawtotal / 1e6;
+        compressedMillis += compressedtotal / 1e6;
+        queries += compare;
+        System.out.println(String.format("%s%d%s\t%d hits\traw %d bytes\tcompressed %d bytes (%.1f%%)\traw %.3f ms/query\tcompressed %.3f ms/query",
+                                         prefix, chrom, type2 ? " (type2)" : "", numhits,
+                                         rawsize, compressedsize, 100.0 * compressedsize / rawsize,
+                                         rawtotal / 1e6 / compare, compressedtotal / 1e6 / compare));
+    }
+}
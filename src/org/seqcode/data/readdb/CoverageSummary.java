@@ -0,0 +1,379 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Arrays;
+
+/**
+ * Precomputed coverage of one chromosome's hits (one single-end type or one side of the paired hits)
+ * at several resolutions.  Each level holds, for every non-empty bin of LEVELS[l] bases, the number of hits and
+ * the sum of their weights on each strand.  Bins are aligned to multiples of the bin size.
+ *
+ * <p>histogram() and weightHistogram() answer the same requests as Hits.histogram() and Hits.weightHistogram()
+ * with no dedup, extension, or minimum weight, from the coarsest level that fits the requested bin size.  The work is
+ * proportional to the number of level bins in the range rather than the number of hits.  Parts of the range that don't line
+ * up with a level bin (the ends of the range, or a level bin that straddles two output bins) are counted from the hits
+ * themselves.  Weights are summed per level bin, so they may differ from the direct sum in the last bits.
+ *
+ * <p>A summary is written next to the chromosome's Header whenever the hits are rewritten, and summaries of new
+ * segments are merged into it.  numHits is the number of hits it covers, which lets the server
+ * ignore a summary that doesn't match the Header.
+ *
+ * <p>File layout (big-endian):
+ * <pre>
+ * int magic, int version, int numHits, int firstPosition, int lastPosition, int numLevels
+ * int[numLevels] bin size of each level, int[numLevels] number of bins in each level
+ * for each level: int[n] bin index (position / bin size), int[n] plus strand counts, int[n] minus strand counts,
+ *                 float[n] plus strand weights, float[n] minus strand weights
+ * </pre>
+ */
+public class CoverageSummary implements Closeable {
+
+    public static final int MAGIC = 0x52444253;
+    public static final int FORMAT_VERSION = 1;
+    /* each level must be a multiple of the one before it */
+    public static final int[] LEVELS = {64, 1024, 16*1024, 256*1024};
+    /* without an aligned level, a level is only used if the output bins are at least this many times bigger,
+       so that the hits counted directly are a small fraction of the total */
+    public static final int MINSTEPS = 16;
+
+    private ByteBuffer bb;
+    private boolean mapped;
+    private int numHits, firstPosition, lastPosition;
+    private int[] levelSize, levelCount, levelOffset;
+
+    /**
+     * Supplies the hits for the parts of a histogram that the summary can't answer
+     */
+    public interface HitSource {
+        /* returns Hits, sorted by position, that include all of the hits between start and end (inclusive); others are ignored */
+        public Hits getHits(int start, int end) throws IOException;
+    }
+
+    public CoverageSummary(String fname) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(fname,"r");
+        try {
+            FileChannel fc = raf.getChannel();
+            bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            raf.close();
+        }
+        mapped = true;
+        if (bb.getInt(0) != MAGIC) {
+            throw new IOException("Not a coverage summary file: " + fname);
+        }
+        int version = bb.getInt(4);
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Unknown coverage summary version " + version + " in " + fname);
+        }
+        init();
+    }
+    private CoverageSummary(ByteBuffer bb) {
+        this.bb = bb;
+        mapped = false;
+        init();
+    }
+    private void init() {
+        numHits = bb.getInt(8);
+        firstPosition = bb.getInt(12);
+        lastPosition = bb.getInt(16);
+        int numLevels = bb.getInt(20);
+        levelSize = new int[numLevels];
+        levelCount = new int[numLevels];
+        levelOffset = new int[numLevels];
+        int p = 24 + numLevels * 8;
+        for (int l = 0; l < numLevels; l++) {
+            levelSize[l] = bb.getInt(24 + l * 4);
+            levelCount[l] = bb.getInt(24 + numLevels * 4 + l * 4);
+            levelOffset[l] = p;
+            p += levelCount[l] * 20;
+        }
+    }
+    public int getNumHits() {return numHits;}
+    /* first and last hit positions.  Meaningless if there are no hits */
+    public int getFirstPosition() {return firstPosition;}
+    public int getLastPosition() {return lastPosition;}
+    public long getMappedBytes() {return bb.capacity();}
+    public void close() {
+        if (mapped) {
+            Bits.unmap(bb);
+        }
+        bb = null;
+    }
+
+    private int getBin(int l, int i) {return bb.getInt(levelOffset[l] + i * 4);}
+    private int getPlusCount(int l, int i) {return bb.getInt(levelOffset[l] + (levelCount[l] + i) * 4);}
+    private int getMinusCount(int l, int i) {return bb.getInt(levelOffset[l] + (2 * levelCount[l] + i) * 4);}
+    private float getPlusWeight(int l, int i) {return bb.getFloat(levelOffset[l] + (3 * levelCount[l] + i) * 4);}
+    private float getMinusWeight(int l, int i) {return bb.getFloat(levelOffset[l] + (4 * levelCount[l] + i) * 4);}
+
+    /**
+     * Returns the level to use for a histogram that starts at start with bins of binsize, or -1 if none will do.
+     * Prefers the coarsest level whose bins line up with the output bins; otherwise the coarsest level
+     * that's at most 1/MINSTEPS of the bin size.
+     */
+    public int chooseLevel(int start, int binsize) {
+        for (int l = levelSize.length - 1; l >= 0; l--) {
+            if (levelSize[l] <= binsize && binsize % levelSize[l] == 0 && Math.floorMod(start, levelSize[l]) == 0) {
+                return l;
+            }
+        }
+        for (int l = levelSize.length - 1; l >= 0; l--) {
+            if ((long)levelSize[l] * MINSTEPS <= binsize) {
+                return l;
+            }
+        }
+        return -1;
+    }
+    /**
+     * Adds the counts of the hits between start and end (inclusive) on strand isPlus (either if null) into
+     * output, in bins of binsize starting at start.  Same as Hits.histogram() with no dedup, extension, or minimum weight.
+     * Returns false (and does nothing) if no level fits the request.
+     */
+    public boolean histogram(int[] output, int start, int end, int binsize, Boolean isPlus, HitSource source) throws IOException {
+        return histogram(output, null, start, end, binsize, isPlus, source);
+    }
+    /**
+     * Same as histogram(), but adds the sums of the weights into output.
+     */
+    public boolean weightHistogram(float[] output, int start, int end, int binsize, Boolean isPlus, HitSource source) throws IOException {
+        return histogram(null, output, start, end, binsize, isPlus, source);
+    }
+    private boolean histogram(int[] counts, float[] weights, int start, int end, int binsize, Boolean isPlus, HitSource source) throws IOException {
+        int l = chooseLevel(start, binsize);
+        if (l < 0) {
+            return false;
+        }
+        if (end < start) {
+            return true;
+        }
+        long size = levelSize[l];
+        /* level bins first to last lie entirely within start to end */
+        long first = Math.floorDiv(start + size - 1, size);
+        long last = Math.floorDiv((long)end + 1, size) - 1;
+        /* the hits for the rest are only read if they're needed, and then only once */
+        Hits hits = null;
+        if (first > last) {
+            hits = source.getHits(start, end);
+            addHits(counts, weights, start, end, start, binsize, isPlus, hits);
+            return true;
+        }
+        if (first * size > start) {
+            hits = source.getHits(start, end);
+            addHits(counts, weights, start, (int)(first * size - 1), start, binsize, isPlus, hits);
+        }
+        if ((last + 1) * size - 1 < end) {
+            if (hits == null) { hits = source.getHits(start, end);}
+            addHits(counts, weights, (int)((last + 1) * size), end, start, binsize, isPlus, hits);
+        }
+        int n = levelCount[l];
+        int i = firstBinAtLeast(l, first);
+        for (; i < n && getBin(l, i) <= last; i++) {
+            long binstart = getBin(l, i) * size;
+            long binend = binstart + size - 1;
+            int a = (int)((binstart - start) / binsize);
+            int b = (int)((binend - start) / binsize);
+            if (a != b) {
+                if (hits == null) { hits = source.getHits(start, end);}
+                addHits(counts, weights, (int)binstart, (int)binend, start, binsize, isPlus, hits);
+            } else if (counts != null) {
+                counts[a] += (isPlus == null || isPlus ? getPlusCount(l, i) : 0) + (isPlus == null || !isPlus ? getMinusCount(l, i) : 0);
+            } else {
+                weights[a] += (isPlus == null || isPlus ? getPlusWeight(l, i) : 0) + (isPlus == null || !isPlus ? getMinusWeight(l, i) : 0);
+            }
+        }
+        return true;
+    }
+    /* index of the first bin in level l with index >= bin */
+    private int firstBinAtLeast(int l, long bin) {
+        int lo = 0, hi = levelCount[l];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getBin(l, mid) < bin) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    /* index of the first hit at or after pos */
+    private static int firstHitAtLeast(IntBP positions, int pos) {
+        int lo = 0, hi = positions.limit();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (positions.get(mid) < pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    /* counts the hits from a to b directly into the output bins */
+    private void addHits(int[] counts, float[] weights, int a, int b, int start, int binsize, Boolean isPlus, Hits hits) throws IOException {
+        IntBP positions = hits.getPositionsBuffer();
+        FloatBP w = weights == null ? null : hits.getWeightsBuffer();
+        IntBP las = isPlus == null ? null : hits.getLASBuffer();
+        int limit = positions.limit();
+        for (int i = firstHitAtLeast(positions, a); i < limit; i++) {
+            int pos = positions.get(i);
+            if (pos > b) {
+                break;
+            }
+            if (isPlus != null && Hits.getStrandOne(las.get(i)) != isPlus) {
+                continue;
+            }
+            int k = (int)(((long)pos - start) / binsize);
+            if (counts != null) {
+                counts[k]++;
+            } else {
+                weights[k] += w.get(i);
+            }
+        }
+    }
+
+    /**
+     * Summarizes a set of hits, which must be sorted by position
+     */
+    public static CoverageSummary build(Hits hits) {
+        IntBP positions = hits.getPositionsBuffer();
+        FloatBP weights = hits.getWeightsBuffer();
+        IntBP las = hits.getLASBuffer();
+        int n = positions.limit();
+        Level[] levels = new Level[LEVELS.length];
+        levels[0] = new Level(LEVELS[0]);
+        for (int i = 0; i < n; i++) {
+            int bin = Math.floorDiv(positions.get(i), LEVELS[0]);
+            float w = weights.get(i);
+            if (Hits.getStrandOne(las.get(i))) {
+                levels[0].add(bin, 1, 0, w, 0);
+            } else {
+                levels[0].add(bin, 0, 1, 0, w);
+            }
+        }
+        for (int l = 1; l < levels.length; l++) {
+            levels[l] = levels[l-1].coarsen(LEVELS[l]);
+        }
+        return pack(n, n == 0 ? 0 : positions.get(0), n == 0 ? 0 : positions.get(n-1), levels);
+    }
+    /**
+     * Returns the summary of the union of the hits summarized by a and b, eg the summary of a chromosome
+     * and of a new segment.  a and b must have the same levels.
+     */
+    public static CoverageSummary merge(CoverageSummary a, CoverageSummary b) {
+        if (!Arrays.equals(a.levelSize, b.levelSize)) {
+            throw new IllegalArgumentException("Can't merge summaries with different levels");
+        }
+        Level[] levels = new Level[a.levelSize.length];
+        for (int l = 0; l < levels.length; l++) {
+            levels[l] = new Level(a.levelSize[l]);
+            int i = 0, j = 0, na = a.levelCount[l], nb = b.levelCount[l];
+            while (i < na || j < nb) {
+                if (j == nb || (i < na && a.getBin(l, i) <= b.getBin(l, j))) {
+                    levels[l].add(a.getBin(l, i), a.getPlusCount(l, i), a.getMinusCount(l, i), a.getPlusWeight(l, i), a.getMinusWeight(l, i));
+                    i++;
+                } else {
+                    levels[l].add(b.getBin(l, j), b.getPlusCount(l, j), b.getMinusCount(l, j), b.getPlusWeight(l, j), b.getMinusWeight(l, j));
+                    j++;
+                }
+            }
+        }
+        int first, last;
+        if (a.numHits == 0 || b.numHits == 0) {
+            first = a.numHits == 0 ? b.firstPosition : a.firstPosition;
+            last = a.numHits == 0 ? b.lastPosition : a.lastPosition;
+        } else {
+            first = Math.min(a.firstPosition, b.firstPosition);
+            last = Math.max(a.lastPosition, b.lastPosition);
+        }
+        return pack(a.numHits + b.numHits, first, last, levels);
+    }
+    private static CoverageSummary pack(int numHits, int first, int last, Level[] levels) {
+        int size = 24 + levels.length * 8;
+        for (Level level : levels) {
+            size += level.n * 20;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putInt(MAGIC);
+        bb.putInt(FORMAT_VERSION);
+        bb.putInt(numHits);
+        bb.putInt(first);
+        bb.putInt(last);
+        bb.putInt(levels.length);
+        for (Level level : levels) {
+            bb.putInt(level.size);
+        }
+        for (Level level : levels) {
+            bb.putInt(level.n);
+        }
+        for (Level level : levels) {
+            for (int i = 0; i < level.n; i++) { bb.putInt(level.bins[i]);}
+            for (int i = 0; i < level.n; i++) { bb.putInt(level.plusCounts[i]);}
+            for (int i = 0; i < level.n; i++) { bb.putInt(level.minusCounts[i]);}
+            for (int i = 0; i < level.n; i++) { bb.putFloat(level.plusWeights[i]);}
+            for (int i = 0; i < level.n; i++) { bb.putFloat(level.minusWeights[i]);}
+        }
+        bb.flip();
+        return new CoverageSummary(bb);
+    }
+    /**
+     * Writes the summary under a temporary name and renames it into place
+     */
+    public void write(String fname) throws IOException {
+        FileOutputStream out = new FileOutputStream(fname + ".tmp");
+        try {
+            FileChannel fc = out.getChannel();
+            ByteBuffer b = bb.duplicate();
+            b.position(0);
+            while (b.hasRemaining()) {
+                fc.write(b);
+            }
+        } finally {
+            out.close();
+        }
+        (new File(fname + ".tmp")).renameTo(new File(fname));
+    }
+
+    /* one level while it's being built.  Bins must be added in increasing order; adding the same bin again adds to it */
+    private static class Level {
+        int size, n;
+        int[] bins, plusCounts, minusCounts;
+        float[] plusWeights, minusWeights;
+        Level(int size) {
+            this.size = size;
+            n = 0;
+            bins = new int[16];
+            plusCounts = new int[16];
+            minusCounts = new int[16];
+            plusWeights = new float[16];
+            minusWeights = new float[16];
+        }
+        void add(int bin, int pc, int mc, float pw, float mw) {
+            if (n == 0 || bins[n-1] != bin) {
+                if (n == bins.length) {
+                    int len = n * 2;
+                    bins = Arrays.copyOf(bins, len);
+                    plusCounts = Arrays.copyOf(plusCounts, len);
+                    minusCounts = Arrays.copyOf(minusCounts, len);
+                    plusWeights = Arrays.copyOf(plusWeights, len);
+                    minusWeights = Arrays.copyOf(minusWeights, len);
+                }
+                bins[n++] = bin;
+            }
+            plusCounts[n-1] += pc;
+            minusCounts[n-1] += mc;
+            plusWeights[n-1] += pw;
+            minusWeights[n-1] += mw;
+        }
+        Level coarsen(int newsize) {
+            Level output = new Level(newsize);
+            int ratio = newsize / size;
+            for (int i = 0; i < n; i++) {
+                output.add(Math.floorDiv(bins[i], ratio), plusCounts[i], minusCounts[i], plusWeights[i], minusWeights[i]);
+            }
+            return output;
+        }
+    }
+}
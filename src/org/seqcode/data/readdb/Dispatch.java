@@ -10,12 +10,12 @@ import java.util.logging.*;
 
 public class Dispatch implements Runnable {
 
-    private Vector<WorkerThread> freePool, allThreads;
-    private Vector<ServerTask> workQueue;
-    private Vector<Thread> threads;
-    private Server server;
-    private int maxConnections;
-    private int warnedMaxConn = 0;
+    protected Vector<WorkerThread> freePool, allThreads;
+    protected Vector<ServerTask> workQueue;
+    protected Vector<Thread> threads;
+    protected Server server;
+    protected int maxConnections;
+    protected int warnedMaxConn = 0;
     public Dispatch (Server s, int numThreads, int maxC) {
         server = s;
         workQueue = new Vector<ServerTask>();
@@ -121,22 +121,7 @@ public class Dispatch implements Runnable {
             } 
             if (threadCheck++ > 1000) {
                 threadCheck = 0;
-                for (int i = 0; i < threads.size(); i++) {
-                    if (!threads.get(i).isAlive()) {
-                        server.getLogger().log(Level.INFO,"Dispatch","run: DEAD THREAD.  Adding a new one");
-                        WorkerThread servthread = new WorkerThread(this);
-                        Thread t = new Thread(servthread);
-                        t.start();
-                        threads.set(i,t);
-                        freePool.add(servthread);
-                        try {
-                            allThreads.get(i).stopRunning();
-                        } catch (Exception e) {
-                            server.getLogger().logp(Level.INFO,"Dispatch","run: trying to stop old thread",e.toString(),e);
-                        }
-                        allThreads.set(i,servthread);
-                    }
-                }
+                replaceDeadThreads();
             }
         }
         while (freePool.size() < allThreads.size()) {
@@ -150,6 +135,28 @@ public class Dispatch implements Runnable {
             t.stopRunning();
         }
     }
+    /**
+     * checks that each WorkerThread is still alive and replaces
+     * any that have died.
+     */
+    protected void replaceDeadThreads() {
+        for (int i = 0; i < threads.size(); i++) {
+            if (!threads.get(i).isAlive()) {
+                server.getLogger().log(Level.INFO,"Dispatch","run: DEAD THREAD.  Adding a new one");
+                WorkerThread servthread = new WorkerThread(this);
+                Thread t = new Thread(servthread);
+                t.start();
+                threads.set(i,t);
+                freePool.add(servthread);
+                try {
+                    allThreads.get(i).stopRunning();
+                } catch (Exception e) {
+                    server.getLogger().logp(Level.INFO,"Dispatch","run: trying to stop old thread",e.toString(),e);
+                }
+                allThreads.set(i,servthread);
+            }
+        }
+    }
 
 
 
@@ -0,0 +1,181 @@
+package org.seqcode.data.readdb;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A weight histogram (the sum of the hit weights in each bin) as parallel arrays of bin positions and weights, 
+ * sorted by position, as the readdb server sends them.  Bins with nothing in them are left out.
+ *
+ * <p>Histograms from several alignments or servers are combined with merge(), a single linear pass over the 
+ * sorted arrays, rather than a get and put per bin on a TreeMap.  The arrays are used directly, not copied,
+ * and shouldn't be modified once the histogram is made.
+ */
+public class FloatHistogram {
+
+    private int[] positions;
+    private float[] weights;
+
+    public FloatHistogram(int[] positions, float[] weights) {
+        if (positions.length != weights.length) {
+            throw new IllegalArgumentException("positions and weights must be the same length");
+        }
+        this.positions = positions;
+        this.weights = weights;
+    }
+    public static FloatHistogram empty() {
+        return new FloatHistogram(new int[0], new float[0]);
+    }
+
+    public int size() {return positions.length;}
+    public int getPosition(int i) {return positions[i];}
+    public float getWeight(int i) {return weights[i];}
+    public int[] getPositions() {return positions;}
+    public float[] getWeights() {return weights;}
+
+    /**
+     * the bins with positions between start and end, inclusive
+     */
+    public FloatHistogram range(int start, int end) {
+        int first = Arrays.binarySearch(positions, start);
+        if (first < 0) {
+            first = -first - 1;
+        }
+        int last = Arrays.binarySearch(positions, end);
+        last = last < 0 ? -last - 1 : last + 1;
+        if (first == 0 && last == positions.length) {
+            return this;
+        }
+        if (last <= first) {
+            return empty();
+        }
+        return new FloatHistogram(Arrays.copyOfRange(positions, first, last), Arrays.copyOfRange(weights, first, last));
+    }
+
+    public TreeMap<Integer,Float> toTreeMap() {
+        TreeMap<Integer,Float> output = new TreeMap<Integer,Float>();
+        for (int i = 0; i < positions.length; i++) {
+            output.put(positions[i], weights[i]);
+        }
+        return output;
+    }
+    public static FloatHistogram fromMap(SortedMap<Integer,Float> map) {
+        int[] p = new int[map.size()];
+        float[] v = new float[map.size()];
+        int i = 0;
+        for (Map.Entry<Integer,Float> e : map.entrySet()) {
+            p[i] = e.getKey();
+            v[i] = e.getValue();
+            i++;
+        }
+        return new FloatHistogram(p, v);
+    }
+
+    /**
+     * converts a histogram of counts to weights
+     */
+    public static FloatHistogram fromCounts(IntHistogram h) {
+        if (h == null) {
+            return null;
+        }
+        float[] weights = new float[h.size()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = h.getCount(i);
+        }
+        return new FloatHistogram(h.getPositions(), weights);
+    }
+
+    /**
+     * Sums two histograms.  Either may be null, in which case the other is returned.
+     */
+    public static FloatHistogram merge(FloatHistogram a, FloatHistogram b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+        int n = a.size(), m = b.size();
+        int[] p = new int[n + m];
+        float[] v = new float[n + m];
+        int i = 0, j = 0, k = 0;
+        while (i < n && j < m) {
+            if (a.positions[i] < b.positions[j]) {
+                p[k] = a.positions[i];
+                v[k++] = a.weights[i++];
+            } else if (a.positions[i] > b.positions[j]) {
+                p[k] = b.positions[j];
+                v[k++] = b.weights[j++];
+            } else {
+                p[k] = a.positions[i];
+                v[k++] = a.weights[i++] + b.weights[j++];
+            }
+        }
+        while (i < n) {
+            p[k] = a.positions[i];
+            v[k++] = a.weights[i++];
+        }
+        while (j < m) {
+            p[k] = b.positions[j];
+            v[k++] = b.weights[j++];
+        }
+        return trimmed(p, v, k);
+    }
+    /**
+     * Sums any number of histograms in one pass.  Null histograms are skipped; returns null if they're all null.
+     * Each output bin takes the smallest position at the head of the inputs, so the cost is
+     * (total bins) x (number of histograms), which is the cheapest for the handful of servers
+     * or alignments that get merged.
+     */
+    public static FloatHistogram merge(List<FloatHistogram> hists) {
+        int k = 0, total = 0;
+        FloatHistogram[] h = new FloatHistogram[hists.size()];
+        for (FloatHistogram x : hists) {
+            if (x != null) {
+                h[k++] = x;
+                total += x.size();
+            }
+        }
+        if (k == 0) {
+            return null;
+        } else if (k == 1) {
+            return h[0];
+        } else if (k == 2) {
+            return merge(h[0], h[1]);
+        }
+        int[] idx = new int[k];
+        int[] p = new int[total];
+        float[] v = new float[total];
+        int out = 0;
+        while (true) {
+            int min = Integer.MAX_VALUE;
+            boolean any = false;
+            for (int i = 0; i < k; i++) {
+                if (idx[i] < h[i].positions.length && (!any || h[i].positions[idx[i]] < min)) {
+                    min = h[i].positions[idx[i]];
+                    any = true;
+                }
+            }
+            if (!any) {
+                break;
+            }
+            float sum = 0;
+            for (int i = 0; i < k; i++) {
+                if (idx[i] < h[i].positions.length && h[i].positions[idx[i]] == min) {
+                    sum += h[i].weights[idx[i]++];
+                }
+            }
+            p[out] = min;
+            v[out++] = sum;
+        }
+        return trimmed(p, v, out);
+    }
+    private static FloatHistogram trimmed(int[] p, float[] v, int n) {
+        if (n == p.length) {
+            return new FloatHistogram(p, v);
+        }
+        return new FloatHistogram(Arrays.copyOf(p, n), Arrays.copyOf(v, n));
+    }
+}
@@ -125,6 +125,20 @@ public abstract class Hits implements Closeable {
         lenAndStrand = openIntBP(lasFname);
         fname = positionsFname;
     }
+    /**
+     * Wraps buffers that are already in memory, eg the merged segments of a chromosome.
+     */
+    public Hits (int chrom, IntBP positions, FloatBP weights, IntBP las) {
+        this.chrom = chrom;
+        this.positions = positions;
+        this.weights = weights;
+        this.lenAndStrand = las;
+        fname = null;
+    }
+    /** returns the number of bytes of files mapped by this object */
+    public long getMappedBytes() {
+        return (long)positions.bb.capacity() + weights.bb.capacity() + lenAndStrand.bb.capacity();
+    }
     /** gets the buffer of positions */
     public IntBP getPositionsBuffer() {
         return positions;
@@ -420,10 +434,23 @@ public abstract class Hits implements Closeable {
                            Boolean isPlus,
                            int extension) throws IOException {
         int output[] = new int[(stop - start) / stepsize + 1];
-        for (int j = 0; j < output.length; j++) {
-            output[j] = 0;
-        }
-
+        histogram(output, firstindex, lastindex, start, stop, stepsize, dedup, minweight, isPlus, extension);
+        return output;
+    }
+    /** same as histogram() above, but adds the counts into output rather than allocating a new
+     *  array.  output must have at least (stop - start) / stepsize + 1 elements.  Used to accumulate
+     *  several alignments (or both sides of paired hits) into one set of bins.
+     */
+    public void histogram(int[] output,
+                          int firstindex,
+                          int lastindex,
+                          int start,
+                          int stop,
+                          int stepsize,
+                          int dedup,
+                          Float minweight,
+                          Boolean isPlus,
+                          int extension) throws IOException {
         int[] p = getIndices(firstindex, lastindex, start,stop);        
         int lastpos = -1, lastposcount = 0;
         if (extension==0) {
@@ -491,7 +518,6 @@ public abstract class Hits implements Closeable {
                 }
             }
         }
-        return output;
     }
     public float[] weightHistogram(int firstindex,
                                    int lastindex,
@@ -503,10 +529,22 @@ public abstract class Hits implements Closeable {
                                    Boolean isPlus,
                                    int extension) throws IOException {
         float output[] = new float[(stop - start) / stepsize + 1];
-        for (int j = 0; j < output.length; j++) {
-            output[j] = 0;
-        }
-
+        weightHistogram(output, firstindex, lastindex, start, stop, stepsize, dedup, minweight, isPlus, extension);
+        return output;
+    }
+    /** same as weightHistogram() above, but adds the weights into output rather than
+     *  allocating a new array.
+     */
+    public void weightHistogram(float[] output,
+                                int firstindex,
+                                int lastindex,
+                                int start,
+                                int stop,
+                                int stepsize,
+                                int dedup,
+                                Float minweight,
+                                Boolean isPlus,
+                                int extension) throws IOException {
         int[] p = getIndices(firstindex, lastindex, start,stop);        
         int lastpos = -1, lastposcount = 0;
         if (extension==0) {
@@ -567,9 +605,15 @@ public abstract class Hits implements Closeable {
                 }
             }
         }
-        return output;
     }    
+    /**
+     * Unmaps the files.  The buffers returned by this object (including slices from
+     * getHitsBetween() and friends) must not be used after close() is called.
+     */
     public void close() throws IOException {        
+        Bits.unmap(positions.bb);
+        Bits.unmap(weights.bb);
+        Bits.unmap(lenAndStrand.bb);
         positions.setib(null);
         positions.bb = null;
         positions = null;
@@ -33,6 +33,7 @@ public class ImportHits {
     private Client client=null;
     private int chunk = 10000000;
     private boolean isType2=false;
+    private boolean compress=false;
 
     public static void main(String args[])  {
         ImportHits importer = null;
@@ -75,6 +76,7 @@ public class ImportHits {
         options.addOption("h","help",false,"print help message");
         options.addOption("c","chunk",true,"send this many hits to the server at once");
         options.addOption("t2","type2",false,"type2 single-end hits (e.g. read 2 hits)");
+        options.addOption("z","compress",false,"rewrite the single-end hits in the compressed layout once they're stored");
         CommandLineParser parser = new GnuParser();
         CommandLine line = parser.parse( options, args, false );            
         if (line.hasOption("help")) {
@@ -106,6 +108,9 @@ public class ImportHits {
         if (line.hasOption("type2")) {
             isType2 = true;
         }
+        if (line.hasOption("compress")) {
+            compress = true;
+        }
 
     }
     public void printHelp() {
@@ -113,6 +118,7 @@ public class ImportHits {
         System.out.println("usage: cat foo.sam | java org.seqcode.data.readdb.SAMToReadDB | java org.seqcode.data.readdb.ImportHits \\");
         System.out.println(" --align alignmentname");
         System.out.println(" --type2 the imported hits are type 2 single end hits (e.g. read 2 hits in certain circumstances)");
+        System.out.println(" [--compress] rewrite the single-end hits in the server's compressed layout after storing them");
         System.out.println(" [--help] print usage");
         System.out.println("");
         System.out.println("Input format is tab delimited with either five or ten fields per line.");
@@ -207,6 +213,12 @@ public class ImportHits {
             }
         }
         System.err.println("Stored");
+        if (compress) {
+            for (int c : client.getChroms(alignname, isType2, false, null)) {
+                client.compress(alignname, c, isType2, false);
+            }
+            System.err.println("Compressed");
+        }
     }
 
     public void close(){
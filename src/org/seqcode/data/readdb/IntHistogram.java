@@ -0,0 +1,148 @@
+package org.seqcode.data.readdb;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A histogram (the number of hits in each bin) as parallel arrays of bin positions and counts, 
+ * sorted by position, as the readdb server sends them.  Bins with nothing in them are left out.
+ *
+ * <p>Histograms from several alignments or servers are combined with merge(), a single linear pass over the 
+ * sorted arrays, rather than a get and put per bin on a TreeMap.  The arrays are used directly, not copied,
+ * and shouldn't be modified once the histogram is made.
+ */
+public class IntHistogram {
+
+    private int[] positions;
+    private int[] counts;
+
+    public IntHistogram(int[] positions, int[] counts) {
+        if (positions.length != counts.length) {
+            throw new IllegalArgumentException("positions and counts must be the same length");
+        }
+        this.positions = positions;
+        this.counts = counts;
+    }
+    public static IntHistogram empty() {
+        return new IntHistogram(new int[0], new int[0]);
+    }
+
+    public int size() {return positions.length;}
+    public int getPosition(int i) {return positions[i];}
+    public int getCount(int i) {return counts[i];}
+    public int[] getPositions() {return positions;}
+    public int[] getCounts() {return counts;}
+
+    public TreeMap<Integer,Integer> toTreeMap() {
+        TreeMap<Integer,Integer> output = new TreeMap<Integer,Integer>();
+        for (int i = 0; i < positions.length; i++) {
+            output.put(positions[i], counts[i]);
+        }
+        return output;
+    }
+    public static IntHistogram fromMap(SortedMap<Integer,Integer> map) {
+        int[] p = new int[map.size()];
+        int[] v = new int[map.size()];
+        int i = 0;
+        for (Map.Entry<Integer,Integer> e : map.entrySet()) {
+            p[i] = e.getKey();
+            v[i] = e.getValue();
+            i++;
+        }
+        return new IntHistogram(p, v);
+    }
+
+    /**
+     * Sums two histograms.  Either may be null, in which case the other is returned.
+     */
+    public static IntHistogram merge(IntHistogram a, IntHistogram b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+        int n = a.size(), m = b.size();
+        int[] p = new int[n + m];
+        int[] v = new int[n + m];
+        int i = 0, j = 0, k = 0;
+        while (i < n && j < m) {
+            if (a.positions[i] < b.positions[j]) {
+                p[k] = a.positions[i];
+                v[k++] = a.counts[i++];
+            } else if (a.positions[i] > b.positions[j]) {
+                p[k] = b.positions[j];
+                v[k++] = b.counts[j++];
+            } else {
+                p[k] = a.positions[i];
+                v[k++] = a.counts[i++] + b.counts[j++];
+            }
+        }
+        while (i < n) {
+            p[k] = a.positions[i];
+            v[k++] = a.counts[i++];
+        }
+        while (j < m) {
+            p[k] = b.positions[j];
+            v[k++] = b.counts[j++];
+        }
+        return trimmed(p, v, k);
+    }
+    /**
+     * Sums any number of histograms in one pass.  Null histograms are skipped; returns null if they're all null.
+     * Each output bin takes the smallest position at the head of the inputs, so the cost is
+     * (total bins) x (number of histograms), which is the cheapest for the handful of servers
+     * or alignments that get merged.
+     */
+    public static IntHistogram merge(List<IntHistogram> hists) {
+        int k = 0, total = 0;
+        IntHistogram[] h = new IntHistogram[hists.size()];
+        for (IntHistogram x : hists) {
+            if (x != null) {
+                h[k++] = x;
+                total += x.size();
+            }
+        }
+        if (k == 0) {
+            return null;
+        } else if (k == 1) {
+            return h[0];
+        } else if (k == 2) {
+            return merge(h[0], h[1]);
+        }
+        int[] idx = new int[k];
+        int[] p = new int[total];
+        int[] v = new int[total];
+        int out = 0;
+        while (true) {
+            int min = Integer.MAX_VALUE;
+            boolean any = false;
+            for (int i = 0; i < k; i++) {
+                if (idx[i] < h[i].positions.length && (!any || h[i].positions[idx[i]] < min)) {
+                    min = h[i].positions[idx[i]];
+                    any = true;
+                }
+            }
+            if (!any) {
+                break;
+            }
+            int sum = 0;
+            for (int i = 0; i < k; i++) {
+                if (idx[i] < h[i].positions.length && h[i].positions[idx[i]] == min) {
+                    sum += h[i].counts[idx[i]++];
+                }
+            }
+            p[out] = min;
+            v[out++] = sum;
+        }
+        return trimmed(p, v, out);
+    }
+    private static IntHistogram trimmed(int[] p, int[] v, int n) {
+        if (n == p.length) {
+            return new IntHistogram(p, v);
+        }
+        return new IntHistogram(Arrays.copyOf(p, n), Arrays.copyOf(v, n));
+    }
+}
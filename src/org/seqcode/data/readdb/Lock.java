@@ -14,6 +14,9 @@ public class Lock {
     private static Map<String,ReentrantReadWriteLock> locks = Collections.synchronizedMap(new HashMap<String,ReentrantReadWriteLock>());
     private static Map<Thread,Set<java.util.concurrent.locks.Lock>> threadlocks = Collections.synchronizedMap(new HashMap<Thread,Set<java.util.concurrent.locks.Lock>>());
     private static int rlcount = 0;
+    /* number of threads between looking up a lock and acquiring it.  The cleanup in
+       releaseLocks() waits until this is zero so it can't drop a lock someone's about to take */
+    private static int blocking = 0;
 
     /**
      * blocks to acquire a shared lock to the specified file.
@@ -34,7 +37,13 @@ public class Lock {
                 locks.put(fname, new ReentrantReadWriteLock());
             }
             lock = locks.get(fname).readLock();
-            lock.lock();
+            blocking++;
+        }
+        /* block outside of synchronized(locks) so that a thread waiting here doesn't keep
+           other threads from taking or upgrading locks on other files */
+        lock.lock();
+        synchronized(locks) {
+            blocking--;
         }
         threadlocks.get(t).add(lock);
         //        System.err.println("READLOCK by " + t + " of " + fname + " as " + lock);
@@ -53,10 +62,14 @@ public class Lock {
                 locks.put(fname, new ReentrantReadWriteLock());
             }
             rl = locks.get(fname).readLock();
-            rl.unlock();
-            threadlocks.get(t).remove(rl);
             lock = locks.get(fname).writeLock();
-            lock.lock();
+            blocking++;
+        }
+        rl.unlock();
+        threadlocks.get(t).remove(rl);
+        lock.lock();
+        synchronized(locks) {
+            blocking--;
         }
         threadlocks.get(t).add(lock);
         //        System.err.println("WRITELOCK by " + t + " of " + fname + " as " + lock);
@@ -76,6 +89,9 @@ public class Lock {
             rlcount = 0;
             if (locks.size() > 10000) {
                 synchronized(locks) {
+                    if (blocking > 0) {
+                        return;
+                    }
                     /* cleanup loop so that we don't have an ever-expanding data structure */
                     Collection<String> keys = locks.keySet();
                     for (String k : keys) {
@@ -342,7 +342,13 @@ public class PairedHits extends Hits {
         return prefix + chrom + getLeftRightSuffix(isLeft) + ".otherpos";
     }
 
+    public long getMappedBytes() {
+        return super.getMappedBytes() + chroms.bb.capacity() + otherPositions.bb.capacity() + pairCode.bb.capacity();
+    }
     public void close() throws IOException {       
+        Bits.unmap(chroms.bb);
+        Bits.unmap(otherPositions.bb);
+        Bits.unmap(pairCode.bb);
         chroms.setib(null);
         chroms.bb = null;
         chroms = null;
@@ -3,18 +3,32 @@ package org.seqcode.data.readdb;
 import java.util.*;
 import java.io.*;
 
-/* this was used to fix a bug in the readdb server.  You shouldn't need it. */
+/* this was used to fix a bug in the readdb server.  You shouldn't need it. 
+   With --compress (or --decompress) before the alignment names, each chromosome is also 
+   rewritten in the server's block-compressed (or raw) layout after it's checked. */
 
 public class Resort {
 
     public static void main(String args[]) throws Exception {
         Client client = new Client();
+        boolean compress = false, decompress = false;
         for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--compress")) {
+                compress = true;
+                continue;
+            }
+            if (args[i].equals("--decompress")) {
+                decompress = true;
+                continue;
+            }
             String alignid = args[i];
             System.err.println("Resorting alignment " + alignid);
             try {
                 for (Integer chromid : client.getChroms(alignid,false, false,false)) {
                     client.checksort(alignid,chromid);
+                    if (compress || decompress) {
+                        client.compress(alignid, chromid, false, decompress);
+                    }
                 }
             } catch (ClientException e) {
                 System.err.println("Couldn't do " + alignid + ": " + e.toString());
@@ -0,0 +1,85 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+import java.util.logging.*;
+
+/**
+ * Merges the segments of a single-end chromosome back into its base file.
+ * Run by the Server's compaction thread once a chromosome has accumulated
+ * --maxsegments segments.  Holds the write lock on the alignment while it works,
+ * so requests for the alignment wait rather than seeing a partial result.
+ */
+public class SegmentCompactor implements Runnable {
+
+    private Server server;
+    private String alignID;
+    private int chrom;
+    private boolean isType2;
+
+    public SegmentCompactor(Server server, String alignID, int chrom, boolean isType2) {
+        this.server = server;
+        this.alignID = alignID;
+        this.chrom = chrom;
+        this.isType2 = isType2;
+    }
+
+    public void run() {
+        try {
+            /* Lock.writeLock() upgrades a read lock */
+            Lock.readLock(alignID);
+            Lock.writeLock(alignID);
+            int[] segments = server.getSingleSegments(alignID, chrom, isType2);
+            if (segments.length == 0) {
+                return;
+            }
+            long started = System.currentTimeMillis();
+            String prefix = server.getAlignmentDir(alignID) + System.getProperty("file.separator");
+            Hits[] hits = new Hits[segments.length + 1];
+            boolean compressed = server.isCompressed(alignID, chrom, isType2);
+            hits[0] = compressed ? server.getCompressedHits(alignID, chrom, isType2).decodeAll() : server.getSingleHits(alignID, chrom, isType2);
+            for (int i = 0; i < segments.length; i++) {
+                hits[i+1] = server.getSingleHits(alignID, chrom, isType2, segments[i]);
+            }
+            SingleHits.compactSegments(hits, prefix, chrom, isType2);
+            hits = null;
+            if (compressed) {
+                /* the raw files just written replace it */
+                CompressedHits.delete(prefix, chrom, isType2);
+            }
+
+            SingleHits singlehits = new SingleHits(prefix, chrom, isType2);
+            Header header = new Header(singlehits.getPositionsBuffer().getib());
+            singlehits.close();
+            header.writeIndexFile(server.getSingleHeaderFileName(alignID, chrom, isType2));
+            /* the base file now holds everything, so the segment list goes before the segments do.
+               If we die between rewriting the base file and here, the segments' hits are counted twice */
+            server.removeSingleSegments(alignID, chrom, isType2);
+            server.setSingleSegments(alignID, chrom, isType2, new int[0]);
+            server.removeSingleHits(alignID, chrom, isType2);
+            server.removeSingleHeader(alignID, chrom, isType2);
+            if (server.useCompression()) {
+                server.compressSingleHits(alignID, chrom, isType2);
+            }
+            for (int i = 0; i < segments.length; i++) {
+                boolean deleted = SingleHits.deleteSegment(prefix, chrom, isType2, segments[i]);
+                deleted = (new File(server.getSingleHeaderFileName(alignID, chrom, isType2, segments[i]))).delete() && deleted;
+                if (!deleted) {
+                    server.getLogger().logp(Level.INFO,"SegmentCompactor","run",
+                                            String.format("didn't delete all files for segment %d of %s %d", segments[i], alignID, chrom));
+                }
+            }
+            server.getLogger().logp(Level.INFO,"SegmentCompactor","run",
+                                    String.format("compacted %d segments of %s %d%s in %d ms", segments.length, alignID, chrom,
+                                                  isType2 ? " (type2)" : "", System.currentTimeMillis() - started));
+        } catch (Exception e) {
+            server.getLogger().logp(Level.INFO,"SegmentCompactor","run",
+                                    String.format("error compacting %s %d : %s", alignID, chrom, e.toString()), e);
+            e.printStackTrace();
+        } finally {
+            /* done before releasing the lock so a store that crosses the threshold again can queue another */
+            server.compactionDone(alignID, chrom, isType2);
+            server.releaseCaches();
+            Lock.releaseLocks();
+        }
+    }
+}
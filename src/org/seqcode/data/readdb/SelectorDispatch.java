@@ -0,0 +1,211 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * SelectorDispatch is a Dispatch that waits for client input with a
+ * java.nio.channels.Selector instead of polling each ServerTask.  Idle
+ * connections are registered with the selector in non-blocking mode and
+ * cost nothing until the client sends data.  When a connection becomes readable,
+ * its key is cancelled, the channel is switched back to blocking mode, and the
+ * ServerTask is handed to one of the WorkerThreads.  ServerTask itself is
+ * unchanged and still uses blocking streams while it runs, so the wire protocol is
+ * exactly the same as with the polling Dispatch.
+ *
+ * When the WorkerThread returns the task, it goes back to the selector unless
+ * it already has buffered input (eg, a client that pipelined a second request),
+ * in which case it's run again right away.
+ */
+public class SelectorDispatch extends Dispatch {
+
+    /* how often (ms) to wake up and close idle connections even if nothing happens */
+    private static final int IDLECHECK = 1000;
+
+    private Selector selector;
+    /* tasks waiting to be (re-)registered with the selector.  Registration
+       has to happen on the dispatch thread */
+    private ConcurrentLinkedQueue<ServerTask> toRegister;
+    /* tasks that have input available and are waiting for a free WorkerThread */
+    private ConcurrentLinkedQueue<ServerTask> readyQueue;
+    /* number of open connections, whether registered, ready, or running */
+    private int numConnections;
+
+    public SelectorDispatch (Server s, int numThreads, int maxC) throws IOException {
+        super(s, numThreads, maxC);
+        selector = Selector.open();
+        toRegister = new ConcurrentLinkedQueue<ServerTask>();
+        readyQueue = new ConcurrentLinkedQueue<ServerTask>();
+        numConnections = 0;
+    }
+
+    /**
+     * Add a new ServerTask to the set of tasks that will
+     * be run.  Called by Server when it accepts a new connection.
+     * Blocks while the server is at maxConnections.
+     */
+    public void addWork(ServerTask s) {
+        while (getNumConnections() > maxConnections) {
+            try {
+                if (warnedMaxConn++ % 100 == 0) {
+                    server.getLogger().log(Level.WARNING,(String.format("Hit maxconnections (%d)",maxConnections)));
+                }
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+
+            }
+        }
+        warnedMaxConn = 0;
+        synchronized(this) {
+            numConnections++;
+        }
+        toRegister.add(s);
+        selector.wakeup();
+    }
+    public synchronized int getNumConnections() {return numConnections;}
+
+    /**
+     * called by WorkerThread when it's finished with a ServerTask.
+     */
+    public void freeThread(WorkerThread t, ServerTask s) {
+        if (s.shouldClose()) {
+            closeTask(s);
+        } else if (s.hasBufferedInput()) {
+            readyQueue.add(s);
+        } else {
+            toRegister.add(s);
+        }
+        freePool.add(t);
+        selector.wakeup();
+    }
+
+    private void closeTask(ServerTask s) {
+        s.close();
+        synchronized(this) {
+            numConnections--;
+        }
+    }
+
+    /**
+     * our main loop.  register returned tasks, wait for input on
+     * any of the registered channels, and hand ready tasks to free WorkerThreads.
+     */
+    public void run() {
+        int threadCheck = 0;
+        long lastIdleCheck = System.currentTimeMillis();
+        List<ServerTask> selected = new ArrayList<ServerTask>();
+        while (server.keepRunning()) {
+            registerTasks();
+            assignTasks();
+            try {
+                selector.select(IDLECHECK);
+            } catch (IOException e) {
+                server.getLogger().logp(Level.WARNING,"SelectorDispatch","run","select failed",e);
+                continue;
+            }
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                key.cancel();
+                selected.add((ServerTask)key.attachment());
+            }
+            if (selected.size() > 0) {
+                /* the cancelled keys are only deregistered by the next selection operation.
+                   The channels can't go back into blocking mode until that happens. */
+                try {
+                    selector.selectNow();
+                } catch (IOException e) {
+                    server.getLogger().logp(Level.WARNING,"SelectorDispatch","run","selectNow failed",e);
+                }
+                for (ServerTask s : selected) {
+                    try {
+                        s.getChannel().configureBlocking(true);
+                        s.setReadable();
+                        readyQueue.add(s);
+                    } catch (IOException e) {
+                        server.getLogger().logp(Level.INFO,"SelectorDispatch","run","can't set blocking mode for " + s,e);
+                        closeTask(s);
+                    }
+                }
+                selected.clear();
+            }
+            assignTasks();
+            if (System.currentTimeMillis() - lastIdleCheck > IDLECHECK) {
+                lastIdleCheck = System.currentTimeMillis();
+                closeIdleTasks();
+            }
+            if (threadCheck++ > 1000) {
+                threadCheck = 0;
+                replaceDeadThreads();
+            }
+        }
+        while (freePool.size() < allThreads.size()) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+
+            }
+        }
+        for (WorkerThread t : freePool) {
+            t.stopRunning();
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                closeTask((ServerTask)key.attachment());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore it, we're shutting down anyway
+        }
+    }
+
+    /* puts tasks returned by the WorkerThreads or added by the Server
+       back on the selector in non-blocking mode */
+    private void registerTasks() {
+        ServerTask s;
+        while ((s = toRegister.poll()) != null) {
+            if (s.shouldClose()) {
+                closeTask(s);
+                continue;
+            }
+            try {
+                SelectableChannel channel = s.getChannel();
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, s);
+            } catch (Exception e) {
+                server.getLogger().logp(Level.INFO,"SelectorDispatch","registerTasks","can't register " + s,e);
+                closeTask(s);
+            }
+        }
+    }
+
+    /* hands ready tasks to free WorkerThreads */
+    private void assignTasks() {
+        while (!readyQueue.isEmpty() && freePool.size() > 0) {
+            ServerTask s = readyQueue.poll();
+            if (s.shouldClose()) {
+                closeTask(s);
+            } else {
+                WorkerThread w = freePool.remove(0);
+                w.handle(s);
+            }
+        }
+    }
+
+    private void closeIdleTasks() {
+        for (SelectionKey key : selector.keys()) {
+            ServerTask s = (ServerTask)key.attachment();
+            if (key.isValid() && s.shouldClose()) {
+                key.cancel();
+                closeTask(s);
+            }
+        }
+    }
+
+}
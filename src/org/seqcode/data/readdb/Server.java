@@ -1,7 +1,9 @@
 package org.seqcode.data.readdb;
 
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.io.*;
 import org.apache.commons.cli.*;
@@ -15,21 +17,37 @@ import org.apache.commons.cli.*;
  * <ul>
  * <li>--port 52000     port to listen on
  * <li>--threads 5      number of threads to start to handle client requests
- * <li>--cachesize 100  number of chromosomes to keep files open for
+ * <li>--cachesize 100  number of chromosome headers and ACLs to keep in memory
+ * <li>--cachemb 8192   megabytes of hits files to keep mapped
  * <li>--maxconn 1000    maximum number of client connections
  * <li>--sleepiness 2   how sleepy the server should be waiting for input.  Lower values use more CPU but improve responsiveness
  * <li>--idlelimit 24  number of hours after which idle task connections are closed 
  * <li>--gcfreq 50     number of datasets removed from cache before garbage collection called.  
+ * <li>--selector       wait for client input with a java.nio Selector (SelectorDispatch) rather than polling.  --sleepiness is ignored
+ * <li>--segmented      store additions to an existing single-end chromosome as a new segment rather than rewriting its file
+ * <li>--maxsegments 8  number of segments on a chromosome that triggers a background compaction
+ * <li>--compress       write single-end chromosome files in the block-compressed layout (see CompressedHits)
  * <li>--help           print the usage message and exit
  * </ul>
  * 
- * <p>Breakdown of relationship between cachesize and number of opened files
- * There are 5 caches, each of size [cachesize]. Max number of files for each:
- *  - acls: 1 file x cachesize
- *  - singleHeaders: 1 file x cachesize
- *  - pairedHeaders: 1 file x cachesize
- *  - singleHits: 3 files x cachesize
- *  - pairedHits: 6 files x cachesize
+ * <p>There are 7 caches.  acls, singleHeaders, and pairedHeaders hold up to [cachesize]
+ * entries each.  singleHits, pairedHits, compressedHits, and summaries are bounded by [cachemb] megabytes of mapped files each
+ * (3 files per singleHits entry, 6 per pairedHits entry, 1 per compressedHits or summaries entry).  Mapped files are unmapped as soon as
+ * they fall out of the cache and no request is using them.
+ *
+ * <p>With --segmented, each store to an existing single-end chromosome is written as a new sorted
+ * segment (with its own Header) next to the base file and listed in the chromosome's segment list.
+ * Reads merge the segments that overlap the requested range.  Once a chromosome has [maxsegments]
+ * segments, a background SegmentCompactor merges them back into the base file.  Chromosomes without a
+ * segment list are plain single files, so existing alignments are read as before.
+ *
+ * <p>A single-end chromosome's base file is either the three raw files or one CompressedHits file.
+ * Both layouts are always readable; --compress only controls which one is written.
+ *
+ * <p>Each chromosome (and each side of paired hits) also has a CoverageSummary of its hits at several
+ * resolutions, which answers histograms with large bins without reading the hits.  Summaries are
+ * written whenever a chromosome's Header is, and a reindex request writes them for alignments stored
+ * before summaries existed.  A summary whose hit count doesn't match the Header is ignored.
  */
 public class Server {
 
@@ -39,7 +57,9 @@ public class Server {
 	private Logger logger;
     private int port;
     private int numThreads, cacheSize, maxConnections, sleepiness, taskIdleLimit, gcFrequency;
-    private boolean debug;
+    private long cacheBytes;
+    private boolean debug, useSelector, useSegments, useCompression;
+    private int maxSegments;
     /* topdir is the top-level directory for our data files.
       pwfile is "${topdir}/users.txt" and groupfile is 
       "${topdir}/groups.txt"
@@ -52,11 +72,21 @@ public class Server {
     // in buffers when the buffer is allocated in bytes.
     public static final int BUFFERLEN = 8192 * 16;
 
-    private LRUCache<Header> singleHeaders;
-    private LRUCache<Header> pairedHeaders;
-    private LRUCache<SingleHits> singleHits;
-    private LRUCache<PairedHits> pairedHits;
-    private LRUCache<AlignmentACL> acls;    
+    private ConcurrentCache<Header> singleHeaders;
+    private ConcurrentCache<Header> pairedHeaders;
+    private ConcurrentCache<SingleHits> singleHits;
+    private ConcurrentCache<PairedHits> pairedHits;
+    private ConcurrentCache<CompressedHits> compressedHits;
+    /* coverage summaries, keyed by file name */
+    private ConcurrentCache<CoverageSummary> summaries;
+    private ConcurrentCache<AlignmentACL> acls;    
+    /* segment lists for single-end chromosomes, keyed like singleHits.  An empty 
+       list means the chromosome is just the base file */
+    private ConcurrentHashMap<String,int[]> singleSegments;
+    /* whether the base file of a single-end chromosome is compressed, keyed like singleHits */
+    private ConcurrentHashMap<String,Boolean> compressedChroms;
+    private ExecutorService compactor;
+    private Set<String> compacting;
 
     private ServerSocket socket;
 
@@ -65,26 +95,42 @@ public class Server {
         sleepiness = 4;
         numThreads = 5;
         cacheSize = 100;
+        cacheBytes = 8192L * 1024 * 1024;
         maxConnections = 1000;
         taskIdleLimit = 2; //(hours)
         gcFrequency = 50;
+        maxSegments = 8;
         topdir = "/tmp";
         keepRunning = true;
         logger = Logger.getLogger("org.seqcode.data.readdb.Server");
         logger.log(Level.INFO,"created Server");        
 
     }
+    /**
+     * A Server that doesn't listen, for tools that read or write a data directory directly
+     * (eg ImportBAM --datadir).  Only the file names, caches, and file helpers are usable.
+     */
+    public Server (String topdir) {
+        this();
+        this.topdir = topdir;
+        initCaches();
+    }
     public void parseArgs(String[] args) throws ParseException {
         Options options = new Options();
         options.addOption("p","port",true,"port to listen on");
         options.addOption("t","threads",true,"number of threads to spawn");
         options.addOption("d","datadir",true,"directory to use for data");
         options.addOption("D","debug",false,"provide debugging output");
-        options.addOption("C","cachesize",true,"how many files to keep open (this value times up to 18)");
+        options.addOption("C","cachesize",true,"how many headers and ACLs to keep in memory");
+        options.addOption("m","cachemb",true,"how many megabytes of hits files to keep mapped");
         options.addOption("M","maxconn",true,"how many connections are allowed");
         options.addOption("S","sleepiness",true,"how sleepy the server should be while waiting for input.  1-100");
         options.addOption("L","idlelimit",true,"number of hours after which to close idle connections. Negative sets no limit.");
         options.addOption("G","gcfreq",true,"number of datasets removed from cache before garbage collection called.");
+        options.addOption("s","selector",false,"use a Selector to wait for client input rather than polling each connection");
+        options.addOption("A","segmented",false,"store additions to existing single-end chromosomes as new segments");
+        options.addOption("X","maxsegments",true,"number of segments per chromosome that triggers a compaction");
+        options.addOption("Z","compress",false,"write single-end hits in the block-compressed layout");
         options.addOption("h","help",false,"print help message");
         CommandLineParser parser = new GnuParser();
         CommandLine line = parser.parse( options, args, false );            
@@ -105,6 +151,9 @@ public class Server {
         if (line.hasOption("cachesize")) {
             cacheSize = Integer.parseInt(line.getOptionValue("cachesize"));
         }
+        if (line.hasOption("cachemb")) {
+            cacheBytes = Long.parseLong(line.getOptionValue("cachemb")) * 1024 * 1024;
+        }
         if (line.hasOption("maxconn")) {
             maxConnections = Integer.parseInt(line.getOptionValue("maxconn"));
         }
@@ -123,27 +172,50 @@ public class Server {
         if (line.hasOption("gcfreq")) {
             gcFrequency = Integer.parseInt(line.getOptionValue("gcfreq"));
         }
+        if (line.hasOption("maxsegments")) {
+            maxSegments = Integer.parseInt(line.getOptionValue("maxsegments"));
+            if (maxSegments < 1) {
+                maxSegments = 1;
+            }
+        }
 
-        singleHits = new LRUCache<SingleHits>(cacheSize);
-        pairedHits = new LRUCache<PairedHits>(cacheSize);
-        singleHeaders = new LRUCache<Header>(cacheSize);
-        pairedHeaders = new LRUCache<Header>(cacheSize);
-        acls = new LRUCache<AlignmentACL>(cacheSize);
+        initCaches();
+        compactor = Executors.newSingleThreadExecutor();
+        compacting = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
         debug = line.hasOption("debug");
-        logger.log(Level.INFO,String.format("Server parsed args: port %d, threads %d, directory %s",port,numThreads,topdir));
+        useSelector = line.hasOption("selector");
+        useSegments = line.hasOption("segmented");
+        useCompression = line.hasOption("compress");
+        logger.log(Level.INFO,String.format("Server parsed args: port %d, threads %d, directory %s, selector %s, segmented %s, compress %s",
+                                            port,numThreads,topdir,useSelector,useSegments,useCompression));
         pwfile = topdir + System.getProperty("file.separator") + "users.txt";
         groupfile = topdir + System.getProperty("file.separator") + "groups.txt";
     }
+    private void initCaches() {
+        singleHits = new ConcurrentCache<SingleHits>(cacheBytes);
+        pairedHits = new ConcurrentCache<PairedHits>(cacheBytes);
+        compressedHits = new ConcurrentCache<CompressedHits>(cacheBytes);
+        summaries = new ConcurrentCache<CoverageSummary>(cacheBytes);
+        singleHeaders = new ConcurrentCache<Header>(cacheSize);
+        pairedHeaders = new ConcurrentCache<Header>(cacheSize);
+        acls = new ConcurrentCache<AlignmentACL>(cacheSize);
+        singleSegments = new ConcurrentHashMap<String,int[]>();
+        compressedChroms = new ConcurrentHashMap<String,Boolean>();
+    }
     public void printHelp() {
         System.out.println("ReadDB server process");
         System.out.println("usage: java org.seqcode.data.readdb.Server --datadir /path/to/datadir --port 52000");
         System.out.println(" [--threads 5]   use this number of worker threads to process requests.");
-        System.out.println(" [--cachesize 100]  number of datasets to keep open.  Actual number of open files will be");
-        System.out.println("                  up to 18 times this value");
+        System.out.println(" [--cachesize 100]  number of headers and ACLs to keep in memory");
+        System.out.println(" [--cachemb 8192]  megabytes of single-end (and separately, paired-end) hits files to keep mapped");
         System.out.println(" [--maxconn 1000]   maximum number of open connections");
         System.out.println(" [--debug]  print debugging output");
         System.out.println(" [--sleepiness 4]  (1-100) higher values use less CPU when idle but may incur more delay in processing requests");
         System.out.println(" [--idlelimit 2]  number of hours after which to close idle connections. Negative sets no limit. ");
+        System.out.println(" [--selector]  wait for client input with a Selector rather than polling.  Uses no CPU while idle; --sleepiness is ignored");
+        System.out.println(" [--segmented]  store additions to existing single-end chromosomes as new segments rather than rewriting the chromosome");
+        System.out.println(" [--maxsegments 8]  number of segments on a chromosome that triggers a background compaction");
+        System.out.println(" [--compress]  write single-end hits in the block-compressed layout");
     }
     public static void main(String args[]) throws Exception {
         Server server = new Server();
@@ -167,14 +239,25 @@ public class Server {
 
     }
     public boolean debug() {return debug;}
+    public boolean useSegments() {return useSegments;}
+    public int getMaxSegments() {return maxSegments;}
+    public boolean useCompression() {return useCompression;}
     public int getSleepiness() {return sleepiness;}
     public void listen() throws IOException {
-        Thread t = new Thread(new CacheGCHook(logger, gcFrequency));
+        Thread t = new Thread(new CacheGCHook(logger, this, gcFrequency));
         t.start();
-        dispatch = new Dispatch(this,numThreads, maxConnections);
+        if (useSelector) {
+            dispatch = new SelectorDispatch(this,numThreads, maxConnections);
+            /* connections accepted from a ServerSocketChannel have a SocketChannel that
+               SelectorDispatch can register with its Selector */
+            socket = ServerSocketChannel.open().socket();
+            socket.bind(new InetSocketAddress(port));
+        } else {
+            dispatch = new Dispatch(this,numThreads, maxConnections);
+            socket = new ServerSocket(port);
+        }
         t = new Thread(dispatch);
         t.start();
-        socket = new ServerSocket(port);
         socket.setReuseAddress(true);
         socket.setReceiveBufferSize(BUFFERLEN);
         socket.setSoTimeout(1000*3600*24);
@@ -198,6 +281,7 @@ public class Server {
         }
     }
     public Logger getLogger() {return logger;}
+    public Dispatch getDispatch() {return dispatch;}
     public String getTopDir() {
         return topdir; 
     }
@@ -222,11 +306,29 @@ public class Server {
                                           boolean isType2) {
         return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + (isType2 ? ".singlet2index" : ".singleindex");
     }    
+    /* segments are named by appending .segN to the base file name so that getChroms()
+       and deleting an alignment see them as part of the same chromosome */
+    public String getSingleHeaderFileName(String alignID,
+                                          int chromID,
+                                          boolean isType2,
+                                          int segment) {
+        return getSingleHeaderFileName(alignID, chromID, isType2) + (segment == 0 ? "" : ".seg" + segment);
+    }    
     public String getPairedHeaderFileName(String alignID,
                                           int chromID,
                                           boolean isLeft) {
         return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + ".paired" + (isLeft ? "left" : "right") + "index";
     }
+    public String getSingleSummaryFileName(String alignID,
+                                           int chromID,
+                                           boolean isType2) {
+        return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + (isType2 ? ".st2summary" : ".ssummary");
+    }
+    public String getPairedSummaryFileName(String alignID,
+                                           int chromID,
+                                           boolean isLeft) {
+        return getAlignmentDir(alignID) + System.getProperty("file.separator") + chromID + (isLeft ? ".prleft" : ".prright") + ".summary";
+    }
     public Set<Integer> getChroms(String alignID,
                                  boolean isType2,
     							 boolean isPaired,
@@ -250,19 +352,132 @@ public class Server {
     /**
      * Returns the requested Hits object.  Creates it or retrieves from cache.
      * Client code is responsible for locking the file as necessary.
+     * The calling thread holds the object (it won't be unmapped)
+     * until it calls releaseCaches().
      */
     public SingleHits getSingleHits(String alignID,
                                     int chrom,
                                     boolean isType2) throws IOException, SecurityException, FileNotFoundException {
-        String key = alignID + chrom + isType2;
+        return getSingleHits(alignID, chrom, isType2, 0);
+    }
+    public SingleHits getSingleHits(String alignID,
+                                    int chrom,
+                                    boolean isType2,
+                                    int segment) throws IOException, SecurityException, FileNotFoundException {
+        String key = getSegmentKey(alignID, chrom, isType2, segment);
         SingleHits output = singleHits.get(key);
         if (output == null) {
             String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
-            output = new SingleHits(prefix,chrom,isType2);
-            singleHits.add(key, output);
+            output = new SingleHits(prefix,chrom,isType2,segment);
+            singleHits.add(key, output, output.getMappedBytes());
+        }
+        return output;
+    }
+    /**
+     * Returns the segments (other than the base file) of a single-end chromosome.
+     * The list is empty for chromosomes that are stored as a single file.
+     * Client code is responsible for locking the alignment as necessary.
+     */
+    public int[] getSingleSegments(String alignID, int chrom, boolean isType2) throws IOException {
+        String key = alignID + chrom + isType2;
+        int[] output = singleSegments.get(key);
+        if (output == null) {
+            output = SingleHits.readSegments(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom, isType2);
+            singleSegments.put(key, output);
         }
         return output;
     }
+    /**
+     * Replaces the segment list for a chromosome.  Client code must hold the write lock on the alignment.
+     */
+    public void setSingleSegments(String alignID, int chrom, boolean isType2, int[] segments) throws IOException {
+        SingleHits.writeSegments(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom, isType2, segments);
+        singleSegments.put(alignID + chrom + isType2, segments);
+    }
+    /**
+     * Returns the hits between start and end (inclusive) for a single-end chromosome that's 
+     * compressed or stored as segments, decoded and merged into one SingleHits in memory.  Only 
+     * the compressed blocks and the parts of segments that overlap start to end are read.  The
+     * result may include some hits outside of start to end.
+     */
+    public SingleHits getSingleHitsBetween(String alignID, int chrom, boolean isType2, int[] segments,
+                                           int start, int end) throws IOException {
+        Hits[] hits = new Hits[segments.length + 1];
+        Header[] headers = new Header[segments.length + 1];
+        if (isCompressed(alignID, chrom, isType2)) {
+            Header header = getSingleHeader(alignID, chrom, isType2);
+            SingleHits decoded = getCompressedHits(alignID, chrom, isType2).decode(header.getFirstIndex(start),
+                                                                                   header.getLastIndex(end));
+            if (segments.length == 0) {
+                return decoded;
+            }
+            hits[0] = decoded;
+            headers[0] = new Header(decoded.getPositionsBuffer().getib());
+        } else {
+            hits[0] = getSingleHits(alignID, chrom, isType2);
+            headers[0] = getSingleHeader(alignID, chrom, isType2);
+        }
+        for (int i = 0; i < segments.length; i++) {
+            hits[i+1] = getSingleHits(alignID, chrom, isType2, segments[i]);
+            headers[i+1] = getSingleHeader(alignID, chrom, isType2, segments[i]);
+        }
+        return SingleHits.mergeSegments(hits, headers, chrom, start, end);
+    }
+    /**
+     * Returns true if the base file of this single-end chromosome is in the compressed layout
+     */
+    public boolean isCompressed(String alignID, int chrom, boolean isType2) {
+        String key = alignID + chrom + isType2;
+        Boolean output = compressedChroms.get(key);
+        if (output == null) {
+            output = CompressedHits.exists(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom, isType2);
+            compressedChroms.put(key, output);
+        }
+        return output;
+    }
+    public CompressedHits getCompressedHits(String alignID, int chrom, boolean isType2) throws IOException {
+        String key = alignID + chrom + isType2;
+        CompressedHits output = compressedHits.get(key);
+        if (output == null) {
+            output = new CompressedHits(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom, isType2);
+            compressedHits.add(key, output, output.getMappedBytes());
+        }
+        return output;
+    }
+    /**
+     * Rewrites the base file of a single-end chromosome in the compressed layout if it isn't already.
+     * Client code must hold the write lock on the alignment.
+     */
+    public void compressSingleHits(String alignID, int chrom, boolean isType2) throws IOException {
+        if (!isCompressed(alignID, chrom, isType2)) {
+            CompressedHits.compress(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom, isType2);
+            removeSingleHits(alignID, chrom, isType2);
+        }
+    }
+    /**
+     * Rewrites the base file of a single-end chromosome in the raw layout if it's compressed, eg before
+     * appending to it in place.  Client code must hold the write lock on the alignment.
+     */
+    public void decompressSingleHits(String alignID, int chrom, boolean isType2) throws IOException {
+        if (isCompressed(alignID, chrom, isType2)) {
+            CompressedHits.decompress(getAlignmentDir(alignID) + System.getProperty("file.separator"), chrom, isType2);
+            removeSingleHits(alignID, chrom, isType2);
+        }
+    }
+    /**
+     * Queues a compaction of the chromosome's segments unless one is already queued
+     */
+    public void scheduleCompaction(String alignID, int chrom, boolean isType2) {
+        if (compacting.add(alignID + chrom + isType2)) {
+            compactor.submit(new SegmentCompactor(this, alignID, chrom, isType2));
+        }
+    }
+    protected void compactionDone(String alignID, int chrom, boolean isType2) {
+        compacting.remove(alignID + chrom + isType2);
+    }
+    private String getSegmentKey(String alignID, int chrom, boolean isType2, int segment) {
+        return alignID + chrom + isType2 + (segment == 0 ? "" : ".seg" + segment);
+    }
     public PairedHits getPairedHits(String alignID,
                                     int chrom,
                                     boolean isLeft) throws IOException, SecurityException, FileNotFoundException {
@@ -271,7 +486,7 @@ public class Server {
         if (output == null) {
             String prefix = getAlignmentDir(alignID) + System.getProperty("file.separator");
             output = new PairedHits(prefix, chrom, isLeft);
-            pairedHits.add(key, output);
+            pairedHits.add(key, output, output.getMappedBytes());
         }
         return output;
     }
@@ -280,10 +495,13 @@ public class Server {
      * Client code is responsible for locking the file as necessary.
      */
     public Header getSingleHeader(String alignID, int chromID, boolean isType2) throws IOException {
-        String key = alignID + chromID +isType2;
+        return getSingleHeader(alignID, chromID, isType2, 0);
+    }
+    public Header getSingleHeader(String alignID, int chromID, boolean isType2, int segment) throws IOException {
+        String key = getSegmentKey(alignID, chromID, isType2, segment);
         Header output = singleHeaders.get(key);
         if (output == null) {
-            output = Header.readIndexFile(getSingleHeaderFileName(alignID,chromID, isType2));
+            output = Header.readIndexFile(getSingleHeaderFileName(alignID,chromID, isType2, segment));
             singleHeaders.add(key, output);
         }
         return output;
@@ -297,6 +515,52 @@ public class Server {
         }
         return output;
     }
+    /**
+     * Returns the coverage summary of a single-end chromosome (including any segments), or null if it
+     * doesn't have one.  Creates it or retrieves from cache.  Client code is responsible for locking the file
+     * as necessary and for checking that the summary is current.
+     */
+    public CoverageSummary getSingleSummary(String alignID, int chromID, boolean isType2) throws IOException {
+        return getSummary(getSingleSummaryFileName(alignID, chromID, isType2));
+    }
+    public CoverageSummary getPairedSummary(String alignID, int chromID, boolean isLeft) throws IOException {
+        return getSummary(getPairedSummaryFileName(alignID, chromID, isLeft));
+    }
+    private CoverageSummary getSummary(String fname) throws IOException {
+        CoverageSummary output = summaries.get(fname);
+        if (output == null) {
+            if (!(new File(fname)).exists()) {
+                return null;
+            }
+            output = new CoverageSummary(fname);
+            summaries.add(fname, output, output.getMappedBytes());
+        }
+        return output;
+    }
+    /**
+     * Replaces the coverage summary of a single-end chromosome, or removes it if summary is null.
+     * Client code must hold the write lock on the alignment.
+     */
+    public void setSingleSummary(String alignID, int chromID, boolean isType2, CoverageSummary summary) throws IOException {
+        setSummary(getSingleSummaryFileName(alignID, chromID, isType2), summary);
+    }
+    public void setPairedSummary(String alignID, int chromID, boolean isLeft, CoverageSummary summary) throws IOException {
+        setSummary(getPairedSummaryFileName(alignID, chromID, isLeft), summary);
+    }
+    private void setSummary(String fname, CoverageSummary summary) throws IOException {
+        if (summary == null) {
+            (new File(fname)).delete();
+        } else {
+            summary.write(fname);
+        }
+        summaries.remove(fname);
+    }
+    public void removeSingleSummary(String alignID, int chromID, boolean isType2) {
+        summaries.remove(getSingleSummaryFileName(alignID, chromID, isType2));
+    }
+    public void removePairedSummary(String alignID, int chromID, boolean isLeft) {
+        summaries.remove(getPairedSummaryFileName(alignID, chromID, isLeft));
+    }
     /**
      * Returns the requested ACL object.  Creates it or retrieves from cache.
      * Client code is responsible for locking the file as necessary.
@@ -309,8 +573,14 @@ public class Server {
         }
         return output;
     }
+    /* removes the base file of a single-end chromosome, in either layout, from the caches */
     public void removeSingleHits(String alignID, int chromID, boolean isType2) {
         singleHits.remove(alignID + chromID+ isType2);
+        compressedHits.remove(alignID + chromID+ isType2);
+        compressedChroms.remove(alignID + chromID+ isType2);
+    }
+    public void removeSingleHits(String alignID, int chromID, boolean isType2, int segment) {
+        singleHits.remove(getSegmentKey(alignID, chromID, isType2, segment));
     }
     public void removePairedHits(String alignID, int chromID, boolean isLeft) {
         pairedHits.remove(alignID + chromID + isLeft);
@@ -318,15 +588,95 @@ public class Server {
     public void removeSingleHeader(String alignID, int chromID, boolean isType2) {
         singleHeaders.remove(alignID + chromID + isType2);
     }
+    public void removeSingleHeader(String alignID, int chromID, boolean isType2, int segment) {
+        singleHeaders.remove(getSegmentKey(alignID, chromID, isType2, segment));
+    }
+    /**
+     * Removes a chromosome's segments and its segment list from the caches 
+     */
+    public void removeSingleSegments(String alignID, int chromID, boolean isType2) {
+        int[] segments = singleSegments.remove(alignID + chromID + isType2);
+        if (segments != null) {
+            for (int i = 0; i < segments.length; i++) {
+                removeSingleHits(alignID, chromID, isType2, segments[i]);
+                removeSingleHeader(alignID, chromID, isType2, segments[i]);
+            }
+        }
+    }
     public void removePairedHeader(String alignID, int chromID, boolean isLeft) {
         pairedHeaders.remove(alignID + chromID + isLeft);
     }
     public void removeACL(String alignID) {acls.remove(alignID);}
+    /**
+     * Creates the directory for a new alignment and gives it the default ACL plus admin, write, and
+     * read access for owner.  Returns false if the directory can't be created.
+     */
+    public boolean createAlignment(String alignID, String owner) throws IOException {
+        AlignmentACL acl = new AlignmentACL();
+        try {
+            acl.readFromFile(getDefaultACLFileName());
+        } catch (IOException e) {
+            // no default acl, so dont' worry.
+        }
+        File dir = new File(getAlignmentDir(alignID));
+        if (!dir.exists() && !dir.mkdirs()) {
+            return false;
+        }
+        acl.getAdminACL().add(owner);
+        acl.getWriteACL().add(owner);
+        acl.getReadACL().add(owner);
+        acl.writeToFile(getACLFileName(alignID));
+        removeACL(alignID); // make sure the server doesn't have this ACL cached
+        return true;
+    }
+    /**
+     * Writes the Header and CoverageSummary for the base file of a single-end chromosome
+     * after its hits have been rewritten, and drops the old versions from the caches.
+     * Client code must hold the write lock on the alignment.
+     */
+    public void indexSingleHits(String alignID, int chromID, boolean isType2) throws IOException {
+        SingleHits singlehits = new SingleHits(getAlignmentDir(alignID) + System.getProperty("file.separator"),
+                                               chromID,
+                                               isType2);
+        Header header = new Header(singlehits.getPositionsBuffer().getib());
+        /* the base file alone doesn't summarize a chromosome that also has segments */
+        CoverageSummary summary = getSingleSegments(alignID, chromID, isType2).length == 0 ?
+            CoverageSummary.build(singlehits) : null;
+        singlehits.close();
+        header.writeIndexFile(getSingleHeaderFileName(alignID, chromID, isType2));
+        setSingleSummary(alignID, chromID, isType2, summary);
+        removeSingleHits(alignID, chromID, isType2);
+        removeSingleHeader(alignID, chromID, isType2);
+    }
+    /**
+     * Releases everything the calling thread has gotten from the caches.
+     * Called by ServerTask at the end of each request.
+     */
+    public void releaseCaches() {
+        singleHeaders.releaseAll();
+        pairedHeaders.releaseAll();
+        singleHits.releaseAll();
+        pairedHits.releaseAll();
+        compressedHits.releaseAll();
+        summaries.releaseAll();
+        acls.releaseAll();
+    }
+    /** total number of objects evicted or removed from the caches */
+    public long getCacheEvictions() {
+        return singleHeaders.getEvictions() + pairedHeaders.getEvictions() + 
+            singleHits.getEvictions() + pairedHits.getEvictions() + compressedHits.getEvictions() + summaries.getEvictions() + acls.getEvictions();
+    }
+    public String getCacheStats() {
+        return String.format("singleHits: %s\npairedHits: %s\ncompressedHits: %s\nsummaries: %s\nsingleHeaders: %s\npairedHeaders: %s\nacls: %s",
+                             singleHits, pairedHits, compressedHits, summaries, singleHeaders, pairedHeaders, acls);
+    }
     protected void printCacheContents() {
         singleHeaders.printKeys();
         pairedHeaders.printKeys();
         singleHits.printKeys();
         pairedHits.printKeys();
+        compressedHits.printKeys();
+        summaries.printKeys();
         acls.printKeys();
     }
 
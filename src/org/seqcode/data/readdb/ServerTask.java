@@ -1,6 +1,7 @@
 package org.seqcode.data.readdb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.net.*;
 import java.util.*;
@@ -44,7 +45,8 @@ public class ServerTask {
     /* buffer for readLine */
     private int bufferpos;
     private byte[] buffer;
-    private static final int MAXPARAMLINES = 100;
+    /* enough for a multihistogram over several hundred alignments */
+    private static final int MAXPARAMLINES = 1000;
     /* other variables maintained across calls to Run but reset between connections */
     private Request request;
     private List<String> args;
@@ -52,6 +54,9 @@ public class ServerTask {
     private Map<String,String> saslprops;
     private String uname; // temporary, used by authenticate
     private long lastActivity=0;
+    /* set by SelectorDispatch when the selector found the channel readable, so one read() won't block:
+       there is either data or end of stream.  Cleared when run() returns */
+    private volatile boolean readable = false;
 
     public ServerTask(Server serv, Socket s, int inactivityLimit) throws IOException {
         buffer = new byte[8192];
@@ -105,6 +110,42 @@ public class ServerTask {
             // ignore it
         }
     }
+    /**
+     * returns the channel underlying the socket.  Only non-null if
+     * the connection was accepted through a ServerSocketChannel, as the
+     * Server does when it uses a SelectorDispatch.
+     */
+    public SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+    /**
+     * returns true if there's already input that a Selector won't see:
+     * a complete line sitting in our buffer or bytes
+     * that the BufferedInputStream has read from the socket.
+     */
+    public boolean hasBufferedInput() {
+        synchronized(buffer) {
+            for (int i = 0; i < bufferpos; i++) {
+                if (buffer[i] == '\n') {
+                    return true;
+                }
+            }
+        }
+        try {
+            return instream.available() > 0;
+        } catch (IOException e) {
+            shouldClose = true;
+            return false;
+        }
+    }
+    /**
+     * Called by SelectorDispatch before handing the task to a WorkerThread when the selector
+     * found the channel readable.  A closed connection also selects as readable but has
+     * nothing available(), so readLine() then reads anyway to see the end of the stream.
+     */
+    public void setReadable() {
+        readable = true;
+    }
     public boolean inputAvailable() {
         boolean avail = false;
         if (bufferpos >= buffer.length) {
@@ -192,8 +233,9 @@ public class ServerTask {
                 return out;
             }
         }
-        while (instream.available() > 0 && 
+        while ((readable || instream.available() > 0) && 
                (i = instream.read()) != -1) {
+            readable = false;
             if (i == '\n') {
                 done = true;
                 break;
@@ -284,6 +326,8 @@ public class ServerTask {
             System.gc();
             System.runFinalization();
             return;
+        } finally {
+            readable = false;
         }
     }
     /**
@@ -378,10 +422,14 @@ public class ServerTask {
                 processExists();            
             } else if (request.type.equals("storesingle")) {
                 processSingleStore();
+            } else if (request.type.equals("bulkstoresingle")) {
+                processBulkStoreSingle();
             } else if (request.type.equals("storepaired")) {
                 processPairedStore();
             } else if (request.type.equals("reindex")) {
                 processReindex();
+            } else if (request.type.equals("compress")) {
+                processCompress();
             } else if (request.type.equals("bye")) {
                 shouldClose = true;
             } else if (request.type.equals("getchroms")) {
@@ -394,6 +442,10 @@ public class ServerTask {
                 processDeleteAlignment();
             } else if (request.type.equals("addtogroup")) {
                 processAddToGroup();
+            } else if (request.type.equals("multihistogram")) {
+                processMultiHistogram(false);
+            } else if (request.type.equals("multiweighthistogram")) {
+                processMultiHistogram(true);
             } else if (request.type.equals("shutdown")) {
                 server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Received shutdown from " + username);
                 if (server.isAdmin(username)) {
@@ -428,6 +480,7 @@ public class ServerTask {
             server.getLogger().logp(Level.INFO,"ServerTask","processRequest " + toString(),"Trace " + sb.toString());   
 
         } finally {
+            server.releaseCaches();
             Lock.releaseLocks();
         }
     }
@@ -472,6 +525,9 @@ public class ServerTask {
             printAuthError();
             return;
         }
+        if ((request.type.equals("histogram") || request.type.equals("weighthistogram")) && processSummaryHistogram()) {
+            return;
+        }
         Header header=null;
         Hits hits=null;
         try {
@@ -479,8 +535,19 @@ public class ServerTask {
                 hits = server.getPairedHits(request.alignid, request.chromid, request.isLeft);
                 header = server.getPairedHeader(request.alignid, request.chromid, request.isLeft);
             } else {
-                hits = server.getSingleHits(request.alignid, request.chromid, request.isType2);
-                header = server.getSingleHeader(request.alignid, request.chromid, request.isType2);
+                int[] segments = server.getSingleSegments(request.alignid, request.chromid, request.isType2);
+                boolean compressed = server.isCompressed(request.alignid, request.chromid, request.isType2);
+                /* checksort repairs a raw base file; segments and compressed files are always written sorted */
+                if (!compressed && (segments.length == 0 || request.type.equals("checksort"))) {
+                    hits = server.getSingleHits(request.alignid, request.chromid, request.isType2);
+                    header = server.getSingleHeader(request.alignid, request.chromid, request.isType2);
+                } else {
+                    /* decode and merge just the part of the chromosome that the request covers */
+                    hits = server.getSingleHitsBetween(request.alignid, request.chromid, request.isType2, segments,
+                                                       request.start == null ? Integer.MIN_VALUE : request.start,
+                                                       request.end == null ? Integer.MAX_VALUE : request.end);
+                    header = new Header(hits.getPositionsBuffer().getib());
+                }
             }
         } catch (IOException e) {
             // We already know the alignment exists and we have permissions at this point. 
@@ -713,11 +780,17 @@ public class ServerTask {
                 server.removePairedHits(request.alignid, c, false);
                 server.removePairedHeader(request.alignid, c, true);
                 server.removePairedHeader(request.alignid, c, false);
+                server.removePairedSummary(request.alignid, c, true);
+                server.removePairedSummary(request.alignid, c, false);
             } else {
+                server.removeSingleSegments(request.alignid, c, true);
                 server.removeSingleHits(request.alignid, c, true);
                 server.removeSingleHeader(request.alignid, c, true);
+                server.removeSingleSegments(request.alignid, c, false);
                 server.removeSingleHits(request.alignid, c, false);
                 server.removeSingleHeader(request.alignid, c, false);
+                server.removeSingleSummary(request.alignid, c, true);
+                server.removeSingleSummary(request.alignid, c, false);
             }
         }
 
@@ -745,7 +818,10 @@ public class ServerTask {
                 boolean singlefile = name.indexOf("singleindex") > 0|| name.indexOf("singlet2index") > 0||
                     name.indexOf("spositions") > 0 || name.indexOf("st2positions") > 0 ||
                     name.indexOf("sweights") > 0 || name.indexOf("st2weights") > 0 ||
-                    name.indexOf("slas") > 0 ||name.indexOf("st2las") > 0;
+                    name.indexOf("slas") > 0 ||name.indexOf("st2las") > 0 ||
+                    name.indexOf(".ssegments") > 0 || name.indexOf(".st2segments") > 0 ||
+                    name.indexOf(".scompressed") > 0 || name.indexOf(".st2compressed") > 0 ||
+                    name.indexOf(".ssummary") > 0 || name.indexOf(".st2summary") > 0;
                 if (request.isPaired && pairedfile) {
                     toDelete.add(prefix + name);
                 } else if (!request.isPaired && singlefile) {
@@ -793,7 +869,8 @@ public class ServerTask {
      *
      * If the chromosome file doesn't exist yet, then create a new one and dump in positions and weights.
      * If it does exist, then create a new file and merge the old file with the new
-     * set of hits.
+     * set of hits.  When the server is running with --segmented, the new hits are instead written 
+     * as a new segment of the chromosome and merged with the others when they're read.
      */
     public void processSingleStore() throws IOException {
         assert(request != null);
@@ -861,6 +938,13 @@ public class ServerTask {
                     return;
                 }
                 try {
+                    if (server.useSegments()) {
+                        storeSingleSegment(newhits);
+                        printOK();
+                        return;
+                    }
+                    /* appending and merging work on the raw layout */
+                    server.decompressSingleHits(request.alignid, request.chromid, request.isType2);
                     server.getSingleHits(request.alignid,
                                          request.chromid, 
                                          request.isType2).appendSingleHits(newhits,
@@ -873,35 +957,20 @@ public class ServerTask {
                 }
             } else {
                 /* this is a new alignment, so set a default ACL */
-                AlignmentACL acl = new AlignmentACL();
-                try {
-                    acl.readFromFile(server.getDefaultACLFileName());
-                } catch (IOException e) {
-                    // no default acl, so dont' worry.
-                }
-                File dir = new File(server.getAlignmentDir(request.alignid));
-                if (!dir.exists() && !dir.mkdirs()) {
+                if (!server.createAlignment(request.alignid, username)) {
                     server.getLogger().logp(Level.INFO,"ServerTask","processSingleStore "+ toString(),"Can't create directories for " + request.alignid + ":" + server.getAlignmentDir(request.alignid));
                     printAuthError();
                     return;
                 }
-                acl.getAdminACL().add(username);
-                acl.getWriteACL().add(username);
-                acl.getReadACL().add(username);
-                acl.writeToFile(server.getACLFileName(request.alignid));        
-                server.removeACL(request.alignid); // make sure the server doesn't have this ACL cached
                 SingleHits.writeSingleHits(newhits,
                                            server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
                                            request.chromid,
                                            request.isType2);
             }
-            SingleHits singlehits = new SingleHits(server.getAlignmentDir(request.alignid) + System.getProperty("file.separator"),
-                                                   request.chromid,
-                                                   request.isType2);
-            Header header = new Header(singlehits.getPositionsBuffer().getib());
-            header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
-                                                                 request.chromid,
-                                                                 request.isType2));
+            server.indexSingleHits(request.alignid, request.chromid, request.isType2);
+            if (server.useCompression()) {
+                server.compressSingleHits(request.alignid, request.chromid, request.isType2);
+            }
         } catch (IOException e) {
             server.getLogger().logp(Level.INFO,"ServerTask","processSingleStore "+ toString(),"IOException trying to save files : " + e.toString(),e);
             return;
@@ -910,6 +979,136 @@ public class ServerTask {
         server.removeSingleHits(request.alignid, request.chromid, request.isType2);
         server.removeSingleHeader(request.alignid, request.chromid, request.isType2);
     }
+    /* hits read from the socket at a time by processBulkStoreSingle */
+    private static final int BULKCHUNK = 64 * 1024;
+    /**
+     * Stores whole single-end chromosomes that the client has already sorted (eg, ImportBAM).  The request
+     * lists one chromosome per line as "chromid numhits".  After the OK, the client sends each chromosome's
+     * hits in the order of the list as numhits records of position (int), weight (float), and
+     * length-and-strand (int).  The hits are written straight to the chromosome's files rather than
+     * being held in memory or merged with old hits, so every chromosome must be new to the alignment;
+     * storesingle adds to existing chromosomes.  Responds with a second OK once every chromosome
+     * is written and indexed.
+     */
+    public void processBulkStoreSingle() throws IOException {
+        assert(request != null);
+        if (request.alignid == null || request.alignid.length() == 0) {
+            printString("null or empty alignment " + request.alignid + "\n");
+            return;
+        }
+        int[] chroms = new int[request.list.size()];
+        int[] counts = new int[request.list.size()];
+        Set<Integer> listed = new HashSet<Integer>();
+        for (int i = 0; i < chroms.length; i++) {
+            String pieces[] = request.list.get(i).trim().split("\\s+");
+            try {
+                chroms[i] = Integer.parseInt(pieces[0]);
+                counts[i] = Integer.parseInt(pieces[1]);
+            } catch (Exception e) {
+                printString("invalid chromosome line : " + request.list.get(i) + "\n");
+                return;
+            }
+            if (counts[i] < 0 || !listed.add(chroms[i])) {
+                printString("invalid chromosome line : " + request.list.get(i) + "\n");
+                return;
+            }
+        }
+        Lock.writeLock(request.alignid);
+        Set<Integer> existing = server.getChroms(request.alignid, request.isType2, false, false);
+        if (existing != null) {
+            try {
+                /* sure we're allowed to write here */
+                AlignmentACL acl = server.getACL(request.alignid);
+                if (!authorizeRead(acl) || !authorizeWrite(acl)) {
+                    printAuthError();
+                    return;
+                }
+            } catch (IOException e) {
+                server.getLogger().logp(Level.INFO,"ServerTask","processBulkStoreSingle "+toString(),e.toString(),e);
+                printInvalid(e.toString());
+                return;
+            }
+            for (int i = 0; i < chroms.length; i++) {
+                if (existing.contains(chroms[i])) {
+                    printString("chromosome " + chroms[i] + " already has hits\n");
+                    return;
+                }
+            }
+        } else if (!server.createAlignment(request.alignid, username)) {
+            server.getLogger().logp(Level.INFO,"ServerTask","processBulkStoreSingle "+ toString(),"Can't create directories for " + request.alignid + ":" + server.getAlignmentDir(request.alignid));
+            printAuthError();
+            return;
+        }
+        printOK();
+        String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
+        ReadableByteChannel rbc = Channels.newChannel(instream);
+        ByteBuffer bb = ByteBuffer.allocate(BULKCHUNK * 12);
+        /* after an error, the rest of the hits are still read so that the connection stays usable */
+        String error = null;
+        for (int i = 0; i < chroms.length; i++) {
+            SingleHitsWriter writer = error == null ? new SingleHitsWriter(prefix, chroms[i], request.isType2) : null;
+            int left = counts[i];
+            while (left > 0) {
+                int n = Math.min(left, BULKCHUNK);
+                bb.clear();
+                bb.limit(n * 12);
+                Bits.readBytes(bb, rbc);
+                if (writer != null) {
+                    try {
+                        for (int j = 0; j < n; j++) {
+                            writer.hit(bb.getInt(j * 12), bb.getFloat(j * 12 + 4), bb.getInt(j * 12 + 8));
+                        }
+                    } catch (IOException e) {
+                        server.getLogger().logp(Level.INFO,"ServerTask","processBulkStoreSingle "+toString(),"error writing hits",e);
+                        error = e.toString();
+                        writer.abort();
+                        writer = null;
+                    }
+                }
+                left -= n;
+            }
+            if (writer != null) {
+                writer.close();
+                server.indexSingleHits(request.alignid, chroms[i], request.isType2);
+                if (server.useCompression()) {
+                    server.compressSingleHits(request.alignid, chroms[i], request.isType2);
+                }
+            }
+        }
+        if (error == null) {
+            printOK();
+        } else {
+            printInvalid(error);
+        }
+    }
+    /* writes newhits as the next segment of the chromosome, with its own header, and adds it 
+       to the segment list.  Only the new hits are written, regardless of how big the chromosome is. */
+    private void storeSingleSegment(SingleHit[] newhits) throws IOException {
+        String prefix = server.getAlignmentDir(request.alignid) + System.getProperty("file.separator");
+        int[] segments = server.getSingleSegments(request.alignid, request.chromid, request.isType2);
+        int next = 1;
+        for (int i = 0; i < segments.length; i++) {
+            next = Math.max(next, segments[i] + 1);
+        }
+        SingleHits.writeSingleHits(newhits, prefix, request.chromid, request.isType2, next);
+        SingleHits singlehits = new SingleHits(prefix, request.chromid, request.isType2, next);
+        Header header = new Header(singlehits.getPositionsBuffer().getib());
+        CoverageSummary segmentSummary = CoverageSummary.build(singlehits);
+        singlehits.close();
+        header.writeIndexFile(server.getSingleHeaderFileName(request.alignid, request.chromid, request.isType2, next));
+        /* the segment only becomes visible once it's in the list */
+        int[] newsegments = Arrays.copyOf(segments, segments.length + 1);
+        newsegments[segments.length] = next;
+        server.setSingleSegments(request.alignid, request.chromid, request.isType2, newsegments);
+        /* add the segment to the chromosome's summary.  A chromosome without one keeps reading its hits until it's reindexed */
+        CoverageSummary summary = server.getSingleSummary(request.alignid, request.chromid, request.isType2);
+        if (summary != null) {
+            server.setSingleSummary(request.alignid, request.chromid, request.isType2, CoverageSummary.merge(summary, segmentSummary));
+        }
+        if (newsegments.length >= server.getMaxSegments()) {
+            server.scheduleCompaction(request.alignid, request.chromid, request.isType2);
+        }
+    }
 
     public void processPairedStore() throws IOException {
         assert(request != null);
@@ -943,19 +1142,7 @@ public class ServerTask {
         f = new File(server.getACLFileName(request.alignid));
         if (!f.exists()) {
             /* this is a new alignment, so set a default ACL */
-            AlignmentACL acl = new AlignmentACL();
-            try {
-                acl.readFromFile(server.getDefaultACLFileName());
-            } catch (IOException e) {
-                // no default acl, so dont' worry.
-            }
-            if (!(new File(server.getAlignmentDir(request.alignid))).mkdirs()) {
-            }
-            acl.getAdminACL().add(username);
-            acl.getWriteACL().add(username);
-            acl.getReadACL().add(username);
-            acl.writeToFile(server.getACLFileName(request.alignid));        
-            server.removeACL(request.alignid); // make sure the server doesn't have this ACL cached
+            server.createAlignment(request.alignid, username);
         } else {
             try {        
                 /* sure we're allowed to write here */
@@ -1046,9 +1233,12 @@ public class ServerTask {
                                                    chromid, 
                                                    isLeft);
             Header header = new Header(pairedhits.getPositionsBuffer().getib());
+            CoverageSummary summary = CoverageSummary.build(pairedhits);
+            pairedhits.close();
             header.writeIndexFile(server.getPairedHeaderFileName(request.alignid,
                                                                  chromid,
                                                                  isLeft));
+            server.setPairedSummary(request.alignid, chromid, isLeft, summary);
             server.removePairedHits(request.alignid, chromid, isLeft);
             server.removePairedHeader(request.alignid, chromid, isLeft);
         }
@@ -1066,6 +1256,7 @@ public class ServerTask {
                                                                  request.chromid,
                                                                  true));            
             server.removePairedHeader(request.alignid, request.chromid,true);
+            server.setPairedSummary(request.alignid, request.chromid, true, CoverageSummary.build(hits));
 
             hits = server.getPairedHits(request.alignid, request.chromid, false);
             header = new Header(hits.getPositionsBuffer().getib());
@@ -1073,18 +1264,63 @@ public class ServerTask {
                                                                  request.chromid,
                                                                  false));            
             server.removePairedHeader(request.alignid, request.chromid,false);
+            server.setPairedSummary(request.alignid, request.chromid, false, CoverageSummary.build(hits));
 
         } else {
-            SingleHits hits = server.getSingleHits(request.alignid, request.chromid, request.isType2);
+            SingleHits hits = server.isCompressed(request.alignid, request.chromid, request.isType2) ?
+                server.getCompressedHits(request.alignid, request.chromid, request.isType2).decodeAll() :
+                server.getSingleHits(request.alignid, request.chromid, request.isType2);
             Header header = new Header(hits.getPositionsBuffer().getib());
             header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
                                                                  request.chromid,
                                                                  request.isType2));
             server.removeSingleHeader(request.alignid, request.chromid, request.isType2);       
+            /* the summary covers the segments too */
+            int[] segments = server.getSingleSegments(request.alignid, request.chromid, request.isType2);
+            if (segments.length > 0) {
+                hits = server.getSingleHitsBetween(request.alignid, request.chromid, request.isType2, segments,
+                                                   Integer.MIN_VALUE, Integer.MAX_VALUE);
+            }
+            server.setSingleSummary(request.alignid, request.chromid, request.isType2, CoverageSummary.build(hits));
         }
         printOK();
     }
 
+    /**
+     * Rewrites a single-end chromosome in the compressed layout (or back to the raw
+     * layout if decompress=true).
+     */
+    public void processCompress() throws IOException {
+        assert(request != null);
+        assert(request.alignid != null);
+        assert(request.chromid != null);        
+        if (request.isPaired) {
+            printString("Can't compress paired hits\n");
+            return;
+        }
+        if (!(new File(server.getAlignmentDir(request.alignid))).exists()) {
+            printString("No Such Alignment\n");
+            return;
+        }
+        AlignmentACL acl = server.getACL(request.alignid);
+        if (!authorizeRead(acl) || !authorizeWrite(acl)) {
+            printAuthError();
+            return;
+        }
+        Lock.writeLock(request.alignid);
+        try {
+            if ("true".equals(request.map.get("decompress"))) {
+                server.decompressSingleHits(request.alignid, request.chromid, request.isType2);
+            } else {
+                server.compressSingleHits(request.alignid, request.chromid, request.isType2);
+            }
+        } catch (IOException e) {
+            server.getLogger().logp(Level.INFO,"ServerTask","processCompress "+ toString(),"IOException rewriting files : " + e.toString(),e);
+            printInvalid(e.toString());
+            return;
+        }
+        printOK();
+    }
     public void processCount(Header header, Hits hits) throws IOException {
     	if(header==null || hits==null){
     		printOK();
@@ -1254,24 +1490,8 @@ public class ServerTask {
 	                                   request.minWeight,
 	                                   request.isPlusStrand,
 	                                   extension);
-	        int n = 0;
-	        for (int i = 0; i< raw.length; i++) {
-	            if (raw[i] > 0) {
-	                n++;
-	            }
-	        }
-	        int[] hist = new int[n*2];
-	        int pos = 0;
-	        for (int i = 0; i< raw.length; i++) {
-	            if (raw[i] > 0) {
-	                hist[pos*2] = request.start + binsize * i + binsize / 2;
-	                hist[pos*2+1] = raw[i];
-	                pos++;
-	            }
-	        }
 	        printOK();
-	        printString(Integer.toString(hist.length) + "\n");
-	        Bits.sendInts(hist, outstream, buffer);
+	        sendHistogram(request.start, binsize, raw);
     	}
     }
 
@@ -1320,28 +1540,340 @@ public class ServerTask {
 	                                           request.minWeight,
 	                                           request.isPlusStrand,
 	                                           extension);
-	        int n = 0;
-	        for (int i = 0; i< raw.length; i++) {
-	            if (raw[i] > 0) {
-	                n++;
-	            }
-	        }
-	        int[] parray = new int[n];
-	        float[] farray = new float[n];
-	        int pos = 0;
-	        for (int i = 0; i< raw.length; i++) {
-	            if (raw[i] > 0) {
-	                parray[pos] = request.start + binsize * i + binsize / 2;
-	                farray[pos] = raw[i];
-	                pos++;
-	            }
-	        }
 	        printOK();
-	        printString(Integer.toString(parray.length) + "\n");
-	        Bits.sendInts(parray, outstream, buffer);        
-	        Bits.sendFloats(farray, outstream, buffer);
+	        sendWeightHistogram(request.start, binsize, raw);
     	}
     }
+    /* sends the non-empty bins of a histogram: the number of ints, then each bin's center and count */
+    private void sendHistogram(int start, int binsize, int[] raw) throws IOException {
+        int n = 0;
+        for (int i = 0; i< raw.length; i++) {
+            if (raw[i] > 0) {
+                n++;
+            }
+        }
+        int[] hist = new int[n*2];
+        int pos = 0;
+        for (int i = 0; i< raw.length; i++) {
+            if (raw[i] > 0) {
+                hist[pos*2] = start + binsize * i + binsize / 2;
+                hist[pos*2+1] = raw[i];
+                pos++;
+            }
+        }
+        printString(Integer.toString(hist.length) + "\n");
+        Bits.sendInts(hist, outstream, buffer);
+    }
+    /* sends the non-empty bins of a weight histogram: the number of bins, the bin centers, then the weights */
+    private void sendWeightHistogram(int start, int binsize, float[] raw) throws IOException {
+        int n = 0;
+        for (int i = 0; i< raw.length; i++) {
+            if (raw[i] > 0) {
+                n++;
+            }
+        }
+        int[] parray = new int[n];
+        float[] farray = new float[n];
+        int pos = 0;
+        for (int i = 0; i< raw.length; i++) {
+            if (raw[i] > 0) {
+                parray[pos] = start + binsize * i + binsize / 2;
+                farray[pos] = raw[i];
+                pos++;
+            }
+        }
+        printString(Integer.toString(parray.length) + "\n");
+        Bits.sendInts(parray, outstream, buffer);        
+        Bits.sendFloats(farray, outstream, buffer);
+    }
+    /* answers a histogram or weighthistogram request from the chromosome's coverage summary.  Returns false, having
+       sent nothing, if there's no current summary or it can't answer the request, so that the hits get read instead */
+    private boolean processSummaryHistogram() throws IOException {
+        int binsize, dedup = 0, extension = 0;
+        try {
+            binsize = Integer.parseInt(request.map.get("binsize"));
+            if (request.map.containsKey("dedup")) {
+                dedup = Integer.parseInt(request.map.get("dedup"));
+            }
+            if (request.map.containsKey("extension")) {
+                extension = Integer.parseInt(request.map.get("extension"));
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (binsize <= 0 || dedup != 0 || extension != 0 || request.minWeight != null) {
+            return false;
+        }
+        boolean side = request.isPaired ? request.isLeft : request.isType2;
+        CoverageSummary summary = getCurrentSummary(request.alignid, request.chromid, request.isPaired, side);
+        if (summary == null || summary.getNumHits() == 0) {
+            return false;
+        }
+        int start = request.start == null ? summary.getFirstPosition() : request.start;
+        int end = request.end == null ? summary.getLastPosition() : request.end;
+        if (end < start || summary.chooseLevel(start, binsize) < 0) {
+            return false;
+        }
+        int nbins = (end - start) / binsize + 1;
+        CoverageSummary.HitSource source = getHitSource(request.alignid, request.chromid, request.isPaired, side);
+        if (request.type.equals("weighthistogram")) {
+            float[] raw = new float[nbins];
+            summary.weightHistogram(raw, start, end, binsize, request.isPlusStrand, source);
+            printOK();
+            sendWeightHistogram(start, binsize, raw);
+        } else {
+            int[] raw = new int[nbins];
+            summary.histogram(raw, start, end, binsize, request.isPlusStrand, source);
+            printOK();
+            sendHistogram(start, binsize, raw);
+        }
+        return true;
+    }
+    /* the coverage summary of a chromosome (side is isLeft for paired hits and isType2 otherwise), or null if it doesn't 
+       have one or the summary doesn't cover the same number of hits as the Header and segments */
+    private CoverageSummary getCurrentSummary(String alignid, int chromid, boolean isPaired, boolean side) {
+        try {
+            if (isPaired) {
+                CoverageSummary summary = server.getPairedSummary(alignid, chromid, side);
+                if (summary != null && summary.getNumHits() == server.getPairedHeader(alignid, chromid, side).getNumHits()) {
+                    return summary;
+                }
+            } else {
+                CoverageSummary summary = server.getSingleSummary(alignid, chromid, side);
+                if (summary == null) {
+                    return null;
+                }
+                long numHits = server.getSingleHeader(alignid, chromid, side).getNumHits();
+                int[] segments = server.getSingleSegments(alignid, chromid, side);
+                for (int i = 0; i < segments.length; i++) {
+                    numHits += server.getSingleHeader(alignid, chromid, side, segments[i]).getNumHits();
+                }
+                if (summary.getNumHits() == numHits) {
+                    return summary;
+                }
+            }
+        } catch (IOException e) {
+            /* missing or unreadable files; read the hits as usual */
+        }
+        return null;
+    }
+    /* reads the hits for the parts of a histogram that a summary can't answer, if there are any.  Compressed or
+       segmented chromosomes only decode the range of the histogram */
+    private CoverageSummary.HitSource getHitSource(final String alignid, final int chromid, final boolean isPaired, final boolean side) {
+        return new CoverageSummary.HitSource() {
+            public Hits getHits(int start, int end) throws IOException {
+                if (isPaired) {
+                    return server.getPairedHits(alignid, chromid, side);
+                }
+                int[] segments = server.getSingleSegments(alignid, chromid, side);
+                if (segments.length == 0 && !server.isCompressed(alignid, chromid, side)) {
+                    return server.getSingleHits(alignid, chromid, side);
+                }
+                return server.getSingleHitsBetween(alignid, chromid, side, segments, start, end);
+            }
+        };
+    }
+    /**
+     * Histogram or weight histogram summed over a set of alignments.  The alignment ids are
+     * given one per line (request.list) rather than in request.alignid.  Each alignment must
+     * exist and be readable.  Takes the same parameters and sends the same response
+     * as processHistogram or processWeightHistogram, so a client needs one round trip
+     * rather than one per alignment.  For paired alignments, both the left and right
+     * histograms are computed and, as in Client.getHistogram(Collection,...), a non-empty
+     * right bin replaces the left bin for that alignment.
+     *
+     * The hits from every alignment are binned directly into one array rather than
+     * merging per-alignment sorted lists of bins.  Alignments with a current CoverageSummary
+     * that fits the bins are added from the summary instead of their hits.
+     */
+    public void processMultiHistogram(boolean weighted) throws IOException {
+        assert(request != null);
+        if (request.list.size() == 0) {
+            printString("no alignments\n");
+            return;
+        }
+        if (request.chromid == null) {
+            printString("null chromosome\n");
+            return;
+        }
+        int binsize;
+        try {
+            binsize = Integer.parseInt(request.map.get("binsize"));
+        } catch (Exception e) {
+            server.getLogger().logp(Level.INFO,"ServerTask","processMultiHistogram "+toString(), "Exception parsing binsize : " + request.map.get("binsize"),e);
+            printString("missing or invalid bin size : " + request.map.get("binsize") + "\n");
+            return;
+        }
+        int dedup = 0, extension=0;
+        if (request.map.containsKey("dedup")) {
+            dedup = Integer.parseInt(request.map.get("dedup"));
+        }
+        if(request.map.containsKey("extension")) {
+            extension = Integer.parseInt(request.map.get("extension"));
+        }
+        /* check permissions on everything before doing any work */
+        for (String alignid : request.list) {
+            Lock.readLock(alignid);
+            if (!(new File(server.getAlignmentDir(alignid))).exists()) {
+                printString("No Such Alignment\n");
+                return;
+            }
+            AlignmentACL acl = null;
+            try {
+                acl = server.getACL(alignid);
+            } catch (IOException e) {
+                server.getLogger().logp(Level.INFO,"ServerTask","processMultiHistogram "+ toString(),
+                                        String.format("read error on acl for %s : %s", alignid, e.toString()));
+                printInvalid(e.toString());
+                return;
+            }
+            if (!authorizeRead(acl)) {
+                server.getLogger().logp(Level.INFO,"ServerTask","processMultiHistogram "+toString(),
+                                        String.format("%s can't read %s", username, alignid));
+                printAuthError();
+                return;
+            }
+        }
+        /* hits[i][0] and headers[i][0] are for request.list.get(i).  For paired alignments,
+           [i][0] is the left side and [i][1] is the right side.  null if there's no file for that chromosome
+           or if summaries[i][j] answers the request instead */
+        int nsides = request.isPaired ? 2 : 1;
+        Hits[][] hits = new Hits[request.list.size()][nsides];
+        Header[][] headers = new Header[request.list.size()][nsides];
+        CoverageSummary[][] summaries = new CoverageSummary[request.list.size()][nsides];
+        boolean useSummaries = binsize > 0 && dedup == 0 && extension == 0 && request.minWeight == null;
+        int start = Integer.MAX_VALUE, end = Integer.MIN_VALUE;
+        for (int i = 0; i < request.list.size(); i++) {
+            String alignid = request.list.get(i);
+            for (int j = 0; j < nsides; j++) {
+                boolean side = request.isPaired ? j == 0 : request.isType2;
+                if (useSummaries) {
+                    summaries[i][j] = getCurrentSummary(alignid, request.chromid, request.isPaired, side);
+                }
+                if (summaries[i][j] != null) {
+                    if (summaries[i][j].getNumHits() > 0) {
+                        start = Math.min(start, summaries[i][j].getFirstPosition());
+                        end = Math.max(end, summaries[i][j].getLastPosition());
+                    }
+                    continue;
+                }
+                loadHistogramHits(alignid, side, hits[i], headers[i], j);
+                if (hits[i][j] != null) {
+                    IntBP ib = hits[i][j].getPositionsBuffer();
+                    if (ib.limit() > 0) {
+                        start = Math.min(start, ib.get(0));
+                        end = Math.max(end, ib.get(ib.limit()-1));
+                    }
+                }
+            }
+        }
+        if (request.start != null) { start = request.start;}
+        if (request.end != null) { end = request.end;}
+        if (start > end) {
+            printOK();
+            printString("0\n");
+            return;
+        }
+        /* read the hits after all if no level of the summary lines up with the bins */
+        for (int i = 0; i < summaries.length; i++) {
+            for (int j = 0; j < nsides; j++) {
+                if (summaries[i][j] != null && summaries[i][j].chooseLevel(start, binsize) < 0) {
+                    summaries[i][j] = null;
+                    loadHistogramHits(request.list.get(i), request.isPaired ? j == 0 : request.isType2, hits[i], headers[i], j);
+                }
+            }
+        }
+        int nbins = (end - start) / binsize + 1;
+        int[] counts = weighted ? null : new int[nbins];
+        float[] weights = weighted ? new float[nbins] : null;
+        /* per-side scratch space for paired alignments */
+        int[][] sidecounts = (!weighted && request.isPaired) ? new int[2][nbins] : null;
+        float[][] sideweights = (weighted && request.isPaired) ? new float[2][nbins] : null;
+        for (int i = 0; i < hits.length; i++) {
+            if (!request.isPaired) {
+                if (summaries[i][0] != null) {
+                    CoverageSummary.HitSource source = getHitSource(request.list.get(i), request.chromid, false, request.isType2);
+                    if (weighted) {
+                        summaries[i][0].weightHistogram(weights, start, end, binsize, request.isPlusStrand, source);
+                    } else {
+                        summaries[i][0].histogram(counts, start, end, binsize, request.isPlusStrand, source);
+                    }
+                    continue;
+                }
+                if (hits[i][0] == null) { continue;}
+                int first = headers[i][0].getFirstIndex(start);
+                int last = headers[i][0].getLastIndex(end);
+                if (weighted) {
+                    hits[i][0].weightHistogram(weights, first, last, start, end, binsize, dedup, request.minWeight, request.isPlusStrand, extension);
+                } else {
+                    hits[i][0].histogram(counts, first, last, start, end, binsize, dedup, request.minWeight, request.isPlusStrand, extension);
+                }
+                continue;
+            }
+            for (int j = 0; j < 2; j++) {
+                if (weighted) {
+                    Arrays.fill(sideweights[j], 0);
+                } else {
+                    Arrays.fill(sidecounts[j], 0);
+                }
+                if (summaries[i][j] != null) {
+                    CoverageSummary.HitSource source = getHitSource(request.list.get(i), request.chromid, true, j == 0);
+                    if (weighted) {
+                        summaries[i][j].weightHistogram(sideweights[j], start, end, binsize, request.isPlusStrand, source);
+                    } else {
+                        summaries[i][j].histogram(sidecounts[j], start, end, binsize, request.isPlusStrand, source);
+                    }
+                    continue;
+                }
+                if (hits[i][j] == null) { continue;}
+                int first = headers[i][j].getFirstIndex(start);
+                int last = headers[i][j].getLastIndex(end);
+                if (weighted) {
+                    hits[i][j].weightHistogram(sideweights[j], first, last, start, end, binsize, dedup, request.minWeight, request.isPlusStrand, extension);
+                } else {
+                    hits[i][j].histogram(sidecounts[j], first, last, start, end, binsize, dedup, request.minWeight, request.isPlusStrand, extension);
+                }
+            }
+            for (int b = 0; b < nbins; b++) {
+                if (weighted) {
+                    weights[b] += sideweights[1][b] > 0 ? sideweights[1][b] : sideweights[0][b];
+                } else {
+                    counts[b] += sidecounts[1][b] > 0 ? sidecounts[1][b] : sidecounts[0][b];
+                }
+            }
+        }
+        printOK();
+        if (weighted) {
+            sendWeightHistogram(start, binsize, weights);
+        } else {
+            sendHistogram(start, binsize, counts);
+        }
+    }
+    /* gets the hits and header for one alignment's chromosome into hits[j] and headers[j], as processFileRequest does.
+       Leaves them null if there's no file for the chromosome */
+    private void loadHistogramHits(String alignid, boolean side, Hits[] hits, Header[] headers, int j) {
+        try {
+            if (request.isPaired) {
+                hits[j] = server.getPairedHits(alignid, request.chromid, side);
+                headers[j] = server.getPairedHeader(alignid, request.chromid, side);
+            } else {
+                int[] segments = server.getSingleSegments(alignid, request.chromid, side);
+                if (segments.length == 0 && !server.isCompressed(alignid, request.chromid, side)) {
+                    hits[j] = server.getSingleHits(alignid, request.chromid, side);
+                    headers[j] = server.getSingleHeader(alignid, request.chromid, side);
+                } else {
+                    hits[j] = server.getSingleHitsBetween(alignid, request.chromid, side, segments,
+                                                          request.start == null ? Integer.MIN_VALUE : request.start,
+                                                          request.end == null ? Integer.MAX_VALUE : request.end);
+                    headers[j] = new Header(hits[j].getPositionsBuffer().getib());
+                }
+            }
+        } catch (IOException e) {
+            /* as in processFileRequest, a missing chromosome file means no hits */
+            hits[j] = null;
+            headers[j] = null;
+        }
+    }
     public void processCheckSort(Header header, Hits hits) throws IOException {
     	if(header==null || hits==null){
             printString("File does not exist for this chromosome");
@@ -1370,6 +1902,10 @@ public class ServerTask {
 	                header.writeIndexFile(server.getSingleHeaderFileName(request.alignid,
 	                                                                     request.chromid,
 	                                                                     request.isType2));
+	                /* a summary built from unsorted hits is wrong; one that also covers segments is rebuilt by reindex */
+	                server.setSingleSummary(request.alignid, request.chromid, request.isType2,
+	                                        server.getSingleSegments(request.alignid, request.chromid, request.isType2).length == 0 ?
+	                                        CoverageSummary.build(hits) : null);
 	
 	            } else {
 	                printString("Can't resort paired hits");
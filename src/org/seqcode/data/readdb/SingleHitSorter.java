@@ -0,0 +1,272 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts single-end hits by chromosome and position in bounded memory, for bulk imports.
+ *
+ * <p>Hits are buffered per chromosome in primitive arrays (position, weight, and length-and-strand
+ * as in Hits.makeLAS()).  Once maxHits hits are buffered, each chromosome's buffer is sorted and
+ * written to a temporary run file, one file per spill with a section per chromosome.  merge()
+ * then streams a chromosome's hits in order of position by merging its runs with whatever is
+ * still buffered, so each hit is written to disk at most once before the final files.
+ *
+ * <p>The buffers take 12 to 24 bytes per hit (they grow by doubling), plus 12 bytes per hit of the
+ * chromosome being sorted, and merge() adds a small read buffer per run.  Hits at the same position
+ * keep the order they were added in only within a run.
+ */
+public class SingleHitSorter {
+
+    /**
+     * Receives hits from merge(), in order of position
+     */
+    public interface HitHandler {
+        public void hit(int pos, float weight, int las) throws IOException;
+    }
+
+    /* bytes per hit in a run file: position, weight, las */
+    private static final int RECORDSIZE = 12;
+    private static final int READBUFFER = 64 * 1024;
+
+    private File tmpdir;
+    private int maxHits, buffered;
+    private TreeMap<Integer,ChromBuffer> buffers;
+    /* each chromosome's sections of the run files, in the order they were spilled */
+    private TreeMap<Integer,List<Run>> runs;
+    private List<File> runFiles;
+
+    private static class ChromBuffer {
+        int[] positions = new int[1024];
+        float[] weights = new float[1024];
+        int[] las = new int[1024];
+        int count = 0;
+        void add(int pos, float weight, int l) {
+            if (count == positions.length) {
+                int size = positions.length * 2;
+                positions = Arrays.copyOf(positions, size);
+                weights = Arrays.copyOf(weights, size);
+                las = Arrays.copyOf(las, size);
+            }
+            positions[count] = pos;
+            weights[count] = weight;
+            las[count] = l;
+            count++;
+        }
+        /* indices of the buffered hits in order of position */
+        int[] sortedOrder() {
+            /* position in the high bits and index in the low bits, so one primitive sort
+               orders the hits and keeps equal positions in insertion order */
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = ((long)positions[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = (int)keys[i];
+            }
+            return order;
+        }
+    }
+    private static class Run {
+        File file;
+        long offset;
+        int count;
+        Run(File f, long o, int c) {
+            file = f;
+            offset = o;
+            count = c;
+        }
+    }
+    /* the next hit of one run (or of the buffer) during a merge */
+    private static abstract class Cursor {
+        int pos, las;
+        float weight;
+        abstract boolean next() throws IOException;
+        void close() throws IOException {}
+    }
+    private static class RunCursor extends Cursor {
+        DataInputStream in;
+        int left;
+        RunCursor(Run run) throws IOException {
+            FileInputStream fis = new FileInputStream(run.file);
+            fis.getChannel().position(run.offset);
+            in = new DataInputStream(new BufferedInputStream(fis, READBUFFER));
+            left = run.count;
+        }
+        boolean next() throws IOException {
+            if (left == 0) {
+                return false;
+            }
+            left--;
+            pos = in.readInt();
+            weight = in.readFloat();
+            las = in.readInt();
+            return true;
+        }
+        void close() throws IOException {
+            in.close();
+        }
+    }
+    private static class BufferCursor extends Cursor {
+        ChromBuffer buffer;
+        int[] order;
+        int i = 0;
+        BufferCursor(ChromBuffer b) {
+            buffer = b;
+            order = b.sortedOrder();
+        }
+        boolean next() {
+            if (i == order.length) {
+                return false;
+            }
+            int j = order[i++];
+            pos = buffer.positions[j];
+            weight = buffer.weights[j];
+            las = buffer.las[j];
+            return true;
+        }
+    }
+
+    /**
+     * @param tmpdir where to write the run files (null for the default temporary directory)
+     * @param maxHits how many hits to hold in memory before spilling them to a run file
+     */
+    public SingleHitSorter(File tmpdir, int maxHits) {
+        if (maxHits < 1) {
+            throw new IllegalArgumentException("maxHits must be positive");
+        }
+        this.tmpdir = tmpdir;
+        this.maxHits = maxHits;
+        buffered = 0;
+        buffers = new TreeMap<Integer,ChromBuffer>();
+        runs = new TreeMap<Integer,List<Run>>();
+        runFiles = new ArrayList<File>();
+    }
+
+    public void add(int chrom, int pos, float weight, boolean strand, short length) throws IOException {
+        add(chrom, pos, weight, Hits.makeLAS(length, strand));
+    }
+    public void add(int chrom, int pos, float weight, int las) throws IOException {
+        ChromBuffer b = buffers.get(chrom);
+        if (b == null) {
+            b = new ChromBuffer();
+            buffers.put(chrom, b);
+        }
+        b.add(pos, weight, las);
+        if (++buffered >= maxHits) {
+            spill();
+        }
+    }
+    /**
+     * Sorts the buffered hits of every chromosome into a new run file and frees the buffers
+     */
+    private void spill() throws IOException {
+        File f = File.createTempFile("readdbsort", ".run", tmpdir);
+        f.deleteOnExit();
+        runFiles.add(f);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), READBUFFER));
+        long offset = 0;
+        try {
+            for (Map.Entry<Integer,ChromBuffer> e : buffers.entrySet()) {
+                ChromBuffer b = e.getValue();
+                int[] order = b.sortedOrder();
+                for (int i = 0; i < order.length; i++) {
+                    int j = order[i];
+                    out.writeInt(b.positions[j]);
+                    out.writeFloat(b.weights[j]);
+                    out.writeInt(b.las[j]);
+                }
+                List<Run> l = runs.get(e.getKey());
+                if (l == null) {
+                    l = new ArrayList<Run>();
+                    runs.put(e.getKey(), l);
+                }
+                l.add(new Run(f, offset, b.count));
+                offset += (long)b.count * RECORDSIZE;
+            }
+        } finally {
+            out.close();
+        }
+        buffers.clear();
+        buffered = 0;
+    }
+
+    /** chromosomes with at least one hit, in increasing order */
+    public SortedSet<Integer> getChroms() {
+        TreeSet<Integer> output = new TreeSet<Integer>(buffers.keySet());
+        output.addAll(runs.keySet());
+        return output;
+    }
+    /** number of hits added for chrom */
+    public int getCount(int chrom) {
+        long count = buffers.containsKey(chrom) ? buffers.get(chrom).count : 0;
+        if (runs.containsKey(chrom)) {
+            for (Run r : runs.get(chrom)) {
+                count += r.count;
+            }
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many hits for chromosome " + chrom);
+        }
+        return (int)count;
+    }
+    /**
+     * Passes the hits of chrom to handler in order of position.  Hits can't be added once
+     * merging has started.
+     */
+    public void merge(int chrom, HitHandler handler) throws IOException {
+        List<Cursor> cursors = new ArrayList<Cursor>();
+        if (runs.containsKey(chrom)) {
+            for (Run r : runs.get(chrom)) {
+                cursors.add(new RunCursor(r));
+            }
+        }
+        if (buffers.containsKey(chrom)) {
+            cursors.add(new BufferCursor(buffers.get(chrom)));
+        }
+        try {
+            if (cursors.size() == 1) {
+                Cursor c = cursors.get(0);
+                while (c.next()) {
+                    handler.hit(c.pos, c.weight, c.las);
+                }
+                return;
+            }
+            PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, cursors.size()), new Comparator<Cursor>() {
+                    public int compare(Cursor a, Cursor b) {
+                        return Integer.compare(a.pos, b.pos);
+                    }
+                });
+            for (Cursor c : cursors) {
+                if (c.next()) {
+                    queue.add(c);
+                }
+            }
+            while (!queue.isEmpty()) {
+                Cursor c = queue.poll();
+                handler.hit(c.pos, c.weight, c.las);
+                if (c.next()) {
+                    queue.add(c);
+                }
+            }
+        } finally {
+            for (Cursor c : cursors) {
+                c.close();
+            }
+        }
+    }
+    /**
+     * Deletes the run files and drops the buffered hits
+     */
+    public void close() {
+        for (File f : runFiles) {
+            f.delete();
+        }
+        runFiles.clear();
+        runs.clear();
+        buffers.clear();
+        buffered = 0;
+    }
+}
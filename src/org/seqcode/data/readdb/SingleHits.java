@@ -11,14 +11,34 @@ import java.util.Arrays;
  * For example, in paired-end ChIP-exo, where only read 1 is affected by exonuclease. 
  */
 public class SingleHits extends Hits {
+
+    /**
+     * Version of the segment list file.  A chromosome without a segment list is a single
+     * file in the original format, so alignments written before segments existed are still readable.
+     */
+    public static final int SEGMENT_FORMAT_VERSION = 1;
+
     /**
      * Initializes a Hits object from a file
      */
     public SingleHits (String prefix, int chrom, boolean type2) throws FileNotFoundException, SecurityException, IOException {
+        this(prefix, chrom, type2, 0);
+    }
+    /**
+     * Initializes a Hits object from one segment of a chromosome.  Segment 0 is the
+     * base file, which is the only file for alignments that aren't segmented.
+     */
+    public SingleHits (String prefix, int chrom, boolean type2, int segment) throws FileNotFoundException, SecurityException, IOException {
         super(chrom,
-              getPositionsFname(prefix,chrom, type2),
-              getWeightsFname(prefix,chrom, type2), 
-              getLaSFname(prefix,chrom, type2));
+              getPositionsFname(prefix,chrom, type2, segment),
+              getWeightsFname(prefix,chrom, type2, segment), 
+              getLaSFname(prefix,chrom, type2, segment));
+    }
+    /**
+     * Initializes a Hits object from buffers in memory
+     */
+    public SingleHits (int chrom, IntBP positions, FloatBP weights, IntBP las) {
+        super(chrom, positions, weights, las);
     }
     public static void writeSingleHits(IntBP positions,
                                        FloatBP weights,
@@ -26,9 +46,18 @@ public class SingleHits extends Hits {
                                        String prefix,
                                        int chrom,
                                        boolean type2 ) throws IOException {
-        String postmp = getPositionsFname(prefix,chrom, type2) + ".tmp";
-        String weightstmp = getWeightsFname(prefix,chrom, type2) + ".tmp";
-        String lastmp = getLaSFname(prefix,chrom, type2) + ".tmp";
+        writeSingleHits(positions, weights, las, prefix, chrom, type2, 0);
+    }
+    public static void writeSingleHits(IntBP positions,
+                                       FloatBP weights,
+                                       IntBP las,
+                                       String prefix,
+                                       int chrom,
+                                       boolean type2,
+                                       int segment) throws IOException {
+        String postmp = getPositionsFname(prefix,chrom, type2, segment) + ".tmp";
+        String weightstmp = getWeightsFname(prefix,chrom, type2, segment) + ".tmp";
+        String lastmp = getLaSFname(prefix,chrom, type2, segment) + ".tmp";
         RandomAccessFile positionsRAF = new RandomAccessFile(postmp,"rw");
         RandomAccessFile weightsRAF = new RandomAccessFile(weightstmp,"rw");
         RandomAccessFile lasRAF = new RandomAccessFile(lastmp,"rw");
@@ -41,14 +70,21 @@ public class SingleHits extends Hits {
         lasRAF.close();
 
         /* ideally this part with the renames would be atomic... */
-        (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom, type2)));
-        (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom, type2)));
-        (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom, type2)));
+        (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom, type2, segment)));
+        (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom, type2, segment)));
+        (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom, type2, segment)));
     }
     public static void writeSingleHits(SingleHit[] hits,
                                        String prefix, 
                                        int chrom,
                                        boolean type2) throws IOException {
+        writeSingleHits(hits, prefix, chrom, type2, 0);
+    }
+    public static void writeSingleHits(SingleHit[] hits,
+                                       String prefix, 
+                                       int chrom,
+                                       boolean type2,
+                                       int segment) throws IOException {
         IntBP p = new IntBP(hits.length);
         FloatBP w = new FloatBP(hits.length);
         IntBP l = new IntBP(hits.length);
@@ -58,7 +94,7 @@ public class SingleHits extends Hits {
             w.put(i, h.weight);
             l.put(i, makeLAS(h.length, h.strand));
         }
-        writeSingleHits(p,w,l,prefix,chrom, type2);
+        writeSingleHits(p,w,l,prefix,chrom, type2, segment);
     }
     /** appends a sorted list of hits to an existing set of hits. */
     public void appendSingleHits(SingleHit[] hits,
@@ -206,19 +242,188 @@ public class SingleHits extends Hits {
         (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom, type2)));
 
     }
-    private static String getPositionsFname(String prefix, int chrom, boolean type2) {
+    /**
+     * Merges the hits between start and end (inclusive) from each segment into a new 
+     * SingleHits in memory.  hits[i] is indexed by headers[i]; null entries are skipped.
+     */
+    public static SingleHits mergeSegments(Hits[] hits, Header[] headers, int chrom, int start, int end) {
+        int[] from = new int[hits.length];
+        int[] to = new int[hits.length];
+        int total = 0;
+        for (int i = 0; i < hits.length; i++) {
+            if (hits[i] == null || hits[i].getPositionsBuffer().limit() == 0) {
+                continue;
+            }
+            int[] p = hits[i].getIndices(headers[i].getFirstIndex(start), headers[i].getLastIndex(end), start, end);
+            from[i] = p[0];
+            to[i] = p[1];
+            total += to[i] - from[i];
+        }
+        IntBP positions = new IntBP(total);
+        FloatBP weights = new FloatBP(total);
+        IntBP las = new IntBP(total);
+        mergeSegments(hits, from, to, positions, weights, las);
+        return new SingleHits(chrom, positions, weights, las);
+    }
+    /**
+     * Merges all of the segments in hits into the base files for this chromosome.  The 
+     * segments' own files are left for the caller to remove.
+     */
+    public static void compactSegments(Hits[] hits, String prefix, int chrom, boolean type2) throws IOException {
+        int[] from = new int[hits.length];
+        int[] to = new int[hits.length];
+        long total = 0;
+        for (int i = 0; i < hits.length; i++) {
+            to[i] = hits[i] == null ? 0 : hits[i].getPositionsBuffer().limit();
+            total += to[i];
+        }
+        String postmp = getPositionsFname(prefix,chrom, type2) + ".tmp";
+        String weightstmp = getWeightsFname(prefix,chrom, type2) + ".tmp";
+        String lastmp = getLaSFname(prefix,chrom, type2) + ".tmp";
+        RandomAccessFile positionsRAF = new RandomAccessFile(postmp,"rw");
+        RandomAccessFile weightsRAF = new RandomAccessFile(weightstmp,"rw");
+        RandomAccessFile lasRAF = new RandomAccessFile(lastmp,"rw");
+        IntBP posfile = new IntBP(positionsRAF.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                                                0,
+                                                                total * 4));
+        FloatBP weightfile = new FloatBP(weightsRAF.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                                                     0,
+                                                                     total * 4));
+        IntBP lasfile = new IntBP(lasRAF.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                                          0,
+                                                          total * 4));
+        mergeSegments(hits, from, to, posfile, weightfile, lasfile);
+        Bits.unmap(posfile.bb);
+        Bits.unmap(weightfile.bb);
+        Bits.unmap(lasfile.bb);
+        positionsRAF.close();
+        weightsRAF.close();
+        lasRAF.close();
+        /* ideally this part with the renames would be atomic... */
+        (new File(postmp)).renameTo(new File(getPositionsFname(prefix,chrom, type2)));
+        (new File(weightstmp)).renameTo(new File(getWeightsFname(prefix,chrom, type2)));
+        (new File(lastmp)).renameTo(new File(getLaSFname(prefix,chrom, type2)));
+    }
+    /* k-way merge of hits[i] from index from[i] (inclusive) to to[i] (exclusive).  Each step
+       finds the segment with the lowest next position and then copies its run of hits that 
+       come before every other segment's next hit, so clustered segments are copied in long runs
+       rather than one hit at a time.  Ties go to the earlier segment. */
+    private static void mergeSegments(Hits[] hits, int[] from, int[] to, IntBP positions, FloatBP weights, IntBP las) {
+        int[] p = from.clone();
+        int out = 0;
+        while (true) {
+            int best = -1, bestpos = 0, nextpos = Integer.MAX_VALUE;
+            for (int i = 0; i < hits.length; i++) {
+                if (p[i] >= to[i]) {
+                    continue;
+                }
+                int v = hits[i].getPositionsBuffer().get(p[i]);
+                if (best == -1 || v < bestpos) {
+                    if (best != -1) {
+                        nextpos = bestpos;
+                    }
+                    best = i;
+                    bestpos = v;
+                } else if (v < nextpos) {
+                    nextpos = v;
+                }
+            }
+            if (best == -1) {
+                break;
+            }
+            IntBP bp = hits[best].getPositionsBuffer();
+            FloatBP bw = hits[best].getWeightsBuffer();
+            IntBP bl = hits[best].getLASBuffer();
+            do {
+                positions.put(out, bp.get(p[best]));
+                weights.put(out, bw.get(p[best]));
+                las.put(out, bl.get(p[best]));
+                out++;
+                p[best]++;
+            } while (p[best] < to[best] && bp.get(p[best]) < nextpos);
+        }
+    }
+    /**
+     * Reads the list of segments (other than the base file) for this chromosome.  Returns
+     * an empty list if the chromosome is stored as a single file.
+     */
+    public static int[] readSegments(String prefix, int chrom, boolean type2) throws IOException {
+        File f = new File(getSegmentsFname(prefix, chrom, type2));
+        if (!f.exists()) {
+            return new int[0];
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(f));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith("version ")) {
+                throw new IOException("Invalid segment list " + f);
+            }
+            int version = Integer.parseInt(line.substring(8).trim());
+            if (version > SEGMENT_FORMAT_VERSION) {
+                throw new IOException("Unknown segment format version " + version + " in " + f);
+            }
+            line = reader.readLine();
+            if (line == null || line.trim().length() == 0) {
+                return new int[0];
+            }
+            String[] pieces = line.trim().split("\\s+");
+            int[] output = new int[pieces.length];
+            for (int i = 0; i < pieces.length; i++) {
+                output[i] = Integer.parseInt(pieces[i]);
+            }
+            return output;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid segment list " + f + " : " + e.toString());
+        } finally {
+            reader.close();
+        }
+    }
+    public static void writeSegments(String prefix, int chrom, boolean type2, int[] segments) throws IOException {
+        String fname = getSegmentsFname(prefix, chrom, type2);
+        PrintWriter pw = new PrintWriter(fname + ".tmp");
+        pw.println("version " + SEGMENT_FORMAT_VERSION);
+        for (int i = 0; i < segments.length; i++) {
+            pw.print((i == 0 ? "" : " ") + segments[i]);
+        }
+        pw.println();
+        pw.close();
+        (new File(fname + ".tmp")).renameTo(new File(fname));
+    }
+    /** removes the hits files for one segment */
+    public static boolean deleteSegment(String prefix, int chrom, boolean type2, int segment) {
+        boolean deleted = (new File(getPositionsFname(prefix,chrom, type2, segment))).delete();
+        deleted = (new File(getWeightsFname(prefix,chrom, type2, segment))).delete() && deleted;
+        deleted = (new File(getLaSFname(prefix,chrom, type2, segment))).delete() && deleted;
+        return deleted;
+    }
+    private static String getSegmentsFname(String prefix, int chrom, boolean type2) {
+        return prefix + chrom + (type2 ? ".st2segments" : ".ssegments");
+    }
+    private static String getSegmentSuffix(int segment) {
+        return segment == 0 ? "" : ".seg" + segment;
+    }
+    private static String getPositionsFname(String prefix, int chrom, boolean type2, int segment) {
+        return getPositionsFname(prefix, chrom, type2) + getSegmentSuffix(segment);
+    }
+    private static String getWeightsFname(String prefix, int chrom, boolean type2, int segment) {
+        return getWeightsFname(prefix, chrom, type2) + getSegmentSuffix(segment);
+    }
+    private static String getLaSFname(String prefix, int chrom, boolean type2, int segment) {
+        return getLaSFname(prefix, chrom, type2) + getSegmentSuffix(segment);
+    }
+    static String getPositionsFname(String prefix, int chrom, boolean type2) {
         if(!type2)
         	return prefix + chrom + ".spositions";
         else
         	return prefix + chrom + ".st2positions";
     }
-    private static String getWeightsFname(String prefix, int chrom, boolean type2) {
+    static String getWeightsFname(String prefix, int chrom, boolean type2) {
         if(!type2)
         	return prefix + chrom + ".sweights";
         else
         	return prefix + chrom + ".st2weights";
     }
-    private static String getLaSFname(String prefix, int chrom, boolean type2) {
+    static String getLaSFname(String prefix, int chrom, boolean type2) {
         if(!type2)
         	return prefix + chrom + ".slas";
         else
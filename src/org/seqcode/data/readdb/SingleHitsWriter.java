@@ -0,0 +1,79 @@
+package org.seqcode.data.readdb;
+
+import java.io.*;
+
+/**
+ * Writes one chromosome's single-end hits straight to the positions, weights, and LAS files as
+ * they arrive, rather than collecting them in memory first.  Hits must arrive in order of position.
+ * The files are written under temporary names and renamed into place by close(), so a reader never
+ * sees part of a chromosome.  The Header and CoverageSummary are written separately
+ * (see Server.indexSingleHits()).
+ */
+public class SingleHitsWriter implements SingleHitSorter.HitHandler {
+
+    private static final int WRITEBUFFER = 256 * 1024;
+
+    private String prefix;
+    private int chrom;
+    private boolean type2;
+    private DataOutputStream positions, weights, las;
+    private int count, lastPos;
+
+    /**
+     * @param prefix the alignment's directory, ending with the file separator
+     */
+    public SingleHitsWriter(String prefix, int chrom, boolean type2) throws IOException {
+        this.prefix = prefix;
+        this.chrom = chrom;
+        this.type2 = type2;
+        positions = open(SingleHits.getPositionsFname(prefix, chrom, type2));
+        weights = open(SingleHits.getWeightsFname(prefix, chrom, type2));
+        las = open(SingleHits.getLaSFname(prefix, chrom, type2));
+        count = 0;
+    }
+    private static DataOutputStream open(String fname) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname + ".tmp"), WRITEBUFFER));
+    }
+    public void hit(int pos, float weight, int l) throws IOException {
+        if (count > 0 && pos < lastPos) {
+            throw new IOException(String.format("hits for chromosome %d aren't sorted : %d after %d", chrom, pos, lastPos));
+        }
+        positions.writeInt(pos);
+        weights.writeFloat(weight);
+        las.writeInt(l);
+        lastPos = pos;
+        count++;
+    }
+    public int getCount() {return count;}
+    /**
+     * Finishes the files and renames them into place
+     */
+    public void close() throws IOException {
+        positions.close();
+        weights.close();
+        las.close();
+        rename(SingleHits.getPositionsFname(prefix, chrom, type2));
+        rename(SingleHits.getWeightsFname(prefix, chrom, type2));
+        rename(SingleHits.getLaSFname(prefix, chrom, type2));
+    }
+    /**
+     * Gives up on the chromosome and removes the temporary files
+     */
+    public void abort() {
+        try {
+            positions.close();
+            weights.close();
+            las.close();
+        } catch (IOException e) {
+            // the files are deleted anyway
+        }
+        (new File(SingleHits.getPositionsFname(prefix, chrom, type2) + ".tmp")).delete();
+        (new File(SingleHits.getWeightsFname(prefix, chrom, type2) + ".tmp")).delete();
+        (new File(SingleHits.getLaSFname(prefix, chrom, type2) + ".tmp")).delete();
+    }
+    private static void rename(String fname) throws IOException {
+        if (!(new File(fname + ".tmp")).renameTo(new File(fname))) {
+            throw new IOException("Can't rename " + fname + ".tmp");
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.seqcode.data.readdb.tools;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloseableIterator;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.cli.*;
+import org.seqcode.data.readdb.Client;
+import org.seqcode.data.readdb.ClientException;
+import org.seqcode.data.readdb.Server;
+import org.seqcode.data.readdb.SingleHitSorter;
+import org.seqcode.data.readdb.SingleHitsWriter;
+import org.seqcode.genome.Genome;
+import org.seqcode.gseutils.Args;
+
+/**
+ * Imports the single-end hits of a SAM or BAM file into ReadDB in one pass, without going through
+ * the text format of SAMToReadDB and ImportHits.
+ *
+ * <p>Records are read with htsjdk and their hits added to a SingleHitSorter, which sorts each
+ * chromosome in bounded memory.  Each chromosome is then streamed, already sorted, either to the server
+ * in a single bulkstoresingle request or, with --datadir, straight into the files of a server data
+ * directory (best done while the server is stopped or before it has seen the alignment).  Either way the
+ * chromosomes must be new to the alignment.
+ *
+ * <p>Hits are chosen and weighted as in SAMToReadDB: unmapped and supplementary records are skipped,
+ * neighboring records with the same read name are one read, and a hit's weight is one over the number of
+ * hits for its read (or the NH tag if there is one).  Reference names are mapped to chromosome ids
+ * through the genome, ignoring a leading "chr" as ChromColumn2ID does.
+ *
+ * <pre>java org.seqcode.data.readdb.tools.ImportBAM --align "Gcn4 ChipSeq" --species "Saccharomyces cerevisiae;sacCer3" foo.bam</pre>
+ */
+public class ImportBAM {
+
+    private String alignname, hostname, username, password, datadir;
+    private int portnum = -1;
+    private boolean isType2 = false, compress = false;
+    private boolean uniqueOnly = false, read1 = false, read2 = false;
+    private File tmpdir = null;
+    private int maxHits = 20000000;
+    private Genome genome;
+    private String input = null;
+
+    /* chromosome id of each reference sequence in the header, or -1 if it isn't in the genome */
+    private int[] chromIDs;
+    private long numRecords = 0, numHits = 0, numSkipped = 0;
+
+    public static void main(String args[]) {
+        ImportBAM importer = new ImportBAM();
+        try {
+            importer.parseArgs(args);
+            importer.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public void parseArgs(String args[]) throws Exception {
+        Options options = new Options();
+        options.addOption("H","hostname",true,"server to connect to");
+        options.addOption("P","port",true,"port to connect to");
+        options.addOption("a","align",true,"alignment name");
+        options.addOption("u","user",true,"username (and the alignment's owner with --datadir)");
+        options.addOption("p","passwd",true,"password");
+        options.addOption("d","datadir",true,"write into this server data directory rather than sending to a server");
+        options.addOption("s","species",true,"species and genome, eg \"Mus musculus;mm10\"");
+        options.addOption("g","geninfo",true,"file of chromosome name, length, and id, instead of --species");
+        options.addOption("t","tmpdir",true,"directory for the sort's temporary files");
+        options.addOption("m","maxhits",true,"hits to sort in memory before spilling to a temporary file");
+        options.addOption("t2","type2",false,"type2 single-end hits (e.g. read 2 hits)");
+        options.addOption("z","compress",false,"write the single-end hits in the compressed layout");
+        options.addOption("U","uniquehits",false,"only import hits with a single mapping");
+        options.addOption("1","read1",false,"import only read 1 hits");
+        options.addOption("2","read2",false,"import only read 2 hits");
+        options.addOption("h","help",false,"print help message");
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = parser.parse( options, args, false );
+        if (line.hasOption("help")) {
+            printHelp();
+            System.exit(0);
+        }
+        if (!line.hasOption("align")) {
+            throw new IllegalArgumentException("Must supply alignment name as --align");
+        }
+        alignname = line.getOptionValue("align");
+        if (line.hasOption("port")) {
+            portnum = Integer.parseInt(line.getOptionValue("port"));
+        }
+        hostname = line.getOptionValue("hostname");
+        username = line.getOptionValue("user");
+        password = line.getOptionValue("passwd");
+        datadir = line.getOptionValue("datadir");
+        if (line.hasOption("species")) {
+            genome = Args.parseGenome(new String[]{"--species", line.getOptionValue("species")}).cdr();
+        } else if (line.hasOption("geninfo")) {
+            genome = new Genome("Genome", new File(line.getOptionValue("geninfo")), false);
+        } else {
+            throw new IllegalArgumentException("Must supply --species or --geninfo to map chromosome names to ids");
+        }
+        if (line.hasOption("tmpdir")) {
+            tmpdir = new File(line.getOptionValue("tmpdir"));
+        }
+        if (line.hasOption("maxhits")) {
+            maxHits = Integer.parseInt(line.getOptionValue("maxhits"));
+        }
+        isType2 = line.hasOption("type2");
+        compress = line.hasOption("compress");
+        uniqueOnly = line.hasOption("uniquehits");
+        read1 = line.hasOption("read1");
+        read2 = line.hasOption("read2");
+        if (line.getArgs().length > 0 && !line.getArgs()[0].equals("-")) {
+            input = line.getArgs()[0];
+        }
+    }
+    public void printHelp() {
+        System.out.println("ImportBAM: sorts the single-end hits of a SAM or BAM file and stores them in ReadDB");
+        System.out.println("usage: java org.seqcode.data.readdb.tools.ImportBAM --align alignmentname \\");
+        System.out.println(" --species \"species;genome\" | --geninfo chromosomes.txt [foo.bam]  (reads stdin without a file)");
+        System.out.println(" [--hostname host --port port --user user --passwd password]  server to store the hits in");
+        System.out.println(" [--datadir /path/to/datadir [--user owner]]  write the alignment's files directly instead");
+        System.out.println(" [--tmpdir dir] [--maxhits n]  where and in what size pieces to sort");
+        System.out.println(" [--type2] [--compress] [--uniquehits] [--read1] [--read2]");
+    }
+
+    public void run() throws IOException, ClientException {
+        SingleHitSorter sorter = new SingleHitSorter(tmpdir, maxHits);
+        try {
+            readHits(sorter);
+            System.err.println(String.format("Read %d records, %d hits on %d chromosomes (%d on unknown chromosomes)",
+                                             numRecords, numHits, sorter.getChroms().size(), numSkipped));
+            if (datadir != null) {
+                writeLocal(sorter);
+            } else {
+                send(sorter);
+            }
+        } finally {
+            sorter.close();
+        }
+    }
+
+    private void readHits(SingleHitSorter sorter) throws IOException {
+        SamReaderFactory factory =
+            SamReaderFactory.makeDefault()
+            .enable(SamReaderFactory.Option.VALIDATE_CRC_CHECKSUMS)
+            .validationStringency(ValidationStringency.SILENT);
+        SamReader reader = factory.open(input == null ? SamInputResource.of(System.in) : SamInputResource.of(new File(input)));
+        List<SAMSequenceRecord> sequences = reader.getFileHeader().getSequenceDictionary().getSequences();
+        chromIDs = new int[sequences.size()];
+        for (int i = 0; i < chromIDs.length; i++) {
+            String name = sequences.get(i).getSequenceName().replaceAll("^chr","");
+            chromIDs[i] = genome.containsChromName(name) ? genome.getChromID(name) : -1;
+        }
+        CloseableIterator<SAMRecord> iter = reader.iterator();
+        List<SAMRecord> records = new ArrayList<SAMRecord>();
+        String lastName = "";
+        while (iter.hasNext()) { //Group neighboring reads by name
+            SAMRecord record = iter.next();
+            if (record.getReadUnmappedFlag()) {continue; }
+            if (record.getSupplementaryAlignmentFlag()) {continue; }
+            if (!record.getReadName().equals(lastName) && records.size() > 0) {
+                addRead(records, sorter);
+                records.clear();
+            }
+            records.add(record);
+            lastName = record.getReadName();
+            if (++numRecords % 1000000 == 0) {
+                System.err.println("Read through record " + numRecords);
+            }
+        }
+        if (records.size() > 0) {
+            addRead(records, sorter);
+        }
+        iter.close();
+        reader.close();
+    }
+    /* adds the hits of one read's records */
+    private void addRead(List<SAMRecord> records, SingleHitSorter sorter) throws IOException {
+        int lcount = 0, rcount = 0;
+        for (SAMRecord record : records) { //get weights for L & R reads separately
+            if (!record.getReadPairedFlag() || record.getFirstOfPairFlag()) {
+                lcount++;
+            } else {
+                rcount++;
+            }
+        }
+        for (SAMRecord record : records) {
+            boolean second = record.getReadPairedFlag() && record.getSecondOfPairFlag();
+            int count = second ? rcount : lcount;
+            if (record.getIntegerAttribute("NH") != null) { //This tag overrides the record count
+                count = record.getIntegerAttribute("NH");
+            }
+            if (uniqueOnly && (count != 1 || record.getMappingQuality() == 0)) {
+                continue;
+            }
+            if (record.getReadPairedFlag() && ((read1 && !record.getFirstOfPairFlag()) || (read2 && !second))) {
+                continue;
+            }
+            int chrom = chromIDs[record.getReferenceIndex()];
+            if (chrom < 0) {
+                numSkipped++;
+                continue;
+            }
+            boolean neg = record.getReadNegativeStrandFlag();
+            sorter.add(chrom,
+                       neg ? record.getAlignmentEnd() : record.getAlignmentStart(),
+                       1 / (float)count,
+                       !neg,
+                       (short)Math.min(record.getReadLength(), Short.MAX_VALUE));
+            numHits++;
+        }
+    }
+
+    private void send(SingleHitSorter sorter) throws IOException, ClientException {
+        Client client;
+        if (hostname != null && portnum > 0 && username != null && password != null) {
+            client = new Client(hostname, portnum, username, password);
+        } else {
+            client = new Client();
+        }
+        try {
+            client.bulkStoreSingle(alignname, isType2, sorter);
+            System.err.println("Stored");
+            if (compress) {
+                for (int c : sorter.getChroms()) {
+                    client.compress(alignname, c, isType2, false);
+                }
+                System.err.println("Compressed");
+            }
+        } finally {
+            client.close();
+        }
+    }
+    private void writeLocal(SingleHitSorter sorter) throws IOException {
+        Server server = new Server(datadir);
+        String owner = username == null ? System.getProperty("user.name") : username;
+        Set<Integer> existing = server.getChroms(alignname, isType2, false, false);
+        if (existing == null) {
+            if (!server.createAlignment(alignname, owner)) {
+                throw new IOException("Can't create directories for " + alignname + " : " + server.getAlignmentDir(alignname));
+            }
+        } else {
+            for (int c : sorter.getChroms()) {
+                if (existing.contains(c)) {
+                    throw new IOException("Chromosome " + c + " of " + alignname + " already has hits");
+                }
+            }
+        }
+        String prefix = server.getAlignmentDir(alignname) + System.getProperty("file.separator");
+        for (int c : sorter.getChroms()) {
+            SingleHitsWriter writer = new SingleHitsWriter(prefix, c, isType2);
+            try {
+                sorter.merge(c, writer);
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            }
+            writer.close();
+            server.indexSingleHits(alignname, c, isType2);
+            if (compress) {
+                server.compressSingleHits(alignname, c, isType2);
+            }
+            System.err.println("Wrote " + writer.getCount() + " hits for " + c + "," + alignname);
+        }
+    }
+}
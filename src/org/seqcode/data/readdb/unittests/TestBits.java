@@ -0,0 +1,60 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import org.seqcode.data.readdb.Bits;
+
+import static org.junit.Assert.*;
+
+public class TestBits {
+
+    private static int COUNT = 5000;
+
+    /* returns at most chunk bytes per read, as a socket may */
+    private static class ShortReadStream extends FilterInputStream {
+        private int chunk;
+        ShortReadStream(InputStream in, int chunk) {
+            super(in);
+            this.chunk = chunk;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    private int[] ints;
+    private float[] floats;
+    private byte[] bytes;
+
+    @Before public void setUp() throws IOException {
+        Random random = new Random(99);
+        ints = new int[COUNT];
+        floats = new float[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            ints[i] = random.nextInt();
+            floats[i] = random.nextFloat() * 1000;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        Bits.sendInts(ints, out, buffer);
+        Bits.sendFloats(floats, out, buffer);
+        out.write("END\n".getBytes());
+        bytes = out.toByteArray();
+    }
+
+    /* values split across reads come back intact, and neither read consumes bytes past its own array */
+    @Test public void testShortReads() throws IOException {
+        int[] chunks = {1, 2, 3, 5, 7, 4093, 100000};
+        for (int chunk : chunks) {
+            InputStream in = new ShortReadStream(new ByteArrayInputStream(bytes), chunk);
+            byte[] buffer = new byte[1021];
+            assertArrayEquals(ints, Bits.readInts(COUNT, in, buffer));
+            assertArrayEquals(floats, Bits.readFloats(COUNT, in, buffer), 0f);
+            byte[] rest = new byte[4];
+            new DataInputStream(in).readFully(rest);
+            assertEquals("END\n", new String(rest));
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import org.seqcode.data.readdb.CompressedHits;
+import org.seqcode.data.readdb.FloatBP;
+import org.seqcode.data.readdb.Header;
+import org.seqcode.data.readdb.Hits;
+import org.seqcode.data.readdb.IntBP;
+import org.seqcode.data.readdb.SingleHits;
+
+import static org.junit.Assert.*;
+
+public class TestCompressedHits {
+
+    private static int NUMHITS = 50000;
+    private String prefix;
+    private int chrom = 7;
+    private SingleHits raw;
+    private Header header;
+    private CompressedHits compressed;
+
+    @Before public void setUp() throws IOException {
+        File dir = File.createTempFile("compressed",".d");
+        dir.delete();
+        dir.mkdirs();
+        prefix = dir.getPath() + System.getProperty("file.separator");
+        Random random = new Random(42);
+        int[] temp = new int[NUMHITS];
+        for (int i = 0; i < NUMHITS; i++) {
+            temp[i] = random.nextInt(2000000);
+        }
+        Arrays.sort(temp);
+        IntBP p = new IntBP(NUMHITS);
+        FloatBP w = new FloatBP(NUMHITS);
+        IntBP l = new IntBP(NUMHITS);
+        for (int i = 0; i < NUMHITS; i++) {
+            p.put(i, temp[i]);
+            /* mostly constant weights and lengths, like real alignments */
+            w.put(i, i % 1000 == 0 ? random.nextFloat() : 1f);
+            l.put(i, i % 3 == 0 ? Hits.makeLAS((short)36, random.nextBoolean(), (short)(random.nextInt(300)), true) :
+                  Hits.makeLAS((short)36, true));
+        }
+        SingleHits.writeSingleHits(p, w, l, prefix, chrom, false);
+        raw = new SingleHits(prefix, chrom, false);
+        header = new Header(raw.getPositionsBuffer().getib());
+        CompressedHits.write(raw, prefix, chrom, false);
+        compressed = new CompressedHits(prefix, chrom, false);
+    }
+    @After public void tearDown() throws IOException {
+        raw.close();
+        compressed.close();
+        SingleHits.deleteSegment(prefix, chrom, false, 0);
+        CompressedHits.delete(prefix, chrom, false);
+        (new File(prefix)).delete();
+    }
+
+    @Test public void testRoundTrip() {
+        SingleHits decoded = compressed.decodeAll();
+        assertEquals(NUMHITS, compressed.getNumHits());
+        assertEquals(NUMHITS, decoded.getPositionsBuffer().limit());
+        for (int i = 0; i < NUMHITS; i++) {
+            assertEquals(raw.getPositionsBuffer().get(i), decoded.getPositionsBuffer().get(i));
+            assertEquals(raw.getWeightsBuffer().get(i), decoded.getWeightsBuffer().get(i), 0f);
+            assertEquals(raw.getLASBuffer().get(i), decoded.getLASBuffer().get(i));
+        }
+        assertTrue(compressed.getMappedBytes() < raw.getMappedBytes() / 2);
+    }
+
+    @Test public void testRangeQueries() throws IOException {
+        Random random = new Random(7);
+        for (int q = 0; q < 200; q++) {
+            int start = random.nextInt(2000000);
+            int end = start + random.nextInt(q % 10 == 0 ? 500000 : 5000);
+            int first = header.getFirstIndex(start), last = header.getLastIndex(end);
+            SingleHits decoded = compressed.decode(first, last);
+            Header dheader = new Header(decoded.getPositionsBuffer().getib());
+            int dfirst = dheader.getFirstIndex(start), dlast = dheader.getLastIndex(end);
+            assertEquals(raw.getCountBetween(first, last, start, end, null, null),
+                         decoded.getCountBetween(dfirst, dlast, start, end, null, null));
+            assertEquals(raw.getWeightBetween(first, last, start, end, null, true),
+                         decoded.getWeightBetween(dfirst, dlast, start, end, null, true), .0001);
+            assertArrayEquals(raw.histogram(first, last, start, end, 100, 0, null, null, 0),
+                              decoded.histogram(dfirst, dlast, start, end, 100, 0, null, null, 0));
+        }
+    }
+
+    @Test public void testEmpty() {
+        SingleHits decoded = compressed.decode(NUMHITS, NUMHITS);
+        assertEquals(0, decoded.getPositionsBuffer().limit());
+    }
+}
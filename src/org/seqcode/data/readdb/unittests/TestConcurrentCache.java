@@ -0,0 +1,120 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import org.junit.*;
+import org.seqcode.data.readdb.Closeable;
+import org.seqcode.data.readdb.ConcurrentCache;
+
+import static org.junit.Assert.*;
+
+public class TestConcurrentCache {
+
+    static class Obj implements Closeable {
+        public boolean closed = false;
+        public void close() {
+            assertFalse("closed twice", closed);
+            closed = true;
+        }
+    }
+
+    @Test public void testGetAndAdd() {
+        ConcurrentCache<Obj> cache = new ConcurrentCache<Obj>(10);
+        Obj a = new Obj();
+        assertNull(cache.get("a"));
+        cache.add("a", a, 4);
+        cache.releaseAll();
+        assertSame(a, cache.get("a"));
+        cache.releaseAll();
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(4, cache.getWeight());
+    }
+
+    @Test public void testEvictByWeight() {
+        ConcurrentCache<Obj> cache = new ConcurrentCache<Obj>(10);
+        List<Obj> objs = new ArrayList<Obj>();
+        for (int i = 0; i < 10; i++) {
+            Obj o = new Obj();
+            objs.add(o);
+            cache.add("k" + i, o, 4);
+            cache.releaseAll();
+        }
+        assertTrue(cache.getWeight() <= 10);
+        assertEquals(8, cache.getEvictions());
+        int closed = 0;
+        for (Obj o : objs) {
+            closed += o.closed ? 1 : 0;
+        }
+        assertEquals(8, closed);
+        assertFalse(objs.get(9).closed);
+        assertSame(objs.get(9), cache.get("k9"));
+        cache.releaseAll();
+    }
+
+    @Test public void testCloseDeferredWhileHeld() {
+        ConcurrentCache<Obj> cache = new ConcurrentCache<Obj>(10);
+        Obj a = new Obj();
+        cache.add("a", a, 1);
+        cache.releaseAll();
+        assertSame(a, cache.get("a"));
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertFalse(a.closed);
+        cache.releaseAll();
+        assertTrue(a.closed);
+    }
+
+    @Test public void testReplace() {
+        ConcurrentCache<Obj> cache = new ConcurrentCache<Obj>(10);
+        Obj a = new Obj(), b = new Obj();
+        cache.add("a", a, 1);
+        cache.add("a", b, 1);
+        assertFalse(a.closed);
+        cache.releaseAll();
+        assertTrue(a.closed);
+        assertFalse(b.closed);
+        assertSame(b, cache.get("a"));
+        cache.releaseAll();
+        assertEquals(1, cache.getWeight());
+    }
+
+    @Test public void testConcurrentAccess() throws InterruptedException {
+        final ConcurrentCache<Obj> cache = new ConcurrentCache<Obj>(50);
+        final List<Obj> all = Collections.synchronizedList(new ArrayList<Obj>());
+        final List<Obj> usedAfterClose = Collections.synchronizedList(new ArrayList<Obj>());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                    public void run() {
+                        Random r = new Random();
+                        for (int i = 0; i < 20000; i++) {
+                            String k = "k" + r.nextInt(200);
+                            Obj o = cache.get(k);
+                            if (o == null) {
+                                o = new Obj();
+                                all.add(o);
+                                cache.add(k, o, 1);
+                            }
+                            if (o.closed) {
+                                usedAfterClose.add(o);
+                            }
+                            cache.releaseAll();
+                        }
+                    }
+                });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        assertTrue(usedAfterClose.isEmpty());
+        assertTrue(cache.getWeight() <= 50);
+        int open = 0;
+        synchronized(all) {
+            for (Obj o : all) {
+                open += o.closed ? 0 : 1;
+            }
+        }
+        assertEquals(cache.size(), open);
+    }
+}
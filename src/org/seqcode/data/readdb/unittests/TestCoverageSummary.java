@@ -0,0 +1,149 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import org.seqcode.data.readdb.CoverageSummary;
+import org.seqcode.data.readdb.FloatBP;
+import org.seqcode.data.readdb.Header;
+import org.seqcode.data.readdb.Hits;
+import org.seqcode.data.readdb.IntBP;
+import org.seqcode.data.readdb.SingleHits;
+
+import static org.junit.Assert.*;
+
+public class TestCoverageSummary {
+
+    private static int NUMHITS = 50000;
+    private static int MAXPOS = 3000000;
+    private String prefix;
+    private int chrom = 2;
+    /* hits[0] and hits[1] are two halves of the hits in all */
+    private Hits[] hits;
+    private Hits all;
+    private Header header;
+    private CoverageSummary summary;
+
+    @Before public void setUp() throws IOException {
+        File dir = File.createTempFile("summary",".d");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        prefix = dir.getPath() + System.getProperty("file.separator");
+        Random random = new Random(4321);
+        int[] temp = new int[NUMHITS];
+        for (int i = 0; i < NUMHITS; i++) {
+            /* clustered, so that some level bins hold many hits */
+            temp[i] = random.nextInt(4) == 0 ? 1000000 + random.nextInt(20000) : random.nextInt(MAXPOS);
+        }
+        int[][] parts = {Arrays.copyOfRange(temp, 0, NUMHITS / 2), Arrays.copyOfRange(temp, NUMHITS / 2, NUMHITS), temp};
+        hits = new Hits[2];
+        for (int s = 0; s < 3; s++) {
+            int[] part = parts[s];
+            Arrays.sort(part);
+            IntBP p = new IntBP(part.length);
+            FloatBP w = new FloatBP(part.length);
+            IntBP l = new IntBP(part.length);
+            for (int i = 0; i < part.length; i++) {
+                p.put(i, part[i]);
+                w.put(i, (part[i] % 7) / 4f);
+                l.put(i, Hits.makeLAS((short)36, part[i] % 3 == 0));
+            }
+            SingleHits.writeSingleHits(p, w, l, prefix, chrom, false, s);
+            SingleHits h = new SingleHits(prefix, chrom, false, s);
+            if (s < 2) {
+                hits[s] = h;
+            } else {
+                all = h;
+            }
+        }
+        header = new Header(all.getPositionsBuffer().getib());
+        summary = CoverageSummary.build(all);
+    }
+    @After public void tearDown() throws IOException {
+        summary.close();
+        for (int s = 0; s < 3; s++) {
+            (s < 2 ? hits[s] : all).close();
+            SingleHits.deleteSegment(prefix, chrom, false, s);
+        }
+        for (File f : (new File(prefix)).listFiles()) {
+            f.delete();
+        }
+        (new File(prefix)).delete();
+    }
+
+    private CoverageSummary.HitSource source() {
+        return new CoverageSummary.HitSource() {
+            public Hits getHits(int start, int end) {
+                return all;
+            }
+        };
+    }
+    /* compares the summary's histograms to the ones from the hits */
+    private void checkHistograms(CoverageSummary s, int start, int end, int binsize) throws IOException {
+        Boolean[] strands = {null, true, false};
+        for (Boolean isPlus : strands) {
+            int nbins = (end - start) / binsize + 1;
+            int[] expected = new int[nbins], actual = new int[nbins];
+            float[] expectedw = new float[nbins], actualw = new float[nbins];
+            int first = header.getFirstIndex(start), last = header.getLastIndex(end);
+            all.histogram(expected, first, last, start, end, binsize, 0, null, isPlus, 0);
+            all.weightHistogram(expectedw, first, last, start, end, binsize, 0, null, isPlus, 0);
+            if (!s.histogram(actual, start, end, binsize, isPlus, source())) {
+                assertEquals(-1, s.chooseLevel(start, binsize));
+                continue;
+            }
+            assertTrue(s.weightHistogram(actualw, start, end, binsize, isPlus, source()));
+            assertArrayEquals(expected, actual);
+            for (int i = 0; i < nbins; i++) {
+                assertEquals(expectedw[i], actualw[i], .001);
+            }
+        }
+    }
+
+    @Test public void testBuild() throws IOException {
+        assertEquals(NUMHITS, summary.getNumHits());
+        assertEquals(all.getPositionsBuffer().get(0), summary.getFirstPosition());
+        assertEquals(all.getPositionsBuffer().get(NUMHITS - 1), summary.getLastPosition());
+    }
+    @Test public void testChooseLevel() {
+        assertEquals(0, summary.chooseLevel(0, 64));
+        assertEquals(1, summary.chooseLevel(0, 3 * 1024));
+        assertEquals(3, summary.chooseLevel(256 * 1024, 1024 * 1024));
+        assertEquals(0, summary.chooseLevel(17, 1024));
+        assertEquals(-1, summary.chooseLevel(17, 1000));
+        assertEquals(-1, summary.chooseLevel(0, 10));
+    }
+    @Test public void testHistograms() throws IOException {
+        int[] binsizes = {64, 1000, 1024, 5000, 16384, 100000, 262144, 1000000};
+        int[] starts = {0, 17, 65536, 999999};
+        for (int binsize : binsizes) {
+            for (int start : starts) {
+                checkHistograms(summary, start, MAXPOS, binsize);
+                checkHistograms(summary, start, start + 10 * binsize + 5, binsize);
+            }
+        }
+    }
+    @Test public void testMerge() throws IOException {
+        CoverageSummary a = CoverageSummary.build(hits[0]);
+        CoverageSummary b = CoverageSummary.build(hits[1]);
+        CoverageSummary merged = CoverageSummary.merge(a, b);
+        assertEquals(NUMHITS, merged.getNumHits());
+        assertEquals(summary.getFirstPosition(), merged.getFirstPosition());
+        assertEquals(summary.getLastPosition(), merged.getLastPosition());
+        checkHistograms(merged, 0, MAXPOS, 1024);
+        checkHistograms(merged, 5, MAXPOS, 100000);
+        a.close();
+        b.close();
+        merged.close();
+    }
+    @Test public void testWriteAndRead() throws IOException {
+        String fname = prefix + "test.summary";
+        summary.write(fname);
+        CoverageSummary read = new CoverageSummary(fname);
+        assertEquals(summary.getNumHits(), read.getNumHits());
+        checkHistograms(read, 0, MAXPOS, 16384);
+        checkHistograms(read, 33, MAXPOS, 50000);
+        read.close();
+    }
+}
@@ -531,6 +531,46 @@ public class TestReadDB {
         assertEquals(name + " basic 15",(int)map.get(15),2);
         c.close();
      }
+    @Test public void testMultiHistogram() throws IOException, ClientException {
+        Client c = new Client(hostname, portnum, user, passwd);
+        int chrom = 61;
+        List<String> names = new ArrayList<String>();
+        for (int a = 0; a < 3; a++) {
+            String name = "testMultiHistogram" + a;
+            names.add(name);
+            ArrayList<SingleHit> hits = new ArrayList<SingleHit>();
+            for (int i = 0; i < 1000; i++) {
+                hits.add(new SingleHit(chrom, (int)Math.round(Math.random() * 5000), (float)(Math.random() * 4), Math.random() > .5, 20));
+            }
+            c.storeSingle(name,hits,false);
+        }
+        TreeMap<Integer,Integer> multi = c.getHistogram(names,chrom,false,false,0,25,100,4000,null,null);
+        TreeMap<Integer,Float> multiw = c.getWeightHistogram(names,chrom,false,false,0,25,100,4000,null,true);
+        Map<Integer,Integer> summed = new HashMap<Integer,Integer>();
+        Map<Integer,Float> summedw = new HashMap<Integer,Float>();
+        for (String name : names) {
+            TreeMap<Integer,Integer> h = c.getHistogram(name,chrom,false,false,0,25,100,4000,null,null);
+            for (int k : h.keySet()) {
+                summed.put(k, h.get(k) + (summed.containsKey(k) ? summed.get(k) : 0));
+            }
+            TreeMap<Integer,Float> w = c.getWeightHistogram(name,chrom,false,false,0,25,100,4000,null,true);
+            for (int k : w.keySet()) {
+                summedw.put(k, w.get(k) + (summedw.containsKey(k) ? summedw.get(k) : 0));
+            }
+        }
+        assertEquals("multihistogram keys", summed.keySet(), multi.keySet());
+        for (int k : summed.keySet()) {
+            assertEquals("multihistogram at " + k, (int)summed.get(k), (int)multi.get(k));
+        }
+        assertEquals("multiweighthistogram keys", summedw.keySet(), multiw.keySet());
+        for (int k : summedw.keySet()) {
+            assertEquals("multiweighthistogram at " + k, summedw.get(k), multiw.get(k), .001);
+        }
+        for (String name : names) {
+            c.deleteAlignment(name, false);
+        }
+        c.close();
+    }
     @Test public void testHistogram2() throws IOException, ClientException {
         int MAXVALUE = 10000;
         float MAXWEIGHT = 4f;
@@ -0,0 +1,126 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import org.seqcode.data.readdb.FloatBP;
+import org.seqcode.data.readdb.Header;
+import org.seqcode.data.readdb.Hits;
+import org.seqcode.data.readdb.IntBP;
+import org.seqcode.data.readdb.SingleHits;
+
+import static org.junit.Assert.*;
+
+public class TestSegments {
+
+    private static int NUMSEGMENTS = 5;
+    private static int NUMHITS = 20000;
+    private String prefix;
+    private int chrom = 3;
+    private Hits[] segments;
+    private Header[] headers;
+    /* every hit from every segment, as position and weight, for checking the merges */
+    private int[] allpositions;
+    private float[] allweights;
+
+    @Before public void setUp() throws IOException {
+        File dir = File.createTempFile("segments",".d");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        prefix = dir.getPath() + System.getProperty("file.separator");
+        Random random = new Random(1234);
+        segments = new Hits[NUMSEGMENTS];
+        headers = new Header[NUMSEGMENTS];
+        allpositions = new int[NUMSEGMENTS * NUMHITS];
+        allweights = new float[NUMSEGMENTS * NUMHITS];
+        for (int s = 0; s < NUMSEGMENTS; s++) {
+            int[] temp = new int[NUMHITS];
+            for (int i = 0; i < NUMHITS; i++) {
+                /* later segments are clustered so that some merges copy long runs */
+                temp[i] = s % 2 == 0 ? random.nextInt(100000) : 40000 + random.nextInt(1000 * (s+1));
+            }
+            Arrays.sort(temp);
+            IntBP p = new IntBP(NUMHITS);
+            FloatBP w = new FloatBP(NUMHITS);
+            IntBP l = new IntBP(NUMHITS);
+            for (int i = 0; i < NUMHITS; i++) {
+                p.put(i, temp[i]);
+                w.put(i, temp[i] / 10f);
+                l.put(i, Hits.makeLAS((short)(temp[i] % 100), temp[i] % 2 == 0));
+                allpositions[s * NUMHITS + i] = temp[i];
+                allweights[s * NUMHITS + i] = temp[i] / 10f;
+            }
+            SingleHits.writeSingleHits(p, w, l, prefix, chrom, false, s);
+            segments[s] = new SingleHits(prefix, chrom, false, s);
+            headers[s] = new Header(segments[s].getPositionsBuffer().getib());
+        }
+        Arrays.sort(allpositions);
+        Arrays.sort(allweights);
+    }
+    @After public void tearDown() throws IOException {
+        for (int s = 0; s < NUMSEGMENTS; s++) {
+            segments[s].close();
+            SingleHits.deleteSegment(prefix, chrom, false, s);
+        }
+        (new File(prefix)).delete();
+    }
+
+    private void checkSorted(Hits hits) {
+        IntBP p = hits.getPositionsBuffer();
+        FloatBP w = hits.getWeightsBuffer();
+        IntBP l = hits.getLASBuffer();
+        for (int i = 0; i < p.limit(); i++) {
+            if (i > 0) {
+                assertTrue(p.get(i-1) <= p.get(i));
+            }
+            assertEquals(p.get(i) / 10f, w.get(i), .0001);
+            assertEquals(p.get(i) % 100, Hits.getLengthOne(l.get(i)));
+        }
+    }
+
+    @Test public void testMergeRange() {
+        int[][] ranges = {{0,100000},{40000,41000},{39999,45000},{1234,1234},{-10,-1},{99990,200000}};
+        for (int[] range : ranges) {
+            SingleHits merged = SingleHits.mergeSegments(segments, headers, chrom, range[0], range[1]);
+            int expected = 0;
+            for (int i = 0; i < allpositions.length; i++) {
+                if (allpositions[i] >= range[0] && allpositions[i] <= range[1]) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, merged.getPositionsBuffer().limit());
+            checkSorted(merged);
+            if (expected > 0) {
+                assertTrue(merged.getPositionsBuffer().get(0) >= range[0]);
+                assertTrue(merged.getPositionsBuffer().get(expected - 1) <= range[1]);
+            }
+        }
+    }
+
+    @Test public void testCompact() throws IOException {
+        SingleHits.compactSegments(segments, prefix, chrom, false);
+        SingleHits compacted = new SingleHits(prefix, chrom, false);
+        assertEquals(allpositions.length, compacted.getPositionsBuffer().limit());
+        checkSorted(compacted);
+        float[] weights = new float[allweights.length];
+        for (int i = 0; i < weights.length; i++) {
+            assertEquals(allpositions[i], compacted.getPositionsBuffer().get(i));
+            weights[i] = compacted.getWeightsBuffer().get(i);
+        }
+        Arrays.sort(weights);
+        assertArrayEquals(allweights, weights, .0001f);
+        compacted.close();
+    }
+
+    @Test public void testSegmentList() throws IOException {
+        assertEquals(0, SingleHits.readSegments(prefix, chrom, false).length);
+        int[] list = {1, 2, 4};
+        SingleHits.writeSegments(prefix, chrom, false, list);
+        assertArrayEquals(list, SingleHits.readSegments(prefix, chrom, false));
+        assertEquals(0, SingleHits.readSegments(prefix, chrom, true).length);
+        SingleHits.writeSegments(prefix, chrom, false, new int[0]);
+        assertEquals(0, SingleHits.readSegments(prefix, chrom, false).length);
+        (new File(prefix + chrom + ".ssegments")).delete();
+    }
+}
@@ -0,0 +1,95 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import org.junit.*;
+import org.seqcode.data.readdb.Client;
+import org.seqcode.data.readdb.SelectorDispatch;
+import org.seqcode.data.readdb.Server;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a Server with --selector on a temporary data directory and checks that it
+ * notices clients that go away without saying bye.
+ */
+public class TestSelectorDispatch {
+
+    private static int NUMCLIENTS = 5;
+    private static File dir;
+    private static Server server;
+    private static int port;
+
+    @BeforeClass public static void startServer() throws Exception {
+        dir = File.createTempFile("selector",".d");
+        dir.delete();
+        dir.mkdirs();
+        write(new File(dir, "users.txt"), "u:p\n");
+        write(new File(dir, "groups.txt"), "");
+        write(new File(dir, "defaultACL.txt"), "admin: u\nread: u\nwrite: u\n");
+        ServerSocket s = new ServerSocket(0);
+        port = s.getLocalPort();
+        s.close();
+        server = new Server();
+        server.parseArgs(new String[]{"--datadir", dir.getPath(), "--port", Integer.toString(port),
+                                      "--selector", "--threads", "2"});
+        server.readAndProcessGroupsFile();
+        Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        server.listen();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        t.setDaemon(true);
+        t.start();
+        for (int i = 0; i < 100 && server.getDispatch() == null; i++) {
+            Thread.sleep(50);
+        }
+    }
+    @AfterClass public static void stopServer() {
+        server.keepRunning(false);
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+    private static void write(File f, String s) throws IOException {
+        FileWriter w = new FileWriter(f);
+        w.write(s);
+        w.close();
+    }
+    private static int waitForConnections(int expected) throws InterruptedException {
+        SelectorDispatch dispatch = (SelectorDispatch)server.getDispatch();
+        for (int i = 0; i < 100 && dispatch.getNumConnections() != expected; i++) {
+            Thread.sleep(50);
+        }
+        return dispatch.getNumConnections();
+    }
+
+    @Test public void testDisconnect() throws Exception {
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < NUMCLIENTS; i++) {
+            Socket s = new Socket("localhost", port);
+            /* half of an authentication exchange, so the server has read from each connection */
+            s.getOutputStream().write("u\n".getBytes());
+            s.getOutputStream().flush();
+            sockets.add(s);
+        }
+        assertEquals(NUMCLIENTS, waitForConnections(NUMCLIENTS));
+        for (Socket s : sockets) {
+            s.close();
+        }
+        assertEquals(0, waitForConnections(0));
+    }
+    @Test public void testClientDisconnect() throws Exception {
+        Client c = new Client("localhost", port, "u", "p");
+        assertFalse(c.exists("nosuchalignment"));
+        assertEquals(1, waitForConnections(1));
+        c.close();
+        assertEquals(0, waitForConnections(0));
+    }
+}
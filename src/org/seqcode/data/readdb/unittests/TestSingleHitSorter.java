@@ -0,0 +1,129 @@
+package org.seqcode.data.readdb.unittests;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import org.seqcode.data.readdb.Hits;
+import org.seqcode.data.readdb.SingleHitSorter;
+import org.seqcode.data.readdb.SingleHits;
+import org.seqcode.data.readdb.SingleHitsWriter;
+
+import static org.junit.Assert.*;
+
+public class TestSingleHitSorter {
+
+    private static int NUMHITS = 100000;
+    private static int MAXPOS = 5000000;
+    private static int[] CHROMS = {1, 2, 7};
+    private File tmpdir;
+    private Map<Integer,List<long[]>> expected;
+
+    @Before public void setUp() throws IOException {
+        tmpdir = File.createTempFile("sorter",".d");
+        tmpdir.delete();
+        tmpdir.mkdirs();
+        tmpdir.deleteOnExit();
+        expected = new HashMap<Integer,List<long[]>>();
+        for (int c : CHROMS) {
+            expected.put(c, new ArrayList<long[]>());
+        }
+    }
+    @After public void tearDown() {
+        for (File f : tmpdir.listFiles()) {
+            f.delete();
+        }
+        tmpdir.delete();
+    }
+
+    /* adds random hits to the sorter and remembers them as {pos, weight bits, las} */
+    private void addHits(SingleHitSorter sorter, Random random) throws IOException {
+        for (int i = 0; i < NUMHITS; i++) {
+            int c = CHROMS[random.nextInt(CHROMS.length)];
+            int pos = random.nextInt(MAXPOS);
+            float weight = 1 / (float)(1 + random.nextInt(4));
+            int las = Hits.makeLAS((short)(20 + random.nextInt(80)), random.nextBoolean());
+            sorter.add(c, pos, weight, las);
+            expected.get(c).add(new long[]{pos, Float.floatToIntBits(weight), las});
+        }
+    }
+    /* sorts by position, then by weight and las, so that hits at the same position compare equal as sets */
+    private static void sortHits(List<long[]> hits) {
+        Collections.sort(hits, new Comparator<long[]>() {
+                public int compare(long[] a, long[] b) {
+                    for (int i = 0; i < a.length; i++) {
+                        if (a[i] != b[i]) {
+                            return a[i] < b[i] ? -1 : 1;
+                        }
+                    }
+                    return 0;
+                }
+            });
+    }
+    private void checkMerge(SingleHitSorter sorter) throws IOException {
+        assertEquals(new TreeSet<Integer>(expected.keySet()), sorter.getChroms());
+        for (int c : CHROMS) {
+            final List<long[]> actual = new ArrayList<long[]>();
+            sorter.merge(c, new SingleHitSorter.HitHandler() {
+                    public void hit(int pos, float weight, int las) {
+                        if (actual.size() > 0) {
+                            assertTrue(actual.get(actual.size() - 1)[0] <= pos);
+                        }
+                        actual.add(new long[]{pos, Float.floatToIntBits(weight), las});
+                    }
+                });
+            List<long[]> exp = expected.get(c);
+            assertEquals(exp.size(), sorter.getCount(c));
+            assertEquals(exp.size(), actual.size());
+            sortHits(exp);
+            sortHits(actual);
+            for (int i = 0; i < exp.size(); i++) {
+                assertArrayEquals(exp.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test public void testInMemory() throws IOException {
+        SingleHitSorter sorter = new SingleHitSorter(tmpdir, NUMHITS * 2);
+        addHits(sorter, new Random(11));
+        assertEquals(0, tmpdir.listFiles().length);
+        checkMerge(sorter);
+        sorter.close();
+    }
+    @Test public void testSpilled() throws IOException {
+        SingleHitSorter sorter = new SingleHitSorter(tmpdir, 7777);
+        addHits(sorter, new Random(12));
+        assertEquals(NUMHITS / 7777, tmpdir.listFiles().length);
+        checkMerge(sorter);
+        sorter.close();
+        assertEquals(0, tmpdir.listFiles().length);
+    }
+    @Test public void testWriter() throws IOException {
+        SingleHitSorter sorter = new SingleHitSorter(tmpdir, 10000);
+        addHits(sorter, new Random(13));
+        String prefix = tmpdir.getPath() + System.getProperty("file.separator");
+        int c = CHROMS[1];
+        SingleHitsWriter writer = new SingleHitsWriter(prefix, c, false);
+        sorter.merge(c, writer);
+        writer.close();
+        sorter.close();
+        List<long[]> exp = expected.get(c);
+        assertEquals(exp.size(), writer.getCount());
+        SingleHits hits = new SingleHits(prefix, c, false);
+        assertEquals(exp.size(), hits.getPositionsBuffer().limit());
+        sortHits(exp);
+        for (int i = 0; i < exp.size(); i++) {
+            assertEquals(exp.get(i)[0], hits.getPositionsBuffer().get(i));
+        }
+        hits.close();
+    }
+    @Test(expected=IOException.class) public void testUnsortedWriter() throws IOException {
+        String prefix = tmpdir.getPath() + System.getProperty("file.separator");
+        SingleHitsWriter writer = new SingleHitsWriter(prefix, 1, false);
+        try {
+            writer.hit(10, 1, 0);
+            writer.hit(5, 1, 0);
+        } finally {
+            writer.abort();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.seqcode.deepseq;
+
+/**
+ * StrandedBaseBuffer holds the hits on one strand of a region as parallel primitive arrays of
+ * 5' coordinates and summed hit weights, sorted by coordinate.
+ *
+ * It is the reusable counterpart of a List of StrandedBaseCount: fill it with
+ * getStrandedBases(Region, char, StrandedBaseBuffer) on a HitCache or Sample and read it by index.
+ * The arrays only grow, so a buffer that is reused across queries stops allocating once it
+ * has seen the largest query.
+ *
+ * Not thread-safe; give each thread its own buffers.
+ */
+public class StrandedBaseBuffer {
+	private char strand='+';
+	private int size=0;
+	private int[] coordinates;
+	private float[] counts;
+
+	public StrandedBaseBuffer(){
+		this(1024);
+	}
+	public StrandedBaseBuffer(int initialCapacity){
+		coordinates = new int[Math.max(1, initialCapacity)];
+		counts = new float[coordinates.length];
+	}
+
+	//Accessors
+	public char getStrand(){return strand;}
+	public int size(){return size;}
+	public boolean isEmpty(){return size==0;}
+	public int getCoordinate(int i){return coordinates[i];}
+	public float getCount(int i){return counts[i];}
+
+	/**
+	 * Empty the buffer and set the strand of the hits that will be added
+	 * @param strand '+' or '-'
+	 */
+	public void clear(char strand){
+		this.strand = strand;
+		size=0;
+	}
+
+	/**
+	 * Append a hit. Hits must be added in coordinate order.
+	 */
+	public void add(int coordinate, float count){
+		if(size==coordinates.length)
+			ensureCapacity(size+1);
+		coordinates[size]=coordinate;
+		counts[size]=count;
+		size++;
+	}
+
+	/**
+	 * Grow the arrays (keeping the contents) so that they hold at least n hits
+	 */
+	public void ensureCapacity(int n){
+		if(n>coordinates.length){
+			int cap = Math.max(n, coordinates.length + (coordinates.length>>1));
+			int[] c = new int[cap];
+			float[] w = new float[cap];
+			System.arraycopy(coordinates, 0, c, 0, size);
+			System.arraycopy(counts, 0, w, 0, size);
+			coordinates = c;
+			counts = w;
+		}
+	}
+
+	/**
+	 * Sum of the hit weights in the buffer
+	 */
+	public float getTotalCount(){
+		float total=0;
+		for(int i=0; i<size; i++)
+			total+=counts[i];
+		return total;
+	}
+
+	/**
+	 * Index of the first hit with a coordinate greater than or equal to coord (size() if there is none)
+	 */
+	public int firstIndexAtOrAfter(int coord){
+		int lo=0, hi=size;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(coordinates[mid] < coord)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Hit i as a StrandedBaseCount, for code that still needs the objects
+	 */
+	public StrandedBaseCount get(int i){
+		return new StrandedBaseCount(strand, coordinates[i], counts[i]);
+	}
+
+	public String toString(){
+		return size+" hits on "+strand;
+	}
+}
@@ -2,16 +2,19 @@ package org.seqcode.deepseq.composite;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
 import org.seqcode.data.io.RegionFileUtilities;
-import org.seqcode.deepseq.StrandedBaseCount;
+import org.seqcode.deepseq.StrandedBaseBuffer;
 import org.seqcode.deepseq.experiments.ControlledExperiment;
 import org.seqcode.deepseq.experiments.ExperimentCondition;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.experiments.ExptConfig;
+import org.seqcode.deepseq.experiments.Sample;
 import org.seqcode.genome.GenomeConfig;
+import org.seqcode.genome.location.Region;
 import org.seqcode.genome.location.StrandedPoint;
 import org.seqcode.gseutils.Args;
 
@@ -65,50 +68,50 @@ public class CompositeTagDistribution {
 				}
 		}
 		
+		//Reused for every point
+		StrandedBaseBuffer wReads = new StrandedBaseBuffer(), cReads = new StrandedBaseBuffer();
 		for(ExperimentCondition cond : exptMan.getConditions()){
 			for(ControlledExperiment rep : cond.getReplicates()){
 				
 				if(loadSignal || rep.hasControl()){
+					Sample samp = loadSignal ? rep.getSignal() : rep.getControl();
 					//Iterate through points
 					int p=0;
 					for(StrandedPoint pt : points){
 						//Load reads
-						List<StrandedBaseCount> wReads = loadSignal ? 
-								rep.getSignal().getStrandedBases(pt.expand(win), pt.getStrand()) : 
-									rep.getControl().getStrandedBases(pt.expand(win), pt.getStrand());
-						List<StrandedBaseCount> cReads = loadSignal ? 
-								rep.getSignal().getStrandedBases(pt.expand(win), pt.getStrand()=='+' ? '-' : '+') :
-									rep.getControl().getStrandedBases(pt.expand(win), pt.getStrand()=='+' ? '-' : '+');
+						Region ptWin = pt.expand(win);
+						samp.getStrandedBases(ptWin, pt.getStrand(), wReads);
+						samp.getStrandedBases(ptWin, pt.getStrand()=='+' ? '-' : '+', cReads);
 						
 						
 						if(pt.getStrand()=='+'){
-							for(StrandedBaseCount sbc : wReads){
-								int sdist = sbc.getCoordinate()-pt.getLocation()+(win/2);
+							for(int h=0; h<wReads.size(); h++){
+								int sdist = wReads.getCoordinate(h)-pt.getLocation()+(win/2);
 								if(sdist>=0 && sdist<win){
-									watson[cond.getIndex()][sdist]+=sbc.getCount();
-									perPointWatson[p][cond.getIndex()][sdist]+=sbc.getCount();
+									watson[cond.getIndex()][sdist]+=wReads.getCount(h);
+									perPointWatson[p][cond.getIndex()][sdist]+=wReads.getCount(h);
 								}
 							}
-							for(StrandedBaseCount sbc : cReads){
-								int sdist = sbc.getCoordinate()-pt.getLocation()+(win/2);
+							for(int h=0; h<cReads.size(); h++){
+								int sdist = cReads.getCoordinate(h)-pt.getLocation()+(win/2);
 								if(sdist>=0 && sdist<win){
-									crick[cond.getIndex()][sdist]+=sbc.getCount();
-									perPointCrick[p][cond.getIndex()][sdist]+=sbc.getCount();
+									crick[cond.getIndex()][sdist]+=cReads.getCount(h);
+									perPointCrick[p][cond.getIndex()][sdist]+=cReads.getCount(h);
 								}
 							}
 						}else{
-							for(StrandedBaseCount sbc : wReads){
-								int sdist = pt.getLocation()-sbc.getCoordinate()+(win/2);
+							for(int h=0; h<wReads.size(); h++){
+								int sdist = pt.getLocation()-wReads.getCoordinate(h)+(win/2);
 								if(sdist>=0 && sdist<win){
-									watson[cond.getIndex()][sdist]+=sbc.getCount();
-									perPointWatson[p][cond.getIndex()][sdist]+=sbc.getCount();
+									watson[cond.getIndex()][sdist]+=wReads.getCount(h);
+									perPointWatson[p][cond.getIndex()][sdist]+=wReads.getCount(h);
 								}
 							}
-							for(StrandedBaseCount sbc : cReads){
-								int sdist = pt.getLocation()-sbc.getCoordinate()+(win/2);
+							for(int h=0; h<cReads.size(); h++){
+								int sdist = pt.getLocation()-cReads.getCoordinate(h)+(win/2);
 								if(sdist>=0 && sdist<win){
-									crick[cond.getIndex()][sdist]+=sbc.getCount();
-									perPointCrick[p][cond.getIndex()][sdist]+=sbc.getCount();
+									crick[cond.getIndex()][sdist]+=cReads.getCount(h);
+									perPointCrick[p][cond.getIndex()][sdist]+=cReads.getCount(h);
 								}
 							}
 						}
@@ -197,11 +200,18 @@ public class CompositeTagDistribution {
 					"Experiment Design File:\n" +
 					"\t--design <file name>\n");			
 		}else{
-			ExperimentManager manager = new ExperimentManager(econ);
-			
 			int w = Args.parseInteger(args, "cwin", 400);
 			String pFile = Args.parseString(args, "cpoints", null);
 			List<StrandedPoint> pts = RegionFileUtilities.loadStrandedPointsFromFile(gcon.getGenome(), pFile);
+			if(econ.getRegionLoad()){
+				//Only the hits in the windows are needed
+				List<Region> regs = new ArrayList<Region>();
+				for(StrandedPoint pt : pts)
+					regs.add(pt.expand(w/2+1));
+				econ.setInitialCachedRegions(regs);
+			}
+			
+			ExperimentManager manager = new ExperimentManager(econ);
 			
 			CompositeTagDistribution maker = new CompositeTagDistribution(pts, manager, w, true);
 			
@@ -108,6 +108,31 @@ public class ExperimentCondition {
 		return total;
 	}
 	
+	/**
+	 * Sum of hit weights in a region, pooled over the signal samples.
+	 * No objects are allocated per hit.
+	 * @param r Region
+	 * @return
+	 */
+	public float countSignalHits(Region r){
+		float total=0;
+		for(Sample s: signalSamples)
+			total += s.countHits(r);
+		return total;
+	}
+	/**
+	 * Sum of hit weights in a region, pooled over the control samples.
+	 * No objects are allocated per hit.
+	 * @param r Region
+	 * @return
+	 */
+	public float countControlHits(Region r){
+		float total=0;
+		for(Sample s: controlSamples)
+			total += s.countHits(r);
+		return total;
+	}
+
 	/**
 	 * Get the pooled signal fraction from all underlying signal channels
 	 * @return
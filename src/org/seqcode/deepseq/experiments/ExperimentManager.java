@@ -1,12 +1,20 @@
 package org.seqcode.deepseq.experiments;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.seqcode.data.seqdata.SeqDataLoader;
+import org.seqcode.deepseq.hitloaders.BinaryHitFileHitLoader;
+import org.seqcode.deepseq.hitloaders.BinaryHitFileWriter;
 import org.seqcode.deepseq.hitloaders.HitLoader;
 import org.seqcode.deepseq.hitloaders.HitLoaderFactory;
 import org.seqcode.genome.Genome;
@@ -104,29 +112,33 @@ public class ExperimentManager {
 			}
 		}
 		
-		//Secondly, load the samples (load each sample name once)
+		//Secondly, make the samples (one per sample name) and note which hit loaders each one uses
+		HashMap<Sample, List<String>> sampleLoaders = new HashMap<Sample, List<String>>();
+		HashMap<String, Integer> loaderUses = new HashMap<String, Integer>();
 		for(ExptDescriptor e : descriptors){
 			String sampleName = e.getName();
-			
-			if(econfig.getPrintLoadingProgress() && loadReads)
-				System.err.print("Loading data from "+sampleName);
-			
 			if(!allSamples.containsKey(sampleName)){
 				Sample samp = new Sample(sampCount, econfig, sampleName, e.perBaseMaxReads, e.signal);
 				allSamples.put(sampleName, samp);
 				samples.add(samp);
+				sampleLoaders.put(samp, new ArrayList<String>());
 				sampCount++;
 			}
 			for(Pair<String,String> source : e.sources){
 				String name = source.car();
-				allSamples.get(sampleName).addHitLoader(loaders.get(name));
-			}
-			if(loadReads){
-				allSamples.get(sampleName).initializeCache(econfig.getCacheAllData(), econfig.getInitialCachedRegions());
-				if(econfig.getPrintLoadingProgress())
-					System.err.println("\tLoaded.");
+				sampleLoaders.get(allSamples.get(sampleName)).add(name);
+				loaderUses.put(name, loaderUses.containsKey(name) ? loaderUses.get(name)+1 : 1);
 			}
 		}
+		
+		//Load the samples 
+		if(loadReads){
+			loadSamples(sampleLoaders, loaderUses);
+		}else{
+			for(Sample samp : samples)
+				for(String name : sampleLoaders.get(samp))
+					samp.addHitLoader(loaders.get(name));
+		}
 		//Merge estimated genomes if necessary
 		if(gen == null){
 			List<Genome> estGenomes = new ArrayList<Genome>();
@@ -262,6 +274,245 @@ public class ExperimentManager {
 
 	}
 	
+	/**
+	 * Load the samples concurrently, using up to ExptConfig.getLoadThreads() threads.
+	 * 
+	 * Hit loaders that are shared by more than one sample are sourced once (in parallel with each other), 
+	 * and their sorted hits are written to temporary binary hit files. Each sample then reads its own copy 
+	 * from the file, which gives the same hits as sourcing the loader again (under region loading, only the 
+	 * initial cached regions are sourced, and the file reports the loader's source total). Pairs can't be stored this way, 
+	 * so when pairs are being loaded, samples that share loaders are instead loaded one after another in the same task.
+	 * 
+	 * A sample load is only started when the heap has room for its transient sorting buffers (see LoadAdmission), 
+	 * so the peak heap use doesn't grow with the number of threads beyond what is available.
+	 * 
+	 * @param sampleLoaders : names of the hit loaders used by each sample, in order of use
+	 * @param loaderUses : number of times each hit loader is used
+	 */
+	private void loadSamples(HashMap<Sample, List<String>> sampleLoaders, HashMap<String, Integer> loaderUses){
+		final boolean printProgress = econfig.getPrintLoadingProgress();
+		final LoadAdmission admission = new LoadAdmission();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(econfig.getLoadThreads(), samples.size())));
+		final HashMap<String, File> sharedFiles = new HashMap<String, File>();
+		final HashMap<String, Double> sharedTotals = new HashMap<String, Double>();
+		final HashMap<String, Boolean> sharedSeekable = new HashMap<String, Boolean>();
+		try{
+			//Source the shared loaders once
+			if(!econfig.getLoadPairs()){
+				List<Future<?>> sharedTasks = new ArrayList<Future<?>>();
+				for(final String name : loaderUses.keySet()){
+					if(loaderUses.get(name)>1){
+						sharedTasks.add(pool.submit(new Runnable(){
+							public void run(){
+								try{
+									admission.acquire(LoadAdmission.SAMPLE_LOAD_BYTES);
+								}catch(InterruptedException e){
+									Thread.currentThread().interrupt();
+									return;
+								}
+								try{
+									if(printProgress)
+										System.err.println("Loading shared data from "+loaders.get(name).getSourceName());
+									HitLoader hl = loaders.get(name);
+									boolean seekable = hl.canSourceRegions();
+									boolean fromRegions = econfig.getRegionLoad() && econfig.getInitialCachedRegions()!=null && seekable;
+									File f = sourceSharedLoader(hl, fromRegions);
+									double total = fromRegions ? hl.getSourceHitCount() : Double.NaN;
+									if(total<0) //Not recorded by the source, so count it (as HitCache does for unshared loaders)
+										total = hl.countSourceHits(econfig.getGenome()==null ? null : new HashSet<String>(econfig.getGenome().getChromList()));
+									synchronized(sharedFiles){
+										sharedFiles.put(name, f);
+										sharedTotals.put(name, total);
+										sharedSeekable.put(name, seekable);
+									}
+								}finally{
+									admission.release(LoadAdmission.SAMPLE_LOAD_BYTES);
+								}
+							}
+						}));
+					}
+				}
+				waitFor(sharedTasks);
+			}
+			
+			//Attach the hit loaders to the samples (shared loaders are replaced by readers of their files)
+			//The readers only report that they can source regions if the shared loader could, so that samples load the same hits either way
+			for(Sample samp : samples){
+				for(String name : sampleLoaders.get(samp)){
+					if(sharedFiles.containsKey(name)){
+						BinaryHitFileHitLoader hl = new BinaryHitFileHitLoader(sharedFiles.get(name), econfig.getNonUnique(), true, false, false, sharedSeekable.get(name));
+						hl.setSourceHitCount(sharedTotals.get(name));
+						hl.setSourceName(loaders.get(name).getSourceName());
+						samp.addHitLoader(hl);
+					}else{
+						samp.addHitLoader(loaders.get(name));
+					}
+				}
+			}
+			
+			//Group samples that share a loader that is still in use by more than one of them
+			int[] group = new int[samples.size()];
+			for(int i=0; i<group.length; i++)
+				group[i]=i;
+			HashMap<String, Integer> firstUser = new HashMap<String, Integer>();
+			for(int i=0; i<samples.size(); i++){
+				for(String name : sampleLoaders.get(samples.get(i))){
+					if(sharedFiles.containsKey(name))
+						continue;
+					if(firstUser.containsKey(name)){
+						int a = findGroup(group, firstUser.get(name)), b = findGroup(group, i);
+						group[Math.max(a, b)] = Math.min(a, b);
+					}else{
+						firstUser.put(name, i);
+					}
+				}
+			}
+			HashMap<Integer, List<Sample>> groups = new HashMap<Integer, List<Sample>>();
+			List<Integer> groupOrder = new ArrayList<Integer>();
+			for(int i=0; i<samples.size(); i++){
+				int g = findGroup(group, i);
+				if(!groups.containsKey(g)){
+					groups.put(g, new ArrayList<Sample>());
+					groupOrder.add(g);
+				}
+				groups.get(g).add(samples.get(i));
+			}
+			
+			//Load each group of samples as a task
+			List<Future<?>> sampleTasks = new ArrayList<Future<?>>();
+			for(Integer g : groupOrder){
+				final List<Sample> groupSamples = groups.get(g);
+				sampleTasks.add(pool.submit(new Runnable(){
+					public void run(){
+						for(Sample samp : groupSamples){
+							try{
+								admission.acquire(LoadAdmission.SAMPLE_LOAD_BYTES);
+							}catch(InterruptedException e){
+								Thread.currentThread().interrupt();
+								return;
+							}
+							try{
+								if(printProgress)
+									System.err.println("Loading data from "+samp.getName());
+								samp.initializeCache(econfig.getCacheAllData(), econfig.getInitialCachedRegions());
+								if(printProgress)
+									System.err.println("\tLoaded "+samp.getName()+String.format(" (%.1f hits)", samp.getHitCount()));
+							}finally{
+								admission.release(LoadAdmission.SAMPLE_LOAD_BYTES);
+							}
+						}
+					}
+				}));
+			}
+			waitFor(sampleTasks);
+		}finally{
+			pool.shutdownNow();
+			for(File f : sharedFiles.values())
+				f.delete();
+		}
+	}
+	
+	/**
+	 * Source a hit loader, and write its sorted & collapsed hits to a temporary binary hit file
+	 * @param hl : HitLoader
+	 * @param fromRegions : source only the initial cached regions (as HitCache does under region loading)
+	 * @return the binary hit file
+	 */
+	private File sourceSharedLoader(HitLoader hl, boolean fromRegions){
+		HitSorter sorter = new HitSorter(econfig.getFileCacheDirName());
+		File f=null;
+		try{
+			hl.setHitSink(sorter);
+			if(fromRegions)
+				hl.sourceHits(econfig.getInitialCachedRegions());
+			else
+				hl.sourceAllHits();
+			hl.flushHits();
+			hl.setHitSink(null);
+			hl.resetLoader();
+			
+			File dir = new File(econfig.getFileCacheDirName());
+			if(!dir.mkdirs() && !dir.isDirectory())
+				throw new IOException("Unable to make directory "+dir.getPath());
+			f = File.createTempFile("shared", ".bhit", dir);
+			f.deleteOnExit();
+			BinaryHitFileWriter writer = new BinaryHitFileWriter(f);
+			try{
+				int[][] pos = new int[2][];
+				float[][] counts = new float[2][];
+				for(String chrom : sorter.getMaxPositions().keySet()){
+					for(int strand=0; strand<=1; strand++){
+						sorter.merge(chrom, strand, pos, counts);
+						if(pos[strand]!=null)
+							writer.addSection(chrom, strand==0 ? '+' : '-', pos[strand], counts[strand], pos[strand].length);
+						pos[strand]=null;
+						counts[strand]=null;
+					}
+				}
+			}finally{
+				writer.close();
+			}
+		}catch(IOException e){
+			e.printStackTrace();
+			System.err.println("Unable to write shared hits to "+(f==null ? econfig.getFileCacheDirName() : f.getPath()));
+			System.exit(1);
+		}finally{
+			sorter.close();
+		}
+		return f;
+	}
+	
+	private int findGroup(int[] group, int i){
+		while(group[i]!=i)
+			i = group[i];
+		return i;
+	}
+	
+	/**
+	 * Wait for loading tasks to finish. Loading errors are fatal.
+	 */
+	private void waitFor(List<Future<?>> tasks){
+		try{
+			for(Future<?> f : tasks)
+				f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			System.err.println("Interrupted while loading experiments");
+			System.exit(1);
+		}catch(ExecutionException e){
+			e.getCause().printStackTrace();
+			System.err.println("Unable to load experiments");
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * LoadAdmission admits concurrent sample loads while the heap has room for their transient buffers.
+	 * Each load reserves SAMPLE_LOAD_BYTES (the in-memory sorted runs of a HitSorter before it spills, plus
+	 * the merge of a chromosome & strand). A load always starts if no other is running, so progress is guaranteed.
+	 */
+	private static class LoadAdmission{
+		static final long SAMPLE_LOAD_BYTES = HitSorter.SPILL_HITS*16L;
+		private long reserved=0;
+		private int active=0;
+		
+		synchronized void acquire(long bytes) throws InterruptedException{
+			while(active>0 && available()-reserved<bytes)
+				wait(1000); //Also re-check the heap periodically, as memory is freed by garbage collection
+			active++;
+			reserved+=bytes;
+		}
+		synchronized void release(long bytes){
+			active--;
+			reserved-=bytes;
+			notifyAll();
+		}
+		private long available(){
+			Runtime rt = Runtime.getRuntime();
+			return rt.maxMemory()-(rt.totalMemory()-rt.freeMemory());
+		}
+	}
+	
 	//Accessors
 	public List<Sample> getSamples(){return samples;}
 	public List<ExperimentCondition> getConditions(){return conditions;}
@@ -50,6 +50,8 @@ public class ExptConfig {
 	protected boolean cacheAllHits=true; //Cache all hits
 	protected String fileCacheDir = "hitcache";
 	protected List<Region> initialCachedRegions=null;
+	protected boolean regionLoad=false; //Only load hits in the initial cached regions (from loaders that can seek to them) 
+	protected int loadThreads=Math.min(4, java.lang.Runtime.getRuntime().availableProcessors()); //Number of samples to load at once
 	//Different loaders will have different behaviors in the following
 	//For example, some file formats cannot store pairs. ReadDB ignores the difference between R1 & R2 in single-end, etc.
 	protected boolean loadType1Reads = true; //Load Type1 reads
@@ -160,6 +162,8 @@ public class ExptConfig {
 				if(localBackgroundWindows.size()==0){localBackgroundWindows.add(10000);}
 				//Caching
 				cacheAllHits = Args.parseFlags(args).contains("nocache") ? false : true;
+				regionLoad = Args.parseFlags(args).contains("regionload");
+				loadThreads = Math.max(1, Args.parseInteger(args,"loadthreads",loadThreads));
 				
 				//Parse command-line experiments (optional experiment and replicate names can be specified within the argument name - e.g. --exptName-Rep )
 				String fileFormat = Args.parseString(args, "format", "SAM").toUpperCase();
@@ -313,6 +317,8 @@ public class ExptConfig {
 	public boolean getCacheAllData(){return cacheAllHits;}
 	public String getFileCacheDirName(){return fileCacheDir;}
 	public List<Region> getInitialCachedRegions(){return initialCachedRegions;}
+	public boolean getRegionLoad(){return regionLoad;}
+	public int getLoadThreads(){return loadThreads;}
 	public boolean getLoadType1Reads(){return loadType1Reads;}
 	public boolean getLoadType2Reads(){return loadType2Reads;}
 	public boolean getLoadRead2(){return loadRead2;}
@@ -328,6 +334,9 @@ public class ExptConfig {
 	public void setSESScaling(boolean ses){scalingBySES = ses;}
 	public void setScalingSlidingWindow(int ssw){scalingSlidingWindow = ssw;}
 	public void setFileCacheDirName(String d){fileCacheDir = d;}
+	public void setInitialCachedRegions(List<Region> regs){initialCachedRegions = regs;}
+	public void setRegionLoad(boolean rl){regionLoad = rl;}
+	public void setLoadThreads(int lt){loadThreads = Math.max(1, lt);}
 	public void setLoadType1Reads(boolean l){loadType1Reads = l;}
 	public void setLoadType2Reads(boolean l){loadType2Reads = l;}
 	public void setLoadRead2(boolean l){loadRead2 = l;}
@@ -363,7 +372,7 @@ public class ExptConfig {
 				"Experiments:\n" +
 				"\t--design <design file name>\n" +
 				"\tOR\n" +
-				"\t--expt/--ctrl <signal/control experiment file name> AND --format <SAM/BED/SCIDX/BOWTIE/NOVO>\n" +
+				"\t--expt/--ctrl <signal/control experiment file name> AND --format <SAM/BED/SCIDX/BOWTIE/NOVO/BHIT>\n" +
 				"\tAND/OR" +
 				"\t--rdbexpt/--rdbctrl <signal/control ReadDB experiment identifier>\n" +
 				"\t\tNote that if you use --expt/--ctrl or --rdbexpt/--rdbctrl, you can specify the names of the experiment & replicate\n" +
@@ -382,6 +391,8 @@ public class ExptConfig {
 				"\t--poissongausspb <filter per base using a Poisson threshold parameterized by a local Gaussian sliding window>\n" +
 				"\t--mappability <fraction of the genome that is mappable for these experiments>\n" +
 				"\t--nocache [flag to turn off caching of the entire set of experiments (i.e. run slower with less memory)]\n" +
+				"\t--regionload [flag to only load hits in the regions of interest from indexed files (BAM with index, BHIT)]\n" +
+				"\t--loadthreads <number of samples to load at once (default=min(4, #cores))>\n" +
 				"\t--not1reads / --loadt2reads [flags to use Type1 or Type2 reads] (Type1 loaded by default)\n" +
 				"\t--noread2 [flag to ignore second reads in paired-end]\n" +
 				""));
@@ -2,13 +2,12 @@ package org.seqcode.deepseq.experiments;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
@@ -16,7 +15,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import cern.jet.random.Poisson;
 import cern.jet.random.engine.DRand;
@@ -24,6 +25,7 @@ import org.apache.commons.lang3.RandomStringUtils;
 import org.seqcode.deepseq.ExtReadHit;
 import org.seqcode.deepseq.HitPair;
 import org.seqcode.deepseq.ReadHit;
+import org.seqcode.deepseq.StrandedBaseBuffer;
 import org.seqcode.deepseq.StrandedBaseCount;
 import org.seqcode.deepseq.StrandedPair;
 import org.seqcode.deepseq.hitloaders.HitLoader;
@@ -40,14 +42,15 @@ import org.seqcode.math.stats.StatUtil;
  * 
  * This class can cache either all alignment hits, or hits contained in a (rewritable) list of regions.
  * Which you choose to do in your application should be guided by the speed and memory trade-off. 
- * If you choose the latter (cache each chromosome or sets of regions as you go), be careful to match your queries 
- * with the cached regions. For example, if caching each chromosome as you go, you should group your queries
- * according to chromosome name.  
+ * If you choose the latter, all hits are written to memory-mapped local files, and queries outside the
+ * cached regions are answered directly from the mapped files. Any chromosome can be queried at any time,
+ * but queries are faster when the relevant parts of the files are already in the OS page cache, so it
+ * still pays to group your queries according to chromosome name.
  * 
- * Note that even if you are not choosing to cache all alignment hits, the initialize method (called from constructor)
- * will still load all hits to memory. This is unfortunately currently required in order to calculate accurate
- * total hits and unique hits given the application of the per-base limit schema. Perhaps we can find
- * a work-around in the future.  
+ * The initialize method (called from constructor) does not need all hits in memory at once, even though 
+ * accurate total and unique hit counts depend on the per-base limit schema. Hits are streamed from the
+ * loaders into an external sort (HitSorter), and the arrays are built, capped, counted and (if file caching)
+ * written out one chromosome & strand at a time.  
  * 
  * Hit alignments are loaded into two primative type 3D arrays -- fivePrimePos and fivePrimeCounts.
  * The fivePrimes field for each chrom/strand will be distinct. 
@@ -152,7 +155,26 @@ public class HitCache {
 	 * Third dimension index is that of the corresponding R1 read in pairR1Pos
 	 */
 	private float[][][] pairWeight=null;
-	
+	/**
+	 * Memory-mapped views of the local cache files, indexed like the arrays above. <br>
+	 * Set by saveChromLocally when local file caching is used. Queries for regions that are not in
+	 * the in-memory cache are answered directly from these views, so any chromosome can be queried
+	 * without first copying it back onto the heap.
+	 */
+	private IntBuffer[][] mappedPos=null;
+	private FloatBuffer[][] mappedCounts=null;
+	private IntBuffer[][] mappedR1Pos=null;
+	private IntBuffer[][] mappedR2Pos=null;
+	private IntBuffer[][] mappedR2Chrom=null;
+	private IntBuffer[][] mappedR2Strand=null;
+	private FloatBuffer[][] mappedPairWeight=null;
+	/**
+	 * Guards the in-memory arrays and cachedRegions when the entire genome is not cached. <br>
+	 * Queries share the read lock, so they run concurrently; loadCachedChrom and loadCachedRegions take the write lock. 
+	 * When the entire genome is cached, the arrays never change after initialize and queries take no lock at all.
+	 */
+	private final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+
 	private HashMap<String, Integer> chrom2ID=new HashMap<String,Integer>();
 	private HashMap<String, Integer> chrom2DBID=new HashMap<String,Integer>();
 	private HashMap<Integer,String> id2Chrom=new HashMap<Integer,String>();
@@ -187,17 +209,35 @@ public class HitCache {
 	public void setGenome(Genome g){gen=g;}
 
 	
+	/**
+	 * Sum of the sorted hit weights on the genome's chromosomes (hits on other chromosomes are never cached).
+	 * If the genome has not been estimated yet, it will include every chromosome, so the sorter's total is returned. 
+	 */
+	private double genomeWeight(HitSorter sorter){
+		if(gen==null)
+			return sorter.getTotalWeight();
+		double weight=0;
+		for(String chrom : gen.getChromList())
+			weight += sorter.getWeight(chrom);
+		return weight;
+	}
+	
 	/**
 	 * Initialize needs to be called by the constructor.
 	 * 
-	 * If all hits are being cached, initialize sets up the primitive arrays. 
-	 * Unfortunately, even if all hits are not being cached we still need to 
-	 * set up the primitive arrays for now. This is so that the total and unique
-	 * hit counts can be accurately calculated given the per base limits.   
+	 * Hits are streamed from the loaders into a HitSorter, which sorts and collapses them per chromosome & strand
+	 * with bounded memory (spilling sorted runs to temporary files if necessary). The primitive arrays are then
+	 * built one chromosome & strand at a time, applying the per-base limits and counting the total and unique hits
+	 * as they go. If all hits are not being cached, each chromosome's arrays are written to the local cache files
+	 * and released before the next chromosome is merged, so that only one chromosome's hits are ever in memory.
+	 * 
+	 * If region loading is requested (ExptConfig.getRegionLoad()) and initial cache regions are given, loaders that 
+	 * can seek to regions (e.g. indexed BAM files) only source the hits in those regions. Queries outside the regions
+	 * then find no hits. The hit totals still describe the whole sample: each such loader reports its source's total 
+	 * weight (counting it with HitLoader.countSourceHits() if the source doesn't record it), the background models and 
+	 * per-base limits are set from those totals, and the loaded totals are scaled up to them afterwards (so unique hit 
+	 * counts describe only the loaded hits). 
 	 *  
-	 * @param loadType1 : boolean flag to load the left reads
-	 * @param loadType2 : boolean flag to load the right reads (if they exist)
-	 * @param loadPairs : boolean flag to load the read pairs (if they exist)
 	 * @param cacheEverything : boolean flag to cache all hits (if false, local file caching is activated)
 	 * @param initialCacheRegions : list of regions to cache first (can be null)
 	 */
@@ -206,121 +246,155 @@ public class HitCache {
 		cacheInLocalFiles = !cacheMemoryEntireGenome;
 		cachedRegions = initialCacheRegions;
 		
-		//These lists are temporary stores while collecting reads from all sources
-		HashMap<String, ArrayList<Integer>[]> posList = new HashMap<String, ArrayList<Integer>[]>();
-		HashMap<String, ArrayList<Float>[]> countsList = new HashMap<String, ArrayList<Float>[]>();
+		//The sorter collects single-end hits from all sources; pairs are collected in temporary lists
+		HitSorter sorter = new HitSorter(econfig.getFileCacheDirName());
 		HashMap<String, ArrayList<HitPair>[]> pairsList = new HashMap<String, ArrayList<HitPair>[]>();
+		boolean regionLoad = econfig.getRegionLoad() && initialCacheRegions!=null;
+		boolean regionLoaded=false;
+		double sourceTotal=0;
 		
-		for(HitLoader currLoader : loaders){
-			try{
-				//Get all read hits (necessary here to correct per-base counts appropriately)
-				currLoader.sourceAllHits();
-			
-				//Add the reads to the temporary stores
-				for(String chr: currLoader.getFivePrimePositions().keySet()){
-					if(!posList.containsKey(chr)){
-						ArrayList<Integer>[] currIArrayList = new ArrayList[2];
-						currIArrayList[0]=new ArrayList<Integer>();
-						currIArrayList[1]=new ArrayList<Integer>();
-						posList.put(chr, currIArrayList);
+		try{
+			for(HitLoader currLoader : loaders){
+				try{
+					//Stream the read hits into the sorter (necessary here to correct per-base counts appropriately)
+					double loadedBefore = genomeWeight(sorter);
+					boolean fromRegions = regionLoad && currLoader.canSourceRegions();
+					currLoader.setHitSink(sorter);
+					if(fromRegions){
+						currLoader.sourceHits(initialCacheRegions);
+						regionLoaded=true;
+					}else{
+						currLoader.sourceAllHits();
 					}
-					posList.get(chr)[0].addAll(currLoader.getFivePrimePositions().get(chr)[0]);
-					posList.get(chr)[1].addAll(currLoader.getFivePrimePositions().get(chr)[1]);
+					currLoader.flushHits();
+					currLoader.setHitSink(null);
+					if(!fromRegions)
+						sourceTotal += genomeWeight(sorter)-loadedBefore;
+					
+					//Add the pairs to the temporary stores (if requested & exist)
+					//Also sort the pairs (required for telling uniques apart)
+					if(loadPairs && currLoader.hasPairedReads()){
+						hasPairs=true;
+						for(String chr: currLoader.getPairs().keySet()){
+							if(!pairsList.containsKey(chr)){
+								ArrayList<HitPair>[] currLRPArrayList = new ArrayList[2];
+								currLRPArrayList[0]=new ArrayList<HitPair>();
+								currLRPArrayList[1]=new ArrayList<HitPair>();
+								pairsList.put(chr, currLRPArrayList);
+							}
+							pairsList.get(chr)[0].addAll(currLoader.getPairs().get(chr)[0]);
+							pairsList.get(chr)[1].addAll(currLoader.getPairs().get(chr)[1]);
+							Collections.sort(pairsList.get(chr)[0]);
+							Collections.sort(pairsList.get(chr)[1]);
+						}
+					}
+					
+					//Total weight of the whole source (once the loaded hits & pairs have been taken from the loader)
+					if(fromRegions){
+						double sourceCount = currLoader.getSourceHitCount();
+						if(sourceCount<0) //Not recorded (e.g. BAM files), so count it with the loader's own filters & weights
+							sourceCount = currLoader.countSourceHits(gen==null ? null : new HashSet<String>(gen.getChromList()));
+						sourceTotal += sourceCount;
+					}
+					
+					//Reset loader to free memory
+					currLoader.resetLoader();
+				}catch(OutOfMemoryError e){
+					e.printStackTrace();
+					System.err.println("Ran out of memory during hit loading; try re-running with increased -Xmx option.");
+					System.exit(1);
+				}
+			}
+			
+			//null genome is estimated here if necessary
+			if(gen==null)
+				gen = estimateGenome(sorter.getMaxPositions());
+			
+			//Make the array skeleton and the pair arrays (single-end arrays are filled from the sorter below)
+			populateArrays(new HashMap<String, ArrayList<Integer>[]>(), new HashMap<String, ArrayList<Float>[]>(), pairsList);
+			for(String chr: pairsList.keySet()){
+				pairsList.get(chr)[0].clear();
+				pairsList.get(chr)[1].clear();
+			}
+			pairsList.clear();
+			
+			//Initialize a per-base background model (the sum of hit weights on the genome's chromosomes)
+			//If only some regions were loaded, use the source totals instead
+			double loadedTotal = genomeWeight(sorter);
+			boolean scaleTotals = regionLoaded && loadedTotal>0;
+			totalHits = scaleTotals ? sourceTotal : loadedTotal;
+			initializeBackground();
+			
+			//Decide on per-base read limits 
+			//maxReadsPerBP = 0 : poisson/gauss
+			//maxReadsPerBP = -1 : global poisson
+			//maxReadsPerBP > 0 : fixed
+			boolean poissonGaussCap=false, fixedCap=false;
+			if(econfig.doPerBaseFiltering()){
+				if(econfig.doPoissonGaussWinPerBaseFiltering() || maxReadsPerBP==0){ //global poisson/gauss model
+					poissonGaussCap=true;
+				}else{
+					if(maxReadsPerBP == -1)
+						maxReadsPerBP = perBaseBack.getMaxThreshold('.');
+					fixedCap=true;
 				}
-				for(String chr: currLoader.getFivePrimeCounts().keySet()){
-					if(!countsList.containsKey(chr)){
-						ArrayList<Float>[] currFArrayList = new ArrayList[2];
-						currFArrayList[0]=new ArrayList<Float>();
-						currFArrayList[1]=new ArrayList<Float>();
-						countsList.put(chr, currFArrayList);
+			}
+			
+			//Build the single-end arrays one chromosome & strand at a time, enforcing the per-base limits
+			if(cacheInLocalFiles)
+				initLocalCache();
+			resetTotalHits();
+			for(String chrom : gen.getChromList()){
+				int chrID = chrom2ID.get(chrom);
+				for(int strand=0; strand<=1; strand++){
+					sorter.merge(chrom, strand, fivePrimePos[chrID], fivePrimeCounts[chrID]);
+					if(fivePrimeCounts[chrID][strand]!=null){
+						if(poissonGaussCap)
+							capPerBaseCountWithPoissonGaussianFilter(fivePrimePos[chrID][strand], fivePrimeCounts[chrID][strand], 10e-3, 20);
+						else if(fixedCap)
+							capPerBaseCount(fivePrimeCounts[chrID][strand], maxReadsPerBP);
 					}
-					countsList.get(chr)[0].addAll(currLoader.getFivePrimeCounts().get(chr)[0]);
-					countsList.get(chr)[1].addAll(currLoader.getFivePrimeCounts().get(chr)[1]);
+					addToTotalHits(chrID, strand);
 				}
-				
-				//Add the pairs to the temporary stores (if requested & exist)
-				//Also sort the pairs (required for telling uniques apart)
-				if(loadPairs && currLoader.hasPairedReads()){
-					hasPairs=true;
-					for(String chr: currLoader.getPairs().keySet()){
-						if(!pairsList.containsKey(chr)){
-							ArrayList<HitPair>[] currLRPArrayList = new ArrayList[2];
-							currLRPArrayList[0]=new ArrayList<HitPair>();
-							currLRPArrayList[1]=new ArrayList<HitPair>();
-							pairsList.put(chr, currLRPArrayList);
+				//If you are not caching everything, write this chromosome to the local files and reduce the assigned memory
+				if(cacheInLocalFiles){
+					saveChromLocally(chrom);
+					for(int strand=0; strand<=1; strand++){
+						fivePrimePos[chrID][strand]=null;
+						fivePrimeCounts[chrID][strand]=null;
+						if(loadPairs && hasPairs){
+							pairR1Pos[chrID][strand]=null;
+							pairR2Pos[chrID][strand]=null;
+							pairR2Chrom[chrID][strand]=null;
+							pairR2Strand[chrID][strand]=null;
+							pairWeight[chrID][strand]=null;
 						}
-						pairsList.get(chr)[0].addAll(currLoader.getPairs().get(chr)[0]);
-						pairsList.get(chr)[1].addAll(currLoader.getPairs().get(chr)[1]);
-						Collections.sort(pairsList.get(chr)[0]);
-						Collections.sort(pairsList.get(chr)[1]);
 					}
 				}
-				
-				//Reset loader to free memory
-				currLoader.resetLoader();
-			}catch(OutOfMemoryError e){
-				e.printStackTrace();
-				System.err.println("Ran out of memory during hit loading; try re-running with increased -Xmx option.");
-				System.exit(1);
 			}
-		}
-		
-		//null genome is estimated here if necessary
-		if(gen==null)
-			gen = estimateGenome(posList);
-		
-		//Make the primitive arrays 
-		populateArrays(posList, countsList, pairsList);
-		updateTotalHits();
-		
-		//Initialize a per-base background model
-		initializeBackground();
-		
-		//Enforce per-base read limits 
-		//maxReadsPerBP = 0 : poisson/gauss
-		//maxReadsPerBP = -1 : global poisson
-		//maxReadsPerBP > 0 : fixed
-		if(econfig.doPerBaseFiltering()){
-			if(econfig.doPoissonGaussWinPerBaseFiltering() || maxReadsPerBP==0){ //global poisson/gauss model
-				capPerBaseCountWithPoissonGaussianFilter(10e-3, 20);
-			}else{
-				if(maxReadsPerBP == -1)
-					maxReadsPerBP = perBaseBack.getMaxThreshold('.');
-				capPerBaseCount(maxReadsPerBP);
+			if(scaleTotals){
+				//Scale the totals of the loaded (and capped) hits up to the whole sources
+				double scale = sourceTotal/loadedTotal;
+				totalHits*=scale;
+				totalHitsPos*=scale;
+				totalHitsNeg*=scale;
 			}
-			updateTotalHits();
-			initializeBackground(); //Reinitialize given updated hit count (again - just the per-base background model)
+			if(poissonGaussCap || fixedCap)
+				initializeBackground(); //Reinitialize given updated hit count (again - just the per-base background model)
+		}finally{
+			sorter.close();
 		}
 		
-		//If you are not caching everything, reduce the assigned memory
+		//Save a subset of regions from the local files if necessary
 		if(!cacheMemoryEntireGenome){
-			//Cache in local files
-			if(cacheInLocalFiles)
-				saveCacheLocally();
-
-			//Save a subset of regions from the current data structure if necessary
-			if(cachedRegions==null)
-				emptyArrays();
-			else
-				subsetArrays(cachedRegions);
-		}
-		
-		//Free memory
-		for(String chr: posList.keySet()){
-			posList.get(chr)[0].clear();
-			posList.get(chr)[1].clear();
-			countsList.get(chr)[0].clear();
-			countsList.get(chr)[1].clear();
-			if(loadPairs && hasPairs && pairsList!=null){
-				pairsList.get(chr)[0].clear();
-				pairsList.get(chr)[1].clear();
+			List<Region> regs = cachedRegions;
+			cachedRegions = null;
+			emptyArrays();
+			if(regs!=null){
+				subsetArrays(regs); //Nothing is in memory yet, so this reads from the mapped files
+				cachedRegions = regs;
 			}
 		}
-		posList.clear();
-		countsList.clear();
-		if(loadPairs && hasPairs && pairsList!=null)
-			pairsList.clear();
-		System.gc();
 	}
 	
 	
@@ -338,51 +412,112 @@ public class HitCache {
 	}
 	/**
 	 * Loads hits in the region.
-	 * If file caching is being used, it's more efficient to group calls to this method by chromosome.
-	 * Unfortunately, I think the easiest way to ensure thread-safety is to allow only one thread to call this at a time. 
+	 * If the region is not in the in-memory cache, the hits are read in place from the mapped local cache files.
+	 * Safe to call from multiple threads at once.
 	 * @param r Region
 	 * @return List of StrandedBaseCounts
 	 */
-	public synchronized List<StrandedBaseCount> getStrandedBases(Region r, char strand) {
+	public List<StrandedBaseCount> getStrandedBases(Region r, char strand) {
 		List<StrandedBaseCount> bases = new ArrayList<StrandedBaseCount>();
 
-		if(!regionIsCached(r)){
-			if(cacheInLocalFiles){
-				loadCachedChrom(r.getChrom());
-			}else{
+		beginQuery();
+		try{
+			boolean inMemory = regionIsCached(r);
+			if(!inMemory && !cacheInLocalFiles){
 				System.err.println("HitCache: Queried region "+r.getLocationString()+" is not in cache and local file caching not available!");
 				System.exit(1);
 			}
-		}
 		
-		String chr = r.getChrom();
-		if(chrom2ID.containsKey(chr)){
-			int chrID = chrom2ID.get(chr);
-			int j = (strand=='+') ? 0 : 1;
-			if(fivePrimePos[chrID][j] != null){
-				int[] tempStarts = fivePrimePos[chrID][j];		
-				if(tempStarts.length != 0) {
-					int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
-					int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
+			String chr = r.getChrom();
+			if(chrom2ID.containsKey(chr)){
+				int chrID = chrom2ID.get(chr);
+				int j = (strand=='+') ? 0 : 1;
+				if(!inMemory){
+					//Read the hits in place from the mapped local cache
+					IntBuffer starts = mappedPos[chrID][j];
+					if(starts != null){
+						FloatBuffer counts = mappedCounts[chrID][j];
+						int end_ind = firstIndexAfter(starts, r.getEnd());
+						for(int k = firstIndexAtOrAfter(starts, r.getStart()); k < end_ind; k++) {
+							bases.add(new StrandedBaseCount(strand, starts.get(k), counts.get(k)));
+						}
+					}
+				}else if(fivePrimePos[chrID][j] != null){
+					int[] tempStarts = fivePrimePos[chrID][j];		
+					if(tempStarts.length != 0) {
+						int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
+						int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
 					
-					if( start_ind < 0 ) { start_ind = -start_ind - 1; }
-					if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
+						if( start_ind < 0 ) { start_ind = -start_ind - 1; }
+						if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
 					
-		            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
-		                start_ind--;
-		            }
-		            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
-		                end_ind++;
-		            }
-					for(int k = start_ind; k < end_ind; k++) {
-						bases.add(new StrandedBaseCount(strand, tempStarts[k], fivePrimeCounts[chrID][j][k]));
-					}	
+			            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
+			                start_ind--;
+			            }
+			            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
+			                end_ind++;
+			            }
+						for(int k = start_ind; k < end_ind; k++) {
+							bases.add(new StrandedBaseCount(strand, tempStarts[k], fivePrimeCounts[chrID][j][k]));
+						}	
+					}
 				}
 			}
+			return bases;
+		}finally{
+			endQuery();
 		}
-		return bases;
 	}//end of getStrandedBases method
 	
+	/**
+	 * Loads hits in the region into a caller-supplied buffer, replacing its contents.
+	 * Same hits as getStrandedBases(Region, char), but no objects are allocated per hit; 
+	 * reuse the buffer across calls to avoid allocation altogether. 
+	 * Safe to call from multiple threads at once, as long as each thread has its own buffer.
+	 * @param r Region
+	 * @param strand
+	 * @param buf StrandedBaseBuffer to fill
+	 * @return number of hits in the buffer
+	 */
+	public int getStrandedBases(Region r, char strand, StrandedBaseBuffer buf) {
+		buf.clear(strand);
+		beginQuery();
+		try{
+			boolean inMemory = regionIsCached(r);
+			if(!inMemory && !cacheInLocalFiles){
+				System.err.println("HitCache: Queried region "+r.getLocationString()+" is not in cache and local file caching not available!");
+				System.exit(1);
+			}
+			String chr = r.getChrom();
+			if(chrom2ID.containsKey(chr)){
+				int chrID = chrom2ID.get(chr);
+				int j = (strand=='+') ? 0 : 1;
+				if(!inMemory){
+					IntBuffer starts = mappedPos[chrID][j];
+					if(starts != null){
+						FloatBuffer counts = mappedCounts[chrID][j];
+						int start_ind = firstIndexAtOrAfter(starts, r.getStart());
+						int end_ind = firstIndexAfter(starts, r.getEnd());
+						buf.ensureCapacity(end_ind-start_ind);
+						for(int k = start_ind; k < end_ind; k++)
+							buf.add(starts.get(k), counts.get(k));
+					}
+				}else if(fivePrimePos[chrID][j] != null){
+					int[] starts = fivePrimePos[chrID][j];
+					float[] counts = fivePrimeCounts[chrID][j];
+					int start_ind = firstIndexAtOrAfter(starts, r.getStart());
+					int end_ind = firstIndexAfter(starts, r.getEnd());
+					buf.ensureCapacity(end_ind-start_ind);
+					for(int k = start_ind; k < end_ind; k++)
+						buf.add(starts[k], counts[k]);
+				}
+			}
+			return buf.size();
+		}finally{
+			endQuery();
+		}
+	}
+	
 	/**
 	 * Load all paired hits that have an R1 read in a region.
 	 * If file caching is being used, it's more efficient to group calls to this method by chromosome.  
@@ -397,52 +532,63 @@ public class HitCache {
 	}
 	/**
 	 * Loads paired hits that have an R1 read in the region and on the requested strand.
-	 * If file caching is being used, it's more efficient to group calls to this method by chromosome.
-	 * Unfortunately, I think the easiest way to ensure thread-safety is to allow only one thread to call this at a time. 
+	 * If the region is not in the in-memory cache, the hits are read in place from the mapped local cache files.
+	 * Safe to call from multiple threads at once.
 	 * @param r Region
 	 * @return List of StrandedPair
 	 */
-	public synchronized List<StrandedPair> getPairsOnStrand(Region r, char strand) {
+	public List<StrandedPair> getPairsOnStrand(Region r, char strand) {
 		List<StrandedPair> pairs = new ArrayList<StrandedPair>();
 
-		if(loadPairs && hasPairs && pairR1Pos!=null){
-			if(!regionIsCached(r)){
-				if(cacheInLocalFiles){
-					loadCachedChrom(r.getChrom());
-				}else{
+		beginQuery();
+		try{
+			if(loadPairs && hasPairs && pairR1Pos!=null){
+				boolean inMemory = regionIsCached(r);
+				if(!inMemory && !cacheInLocalFiles){
 					System.err.println("HitCache: Queried region "+r.getLocationString()+" is not in cache and local file caching not available!");
 					System.exit(1);
 				}
-			}
-			String chr = r.getChrom();
-			if(chrom2ID.containsKey(chr)){
-				int chrID = chrom2ID.get(chr);
-				int chrDBID = chrom2DBID.get(chr);
-				int j = (strand=='+') ? 0 : 1;
-				if(pairR1Pos[chrID][j] != null){
-					int[] tempStarts = pairR1Pos[chrID][j];		
-					if(tempStarts.length != 0) {
-						int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
-						int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
+				String chr = r.getChrom();
+				if(chrom2ID.containsKey(chr)){
+					int chrID = chrom2ID.get(chr);
+					int chrDBID = chrom2DBID.get(chr);
+					int j = (strand=='+') ? 0 : 1;
+					if(!inMemory){
+						//Read the pairs in place from the mapped local cache
+						IntBuffer starts = mappedR1Pos[chrID][j];
+						if(starts != null){
+							int end_ind = firstIndexAfter(starts, r.getEnd());
+							for(int k = firstIndexAtOrAfter(starts, r.getStart()); k < end_ind; k++) {
+								pairs.add(new StrandedPair(gen, chrDBID, starts.get(k), strand, id2DBID.get(mappedR2Chrom[chrID][j].get(k)), mappedR2Pos[chrID][j].get(k), mappedR2Strand[chrID][j].get(k)==0?'+':'-', mappedPairWeight[chrID][j].get(k) ));
+							}
+						}
+					}else if(pairR1Pos[chrID][j] != null){
+						int[] tempStarts = pairR1Pos[chrID][j];		
+						if(tempStarts.length != 0) {
+							int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
+							int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
 						
-						if( start_ind < 0 ) { start_ind = -start_ind - 1; }
-						if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
+							if( start_ind < 0 ) { start_ind = -start_ind - 1; }
+							if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
 						
-			            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
-			                start_ind--;
-			            }
-			            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
-			                end_ind++;
-			            }
-						for(int k = start_ind; k < end_ind; k++) {
-							pairs.add(new StrandedPair(gen, chrDBID, tempStarts[k], strand, id2DBID.get(pairR2Chrom[chrID][j][k]), pairR2Pos[chrID][j][k], pairR2Strand[chrID][j][k]==0?'+':'-', pairWeight[chrID][j][k] ));
-						}	
+				            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
+				                start_ind--;
+				            }
+				            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
+				                end_ind++;
+				            }
+							for(int k = start_ind; k < end_ind; k++) {
+								pairs.add(new StrandedPair(gen, chrDBID, tempStarts[k], strand, id2DBID.get(pairR2Chrom[chrID][j][k]), pairR2Pos[chrID][j][k], pairR2Strand[chrID][j][k]==0?'+':'-', pairWeight[chrID][j][k] ));
+							}	
+						}
 					}
 				}
-			}
 		
+			}
+			return pairs;
+		}finally{
+			endQuery();
 		}
-		return pairs;
 	}
 	
 	
@@ -460,47 +606,59 @@ public class HitCache {
 	}
 	/**
 	 * Sum of hit weights in one strand of a region.
-	 * If file caching is being used, it's more efficient to group calls to this method by chromosome.
-	 * Unfortunately, I think the easiest way to ensure thread-safety is to allow only one thread to call this at a time.
+	 * If the region is not in the in-memory cache, the weights are summed in place in the mapped local cache files.
+	 * Safe to call from multiple threads at once.
 	 * @param r Region
 	 * @return float 
 	 */
-    public synchronized float countStrandedBases(Region r, char strand) {
+    public float countStrandedBases(Region r, char strand) {
     	float count = 0;
-		if(!regionIsCached(r)){
-			if(cacheInLocalFiles){
-				loadCachedChrom(r.getChrom());
-			}else{
+	    beginQuery();
+	    try{
+			boolean inMemory = regionIsCached(r);
+			if(!inMemory && !cacheInLocalFiles){
 				System.err.println("HitCache: Queried region "+r.getLocationString()+" is not in cache and local file caching not available!");
 				System.exit(1);
 			}
-		}
 		
-    	String chr = r.getChrom();
-		if(chrom2ID.containsKey(chr)){
-			int chrID = chrom2ID.get(chr);
-			int j = (strand=='+') ? 0 : 1;
-			if(fivePrimePos[chrID][j] != null){
-				int[] tempStarts = fivePrimePos[chrID][j];		
-		        if(tempStarts.length != 0) {
-					int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
-					int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
-					if( start_ind < 0 ) { start_ind = -start_ind - 1; }
-					if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
+	    	String chr = r.getChrom();
+			if(chrom2ID.containsKey(chr)){
+				int chrID = chrom2ID.get(chr);
+				int j = (strand=='+') ? 0 : 1;
+				if(!inMemory){
+					//Sum the weights in place in the mapped local cache
+					IntBuffer starts = mappedPos[chrID][j];
+					if(starts != null){
+						FloatBuffer counts = mappedCounts[chrID][j];
+						int end_ind = firstIndexAfter(starts, r.getEnd());
+						for(int k = firstIndexAtOrAfter(starts, r.getStart()); k < end_ind; k++) {
+							count += counts.get(k);
+						}
+					}
+				}else if(fivePrimePos[chrID][j] != null){
+					int[] tempStarts = fivePrimePos[chrID][j];		
+			        if(tempStarts.length != 0) {
+						int start_ind = Arrays.binarySearch(tempStarts, r.getStart());
+						int end_ind   = Arrays.binarySearch(tempStarts, r.getEnd());
+						if( start_ind < 0 ) { start_ind = -start_ind - 1; }
+						if( end_ind < 0 )   { end_ind   = -end_ind - 1; }
 					
-		            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
-		                start_ind--;
-		            }
-		            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
-		                end_ind++;
-		            }
-					for(int k = start_ind; k < end_ind; k++) {
-		                count += fivePrimeCounts[chrID][j][k];
-		            }
-		        }
+			            while (start_ind > 0 && tempStarts[start_ind - 1] >= r.getStart() ) {
+			                start_ind--;
+			            }
+			            while (end_ind < tempStarts.length && tempStarts[end_ind] <= r.getEnd()) {
+			                end_ind++;
+			            }
+						for(int k = start_ind; k < end_ind; k++) {
+			                count += fivePrimeCounts[chrID][j][k];
+			            }
+			        }
+				}
 			}
-		}
-	    return count;
+		    return count;
+	    }finally{
+	    	endQuery();
+	    }
     }
     
     
@@ -548,6 +706,17 @@ public class HitCache {
 		}
 		return(allhits);
 	}
+    /**
+     * Take the read lock for a query, unless the entire genome is cached (the arrays then never change).
+     */
+    private void beginQuery(){
+    	if(!cacheMemoryEntireGenome)
+    		cacheLock.readLock().lock();
+    }
+    private void endQuery(){
+    	if(!cacheMemoryEntireGenome)
+    		cacheLock.readLock().unlock();
+    }
     /**
 	 * Check that a given region is in the cache. 
 	 * Should be called by all methods that query hits in this class 
@@ -850,9 +1019,9 @@ public class HitCache {
 	}
 	
 	/**
-	 * Save the contents of the hit arrays to local binary files
+	 * Set up the local cache directory and the mapped* views that saveChromLocally fills.
 	 */
-	private void saveCacheLocally(){
+	private void initLocalCache(){
 		//Initialize a random String for the local cache name
 		localCacheFileBase = RandomStringUtils.randomAlphanumeric(20);
 		//Generate local cache directories
@@ -861,329 +1030,255 @@ public class HitCache {
 			System.err.println("Unable to make local cache directories");
 			System.exit(1);
 		}
-		
-		//Save arrays to binary files
-		for(String chrom : chrom2ID.keySet()){
-			for(int strand=0; strand<=1; strand++){
-				int chrID = chrom2ID.get(chrom);
-				
-				//Write single-end files
-				if(fivePrimePos[chrID][strand]!=null && fivePrimeCounts[chrID][strand]!=null){
-			        ByteBuffer posByteBuffer = ByteBuffer.allocate(fivePrimePos[chrID][strand].length * 4);
-			        ByteBuffer countsByteBuffer = ByteBuffer.allocate(fivePrimeCounts[chrID][strand].length * 4);
-			        IntBuffer posIntBuffer = posByteBuffer.asIntBuffer();
-			        FloatBuffer countsFloatBuffer = countsByteBuffer.asFloatBuffer();
-			        posIntBuffer.put(fivePrimePos[chrID][strand]);
-			        countsFloatBuffer.put(fivePrimeCounts[chrID][strand]);
-			        byte[] parray = posByteBuffer.array();
-			        byte[] carray = countsByteBuffer.array();
-			        Path ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".pos.cache");
-			        Path cpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".counts.cache");
+		mappedPos = new IntBuffer[numChroms][2];
+		mappedCounts = new FloatBuffer[numChroms][2];
+		if(loadPairs && hasPairs){
+			mappedR1Pos = new IntBuffer[numChroms][2];
+			mappedR2Pos = new IntBuffer[numChroms][2];
+			mappedR2Chrom = new IntBuffer[numChroms][2];
+			mappedR2Strand = new IntBuffer[numChroms][2];
+			mappedPairWeight = new FloatBuffer[numChroms][2];
+		}
+	}
+	
+	/**
+	 * Save the contents of one chromosome's hit arrays to local binary files.
+	 * The files are written through memory mappings, and the mappings are kept as the 
+	 * mapped* views so that later queries can read the hits in place.
+	 */
+	private void saveChromLocally(String chrom){
+		int chrID = chrom2ID.get(chrom);
+		for(int strand=0; strand<=1; strand++){
+			//Write single-end files
+			if(fivePrimePos[chrID][strand]!=null && fivePrimeCounts[chrID][strand]!=null){
+		        try {
+		        	mappedPos[chrID][strand] = writeMapped(cacheFilePath(chrom, strand, "pos"), fivePrimePos[chrID][strand]);
+		        	mappedCounts[chrID][strand] = writeMapped(cacheFilePath(chrom, strand, "counts"), fivePrimeCounts[chrID][strand]);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			//Write pair files
+			if(loadPairs && hasPairs){
+				if(pairR1Pos[chrID][strand]!=null && pairR2Pos[chrID][strand]!=null && pairR2Chrom[chrID][strand]!=null && pairR2Strand[chrID][strand]!=null){
 			        try {
-						Files.write( ppath, parray, StandardOpenOption.CREATE);
-						Files.write( cpath, carray, StandardOpenOption.CREATE);
+			        	mappedR1Pos[chrID][strand] = writeMapped(cacheFilePath(chrom, strand, "r1pos"), pairR1Pos[chrID][strand]);
+			        	mappedR2Pos[chrID][strand] = writeMapped(cacheFilePath(chrom, strand, "r2pos"), pairR2Pos[chrID][strand]);
+			        	mappedR2Chrom[chrID][strand] = writeMapped(cacheFilePath(chrom, strand, "r2chr"), pairR2Chrom[chrID][strand]);
+			        	mappedR2Strand[chrID][strand] = writeMapped(cacheFilePath(chrom, strand, "r2str"), pairR2Strand[chrID][strand]);
+			        	mappedPairWeight[chrID][strand] = writeMapped(cacheFilePath(chrom, strand, "weight"), pairWeight[chrID][strand]);
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
-				}
-				//Write pair files
-				if(loadPairs && hasPairs){
-					if(pairR1Pos[chrID][strand]!=null && pairR2Pos[chrID][strand]!=null && pairR2Chrom[chrID][strand]!=null && pairR2Strand[chrID][strand]!=null){
-				        ByteBuffer r1PosByteBuffer = ByteBuffer.allocate(pairR1Pos[chrID][strand].length * 4);
-				        ByteBuffer r2PosByteBuffer = ByteBuffer.allocate(pairR2Pos[chrID][strand].length * 4);
-				        ByteBuffer r2ChromByteBuffer = ByteBuffer.allocate(pairR2Chrom[chrID][strand].length * 4);
-				        ByteBuffer r2StrandByteBuffer = ByteBuffer.allocate(pairR2Strand[chrID][strand].length * 4);
-				        ByteBuffer weightByteBuffer = ByteBuffer.allocate(pairWeight[chrID][strand].length * 4);
-				        IntBuffer r1PosIntBuffer = r1PosByteBuffer.asIntBuffer();
-				        IntBuffer r2PosIntBuffer = r2PosByteBuffer.asIntBuffer();
-				        IntBuffer r2ChromIntBuffer = r2ChromByteBuffer.asIntBuffer();
-				        IntBuffer r2StrandIntBuffer = r2StrandByteBuffer.asIntBuffer();
-				        FloatBuffer weightFloatBuffer = weightByteBuffer.asFloatBuffer();
-				        r1PosIntBuffer.put(pairR1Pos[chrID][strand]);
-				        r2PosIntBuffer.put(pairR2Pos[chrID][strand]);
-				        r2ChromIntBuffer.put(pairR2Chrom[chrID][strand]);
-				        r2StrandIntBuffer.put(pairR2Strand[chrID][strand]);
-				        weightFloatBuffer.put(pairWeight[chrID][strand]);
-				        byte[] r1parray = r1PosByteBuffer.array();
-				        byte[] r2parray = r2PosByteBuffer.array();
-				        byte[] r2carray = r2ChromByteBuffer.array();
-				        byte[] r2sarray = r2StrandByteBuffer.array();
-				        byte[] warray = weightByteBuffer.array();
-				        Path r1ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r1pos.cache");
-				        Path r2ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2pos.cache");
-				        Path r2cpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2chr.cache");
-				        Path r2spath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2str.cache");
-				        Path wpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".weight.cache");
-				        try {
-							Files.write( r1ppath, r1parray, StandardOpenOption.CREATE);
-							Files.write( r2ppath, r2parray, StandardOpenOption.CREATE);
-							Files.write( r2cpath, r2carray, StandardOpenOption.CREATE);
-							Files.write( r2spath, r2sarray, StandardOpenOption.CREATE);
-							Files.write( wpath, warray, StandardOpenOption.CREATE);
-						} catch (IOException e) {
-							e.printStackTrace();
-						}
-					}					
-				}
+				}					
 			}
 		}
 	}
 	
+	/**
+	 * Path of one local cache file
+	 * @param chrom
+	 * @param strand 0 for '+', 1 for '-'
+	 * @param type pos, counts, r1pos, r2pos, r2chr, r2str or weight
+	 * @return Path
+	 */
+	private Path cacheFilePath(String chrom, int strand, String type){
+		return FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+"."+type+".cache");
+	}
+	
+	/**
+	 * Create a local cache file of the given number of 4-byte values and map it. 
+	 * The mapping stays valid after the channel is closed. 
+	 * The files only live as long as this HitCache, so they use the native byte order.
+	 */
+	private MappedByteBuffer mapCacheFile(Path path, int numValues) throws IOException{
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try{
+			MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)numValues*4);
+			mbb.order(ByteOrder.nativeOrder());
+			return mbb;
+		}finally{
+			channel.close();
+		}
+	}
+	private IntBuffer writeMapped(Path path, int[] values) throws IOException{
+		IntBuffer view = mapCacheFile(path, values.length).asIntBuffer();
+		view.put(values);
+		view.rewind();
+		return view;
+	}
+	private FloatBuffer writeMapped(Path path, float[] values) throws IOException{
+		FloatBuffer view = mapCacheFile(path, values.length).asFloatBuffer();
+		view.put(values);
+		view.rewind();
+		return view;
+	}
+	
+	/**
+	 * Copy of a mapped view as an array (null if the view is null). 
+	 * Works on a duplicate so that concurrent readers of the view are unaffected.
+	 */
+	private static int[] copyOf(IntBuffer view){
+		if(view==null)
+			return null;
+		int[] out = new int[view.limit()];
+		view.duplicate().get(out);
+		return out;
+	}
+	private static float[] copyOf(FloatBuffer view){
+		if(view==null)
+			return null;
+		float[] out = new float[view.limit()];
+		view.duplicate().get(out);
+		return out;
+	}
+	
+	/**
+	 * Index of the first element in a sorted view that is greater than or equal to value
+	 */
+	private static int firstIndexAtOrAfter(IntBuffer sorted, int value){
+		int lo=0, hi=sorted.limit();
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(sorted.get(mid) < value)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	/**
+	 * Index of the first element in a sorted array that is greater than or equal to value
+	 */
+	private static int firstIndexAtOrAfter(int[] sorted, int value){
+		int lo=0, hi=sorted.length;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(sorted[mid] < value)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	/**
+	 * Index of the first element in a sorted array that is greater than value
+	 */
+	private static int firstIndexAfter(int[] sorted, int value){
+		int lo=0, hi=sorted.length;
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(sorted[mid] <= value)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	/**
+	 * Index of the first element in a sorted view that is greater than value
+	 */
+	private static int firstIndexAfter(IntBuffer sorted, int value){
+		int lo=0, hi=sorted.limit();
+		while(lo<hi){
+			int mid = (lo+hi)>>>1;
+			if(sorted.get(mid) <= value)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
 	/**
 	 * Load the data from one chromosome from the local cache into the array data structure.
-	 * Be careful calling this outside of this class - ensure that operations are thread-safe
+	 * Queries no longer need this; regions outside the cached regions are read directly from the mapped local cache.
+	 * It remains useful to hold a chromosome on the heap when it will be queried intensively. 
+	 * The chromosome is copied out of the mapped files before the write lock is taken, so concurrent queries 
+	 * only wait while the arrays are swapped.
 	 * @param chrom
 	 */
-	public synchronized void loadCachedChrom(String chrom){
-		//Empty the current memory cache
-		emptyArrays();
-		if(cachedRegions!=null)
-			cachedRegions.clear();
+	public void loadCachedChrom(String chrom){
+		if(cacheMemoryEntireGenome)//By definition, all regions are loaded
+			return;
 		
-		//Get the data from files
-		if(chrom2ID.containsKey(chrom)){
-			int chrID = chrom2ID.get(chrom);
+		//Copy the data out of the mapped files
+		int chrID = chrom2ID.containsKey(chrom) ? chrom2ID.get(chrom) : -1;
+		int[][] pos = new int[2][], r1Pos = new int[2][], r2Pos = new int[2][], r2Chrom = new int[2][], r2Strand = new int[2][];
+		float[][] counts = new float[2][], weight = new float[2][];
+		if(chrID>=0 && mappedPos!=null){
 			for(int strand=0; strand<=1; strand++){
-				//Read single-end files
-				Path ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".pos.cache");
-		        Path cpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".counts.cache");
-		        if(Files.exists(ppath, LinkOption.NOFOLLOW_LINKS) && Files.exists(cpath, LinkOption.NOFOLLOW_LINKS)){
-			        try {
-						FileChannel posInChannel = FileChannel.open(ppath, StandardOpenOption.READ);
-						FileChannel countsInChannel = FileChannel.open(cpath, StandardOpenOption.READ);
-						int[] pResult = new int[((int)posInChannel.size())/4];
-						float[] cResult = new float[((int)countsInChannel.size())/4];
-						ByteBuffer pbuf = ByteBuffer.allocate((int)posInChannel.size());
-						ByteBuffer cbuf = ByteBuffer.allocate((int)countsInChannel.size());
-						// Fill in the buffers
-						while(pbuf.hasRemaining( ))
-							posInChannel.read(pbuf);
-						while(cbuf.hasRemaining( ))
-							countsInChannel.read(cbuf);
-	
-						pbuf.flip( );
-						cbuf.flip( );
-						// Create buffer views
-						IntBuffer posIntBuffer = pbuf.asIntBuffer( );
-						FloatBuffer countsFloatBuffer = cbuf.asFloatBuffer( );
-						//Results will now contain all ints/floats read from file
-						posIntBuffer.get(pResult);
-						countsFloatBuffer.get(cResult);
-						
-						//Assign to arrays
-						fivePrimePos[chrID][strand] = pResult;
-						fivePrimeCounts[chrID][strand] = cResult;
-			        } catch (IOException e) {
-						e.printStackTrace();
-			        }
-				}
-		        
-		        //Load pairs
+				pos[strand] = copyOf(mappedPos[chrID][strand]);
+				counts[strand] = copyOf(mappedCounts[chrID][strand]);
 				if(loadPairs && hasPairs){
-					Path r1ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r1pos.cache");
-					Path r2ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2pos.cache");
-					Path r2cpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2chr.cache");
-					Path r2spath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2str.cache");
-					Path wpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".weight.cache");
-					
-			        if(Files.exists(r1ppath, LinkOption.NOFOLLOW_LINKS) && Files.exists(r2ppath, LinkOption.NOFOLLOW_LINKS) && Files.exists(r2cpath, LinkOption.NOFOLLOW_LINKS) && Files.exists(r2spath, LinkOption.NOFOLLOW_LINKS)){
-				        try {
-							FileChannel r1posInChannel = FileChannel.open(r1ppath, StandardOpenOption.READ);
-							FileChannel r2posInChannel = FileChannel.open(r2ppath, StandardOpenOption.READ);
-							FileChannel r2chrInChannel = FileChannel.open(r2cpath, StandardOpenOption.READ);
-							FileChannel r2strInChannel = FileChannel.open(r2spath, StandardOpenOption.READ);
-							FileChannel wInChannel = FileChannel.open(wpath, StandardOpenOption.READ);
-							int[] r1pResult = new int[((int)r1posInChannel.size())/4];
-							int[] r2pResult = new int[((int)r2posInChannel.size())/4];
-							int[] r2cResult = new int[((int)r2chrInChannel.size())/4];
-							int[] r2sResult = new int[((int)r2strInChannel.size())/4];
-							float[] wResult = new float[((int)wInChannel.size())/4];
-							ByteBuffer r1pbuf = ByteBuffer.allocate((int)r1posInChannel.size());
-							ByteBuffer r2pbuf = ByteBuffer.allocate((int)r2posInChannel.size());
-							ByteBuffer r2cbuf = ByteBuffer.allocate((int)r2chrInChannel.size());
-							ByteBuffer r2sbuf = ByteBuffer.allocate((int)r2strInChannel.size());
-							ByteBuffer wbuf = ByteBuffer.allocate((int)wInChannel.size());
-							// Fill in the buffers
-							while(r1pbuf.hasRemaining( ))
-								r1posInChannel.read(r1pbuf);
-							while(r2pbuf.hasRemaining( ))
-								r2posInChannel.read(r2pbuf);
-							while(r2cbuf.hasRemaining( ))
-								r2chrInChannel.read(r2cbuf);
-							while(r2sbuf.hasRemaining( ))
-								r2strInChannel.read(r2sbuf);
-							while(wbuf.hasRemaining( ))
-								wInChannel.read(wbuf);
-							r1pbuf.flip( );
-							r2pbuf.flip( );
-							r2cbuf.flip( );
-							r2sbuf.flip( );
-							wbuf.flip( );
-							// Create buffer views
-							IntBuffer r1posIntBuffer = r1pbuf.asIntBuffer( );
-							IntBuffer r2posIntBuffer = r2pbuf.asIntBuffer( );
-							IntBuffer r2chrIntBuffer = r2cbuf.asIntBuffer( );
-							IntBuffer r2strIntBuffer = r2sbuf.asIntBuffer( );
-							FloatBuffer wFloatBuffer = wbuf.asFloatBuffer( );
-							//Results will now contain all ints/floats read from file
-							r1posIntBuffer.get(r1pResult);
-							r2posIntBuffer.get(r2pResult);
-							r2chrIntBuffer.get(r2cResult);
-							r2strIntBuffer.get(r2sResult);
-							wFloatBuffer.get(wResult);
-							//Assign to arrays
-							pairR1Pos[chrID][strand] = r1pResult;
-							pairR2Pos[chrID][strand] = r2pResult;
-							pairR2Chrom[chrID][strand] = r2cResult;
-							pairR2Strand[chrID][strand] = r2sResult;
-							pairWeight[chrID][strand] = wResult;
-				        } catch (IOException e) {
-							e.printStackTrace();
-				        }
-					}
+					r1Pos[strand] = copyOf(mappedR1Pos[chrID][strand]);
+					r2Pos[strand] = copyOf(mappedR2Pos[chrID][strand]);
+					r2Chrom[strand] = copyOf(mappedR2Chrom[chrID][strand]);
+					r2Strand[strand] = copyOf(mappedR2Strand[chrID][strand]);
+					weight[strand] = copyOf(mappedPairWeight[chrID][strand]);
 				}
 			}
 		}
 		
-		//Initialize cached regions
-		if(gen.containsChromName(chrom)){
-			if(cachedRegions==null)
-				cachedRegions=new ArrayList<Region>();
-			cachedRegions.add(new Region(gen, chrom, 1, gen.getChromLength(chrom)));
+		cacheLock.writeLock().lock();
+		try{
+			//Empty the current memory cache
+			emptyArrays();
+			if(cachedRegions!=null)
+				cachedRegions.clear();
+			
+			if(chrID>=0){
+				for(int strand=0; strand<=1; strand++){
+					fivePrimePos[chrID][strand] = pos[strand];
+					fivePrimeCounts[chrID][strand] = counts[strand];
+					if(loadPairs && hasPairs){
+						pairR1Pos[chrID][strand] = r1Pos[strand];
+						pairR2Pos[chrID][strand] = r2Pos[strand];
+						pairR2Chrom[chrID][strand] = r2Chrom[strand];
+						pairR2Strand[chrID][strand] = r2Strand[strand];
+						pairWeight[chrID][strand] = weight[strand];
+					}
+				}
+			}
+			
+			//Initialize cached regions
+			if(gen.containsChromName(chrom)){
+				if(cachedRegions==null)
+					cachedRegions=new ArrayList<Region>();
+				cachedRegions.add(new Region(gen, chrom, 1, gen.getChromLength(chrom)));
+			}
+		}finally{
+			cacheLock.writeLock().unlock();
 		}
 	}
 	
 	/**
 	 * Load the data from a set of regions from the local cache into the array data structure.
-	 * To do this, each relevant chromosome is loaded one by one, and then the appropriate regions are extracted using subsetArrays()
+	 * The hits in the regions are extracted from the mapped local cache using subsetArrays().
 	 * This is an intensive method, so use very sparingly, and double check that you couldn't have 
 	 * just provided appropriate regions to the constructor.
 	 * @param chrom
 	 */
-	public synchronized void loadCachedRegions(List<Region> regs){
+	public void loadCachedRegions(List<Region> regs){
 		if(cacheMemoryEntireGenome)//By definition, all regions are loaded
 			return;
 		
-		//Empty the current memory cache
-		emptyArrays();
-		if(cachedRegions!=null)
-			cachedRegions.clear();
-		
-		//Load the appropriate chromosomes from files
-		List<String> loadChrs = new ArrayList<String>();
-		for(Region r : regs)
-			if(!loadChrs.contains(r.getChrom()))
-				loadChrs.add(r.getChrom());
-		
-		for(String chrom : loadChrs){
-			//Get the data from files
-			if(chrom2ID.containsKey(chrom)){
-				int chrID = chrom2ID.get(chrom);
-				for(int strand=0; strand<=1; strand++){
-					//Read single-end files
-					Path ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".pos.cache");
-			        Path cpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".counts.cache");
-			        if(Files.exists(ppath, LinkOption.NOFOLLOW_LINKS) && Files.exists(cpath, LinkOption.NOFOLLOW_LINKS)){
-				        try {
-							FileChannel posInChannel = FileChannel.open(ppath, StandardOpenOption.READ);
-							FileChannel countsInChannel = FileChannel.open(cpath, StandardOpenOption.READ);
-							int[] pResult = new int[((int)posInChannel.size())/4];
-							float[] cResult = new float[((int)countsInChannel.size())/4];
-							ByteBuffer pbuf = ByteBuffer.allocate((int)posInChannel.size());
-							ByteBuffer cbuf = ByteBuffer.allocate((int)countsInChannel.size());
-							// Fill in the buffers
-							while(pbuf.hasRemaining( ))
-								posInChannel.read(pbuf);
-							while(cbuf.hasRemaining( ))
-								countsInChannel.read(cbuf);
-		
-							pbuf.flip( );
-							cbuf.flip( );
-							// Create buffer views
-							IntBuffer posIntBuffer = pbuf.asIntBuffer( );
-							FloatBuffer countsFloatBuffer = cbuf.asFloatBuffer( );
-							//Results will now contain all ints/floats read from file
-							posIntBuffer.get(pResult);
-							countsFloatBuffer.get(cResult);
-							
-							//Assign to arrays
-							fivePrimePos[chrID][strand] = pResult;
-							fivePrimeCounts[chrID][strand] = cResult;
-				        } catch (IOException e) {
-							e.printStackTrace();
-				        }
-					}
-			        
-			        //Load pairs
-					if(loadPairs && hasPairs){
-						Path r1ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r1pos.cache");
-						Path r2ppath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2pos.cache");
-						Path r2cpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2chr.cache");
-						Path r2spath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".r2str.cache");
-						Path wpath = FileSystems.getDefault().getPath(econfig.getFileCacheDirName(), localCacheFileBase, localCacheFileBase+"_"+chrom+"-"+strand+".weight.cache");
-				        if(Files.exists(r1ppath, LinkOption.NOFOLLOW_LINKS) && Files.exists(r2ppath, LinkOption.NOFOLLOW_LINKS) && Files.exists(r2cpath, LinkOption.NOFOLLOW_LINKS) && Files.exists(r2spath, LinkOption.NOFOLLOW_LINKS)){
-					        try {
-								FileChannel r1posInChannel = FileChannel.open(r1ppath, StandardOpenOption.READ);
-								FileChannel r2posInChannel = FileChannel.open(r2ppath, StandardOpenOption.READ);
-								FileChannel r2chrInChannel = FileChannel.open(r2cpath, StandardOpenOption.READ);
-								FileChannel r2strInChannel = FileChannel.open(r2spath, StandardOpenOption.READ);
-								FileChannel wInChannel = FileChannel.open(wpath, StandardOpenOption.READ);
-								int[] r1pResult = new int[((int)r1posInChannel.size())/4];
-								int[] r2pResult = new int[((int)r2posInChannel.size())/4];
-								int[] r2cResult = new int[((int)r2chrInChannel.size())/4];
-								int[] r2sResult = new int[((int)r2strInChannel.size())/4];
-								float[] wResult = new float[((int)wInChannel.size())/4];
-								ByteBuffer r1pbuf = ByteBuffer.allocate((int)r1posInChannel.size());
-								ByteBuffer r2pbuf = ByteBuffer.allocate((int)r2posInChannel.size());
-								ByteBuffer r2cbuf = ByteBuffer.allocate((int)r2chrInChannel.size());
-								ByteBuffer r2sbuf = ByteBuffer.allocate((int)r2strInChannel.size());
-								ByteBuffer wbuf = ByteBuffer.allocate((int)wInChannel.size());
-								// Fill in the buffers
-								while(r1pbuf.hasRemaining( ))
-									r1posInChannel.read(r1pbuf);
-								while(r2pbuf.hasRemaining( ))
-									r2posInChannel.read(r2pbuf);
-								while(r2cbuf.hasRemaining( ))
-									r2chrInChannel.read(r2cbuf);
-								while(r2sbuf.hasRemaining( ))
-									r2strInChannel.read(r2sbuf);
-								while(wbuf.hasRemaining( ))
-									wInChannel.read(wbuf);
-								r1pbuf.flip( );
-								r2pbuf.flip( );
-								r2cbuf.flip( );
-								r2sbuf.flip( );
-								wbuf.flip( );
-								// Create buffer views
-								IntBuffer r1posIntBuffer = r1pbuf.asIntBuffer( );
-								IntBuffer r2posIntBuffer = r2pbuf.asIntBuffer( );
-								IntBuffer r2chrIntBuffer = r2cbuf.asIntBuffer( );
-								IntBuffer r2strIntBuffer = r2sbuf.asIntBuffer( );
-								FloatBuffer wFloatBuffer = wbuf.asFloatBuffer( );
-								//Results will now contain all ints/floats read from file
-								r1posIntBuffer.get(r1pResult);
-								r2posIntBuffer.get(r2pResult);
-								r2chrIntBuffer.get(r2cResult);
-								r2strIntBuffer.get(r2sResult);
-								wFloatBuffer.get(wResult);
-								//Assign to arrays
-								pairR1Pos[chrID][strand] = r1pResult;
-								pairR2Pos[chrID][strand] = r2pResult;
-								pairR2Chrom[chrID][strand] = r2cResult;
-								pairR2Strand[chrID][strand] = r2sResult;
-								pairWeight[chrID][strand] = wResult;
-					        } catch (IOException e) {
-								e.printStackTrace();
-					        }
-						}
-					}
-				}
-			}
+		//subsetArrays rebuilds every array, so queries wait for all of this
+		cacheLock.writeLock().lock();
+		try{
+			//Empty the current memory cache
+			emptyArrays();
+			if(cachedRegions!=null)
+				cachedRegions.clear();
+			
+			//Nothing is cached in memory now, so subsetArrays reads the regions from the mapped files
+			subsetArrays(regs);
+			if(cachedRegions==null)
+				cachedRegions = new ArrayList<Region>();
+			cachedRegions.addAll(regs);
+		}finally{
+			cacheLock.writeLock().unlock();
 		}
-		subsetArrays(regs);
-		if(cachedRegions==null)
-			cachedRegions = new ArrayList<Region>();
-		cachedRegions.addAll(regs);
 	}
 	
 	/**
@@ -1210,26 +1305,24 @@ public class HitCache {
 	}
 	
 	/**
-	 * Enforces a per-base weight threshold
+	 * Enforces a per-base weight threshold on one chromosome & strand
+	 * @param counts hit weights
 	 * @param maxReadperBP float threshold
 	 */
-	private void capPerBaseCount(float maxReadperBP){
-		for(int i = 0; i < fivePrimeCounts.length; i++)
-			for(int j = 0; j < fivePrimeCounts[i].length; j++)
-				if(fivePrimeCounts[i][j]!=null)
-					for(int k = 0; k < fivePrimeCounts[i][j].length; k++)
-						if (fivePrimeCounts[i][j][k] > maxReadperBP){
-							//System.err.println("Capping "+fivePrimeCounts[i][j][k]+" to "+maxReadperBP);
-							fivePrimeCounts[i][j][k] = maxReadperBP;
-						}
+	private void capPerBaseCount(float[] counts, float maxReadperBP){
+		for(int k = 0; k < counts.length; k++)
+			if (counts[k] > maxReadperBP){
+				//System.err.println("Capping "+counts[k]+" to "+maxReadperBP);
+				counts[k] = maxReadperBP;
+			}
 	}
 	
 	/**
-	 * Reset duplicate reads that pass Poisson threshold. 
+	 * Reset duplicate reads that pass Poisson threshold on one chromosome & strand. 
 	 * The Poisson lambda parameter is calculated by an Gaussian average
 	 * that puts more weight for nearby bases (same chrom, same strand)
 	 */
-	private void capPerBaseCountWithPoissonGaussianFilter(double threshold, int width){
+	private void capPerBaseCountWithPoissonGaussianFilter(int[] pos, float[] counts, double threshold, int width){
         double g[] = new double[width*4+1];
 		NormalDistribution gaussianDist = new NormalDistribution(0, width*width);
 		for (int i=0;i<g.length;i++)
@@ -1238,38 +1331,31 @@ public class HitCache {
 		DRand re = new DRand();
 		Poisson P = new Poisson(0, re);
 			
-		for(int i = 0; i < fivePrimeCounts.length; i++)
-			for(int j = 0; j < fivePrimeCounts[i].length; j++){
-				float counts[] = fivePrimeCounts[i][j];
-				int pos[] = fivePrimePos[i][j]; 
-				if(counts!=null){
-					for(int k = 0; k < counts.length; k++){
-						int posK = pos[k]; 
-						double sum = 0;
-						for (int x=1;x<=width*4;x++){		// at most extend out 250 idx
-							if (k+x>=counts.length|| pos[k+x]-posK>width*4)
-								break;
-							sum += counts[k+x]*g[pos[k+x]-posK];
-						}
-						for (int x=1;x<=width*4;x++){		// at most extend out 250 idx
-							if (k-x<0 || posK-pos[k-x]>width*4)
-								break;
-							sum += counts[k-x]*g[posK-pos[k-x]];
-						}
-						sum = sum/(1-g[0]);				// exclude this position for evaluation
-						
-						double countThres=0;
-						P.setMean(sum);
-						double pvalue=1;
-						for(int b=1; pvalue>threshold; b++){
-							pvalue=1-P.cdf(b);	//p-value as the tail of Poisson
-							countThres=b;
-						}
-						if (counts[k] > Math.max(1,countThres))
-							counts[k] = (float) Math.max(1,countThres);					
-					}
-				}
+		for(int k = 0; k < counts.length; k++){
+			int posK = pos[k]; 
+			double sum = 0;
+			for (int x=1;x<=width*4;x++){		// at most extend out 250 idx
+				if (k+x>=counts.length|| pos[k+x]-posK>width*4)
+					break;
+				sum += counts[k+x]*g[pos[k+x]-posK];
+			}
+			for (int x=1;x<=width*4;x++){		// at most extend out 250 idx
+				if (k-x<0 || posK-pos[k-x]>width*4)
+					break;
+				sum += counts[k-x]*g[posK-pos[k-x]];
 			}
+			sum = sum/(1-g[0]);				// exclude this position for evaluation
+			
+			double countThres=0;
+			P.setMean(sum);
+			double pvalue=1;
+			for(int b=1; pvalue>threshold; b++){
+				pvalue=1-P.cdf(b);	//p-value as the tail of Poisson
+				countThres=b;
+			}
+			if (counts[k] > Math.max(1,countThres))
+				counts[k] = (float) Math.max(1,countThres);					
+		}
 	}
 
 	/**
@@ -1294,54 +1380,51 @@ public class HitCache {
 	}
 	
 	/**
-	 * Recount hit weights
+	 * Reset the hit weight totals (see addToTotalHits)
 	 */
-	private void updateTotalHits(){
+	private void resetTotalHits(){
 		totalHits = 0.0;
 		totalHitsPos=0.0;
 		totalHitsNeg=0.0;
 		uniqueHits = 0.0;
-		for(int i = 0; i < fivePrimeCounts.length; i++)
-			for(int j = 0; j < fivePrimeCounts[i].length; j++)
-				if(fivePrimeCounts[i][j]!=null)
-					for(int k = 0; k < fivePrimeCounts[i][j].length; k++){
-						totalHits += fivePrimeCounts[i][j][k];
-						if(j==0){totalHitsPos+= fivePrimeCounts[i][j][k];}
-						else{totalHitsNeg+= fivePrimeCounts[i][j][k];}
-						if(fivePrimeCounts[i][j][k]>0)
-							uniqueHits++;
-					}
 		totalPairs =0;
 		uniquePairs = 0;
-		if(loadPairs && hasPairs){
-			for(int i = 0; i < pairWeight.length; i++)
-				for(int j = 0; j < pairWeight[i].length; j++)
-					if(pairWeight[i][j]!=null)
-						for(int k = 0; k < pairWeight[i][j].length; k++){
-							totalPairs += pairWeight[i][j][k];
-							if(pairWeight[i][j][k]>0)
-								uniquePairs++;
-						}
+	}
+	
+	/**
+	 * Add the hit (and pair) weights of one chromosome & strand to the totals
+	 * @param chrID
+	 * @param strand 0 for '+', 1 for '-'
+	 */
+	private void addToTotalHits(int chrID, int strand){
+		float[] counts = fivePrimeCounts[chrID][strand];
+		if(counts!=null)
+			for(int k = 0; k < counts.length; k++){
+				totalHits += counts[k];
+				if(strand==0){totalHitsPos+= counts[k];}
+				else{totalHitsNeg+= counts[k];}
+				if(counts[k]>0)
+					uniqueHits++;
+			}
+		if(loadPairs && hasPairs && pairWeight[chrID][strand]!=null){
+			float[] weights = pairWeight[chrID][strand];
+			for(int k = 0; k < weights.length; k++){
+				totalPairs += weights[k];
+				if(weights[k]>0)
+					uniquePairs++;
+			}
 		}
 	}
 	
 	/**
-	 * Estimate a genome from the observed read positions that are collected into the list
-	 * @param posList HashMap indexed by chr containing ArrayLists of hit positions
+	 * Estimate a genome from the maximum observed read position on each chromosome
+	 * @param maxPositions HashMap indexed by chr containing the maximum hit position
 	 * @return Genome
 	 */
-	private Genome estimateGenome(HashMap<String, ArrayList<Integer>[]> posList){
+	private Genome estimateGenome(HashMap<String, Integer> maxPositions){
 		HashMap<String, Integer> chrLenMap = new HashMap<String, Integer>();
-		for(String c : posList.keySet()){
-			int max = 0;
-			for(int j=0; j<posList.get(c).length; j++){
-				for(Integer i : posList.get(c)[j]){
-					if(i>max)
-						max=i;
-				}
-			}
-			chrLenMap.put(c, max);
-		}
+		for(String c : maxPositions.keySet())
+			chrLenMap.put(c, maxPositions.get(c));
 		Genome g =new Genome("Genome", chrLenMap);
 		return(g);
 	}
@@ -1365,7 +1448,15 @@ public class HitCache {
 	public void close(){
 		//Delete the file cache if it exists
 		if(cacheInLocalFiles){
-			if(localCacheDir.exists() ) {
+			//Drop the mapped views; the mappings are released when they are collected
+			mappedPos=null;
+			mappedCounts=null;
+			mappedR1Pos=null;
+			mappedR2Pos=null;
+			mappedR2Chrom=null;
+			mappedR2Strand=null;
+			mappedPairWeight=null;
+			if(localCacheDir!=null && localCacheDir.exists() ) {
 				File[] files = localCacheDir.listFiles();
 				for(int i=0; i<files.length; i++)
 					files[i].delete();
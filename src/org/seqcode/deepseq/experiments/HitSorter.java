@@ -0,0 +1,320 @@
+package org.seqcode.deepseq.experiments;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.seqcode.deepseq.hitloaders.HitSink;
+
+/**
+ * HitSorter is the HitSink used by HitCache during initialization.
+ * It sorts the single-end hits of each chromosome & strand with bounded memory, so that the
+ * full set of hits never has to be held in memory at once.
+ *
+ * Each chunk received from a HitLoader is sorted and collapsed (duplicate positions are summed) into a sorted run.
+ * Runs are held in memory until they add up to more than SPILL_HITS positions, at which point the runs of each
+ * chromosome & strand are merged and appended to a temporary spill file. merge() then does a k-way merge of a
+ * chromosome & strand's runs (in memory and spilled) into the final position & count arrays.
+ */
+class HitSorter implements HitSink {
+
+	/**
+	 * Maximum number of positions held in in-memory runs before they are spilled to disk
+	 */
+	public static final int SPILL_HITS = 1<<23;
+
+	private File spillDir;
+	private List<File> spillFiles = new ArrayList<File>();
+	private HashMap<String, List<List<Run>>> runs = new HashMap<String, List<List<Run>>>(); //runs for each strand
+	private HashMap<String, Integer> maxPositions = new HashMap<String, Integer>();
+	private long bufferedHits=0;
+	private double totalWeight=0;
+	private HashMap<String, Double> chromWeights = new HashMap<String, Double>();
+	private long[] sortBuffer = new long[0];
+
+	/**
+	 * Constructor
+	 * @param spillDir : directory for the temporary spill files
+	 */
+	public HitSorter(String spillDir){
+		this.spillDir = new File(spillDir);
+	}
+
+	//Accessors
+	public double getTotalWeight(){return totalWeight;}
+	public HashMap<String, Integer> getMaxPositions(){return maxPositions;}
+	public double getWeight(String chrom){return chromWeights.containsKey(chrom) ? chromWeights.get(chrom) : 0;}
+	public boolean hasHits(String chrom, int strand){return runs.containsKey(chrom) && !runs.get(chrom).get(strand).isEmpty();}
+
+	/**
+	 * Sort and collapse a chunk into a new in-memory run.
+	 * Positions and float weights are packed into longs (position in the high bits), so one primitive sort orders the chunk by position.
+	 */
+	public void addHits(String chrom, int strand, int[] pos, float[] counts, int n){
+		if(n==0)
+			return;
+		if(sortBuffer.length<n)
+			sortBuffer = new long[n];
+		int max = maxPositions.containsKey(chrom) ? maxPositions.get(chrom) : 0;
+		double weight=0;
+		for(int i=0; i<n; i++){
+			sortBuffer[i] = ((long)pos[i]<<32) | (Float.floatToRawIntBits(counts[i]) & 0xffffffffL);
+			weight += counts[i];
+			if(pos[i]>max)
+				max = pos[i];
+		}
+		totalWeight += weight;
+		chromWeights.put(chrom, getWeight(chrom)+weight);
+		maxPositions.put(chrom, max);
+		Arrays.sort(sortBuffer, 0, n);
+
+		int unique=1;
+		for(int i=1; i<n; i++)
+			if((int)(sortBuffer[i]>>32) != (int)(sortBuffer[i-1]>>32))
+				unique++;
+		int[] runPos = new int[unique];
+		float[] runCounts = new float[unique];
+		int x=0;
+		runPos[0] = (int)(sortBuffer[0]>>32);
+		for(int i=0; i<n; i++){
+			int p = (int)(sortBuffer[i]>>32);
+			if(p!=runPos[x]){
+				x++;
+				runPos[x]=p;
+			}
+			runCounts[x] += Float.intBitsToFloat((int)sortBuffer[i]);
+		}
+
+		if(!runs.containsKey(chrom)){
+			List<List<Run>> chromRuns = new ArrayList<List<Run>>(2);
+			chromRuns.add(new ArrayList<Run>());
+			chromRuns.add(new ArrayList<Run>());
+			runs.put(chrom, chromRuns);
+		}
+		runs.get(chrom).get(strand).add(new Run(runPos, runCounts));
+		bufferedHits += unique;
+		if(bufferedHits>SPILL_HITS)
+			spill();
+	}
+
+	/**
+	 * Merge all runs of one chromosome & strand into sorted, collapsed arrays, which are stored at
+	 * index strand of pos and counts (null if there are no hits). The runs are discarded afterwards.
+	 */
+	public void merge(String chrom, int strand, int[][] pos, float[][] counts){
+		pos[strand]=null;
+		counts[strand]=null;
+		if(!hasHits(chrom, strand))
+			return;
+		List<Run> chromRuns = runs.get(chrom).get(strand);
+		try{
+			int total=0;
+			for(Run r : chromRuns)
+				total+=r.length;
+			int[] mpos = new int[total];
+			float[] mcounts = new float[total];
+			int n = mergeRuns(chromRuns, mpos, mcounts, null);
+			pos[strand] = n==total ? mpos : Arrays.copyOf(mpos, n);
+			counts[strand] = n==total ? mcounts : Arrays.copyOf(mcounts, n);
+			for(Run r : chromRuns)
+				if(r.pos!=null)
+					bufferedHits -= r.length;
+			chromRuns.clear();
+		}catch(IOException e){
+			e.printStackTrace();
+			System.err.println("Unable to read hits back from the spill files in "+spillDir.getPath());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Delete the spill files and discard any remaining runs
+	 */
+	public void close(){
+		runs.clear();
+		bufferedHits=0;
+		sortBuffer = new long[0];
+		for(File f : spillFiles)
+			f.delete();
+		spillFiles.clear();
+	}
+
+	/**
+	 * Merge the in-memory runs of each chromosome & strand and append them to a new spill file,
+	 * replacing them with a single on-disk run each.
+	 */
+	private void spill(){
+		File spillFile=null;
+		try{
+			if(!spillDir.mkdirs() && !spillDir.isDirectory()) //Samples may be loaded concurrently
+				throw new IOException("Unable to make directory "+spillDir.getPath());
+			spillFile = File.createTempFile("hits", ".spill", spillDir);
+			spillFile.deleteOnExit();
+			spillFiles.add(spillFile);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1<<16));
+			try{
+				long offset=0;
+				for(List<List<Run>> chromRuns : runs.values()){
+					for(int strand=0; strand<=1; strand++){
+						List<Run> memRuns = new ArrayList<Run>();
+						for(Run r : chromRuns.get(strand))
+							if(r.pos!=null)
+								memRuns.add(r);
+						if(memRuns.isEmpty())
+							continue;
+						int n = mergeRuns(memRuns, null, null, out);
+						chromRuns.get(strand).removeAll(memRuns);
+						chromRuns.get(strand).add(new Run(spillFile, offset, n));
+						offset += (long)n*8;
+					}
+				}
+			}finally{
+				out.close();
+			}
+			bufferedHits=0;
+		}catch(IOException e){
+			e.printStackTrace();
+			System.err.println("Unable to write hits to spill file "+(spillFile==null ? spillDir.getPath() : spillFile.getPath()));
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * k-way merge of sorted runs, summing the counts of equal positions.
+	 * The merged hits go to the arrays if out is null, and to out otherwise.
+	 * @return number of merged positions
+	 */
+	private int mergeRuns(List<Run> mergeRuns, int[] pos, float[] counts, DataOutputStream out) throws IOException{
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, mergeRuns.size()));
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		try{
+			for(Run r : mergeRuns){
+				Cursor c = r.cursor();
+				cursors.add(c);
+				if(c.next())
+					queue.add(c);
+			}
+			int n=0;
+			boolean started=false;
+			int currPos=0;
+			float currCount=0;
+			while(!queue.isEmpty()){
+				Cursor c = queue.poll();
+				if(started && c.pos==currPos){
+					currCount+=c.count;
+				}else{
+					if(started){
+						emit(n, currPos, currCount, pos, counts, out);
+						n++;
+					}
+					started=true;
+					currPos=c.pos;
+					currCount=c.count;
+				}
+				if(c.next())
+					queue.add(c);
+			}
+			if(started){
+				emit(n, currPos, currCount, pos, counts, out);
+				n++;
+			}
+			return n;
+		}finally{
+			for(Cursor c : cursors)
+				c.close();
+		}
+	}
+	private void emit(int i, int p, float c, int[] pos, float[] counts, DataOutputStream out) throws IOException{
+		if(out==null){
+			pos[i]=p;
+			counts[i]=c;
+		}else{
+			out.writeInt(p);
+			out.writeFloat(c);
+		}
+	}
+
+	/**
+	 * A sorted, collapsed run of hits, either held in arrays or stored as (int, float) records in a spill file
+	 */
+	private class Run{
+		int[] pos=null;
+		float[] counts=null;
+		File file=null;
+		long offset=0;
+		int length;
+
+		Run(int[] pos, float[] counts){
+			this.pos=pos;
+			this.counts=counts;
+			length=pos.length;
+		}
+		Run(File file, long offset, int length){
+			this.file=file;
+			this.offset=offset;
+			this.length=length;
+		}
+		Cursor cursor() throws IOException{
+			if(pos!=null)
+				return new ArrayCursor(this);
+			return new FileCursor(this);
+		}
+	}
+
+	/**
+	 * Iterates over the hits of a run, ordered in the merge queue by current position
+	 */
+	private abstract class Cursor implements Comparable<Cursor>{
+		int pos;
+		float count;
+		abstract boolean next() throws IOException;
+		void close() throws IOException{}
+		public int compareTo(Cursor o){
+			return pos<o.pos ? -1 : (pos==o.pos ? 0 : 1);
+		}
+	}
+	private class ArrayCursor extends Cursor{
+		Run run;
+		int i=-1;
+		ArrayCursor(Run r){run=r;}
+		boolean next(){
+			i++;
+			if(i>=run.length)
+				return false;
+			pos=run.pos[i];
+			count=run.counts[i];
+			return true;
+		}
+	}
+	private class FileCursor extends Cursor{
+		DataInputStream in;
+		int remaining;
+		FileCursor(Run r) throws IOException{
+			FileInputStream fis = new FileInputStream(r.file);
+			fis.getChannel().position(r.offset);
+			in = new DataInputStream(new BufferedInputStream(fis, 1<<16));
+			remaining=r.length;
+		}
+		boolean next() throws IOException{
+			if(remaining==0)
+				return false;
+			pos=in.readInt();
+			count=in.readFloat();
+			remaining--;
+			return true;
+		}
+		void close() throws IOException{
+			in.close();
+		}
+	}
+}
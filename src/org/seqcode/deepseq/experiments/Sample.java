@@ -6,6 +6,7 @@ import java.util.List;
 
 import org.seqcode.deepseq.ExtReadHit;
 import org.seqcode.deepseq.ReadHit;
+import org.seqcode.deepseq.StrandedBaseBuffer;
 import org.seqcode.deepseq.StrandedBaseCount;
 import org.seqcode.deepseq.StrandedPair;
 import org.seqcode.deepseq.hitloaders.*;
@@ -111,6 +112,16 @@ public class Sample {
 	public List<StrandedBaseCount> getStrandedBases(Region r, char strand) {
 		return cache.getStrandedBases(r, strand);
 	}
+	/**
+	 * Loads hits from a given strand in the region into a reusable buffer, replacing its contents.
+	 * No objects are allocated per hit.
+	 * @param r Region
+	 * @param buf StrandedBaseBuffer to fill
+	 * @return number of hits in the buffer
+	 */
+	public int getStrandedBases(Region r, char strand, StrandedBaseBuffer buf) {
+		return cache.getStrandedBases(r, strand, buf);
+	}
 	
 	/**
 	 * Load all paired hits that have an R1 read in a region.
@@ -0,0 +1,138 @@
+package org.seqcode.deepseq.experiments.unittests;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.seqcode.deepseq.experiments.ExptConfig;
+import org.seqcode.deepseq.experiments.HitCache;
+import org.seqcode.deepseq.hitloaders.HitLoader;
+import org.seqcode.deepseq.hitloaders.SAMFileHitLoader;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import static org.junit.Assert.*;
+
+/* Loading only some regions of an indexed BAM file (--regionload) gives the same totals & counts as loading all of it */
+public class TestRegionLoad {
+
+	private static int READLEN = 36;
+
+	private File dir;
+	private File bam;
+	private Genome genome;
+	private List<Region> regions;
+
+	@Before public void setUp() throws IOException {
+		dir = File.createTempFile("regionload", "");
+		dir.delete();
+		dir.mkdirs();
+		Map<String,Integer> lengths = new HashMap<String,Integer>();
+		lengths.put("1", 200000);
+		lengths.put("2", 100000);
+		genome = new Genome("test", lengths);
+		regions = new ArrayList<Region>();
+		regions.add(new Region(genome, "1", 10000, 30000));
+		regions.add(new Region(genome, "2", 50000, 60000));
+
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		SAMSequenceDictionary dict = new SAMSequenceDictionary();
+		dict.addSequence(new SAMSequenceRecord("chr1", 200000));
+		dict.addSequence(new SAMSequenceRecord("chr2", 100000));
+		dict.addSequence(new SAMSequenceRecord("chrUn", 50000)); //not in the genome
+		header.setSequenceDictionary(dict);
+		bam = new File(dir, "reads.bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+		int read=0;
+		for(String chrom : new String[]{"chr1", "chr2", "chrUn"}){
+			int length = dict.getSequence(chrom).getSequenceLength();
+			for(int pos=100; pos<length-100; pos+=37){
+				//A pile-up in each region, for the per-base limits to cut down
+				int copies = (pos>=20000 && pos<20037) || (pos>=55000 && pos<55037) ? 40 : 1;
+				for(int c=0; c<copies; c++)
+					writer.addAlignment(record(header, "r"+(read++), chrom, pos, (pos/37)%2==1));
+				//Records that the loader filters out
+				if(pos%7==0){
+					SAMRecord secondary = record(header, "r"+(read++), chrom, pos, false);
+					secondary.setNotPrimaryAlignmentFlag(true);
+					writer.addAlignment(secondary);
+				}
+			}
+		}
+		writer.close();
+	}
+
+	private static SAMRecord record(SAMFileHeader header, String name, String chrom, int pos, boolean neg){
+		SAMRecord r = new SAMRecord(header);
+		r.setReadName(name);
+		r.setReferenceName(chrom);
+		r.setAlignmentStart(pos);
+		r.setCigarString(READLEN+"M");
+		char[] bases = new char[READLEN];
+		Arrays.fill(bases, 'A');
+		r.setReadString(new String(bases));
+		r.setBaseQualityString("*");
+		r.setMappingQuality(30);
+		r.setReadNegativeStrandFlag(neg);
+		return r;
+	}
+
+	@After public void tearDown() {
+		for (File f : dir.listFiles()) {
+			if (f.isDirectory())
+				for (File g : f.listFiles())
+					g.delete();
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private HitCache load(boolean regionLoad, boolean perBaseFilter){
+		List<String> args = new ArrayList<String>();
+		if(regionLoad)
+			args.add("--regionload");
+		if(!perBaseFilter)
+			args.add("--nopbfilter");
+		ExptConfig econfig = new ExptConfig(genome, args.toArray(new String[args.size()]));
+		econfig.setFileCacheDirName(new File(dir, "hitcache").getPath());
+		List<HitLoader> loaders = new ArrayList<HitLoader>();
+		loaders.add(new SAMFileHitLoader(bam, false, true, false, true, false));
+		return new HitCache(false, econfig, loaders, -1, true, regions);
+	}
+
+	@Test public void testIndexed() {
+		assertTrue(new SAMFileHitLoader(bam, false, true, false, true, false).canSourceRegions());
+	}
+
+	@Test public void testTotals() {
+		HitCache full = load(false, false);
+		HitCache part = load(true, false);
+		assertEquals(full.getHitCount(), part.getHitCount(), 1e-6);
+		assertEquals(part.getHitCount(), part.getHitCountPos()+part.getHitCountNeg(), 1e-6);
+		for(Region r : regions)
+			assertEquals(full.countHits(r), part.countHits(r), 1e-6);
+		full.close();
+		part.close();
+	}
+
+	/* The per-base limit is set from the whole sample's total, not just the loaded part */
+	@Test public void testPerBaseLimits() {
+		HitCache full = load(false, true);
+		HitCache part = load(true, true);
+		HitCache uncapped = load(false, false);
+		for(Region r : regions){
+			assertEquals(full.countHits(r), part.countHits(r), 1e-6);
+			assertTrue(full.countHits(r) < uncapped.countHits(r));
+		}
+		full.close();
+		part.close();
+		uncapped.close();
+	}
+}
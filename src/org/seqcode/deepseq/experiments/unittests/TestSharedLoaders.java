@@ -0,0 +1,102 @@
+package org.seqcode.deepseq.experiments.unittests;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.seqcode.deepseq.StrandedBaseBuffer;
+import org.seqcode.deepseq.experiments.ExperimentManager;
+import org.seqcode.deepseq.experiments.ExptConfig;
+import org.seqcode.deepseq.experiments.Sample;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+
+import static org.junit.Assert.*;
+
+/* A sample whose hit loader is shared with another sample (and so is read from a temporary binary hit file) gets the same hits as one whose loader isn't */
+public class TestSharedLoaders {
+
+	private File dir;
+	private File bed;
+	private Genome genome;
+	private List<Region> regions;
+
+	@Before public void setUp() throws IOException {
+		dir = File.createTempFile("sharedloaders", "");
+		dir.delete();
+		dir.mkdirs();
+		Map<String,Integer> lengths = new HashMap<String,Integer>();
+		lengths.put("1", 200000);
+		lengths.put("2", 100000);
+		genome = new Genome("test", lengths);
+		regions = new ArrayList<Region>();
+		regions.add(new Region(genome, "1", 10000, 30000));
+		regions.add(new Region(genome, "2", 50000, 60000));
+
+		Random random = new Random(3);
+		bed = new File(dir, "reads.bed");
+		PrintWriter pw = new PrintWriter(new FileWriter(bed));
+		for(int i=0; i<20000; i++){
+			String chrom = random.nextInt(3)==0 ? "2" : "1";
+			int start = random.nextInt(lengths.get(chrom)-100);
+			pw.println("chr"+chrom+"\t"+start+"\t"+(start+36)+"\tr"+i+"\t0\t"+(random.nextBoolean() ? '+' : '-'));
+		}
+		pw.close();
+	}
+
+	@After public void tearDown() {
+		for (File f : dir.listFiles()) {
+			if (f.isDirectory())
+				for (File g : f.listFiles())
+					g.delete();
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	/* The signal sample, loading the BED file as signal only, or as both signal & control (sharing the loader) */
+	private ExperimentManager load(boolean shared, boolean regionLoad){
+		List<String> args = new ArrayList<String>(Arrays.asList("--format", "BED", "--fixedscaling", "1", "--expt", bed.getPath()));
+		if(shared)
+			args.addAll(Arrays.asList("--ctrl", bed.getPath()));
+		if(regionLoad)
+			args.add("--regionload");
+		ExptConfig econfig = new ExptConfig(genome, args.toArray(new String[args.size()]));
+		econfig.setFileCacheDirName(new File(dir, "hitcache").getPath());
+		econfig.setInitialCachedRegions(regions);
+		return new ExperimentManager(econfig);
+	}
+
+	private void compare(boolean regionLoad){
+		ExperimentManager unsharedManager = load(false, regionLoad);
+		ExperimentManager sharedManager = load(true, regionLoad);
+		Sample unshared = unsharedManager.getReplicates().get(0).getSignal();
+		Sample shared = sharedManager.getReplicates().get(0).getSignal();
+		assertNotNull(sharedManager.getReplicates().get(0).getControl());
+		assertEquals(unshared.getHitCount(), shared.getHitCount(), 1e-6);
+		assertEquals(unshared.getHitPositionCount(), shared.getHitPositionCount(), 1e-6);
+		StrandedBaseBuffer a = new StrandedBaseBuffer(), b = new StrandedBaseBuffer();
+		for(String chrom : genome.getChromList()){
+			Region chr = new Region(genome, chrom, 1, genome.getChromLength(chrom));
+			for(char strand : new char[]{'+', '-'}){
+				int n = unshared.getStrandedBases(chr, strand, a);
+				assertTrue(n>0);
+				assertEquals(n, shared.getStrandedBases(chr, strand, b));
+				for(int i=0; i<n; i++){
+					assertEquals(a.getCoordinate(i), b.getCoordinate(i));
+					assertEquals(a.getCount(i), b.getCount(i), 1e-6);
+				}
+			}
+		}
+		unsharedManager.close();
+		sharedManager.close();
+	}
+
+	@Test public void testFullLoad() {
+		compare(false);
+	}
+
+	/* BED files can't be sourced by region, so the shared copy must be loaded whole too */
+	@Test public void testRegionLoad() {
+		compare(true);
+	}
+}
@@ -0,0 +1,376 @@
+package org.seqcode.deepseq.hitloaders;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.seqcode.gseutils.ParallelBGZFInputStream;
+
+/**
+ * AlignmentTextReader: fast reading of line-based text alignment files (BED, IDX, Bowtie, Novo) for the FileHitLoaders.
+ *
+ * The file is read as bytes, in blocks that end on a line boundary (see nextBlock()). Lines are tokenized in place
+ * by Line, so no Strings are made per line. Gzip and BGZF (bgzip) compressed files are decompressed transparently,
+ * BGZF on several threads if asked. Blocks are independent, so they can be parsed on several threads (see
+ * FileHitLoader.sourceLines()).
+ *
+ * Lines are read the way BufferedReader.readLine() and String.trim() read them, and fields are split the way
+ * String.split("\\s+") or String.split("\\t") split them, so parsers see the same fields as the String-based loaders did.
+ * Empty lines are skipped.
+ */
+public class AlignmentTextReader {
+
+	public static final int BLOCK_SIZE = 1<<22;
+
+	private InputStream in;
+	private byte[] carry = new byte[0];
+	private int carryLen=0;
+	private boolean eof=false;
+
+	/**
+	 * Constructor
+	 * @param f : text file, optionally gzip or BGZF compressed
+	 * @param numThreads : number of threads for inflating BGZF files
+	 * @throws IOException
+	 */
+	public AlignmentTextReader(File f, int numThreads) throws IOException{
+		in = open(f, numThreads);
+	}
+
+	/**
+	 * Open a file, decompressing it if it starts with the gzip magic number
+	 * @param f
+	 * @param numThreads : number of threads for inflating BGZF files
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open(File f, int numThreads) throws IOException{
+		if(numThreads>1 && ParallelBGZFInputStream.isBGZF(f))
+			return new ParallelBGZFInputStream(f, numThreads, true);
+		byte[] magic = new byte[2];
+		FileInputStream fis = new FileInputStream(f);
+		int n=0;
+		try{
+			int r;
+			while(n<2 && (r=fis.read(magic, n, 2-n))>0)
+				n+=r;
+		}finally{
+			fis.close();
+		}
+		if(n==2 && (magic[0]&0xff)==0x1f && (magic[1]&0xff)==0x8b)
+			return new GZIPInputStream(new FileInputStream(f), 1<<16);
+		return new FileInputStream(f);
+	}
+
+	/**
+	 * Read the next block of whole lines (the last line of the file may be unterminated)
+	 * @return null at the end of the file
+	 * @throws IOException
+	 */
+	public Block nextBlock() throws IOException{
+		byte[] buf = new byte[Math.max(BLOCK_SIZE, carryLen*2)];
+		System.arraycopy(carry, 0, buf, 0, carryLen);
+		int len = carryLen;
+		while(true){
+			while(!eof && len<buf.length){
+				int r = in.read(buf, len, buf.length-len);
+				if(r<0)
+					eof=true;
+				else
+					len+=r;
+			}
+			if(eof){
+				carryLen=0;
+				return len==0 ? null : new Block(buf, len);
+			}
+			int last = len-1;
+			while(last>=0 && buf[last]!='\n' && buf[last]!='\r')
+				last--;
+			if(last>=0){
+				carryLen = len-last-1;
+				if(carry.length<carryLen)
+					carry = new byte[Math.max(carryLen, BLOCK_SIZE/16)];
+				System.arraycopy(buf, last+1, carry, 0, carryLen);
+				return new Block(buf, last+1);
+			}
+			buf = Arrays.copyOf(buf, buf.length*2); //A line longer than the buffer
+		}
+	}
+
+	public void close() throws IOException{
+		in.close();
+	}
+
+	/**
+	 * Same chromosome name conversion as the String-based loaders: drop anything from the first '.',
+	 * and then any chromosome/chrom/chr and '>' prefixes.
+	 * @param name
+	 * @return
+	 */
+	public static String normalizeChrom(String name){
+		String[] tmp = name.split("\\.");
+		String chr = tmp.length==0 ? "" : tmp[0];
+		chr=chr.replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", "");
+		return chr.replaceFirst("^>", "");
+	}
+
+	/**
+	 * A block of whole lines
+	 */
+	public static class Block{
+		byte[] data;
+		int length;
+		Block(byte[] data, int length){
+			this.data=data;
+			this.length=length;
+		}
+	}
+
+	/**
+	 * Line walks the lines of a block and splits the current line into fields, in place.
+	 * Not thread-safe; use one Line per thread.
+	 */
+	public static class Line{
+		private byte[] buf;
+		private int pos, limit;
+		private boolean tabs;
+		private int start, end;
+		private int numFields;
+		private int[] fs = new int[16], fe = new int[16];
+		private byte[] lastChrom = new byte[0];
+		private int lastChromLen=-1;
+		private String lastChromName=null;
+		private HashMap<String, String> chromNames = new HashMap<String, String>();
+
+		/**
+		 * @param tabs : split fields on single tabs (as split("\\t")) rather than on runs of whitespace (as split("\\s+"))
+		 */
+		public Line(boolean tabs){
+			this.tabs=tabs;
+		}
+
+		/**
+		 * Start on a block
+		 */
+		public void reset(Block b){
+			buf = b.data;
+			pos = 0;
+			limit = b.length;
+		}
+
+		/**
+		 * Move to the next non-empty line of the block, trimmed and split into fields
+		 * @return false at the end of the block
+		 */
+		public boolean next(){
+			while(pos<limit){
+				int s=pos;
+				while(pos<limit && buf[pos]!='\n' && buf[pos]!='\r')
+					pos++;
+				int e=pos;
+				if(pos<limit && buf[pos]=='\r' && pos+1<limit && buf[pos+1]=='\n')
+					pos++;
+				pos++;
+				while(s<e && (buf[s]&0xff)<=' ')
+					s++;
+				while(e>s && (buf[e-1]&0xff)<=' ')
+					e--;
+				if(e>s){
+					start=s;
+					end=e;
+					split();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void split(){
+			numFields=0;
+			int s=start;
+			if(tabs){
+				int lastNonEmpty=0;
+				for(int i=start; i<=end; i++){
+					if(i==end || buf[i]=='\t'){
+						addField(s, i);
+						if(i>s)
+							lastNonEmpty=numFields;
+						s=i+1;
+					}
+				}
+				numFields=lastNonEmpty; //split() drops trailing empty fields
+			}else{
+				int i=start;
+				while(i<end){
+					s=i;
+					while(i<end && !isSpace(buf[i]))
+						i++;
+					addField(s, i);
+					while(i<end && isSpace(buf[i]))
+						i++;
+				}
+			}
+		}
+		private void addField(int s, int e){
+			if(numFields==fs.length){
+				fs = Arrays.copyOf(fs, fs.length*2);
+				fe = Arrays.copyOf(fe, fe.length*2);
+			}
+			fs[numFields]=s;
+			fe[numFields]=e;
+			numFields++;
+		}
+		private static boolean isSpace(byte b){
+			return b==' ' || b=='\t' || b=='\n' || b==0x0B || b=='\f' || b=='\r';
+		}
+
+		//Accessors
+		public int numFields(){return numFields;}
+		public byte firstChar(){return buf[start];}
+		public int fieldLength(int i){return fe[i]-fs[i];}
+		public byte charAt(int i, int k){return buf[fs[i]+k];}
+		public String field(int i){return new String(buf, fs[i], fe[i]-fs[i]);}
+
+		/**
+		 * Does the field hold exactly this (ASCII) string?
+		 */
+		public boolean fieldEquals(int i, String s){
+			int len = fe[i]-fs[i];
+			if(len!=s.length())
+				return false;
+			for(int k=0; k<len; k++)
+				if(buf[fs[i]+k]!=s.charAt(k))
+					return false;
+			return true;
+		}
+
+		/**
+		 * Does the field hold exactly these bytes?
+		 */
+		public boolean fieldEquals(int i, byte[] b, int len){
+			if(fe[i]-fs[i]!=len)
+				return false;
+			for(int k=0; k<len; k++)
+				if(buf[fs[i]+k]!=b[k])
+					return false;
+			return true;
+		}
+
+		/**
+		 * Copy the field's bytes into dst, or into a new array if dst is too short
+		 * @return the array holding the bytes
+		 */
+		public byte[] copyField(int i, byte[] dst){
+			int len = fe[i]-fs[i];
+			if(dst.length<len)
+				dst = new byte[len*2];
+			System.arraycopy(buf, fs[i], dst, 0, len);
+			return dst;
+		}
+
+		/**
+		 * Parse a field as Integer.parseInt() would
+		 * @throws NumberFormatException
+		 */
+		public int parseInt(int i){
+			int p=fs[i], e=fe[i];
+			if(p>=e)
+				throw new NumberFormatException("Empty field");
+			boolean neg=false;
+			if(buf[p]=='-' || buf[p]=='+'){
+				neg = buf[p]=='-';
+				p++;
+				if(p==e)
+					throw new NumberFormatException(field(i));
+			}
+			long v=0;
+			for(; p<e; p++){
+				int d = buf[p]-'0';
+				if(d<0 || d>9)
+					throw new NumberFormatException(field(i));
+				v = v*10+d;
+				if(v>(long)Integer.MAX_VALUE+1)
+					throw new NumberFormatException(field(i));
+			}
+			if(neg)
+				v=-v;
+			if(v>Integer.MAX_VALUE || v<Integer.MIN_VALUE)
+				throw new NumberFormatException(field(i));
+			return (int)v;
+		}
+
+		/**
+		 * The field as a normalized chromosome name (see normalizeChrom()).
+		 * The previous name is kept, so runs of hits on the same chromosome don't make any Strings.
+		 */
+		public String chrom(int i){
+			int len = fe[i]-fs[i];
+			if(len==lastChromLen){
+				boolean same=true;
+				for(int k=0; k<len && same; k++)
+					same = buf[fs[i]+k]==lastChrom[k];
+				if(same)
+					return lastChromName;
+			}
+			String raw = field(i);
+			String name = chromNames.get(raw);
+			if(name==null){
+				name = normalizeChrom(raw);
+				chromNames.put(raw, name);
+			}
+			if(lastChrom.length<len)
+				lastChrom = new byte[len*2];
+			System.arraycopy(buf, fs[i], lastChrom, 0, len);
+			lastChromLen = len;
+			lastChromName = name;
+			return name;
+		}
+	}
+
+	/**
+	 * Parses lines into single-end hits. Implementations must not keep state between lines, so that blocks
+	 * can be parsed independently on several threads.
+	 */
+	public interface LineParser{
+		/**
+		 * Parse a line, adding any hits to the ParsedHits
+		 */
+		public void parse(Line line, ParsedHits hits);
+	}
+
+	/**
+	 * The hits parsed from a block, in file order
+	 */
+	public static class ParsedHits{
+		int n=0;
+		String[] chroms = new String[1024];
+		char[] strands = new char[1024];
+		int[] positions = new int[1024];
+		float[] weights = new float[1024];
+
+		/**
+		 * Add a hit (counted in the totals as HitLoader.addReadHit)
+		 * @param chrom chromosome name
+		 * @param strand '+' or '-'
+		 * @param fivePrime five prime position
+		 * @param weight hit weight
+		 */
+		public void add(String chrom, char strand, int fivePrime, float weight){
+			if(n==chroms.length){
+				chroms = Arrays.copyOf(chroms, n*2);
+				strands = Arrays.copyOf(strands, n*2);
+				positions = Arrays.copyOf(positions, n*2);
+				weights = Arrays.copyOf(weights, n*2);
+			}
+			chroms[n]=chrom;
+			strands[n]=strand;
+			positions[n]=fivePrime;
+			weights[n]=weight;
+			n++;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package org.seqcode.deepseq.hitloaders;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.seqcode.genome.location.Region;
+
+
+/**
+ * BinaryHitFileHitLoader: a FileHitLoader from the sorted & indexed binary hit format (see BinaryHitFileWriter).
+ *
+ * Each chromosome & strand is stored as a sorted run of (position, weight) records with a coarse bin index,
+ * so the hits in a set of regions can be read by seeking straight to them (see sourceHits()).
+ * The total hit weight of the file is stored in the header.
+ *
+ */
+public class BinaryHitFileHitLoader extends FileHitLoader {
+
+	private HashMap<String, Section[]> sections=null;
+	private double fileWeight=0;
+	private double sourceWeight=Double.NaN;
+	private boolean regionSource=true;
+
+	public BinaryHitFileHitLoader(File f, boolean nonUnique, boolean loadT1Reads, boolean loadT2Reads, boolean loadPairs){
+		this(f, nonUnique, loadT1Reads, loadT2Reads, loadPairs, true);
+	}
+	/**
+	 * @param regionSource : report that the file can be sourced by region (false when the file stands in for a 
+	 * loader that can't be, so that it is loaded in the same way as that loader would be)
+	 */
+	public BinaryHitFileHitLoader(File f, boolean nonUnique, boolean loadT1Reads, boolean loadT2Reads, boolean loadPairs, boolean regionSource){
+		super(f, nonUnique, true, false, false, loadPairs);
+		this.regionSource = regionSource;
+		if(!loadT1Reads || loadT2Reads)
+			System.err.println("BinaryHitFileHitLoader: You asked to load only Type1 or Type2 reads, but binary hit files cannot discriminate between reads for single-end hits.");
+		if(loadPairs)
+			System.err.println("BinaryHitFileHitLoader: You asked to load pairs, but binary hit files cannot represent paired read data.");
+	}
+
+	/**
+	 * Get the reads from the appropriate source (implementation-specific).
+	 * Passes the hits to the HitSink (see HitLoader.addHits)
+	 * Nothing stored to hitPairsList, since binary hit files cannot store pairs.
+	 */
+	public void sourceAllHits() {
+		this.initialize();
+		try{
+			readDirectory();
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try{
+				FileChannel channel = raf.getChannel();
+				for(Section[] chromSections : sections.values())
+					for(Section s : chromSections)
+						if(s!=null)
+							readRecords(channel, s, 0, Integer.MIN_VALUE, Integer.MAX_VALUE);
+			}finally{
+				raf.close();
+			}
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Binary hit files are always indexed, but may be told not to report it (see constructor)
+	 */
+	public boolean canSourceRegions(){return regionSource;}
+
+	/**
+	 * Get the hits with five prime positions in the regions, seeking to each region via the bin index.
+	 * Overlapping regions are merged first, so no hit is loaded twice.
+	 * @param regions
+	 */
+	public void sourceHits(List<Region> regions){
+		this.initialize();
+		try{
+			readDirectory();
+			List<Region> merged = Region.mergeRegions(new ArrayList<Region>(regions));
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try{
+				FileChannel channel = raf.getChannel();
+				for(Region r : merged){
+					if(!sections.containsKey(r.getChrom()))
+						continue;
+					for(Section s : sections.get(r.getChrom())){
+						if(s==null)
+							continue;
+						//The bins only index positions from 0, so regions starting before that are read from the section start
+						int first = 0;
+						if(r.getStart()>0){
+							int bin = r.getStart()/BinaryHitFileWriter.BIN_SIZE;
+							if(bin>=s.bins.length)
+								continue;
+							first = s.bins[bin];
+						}
+						readRecords(channel, s, first, r.getStart(), r.getEnd());
+					}
+				}
+			}finally{
+				raf.close();
+			}
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Total hit weight in the file header (or the weight set via setSourceHitCount)
+	 */
+	public double getSourceHitCount(){
+		if(!Double.isNaN(sourceWeight))
+			return sourceWeight;
+		try{
+			readDirectory();
+			return fileWeight;
+		}catch(IOException e){
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	/**
+	 * Report a different source total, e.g. when the file holds only some regions of a larger source
+	 * @param weight : total hit weight of the source (-1 if unknown)
+	 */
+	public void setSourceHitCount(double weight){sourceWeight=weight;}
+
+	/**
+	 * Read the header and section directory (once)
+	 * @throws IOException
+	 */
+	private void readDirectory() throws IOException{
+		if(sections!=null)
+			return;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16));
+		try{
+			if(in.readInt()!=BinaryHitFileWriter.MAGIC)
+				throw new IOException(file.getName()+" is not a binary hit file");
+			int version = in.readInt();
+			if(version!=BinaryHitFileWriter.VERSION)
+				throw new IOException(file.getName()+" has unsupported binary hit file version "+version);
+			int binSize = in.readInt();
+			if(binSize!=BinaryHitFileWriter.BIN_SIZE)
+				throw new IOException(file.getName()+" has unsupported bin size "+binSize);
+			int numSections = in.readInt();
+			double weight = in.readDouble();
+			long dirOffset = in.readLong();
+			long skip = dirOffset-BinaryHitFileWriter.HEADER_BYTES;
+			while(skip>0){
+				long s = in.skip(skip);
+				if(s<=0)
+					throw new IOException("Truncated binary hit file "+file.getName());
+				skip-=s;
+			}
+			HashMap<String, Section[]> dir = new HashMap<String, Section[]>();
+			for(int i=0; i<numSections; i++){
+				Section s = new Section();
+				s.chrom = in.readUTF();
+				s.strand = in.readByte()==0 ? '+' : '-';
+				s.offset = in.readLong();
+				s.numRecords = in.readInt();
+				s.bins = new int[in.readInt()];
+				for(int b=0; b<s.bins.length; b++)
+					s.bins[b] = in.readInt();
+				if(!dir.containsKey(s.chrom))
+					dir.put(s.chrom, new Section[2]);
+				dir.get(s.chrom)[s.strand=='+' ? 0 : 1] = s;
+			}
+			sections = dir;
+			fileWeight = weight;
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Read records of a section from index first onwards, passing those in [start, end] to the sink,
+	 * until the end of the section or the first record beyond end
+	 */
+	private void readRecords(FileChannel channel, Section s, int first, int start, int end) throws IOException{
+		int[] pos = new int[CHUNK_SIZE];
+		float[] counts = new float[CHUNK_SIZE];
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE*BinaryHitFileWriter.RECORD_BYTES);
+		int i = first;
+		boolean done=false;
+		while(!done && i<s.numRecords){
+			int num = Math.min(CHUNK_SIZE, s.numRecords-i);
+			buf.clear();
+			buf.limit(num*BinaryHitFileWriter.RECORD_BYTES);
+			long filePos = s.offset+(long)i*BinaryHitFileWriter.RECORD_BYTES;
+			while(buf.hasRemaining()){
+				int r = channel.read(buf, filePos+buf.position());
+				if(r<0)
+					throw new IOException("Truncated binary hit file "+file.getName());
+			}
+			buf.flip();
+			int n=0;
+			for(int k=0; k<num; k++){
+				int p = buf.getInt();
+				float c = buf.getFloat();
+				if(p>end){
+					done=true;
+					break;
+				}
+				if(p>=start){
+					pos[n]=p;
+					counts[n]=c;
+					n++;
+				}
+			}
+			addHits(s.chrom, s.strand, pos, counts, n);
+			i+=num;
+		}
+	}
+
+	private class Section{
+		String chrom;
+		char strand;
+		long offset;
+		int numRecords;
+		int[] bins;
+	}
+}
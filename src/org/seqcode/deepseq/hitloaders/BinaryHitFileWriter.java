@@ -0,0 +1,122 @@
+package org.seqcode.deepseq.hitloaders;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BinaryHitFileWriter: writes single-end hits to the sorted & indexed binary format read by BinaryHitFileHitLoader.
+ *
+ * Layout (big-endian):
+ * - Header: MAGIC, VERSION, BIN_SIZE, number of sections (ints), total hit weight (double), directory offset (long)
+ * - Records: one section per chromosome & strand, each a run of (int five prime position, float weight) records,
+ *   sorted by position with no repeated positions
+ * - Directory: for each section, the chromosome (UTF), strand (byte, 0 for '+'), record offset (long),
+ *   number of records (int), number of bins (int), and then for each bin of BIN_SIZE bp the index of the
+ *   section's first record at or after the start of the bin (ints)
+ *
+ * Sections are added one at a time with addSection(), and must already be sorted and collapsed.
+ */
+public class BinaryHitFileWriter {
+
+	public static final int MAGIC = 0x42484954; //"BHIT"
+	public static final int VERSION = 1;
+	public static final int BIN_SIZE = 16384;
+	public static final int HEADER_BYTES = 4+4+4+4+8+8;
+	public static final int RECORD_BYTES = 8;
+
+	private File file;
+	private DataOutputStream out;
+	private long offset=HEADER_BYTES;
+	private double totalWeight=0;
+	private List<Section> sections = new ArrayList<Section>();
+
+	/**
+	 * Constructor: opens the file and writes a placeholder header
+	 * @param f
+	 * @throws IOException
+	 */
+	public BinaryHitFileWriter(File f) throws IOException{
+		file = f;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<16));
+		out.write(new byte[HEADER_BYTES]);
+	}
+
+	/**
+	 * Write the hits of one chromosome & strand.
+	 * @param chrom chromosome name
+	 * @param strand '+' or '-'
+	 * @param pos five prime positions (sorted, no repeats)
+	 * @param counts hit weights, matched to pos
+	 * @param n number of hits
+	 * @throws IOException
+	 */
+	public void addSection(String chrom, char strand, int[] pos, float[] counts, int n) throws IOException{
+		if(n==0)
+			return;
+		int numBins = Math.max(0, pos[n-1])/BIN_SIZE+1;
+		int[] bins = new int[numBins];
+		int b=0;
+		for(int i=0; i<n; i++){
+			if(i>0 && pos[i]<=pos[i-1])
+				throw new IllegalArgumentException("Hits on "+chrom+strand+" are not sorted & collapsed at position "+pos[i]);
+			while(b<numBins && b*BIN_SIZE<=pos[i])
+				bins[b++]=i;
+			out.writeInt(pos[i]);
+			out.writeFloat(counts[i]);
+			totalWeight+=counts[i];
+		}
+		sections.add(new Section(chrom, strand=='+' ? 0 : 1, offset, n, bins));
+		offset += (long)n*RECORD_BYTES;
+	}
+
+	/**
+	 * Write the directory and the real header, and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException{
+		long dirOffset = offset;
+		for(Section s : sections){
+			out.writeUTF(s.chrom);
+			out.writeByte(s.strand);
+			out.writeLong(s.offset);
+			out.writeInt(s.numRecords);
+			out.writeInt(s.bins.length);
+			for(int i=0; i<s.bins.length; i++)
+				out.writeInt(s.bins[i]);
+		}
+		out.close();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(BIN_SIZE);
+			raf.writeInt(sections.size());
+			raf.writeDouble(totalWeight);
+			raf.writeLong(dirOffset);
+		}finally{
+			raf.close();
+		}
+	}
+
+	private class Section{
+		String chrom;
+		int strand;
+		long offset;
+		int numRecords;
+		int[] bins;
+		Section(String chrom, int strand, long offset, int numRecords, int[] bins){
+			this.chrom=chrom;
+			this.strand=strand;
+			this.offset=offset;
+			this.numRecords=numRecords;
+			this.bins=bins;
+		}
+	}
+}
@@ -1,12 +1,8 @@
 package org.seqcode.deepseq.hitloaders;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-
-import org.seqcode.deepseq.Read;
-import org.seqcode.deepseq.ReadHit;
+import java.util.Arrays;
 
 
 /**
@@ -17,6 +13,12 @@ import org.seqcode.deepseq.ReadHit;
  */
 public class BowtieFileHitLoader extends FileHitLoader {
 
+	//Alignments of the current read (consecutive lines with the same ID)
+	private int readSize=0;
+	private String[] readChroms = new String[16];
+	private char[] readStrands = new char[16];
+	private int[] readFivePrimes = new int[16];
+	
 	public BowtieFileHitLoader(File f, boolean nonUnique, boolean loadT1Reads, boolean loadT2Reads, boolean loadPairs){
 		super(f, nonUnique, true, false, false, loadPairs);
 		if(!loadT1Reads || loadT2Reads)
@@ -27,68 +29,51 @@ public class BowtieFileHitLoader extends FileHitLoader {
 		
 	/**
 	 * Get the reads from the appropriate source (implementation-specific).
-	 * Loads data to the fivePrimesList and hitsCountList
+	 * Passes the hits to the HitSink (see HitLoader.addHits)
 	 * Nothing loaded to hitPairsList, since we do not load this type of data from Bowtie native
+	 * Hits of the same read are on consecutive lines, so lines are parsed in order on one thread (gzipped files are read directly).
 	 */
 	public void sourceAllHits() {
 		this.initialize();
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(file));
-			String line, lastID="";
-			double currReadHitCount=0;
-			Read currRead=null;
+			AlignmentTextReader reader = new AlignmentTextReader(file, numThreads);
+			AlignmentTextReader.Line line = new AlignmentTextReader.Line(true);
+			AlignmentTextReader.Block block;
+			byte[] lastID = new byte[64];
+			int lastIDLen=-1;
 			int readLength=-1;
-	        while ((line = reader.readLine()) != null) {
-	        	line = line.trim();
-	        	if (line.length()==0) continue;
-	        	if(line.charAt(0)!='#'){
-		            String[] words = line.split("\\t");
-		            String chr="."; char strand = '.';
-		            int start=0, end=0;
-		            
-		            String ID = words[0];
+			readSize=0;
+			while((block = reader.nextBlock())!=null){
+				line.reset(block);
+		        while (line.next()) {
+		        	if(line.firstChar()=='#' || line.numFields()<5)
+		        		continue;
+		        	int start;
+		        	try{
+		        		start = line.parseInt(3)+1; //Bowtie raw output is 0-based, we want 1-based
+		        	}catch(NumberFormatException e){
+		        		continue;
+		        	}
 		            if(readLength==-1)
-	    				readLength = words[4].length();
+	    				readLength = line.fieldLength(4);
 		            
-		            boolean newRead=true;
-	            	if(ID.equals(lastID)){
-	            		currReadHitCount++;
-	            		newRead=false;
-	            	}else{
-	            		if(currRead!=null){
-	            			if(currRead.getNumHits()==1 || useNonUnique){
-	        	        		//Add the hits to the data structure
-	        	        		addHits(currRead);
-	        	        	}currRead=null;
-	            		}
-	            		currReadHitCount=1;            			
+	            	if(!line.fieldEquals(0, lastID, lastIDLen)){
+	            		//Add the hits of the last read to the data structure
+	            		if(readSize==1 || useNonUnique)
+	            			addRead(1/(float)readSize);
+	            		readSize=0;
+	            		lastID = line.copyField(0, lastID);
+	            		lastIDLen = line.fieldLength(0);
 	            	}
-	            	int mis=0;
-	            	if(words.length>7 && words[7].length()>1){
-	            		mis = words[7].split(",").length;
-	            	}
-	            	chr = words[2];
-        			String[] tmp = chr.split("\\.");
-        			chr=tmp[0].replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", "");
-        			chr=chr.replaceFirst("^>", "");
-        			start = new Integer(words[3]).intValue()+1; //Bowtie raw output is 0-based, we want 1-based
-        			end =start+readLength-1;
-        			strand = words[1].charAt(0);
-					ReadHit currHit = new ReadHit(chr, start, end, strand, 1);
-					if(newRead || currRead==null){
-						currRead = new Read();
-	            	}
-					currRead.addHit(currHit);
-    			
-	            	lastID=ID;
-	        	}
-            }
-	        if(currRead!=null){
-	        	if(currRead.getNumHits()==1 || useNonUnique){
-	        		//Add the hits to the data structure
-	        		addHits(currRead);
-	        	}
-    		}
+	            	String chr = line.chrom(2);
+	            	int end = start+readLength-1;
+	            	char strand = (char)line.charAt(1, 0);
+	            	addToRead(chr, strand, strand=='+' ? start : end);
+		        }
+			}
+	        if(readSize==1 || useNonUnique)
+	        	addRead(1/(float)readSize);
+	        readSize=0;
 	        reader.close();
 	 
 		} catch (IOException e) {
@@ -96,4 +81,27 @@ public class BowtieFileHitLoader extends FileHitLoader {
 		}
 	}//end of countReads method
 	
+	/**
+	 * Add the hits of the current read (see addToRead), each with the given weight
+	 */
+	private void addRead(float weight){
+		for(int i=0; i<readSize; i++)
+			addReadHit(readChroms[i], readStrands[i], readFivePrimes[i], weight);
+		readSize=0;
+	}
+	/**
+	 * Add a hit to the current read
+	 */
+	private void addToRead(String chrom, char strand, int fivePrime){
+		if(readSize==readChroms.length){
+			readChroms = Arrays.copyOf(readChroms, readSize*2);
+			readStrands = Arrays.copyOf(readStrands, readSize*2);
+			readFivePrimes = Arrays.copyOf(readFivePrimes, readSize*2);
+		}
+		readChroms[readSize]=chrom;
+		readStrands[readSize]=strand;
+		readFivePrimes[readSize]=fivePrime;
+		readSize++;
+	}
+	
 }//end of BowtieFileReader class
@@ -1,6 +1,14 @@
 package org.seqcode.deepseq.hitloaders;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * FileHitLoader: Loads reads from a collection of files. 
@@ -14,6 +22,7 @@ public abstract class FileHitLoader extends HitLoader{
 
 	protected File file;
 	protected boolean useNonUnique=true;
+	protected int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())); //Decompressing & parsing threads
 		
 	/**
 	 * Constructor
@@ -29,6 +38,81 @@ public abstract class FileHitLoader extends HitLoader{
 		this.sourceName = file.getName();
 	}
 	
+	/**
+	 * Set the number of threads used to decompress and parse the file (1 for a single thread)
+	 * @param n
+	 */
+	public void setNumThreads(int n){numThreads = Math.max(1, n);}
+	
+	/**
+	 * Read the file's lines with an AlignmentTextReader, and add the hits that the parser finds in them.
+	 * Blocks of lines are parsed on up to numThreads threads, and the hits are added in file order.
+	 * @param parser : line parser (see AlignmentTextReader.LineParser)
+	 * @param tabs : split fields on single tabs rather than on whitespace
+	 * @throws IOException
+	 */
+	protected void sourceLines(final AlignmentTextReader.LineParser parser, final boolean tabs) throws IOException{
+		AlignmentTextReader reader = new AlignmentTextReader(file, numThreads);
+		try{
+			if(numThreads==1){
+				AlignmentTextReader.Line line = new AlignmentTextReader.Line(tabs);
+				AlignmentTextReader.Block block;
+				while((block = reader.nextBlock())!=null)
+					addParsedHits(parseBlock(parser, line, block));
+				return;
+			}
+			
+			ExecutorService pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "hit-parser");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			final ThreadLocal<AlignmentTextReader.Line> lines = new ThreadLocal<AlignmentTextReader.Line>(){
+				protected AlignmentTextReader.Line initialValue(){
+					return new AlignmentTextReader.Line(tabs);
+				}
+			};
+			ArrayDeque<Future<AlignmentTextReader.ParsedHits>> pending = new ArrayDeque<Future<AlignmentTextReader.ParsedHits>>();
+			try{
+				AlignmentTextReader.Block block;
+				while((block = reader.nextBlock())!=null){
+					final AlignmentTextReader.Block b = block;
+					pending.add(pool.submit(new Callable<AlignmentTextReader.ParsedHits>(){
+						public AlignmentTextReader.ParsedHits call(){
+							return parseBlock(parser, lines.get(), b);
+						}
+					}));
+					if(pending.size()>=numThreads*2)
+						addParsedHits(pending.poll().get());
+				}
+				while(!pending.isEmpty())
+					addParsedHits(pending.poll().get());
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while parsing "+file.getName());
+			}catch(ExecutionException e){
+				throw new IOException("Unable to parse "+file.getName(), e.getCause());
+			}finally{
+				pool.shutdownNow();
+			}
+		}finally{
+			reader.close();
+		}
+	}
+	private AlignmentTextReader.ParsedHits parseBlock(AlignmentTextReader.LineParser parser, AlignmentTextReader.Line line, AlignmentTextReader.Block block){
+		AlignmentTextReader.ParsedHits hits = new AlignmentTextReader.ParsedHits();
+		line.reset(block);
+		while(line.next())
+			parser.parse(line, hits);
+		return hits;
+	}
+	private void addParsedHits(AlignmentTextReader.ParsedHits hits){
+		for(int i=0; i<hits.n; i++)
+			addReadHit(hits.chroms[i], hits.strands[i], hits.positions[i], hits.weights[i]);
+	}
+	
 	/**
 	 * No cleanup for file loaders
 	 */
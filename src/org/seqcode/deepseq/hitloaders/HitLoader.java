@@ -2,23 +2,28 @@ package org.seqcode.deepseq.hitloaders;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 import org.seqcode.deepseq.HitPair;
 import org.seqcode.deepseq.Read;
 import org.seqcode.deepseq.ReadHit;
+import org.seqcode.genome.location.Region;
 
 
 /**
  * HitLoaders load alignment hits & pairs from various sources, including ReadDB and various files.
- * Five-prime positions and associated weight sums are loaded into ArrayLists. 
+ * Five-prime positions and associated weight sums are collected in primitive chunks and passed to a HitSink.
  * Pairing information is loaded if requested and if it exits. 
  * Where/how those hits & pairs are sourced is implementation-specific. 
  * 
- * Five prime positions and weights are loaded into two collections of ArrayLists, where the collections are indexed by chromosome name. 
- * Within each chromosome's set, a 2D array of ArrayLists collects data for each strand.
- * However, the ArrayLists are temporary -- once a Sample loads the hits into primitive arrays, the ArrayLists are reset and the 
- * garbage collector is called. 
+ * Five prime positions and weights are buffered per chromosome and strand in primitive arrays of up to CHUNK_SIZE hits. 
+ * Each full chunk is handed to the HitSink (the HitCache) and the buffer is reused, so a loader never holds more than 
+ * one chunk per chromosome and strand. Call flushHits() after sourceAllHits() to pass on the partial chunks.
+ * Pairs are collected into ArrayLists, indexed by chromosome name and strand. These lists are temporary -- once a 
+ * Sample loads the pairs into primitive arrays, the lists are reset and the garbage collector is called. 
  * 
  * @author mahony
  * This class combines functionality from ReadLoaders, AlignmentFileReaders, and ReadCache in the old setup.
@@ -34,18 +39,30 @@ public abstract class HitLoader {
 	protected String sourceName=""; //String describing the source
 	
 	/**
-	 * Five prime ends of the read hits. <br>
+	 * Maximum number of hits buffered per chromosome and strand before the chunk is passed to the HitSink
+	 */
+	public static final int CHUNK_SIZE = 1<<16;
+	/**
+	 * Receives the single-end hits. Without a sink, hits are buffered until flushHits() is called with one set. 
+	 */
+	private HitSink sink = null;
+	/**
+	 * Five prime ends of the read hits that have not yet been passed to the sink. <br>
 	 * HashMap is indexed by chromosome name. <br>
-	 * Dimension in the array of ArrayLists represents the strand. 0 for '+', 1 for '-' 
+	 * Dimension in the array represents the strand. 0 for '+', 1 for '-' 
 	 */
-	private HashMap<String, ArrayList<Integer>[]> fivePrimePosList = null;
+	private HashMap<String, int[][]> fivePrimePosChunks = null;
 	/**
 	 * Sum of read hit weights that corresponds to the 5' position
 	 * HashMap is indexed by chromosome name. <br>
-	 * Dimension in the array of ArrayLists represents the strand. 0 for '+', 1 for '-'
-	 * Ordering of each ArrayList is the same as fivePrimePosList 
+	 * Dimension in the array represents the strand. 0 for '+', 1 for '-'
+	 * Ordering is the same as fivePrimePosChunks 
 	 */
-	private HashMap<String, ArrayList<Float>[]> fivePrimeCountsList = null;
+	private HashMap<String, float[][]> fivePrimeCountsChunks = null;
+	/**
+	 * Number of hits in each chunk, indexed like fivePrimePosChunks
+	 */
+	private HashMap<String, int[]> chunkSizes = null;
 	/**
 	 * R2 read hit pairing information for each R1 read hit (if pairs exist)
 	 * HashMap is indexed by R1 read chromosome name. <br>
@@ -72,19 +89,43 @@ public abstract class HitLoader {
 	public boolean hasPairedReads(){return hasPairs;}
 	public double getHitCount(){return(totalHits);}
 	public String getSourceName(){return sourceName;}
-	public HashMap<String, ArrayList<Integer>[]> getFivePrimePositions(){return fivePrimePosList;}
-	public HashMap<String, ArrayList<Float>[]> getFivePrimeCounts(){return fivePrimeCountsList;}
+	public void setSourceName(String s){sourceName = s;}
+	public void setHitSink(HitSink s){sink = s;}
 	public HashMap<String, ArrayList<HitPair>[]> getPairs(){return hitPairsList;}
 	
 //Abstract methods
 	/**
 	 * Get all hits from the appropriate source (implementation-specific).
-	 * Loads single end data to the fivePrimePosList and fivePrimeCountsList.
+	 * Passes single end data to the HitSink via addHits (call flushHits() afterwards).
 	 * Enforcing which reads to load (Type1 and/or Type2) is also implementation-specific. 
 	 * Loads pairs to hitPairsList (if requested & if they exist).
 	 * 
 	 */
 	public abstract void sourceAllHits();
+	
+	/**
+	 * Can this loader source the hits overlapping a set of regions without reading the whole source? 
+	 * (e.g. using an index)
+	 * @return
+	 */
+	public boolean canSourceRegions(){return false;}
+	
+	/**
+	 * Get the hits overlapping a set of regions (implementation-specific). 
+	 * Loaders that can't seek to the regions (see canSourceRegions()) load everything.
+	 * Hits that overlap a region but whose five prime ends lie outside it may also be loaded.
+	 * Passes single end data to the HitSink via addHits (call flushHits() afterwards).
+	 * @param regions
+	 */
+	public void sourceHits(List<Region> regions){sourceAllHits();}
+	
+	/**
+	 * Total hit weight in the whole source, as recorded in its index (or -1 if unknown; see countSourceHits()).
+	 * Lets region-restricted loading report genome-wide totals, so the total must apply the same filters and 
+	 * weights as sourceAllHits (a BAM index's aligned record count doesn't, so BAM sources report -1). 
+	 * @return
+	 */
+	public double getSourceHitCount(){return -1;}
 
 	
 //Shared methods
@@ -94,30 +135,55 @@ public abstract class HitLoader {
 	public void initialize(){
 		resetLoader();
 		
-		fivePrimePosList = new HashMap<String, ArrayList<Integer>[]>();
-		fivePrimeCountsList = new HashMap<String, ArrayList<Float>[]>();
+		fivePrimePosChunks = new HashMap<String, int[][]>();
+		fivePrimeCountsChunks = new HashMap<String, float[][]>();
+		chunkSizes = new HashMap<String, int[]>();
 		if(loadPairs)
 			hitPairsList = new HashMap<String, ArrayList<HitPair>[]>();
 	}
 	
+	/**
+	 * Total hit weight in the whole source, found by sourcing every hit without keeping them (or any pairs).
+	 * The count applies the same filters and weights as sourceAllHits, so it can stand in for getSourceHitCount() 
+	 * when the source doesn't record its total. It reads the whole source, but only needs memory for one chunk per 
+	 * chromosome & strand. The loader is reset afterwards, so call this once any loaded hits & pairs have been taken.
+	 * @param chroms : only count the hits on these chromosomes (null for all)
+	 * @return
+	 */
+	public double countSourceHits(final Collection<String> chroms){
+		final double[] total = {0};
+		HitSink loadSink = sink;
+		boolean loadP = loadPairs;
+		double loadedHits = totalHits;
+		loadPairs=false;
+		sink = new HitSink(){
+			public void addHits(String chrom, int strand, int[] pos, float[] counts, int n){
+				if(chroms==null || chroms.contains(chrom))
+					for(int i=0; i<n; i++)
+						total[0] += counts[i];
+			}
+		};
+		try{
+			sourceAllHits();
+			flushHits();
+		}finally{
+			resetLoader();
+			sink = loadSink;
+			loadPairs = loadP;
+			totalHits = loadedHits;
+		}
+		return total[0];
+	}
+	
 	/**
 	 * Reset the loaders -- destroy the lists and call the garbage collector
 	 */
 	public void resetLoader(){
 		//Free memory
-		if(fivePrimePosList!=null){
-			for(String chr: fivePrimePosList.keySet()){
-				fivePrimePosList.get(chr)[0].clear();
-				fivePrimePosList.get(chr)[1].clear();
-			}
-			fivePrimePosList.clear();
-		}
-		if(fivePrimeCountsList!=null){
-			for(String chr: fivePrimeCountsList.keySet()){
-				fivePrimeCountsList.get(chr)[0].clear();
-				fivePrimeCountsList.get(chr)[1].clear();
-			}
-			fivePrimeCountsList.clear();
+		if(fivePrimePosChunks!=null){
+			fivePrimePosChunks.clear();
+			fivePrimeCountsChunks.clear();
+			chunkSizes.clear();
 		}
 		if(loadPairs && hitPairsList!=null){
 			for(String chr: hitPairsList.keySet()){
@@ -130,35 +196,105 @@ public abstract class HitLoader {
 	}
 	
 	/**
-	 * 	Add hits to the list data structures.
-	 * 	It may be called multiple times to retrieve all the data, then populateArrays() is called 
+	 * 	Add hits to the chunk buffers.
+	 * 	It may be called multiple times to retrieve all the data, then flushHits() is called 
 	 */
 	protected void addHits(String chrom, char strand, Collection<Integer> coords, Collection<Float> counts){
 		int strandInd = strand == '+' ? 0 : 1;
-		if(!fivePrimePosList.containsKey(chrom))
-			addChr(chrom);
-		fivePrimePosList.get(chrom)[strandInd].addAll(coords);
-		fivePrimeCountsList.get(chrom)[strandInd].addAll(counts);
-		for (float c: counts)
-			totalHits += c;
+		Iterator<Integer> c = coords.iterator();
+		Iterator<Float> w = counts.iterator();
+		while(c.hasNext() && w.hasNext()){
+			float weight = w.next();
+			addHit(chrom, strandInd, c.next(), weight);
+			totalHits += weight;
+		}
 	}//end of addHits method
 	
 	/**
-	 * Add hits to the list data structures from a Read
+	 * Add hits to the chunk buffers from a Read
 	 * @param r Read
 	 */
 	protected void addHits(Read r){
 		for(ReadHit h : r.getHits()){
 			char strand = h.getStrand();
-			int strandInd = strand == '+' ? 0 : 1;
-			if(!fivePrimePosList.containsKey(h.getChrom()))
-				addChr(h.getChrom());
-			fivePrimePosList.get(h.getChrom())[strandInd].add(strand == '+' ?h.getStart():h.getEnd());
-			fivePrimeCountsList.get(h.getChrom())[strandInd].add(h.getWeight());
+			addHit(h.getChrom(), strand == '+' ? 0 : 1, strand == '+' ?h.getStart():h.getEnd(), h.getWeight());
 			totalHits++;
 		}
 	}//end of addHits method
 	
+	/**
+	 * Add a run of hits on one chromosome & strand from primitive arrays (weights are added to the totals)
+	 * @param chrom chromosome name
+	 * @param strand '+' or '-'
+	 * @param coords five prime positions
+	 * @param counts hit weights, matched to coords
+	 * @param n number of hits
+	 */
+	protected void addHits(String chrom, char strand, int[] coords, float[] counts, int n){
+		int strandInd = strand == '+' ? 0 : 1;
+		for(int i=0; i<n; i++){
+			addHit(chrom, strandInd, coords[i], counts[i]);
+			totalHits += counts[i];
+		}
+	}
+	
+	/**
+	 * Add a single hit of a Read without building the ReadHit & Read (counted in the totals as addHits(Read) would)
+	 * @param chrom chromosome name
+	 * @param strand '+' or '-'
+	 * @param fivePrime five prime position (start for '+', end for '-')
+	 * @param weight hit weight
+	 */
+	protected void addReadHit(String chrom, char strand, int fivePrime, float weight){
+		addHit(chrom, strand == '+' ? 0 : 1, fivePrime, weight);
+		totalHits++;
+	}
+	
+	/**
+	 * Add one hit to its chromosome & strand chunk, passing the chunk to the sink if it is full.
+	 * Chunks start small and grow to CHUNK_SIZE, so that genomes with many small contigs don't cost a full chunk per contig.
+	 */
+	private void addHit(String chrom, int strandInd, int pos, float weight){
+		int[][] pos2 = fivePrimePosChunks.get(chrom);
+		if(pos2==null){
+			addChr(chrom);
+			pos2 = fivePrimePosChunks.get(chrom);
+		}
+		float[][] counts2 = fivePrimeCountsChunks.get(chrom);
+		int[] sizes = chunkSizes.get(chrom);
+		int n = sizes[strandInd];
+		if(n==pos2[strandInd].length){
+			if(sink!=null && n>=CHUNK_SIZE){
+				sink.addHits(chrom, strandInd, pos2[strandInd], counts2[strandInd], n);
+				n=0;
+			}else{
+				int cap = (sink!=null) ? Math.min(CHUNK_SIZE, n*2) : n*2;
+				pos2[strandInd] = Arrays.copyOf(pos2[strandInd], cap);
+				counts2[strandInd] = Arrays.copyOf(counts2[strandInd], cap);
+			}
+		}
+		pos2[strandInd][n] = pos;
+		counts2[strandInd][n] = weight;
+		sizes[strandInd] = n+1;
+	}
+	
+	/**
+	 * Pass any buffered single-end hits to the HitSink. Call after sourceAllHits().
+	 */
+	public void flushHits(){
+		if(sink==null || fivePrimePosChunks==null)
+			return;
+		for(String chrom : fivePrimePosChunks.keySet()){
+			int[] sizes = chunkSizes.get(chrom);
+			for(int strandInd=0; strandInd<=1; strandInd++){
+				if(sizes[strandInd]>0){
+					sink.addHits(chrom, strandInd, fivePrimePosChunks.get(chrom)[strandInd], fivePrimeCountsChunks.get(chrom)[strandInd], sizes[strandInd]);
+					sizes[strandInd]=0;
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Add paired hit information to the list data structure
 	 * @param HitPair collection
@@ -193,15 +329,12 @@ public abstract class HitLoader {
 	 * @param chr String
 	 */
 	protected void addChr(String chr){
-		ArrayList<Integer>[] currIArrayList = new ArrayList[2];
-		currIArrayList[0]=new ArrayList<Integer>();
-		currIArrayList[1]=new ArrayList<Integer>();
-		fivePrimePosList.put(chr, currIArrayList);
-		ArrayList<Float>[] currFArrayList = new ArrayList[2];
-		currFArrayList[0]=new ArrayList<Float>();
-		currFArrayList[1]=new ArrayList<Float>();
-		fivePrimeCountsList.put(chr, currFArrayList);
-		if(loadPairs){
+		if(!fivePrimePosChunks.containsKey(chr)){
+			fivePrimePosChunks.put(chr, new int[][]{new int[256], new int[256]});
+			fivePrimeCountsChunks.put(chr, new float[][]{new float[256], new float[256]});
+			chunkSizes.put(chr, new int[2]);
+		}
+		if(loadPairs && !hitPairsList.containsKey(chr)){
 			ArrayList<HitPair>[] currPArrayList = new ArrayList[2];
 			currPArrayList[0]=new ArrayList<HitPair>();
 			currPArrayList[1]=new ArrayList<HitPair>();
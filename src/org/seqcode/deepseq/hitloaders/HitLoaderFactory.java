@@ -53,7 +53,7 @@ public class HitLoaderFactory {
 
 	/**
 	 * Add a File HitLoader. File formats accepted include:
-	 * SCIDX, NOVO, BOWTIE, BED, SAM, TOPSAM
+	 * SCIDX, NOVO, BOWTIE, BED, SAM, TOPSAM, BHIT
 	 * @param files List of File/String Pairs, where the string is a format descriptor
 	 */
 	public HitLoader makeFileHitLoader(String filename, String format, boolean useNonUnique){
@@ -72,6 +72,8 @@ public class HitLoaderFactory {
 			currReader = new BEDFileHitLoader(file,useNonUnique, econfig.getLoadType1Reads(), econfig.getLoadType2Reads(), econfig.getLoadPairs());
 		}else if(format.equals("SCIDX") || format.equals("IDX")){
 			currReader = new IDXFileHitLoader(file,useNonUnique, econfig.getLoadType1Reads(), econfig.getLoadType2Reads(), econfig.getLoadPairs());
+		}else if(format.equals("BHIT")){
+			currReader = new BinaryHitFileHitLoader(file,useNonUnique, econfig.getLoadType1Reads(), econfig.getLoadType2Reads(), econfig.getLoadPairs());
 		}else{
 		    System.err.println("Unknown file format: "+format);
 		    System.exit(1);
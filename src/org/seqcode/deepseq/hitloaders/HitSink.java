@@ -0,0 +1,21 @@
+package org.seqcode.deepseq.hitloaders;
+
+/**
+ * HitSink receives the single-end hits sourced by a HitLoader in primitive chunks, as they are loaded.
+ * A HitLoader passes its hits to the sink instead of holding every hit until loading is finished
+ * (see HitLoader.setHitSink()).
+ */
+public interface HitSink {
+
+	/**
+	 * Receive a chunk of hits from one chromosome and strand.
+	 * Hits are in the order they were loaded (i.e. not necessarily sorted), and the same position may appear more than once.
+	 * The loader reuses the arrays once this returns, so implementations must copy anything they keep.
+	 * @param chrom chromosome name
+	 * @param strand 0 for '+', 1 for '-'
+	 * @param pos five prime positions
+	 * @param counts hit weights, matched to pos
+	 * @param n number of hits in the chunk (the arrays may be longer)
+	 */
+	public void addHits(String chrom, int strand, int[] pos, float[] counts, int n);
+}
@@ -1,13 +1,8 @@
 package org.seqcode.deepseq.hitloaders;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 
-import org.seqcode.deepseq.Read;
-import org.seqcode.deepseq.ReadHit;
-
 
 /**
  * IDXFileHitLoader: a FileHitLoader from Galaxy-supported SCIDX format (i.e. Pugh lab IDX format). 
@@ -27,51 +22,33 @@ public class IDXFileHitLoader extends FileHitLoader {
 	
 	/**
 	 * Get the reads from the appropriate source (implementation-specific).
-	 * Loads data to the fivePrimesList and hitsCountList
+	 * Passes the hits to the HitSink (see HitLoader.addHits)
 	 * Nothing stored to hitPairsList, since IDX cannot store pairs. 
+	 * Lines are parsed in parallel (see FileHitLoader.sourceLines), and gzipped files are read directly.
 	 */
 	public void sourceAllHits() {
 		this.initialize();
 		try {
 			totalHits=0;
-			BufferedReader reader = new BufferedReader(new FileReader(file));
-			String line;
-			Read posRead=null, negRead=null;
-	        while ((line = reader.readLine()) != null) {
-	        	line = line.trim();
-	        	String[] words = line.split("\\s+");
-	        	if(line.charAt(0)!='#' && words.length>=4 && !words[0].equals("chrom")){
-		            String chr="."; char strand = '.';
-		            int fivePrime=0;
-		            float posWeight=0, negWeight=0;
-		            try{
-            			chr = words[0];
-            			String[] tmp = chr.split("\\.");
-            			chr=tmp[0].replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", "");
-            			chr=chr.replaceFirst("^>", "");
-            			fivePrime = new Integer(words[1]).intValue();
-            			posWeight = new Integer(words[2]).floatValue();
-            			negWeight = new Integer(words[3]).floatValue();
-            			if(posWeight>0){
-            				ReadHit posHit = new ReadHit(chr, fivePrime, fivePrime, '+', posWeight);
-            				posRead = new Read();
-            				//Add the hit, but don't update weight since the weight is used here for representing the read count
-            				posRead.addHit(posHit, false);
-            				addHits(posRead);
-            			}
-            			if(negWeight>0){
-            				ReadHit negHit = new ReadHit(chr, fivePrime, fivePrime, '-', negWeight);
-            				negRead = new Read();
-            				//Add the hit, but don't update weight since the weight is used here for representing the read count
-            				negRead.addHit(negHit, false);
-            				addHits(negRead);
-            			}
-	            	} catch (NumberFormatException e){
-	            		// skip reading this line for header or comment lines
-	           		}
-	    		}
-            }
-	        reader.close();
+			sourceLines(new AlignmentTextReader.LineParser(){
+				public void parse(AlignmentTextReader.Line line, AlignmentTextReader.ParsedHits hits){
+					if(line.firstChar()=='#' || line.numFields()<4 || line.fieldEquals(0, "chrom"))
+						return;
+					try{
+						String chr = line.chrom(0);
+						int fivePrime = line.parseInt(1);
+						float posWeight = line.parseInt(2);
+						float negWeight = line.parseInt(3);
+						//The weight represents the read count here
+						if(posWeight>0)
+							hits.add(chr, '+', fivePrime, posWeight);
+						if(negWeight>0)
+							hits.add(chr, '-', fivePrime, negWeight);
+					} catch (NumberFormatException e){
+						// skip reading this line for header or comment lines
+					}
+				}
+			}, false);
 		}
 		catch (IOException e) {
 			e.printStackTrace();
@@ -1,12 +1,8 @@
 package org.seqcode.deepseq.hitloaders;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-
-import org.seqcode.deepseq.Read;
-import org.seqcode.deepseq.ReadHit;
+import java.util.Arrays;
 
 
 /**
@@ -18,6 +14,12 @@ import org.seqcode.deepseq.ReadHit;
  */
 public class NovoFileHitLoader extends FileHitLoader {
 
+	//Alignments of the current read (consecutive lines with the same ID)
+	private int readSize=0;
+	private String[] readChroms = new String[16];
+	private char[] readStrands = new char[16];
+	private int[] readFivePrimes = new int[16];
+	
 	public NovoFileHitLoader(File f, boolean nonUnique, boolean loadT1Reads, boolean loadT2Reads, boolean loadPairs){
 		super(f, nonUnique, true, false, false, loadPairs);
 		if(!loadT1Reads || loadT2Reads)
@@ -28,69 +30,81 @@ public class NovoFileHitLoader extends FileHitLoader {
 		
 	/**
 	 * Get the reads from the appropriate source (implementation-specific).
-	 * Loads data to the fivePrimesList and hitsCountList
+	 * Passes the hits to the HitSink (see HitLoader.addHits)
 	 * Nothing loaded to hitPairsList since we do not load pairing information from NovoAlign format
+	 * Hits of the same read are on consecutive lines, so lines are parsed in order on one thread (gzipped files are read directly).
 	 */
 	public void sourceAllHits() {
 		this.initialize();
 		try {
 			int readLength=-1;
-			BufferedReader reader = new BufferedReader(new FileReader(file));
-			String line, lastID="";
+			AlignmentTextReader reader = new AlignmentTextReader(file, numThreads);
+			AlignmentTextReader.Line line = new AlignmentTextReader.Line(true);
+			AlignmentTextReader.Block block;
+			byte[] lastID = new byte[64];
+			int lastIDLen=-1;
 			float currReadHitCount=0;
-			Read currRead=null;
-	        while ((line = reader.readLine()) != null) {
-	        	line = line.trim();
-	        	if(line.charAt(0)!='#'){
-		            String[] words = line.split("\\t");
-		            String chr="."; char strand = '.';
-		            int start=0, end=0;
-		            
-		            String ID = words[0];
+			readSize=0;
+			while((block = reader.nextBlock())!=null){
+				line.reset(block);
+		        while (line.next()) {
+		        	if(line.firstChar()=='#' || line.numFields()<5)
+		        		continue;
 		            if(readLength==-1)
-	    				readLength = words[2].length();
+	    				readLength = line.fieldLength(2);
 		            
-	            	if(ID.equals(lastID)){
+	            	if(line.fieldEquals(0, lastID, lastIDLen)){
 	            		currReadHitCount++;
 	            	}else{
-	            		if(currRead!=null){
-	            			currRead.setNumHits(currReadHitCount);
-	            			//Add the hits to the data structure
-	            			addHits(currRead);
-	            			currRead=null;
-	            		}
-	            		currReadHitCount=1;            			
+	            		//Add the hits of the last read to the data structure (weighted by its number of alignments)
+	            		addRead(1/currReadHitCount);
+	            		currReadHitCount=1;
+	            		lastID = line.copyField(0, lastID);
+	            		lastIDLen = line.fieldLength(0);
 	            	}
-	            	String tag = words[4];
-	            	if(tag.equals("U") || (useNonUnique && words.length>9 && tag.charAt(0)=='R')){
-	            		int mis=0;
-		            	if(words.length>13 && words[13].length()>1){
-		            		mis = words[7].split(" ").length;
-		            	}
-            			chr = words[7];
-            			String[] tmp = chr.split("\\.");
-            			chr=tmp[0].replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", "");
-            			chr=chr.replaceFirst("^>", "");
-            			start = new Integer(words[8]).intValue();
-            			end =start+readLength-1;
-            			strand = words[9].equals("F") ? '+' : '-';
-    					ReadHit currHit = new ReadHit(chr, start, end, strand, 1);
-    					if(!ID.equals(lastID) || currRead==null){
-    						currRead = new Read();
-    	            	}currRead.addHit(currHit);
+	            	boolean unique = line.fieldEquals(4, "U");
+	            	boolean repeat = useNonUnique && line.numFields()>9 && line.fieldLength(4)>0 && line.charAt(4, 0)=='R';
+	            	if((unique || repeat) && line.numFields()>9){
+	            		try{
+	            			String chr = line.chrom(7);
+	            			int start = line.parseInt(8);
+	            			int end = start+readLength-1;
+	            			char strand = line.fieldEquals(9, "F") ? '+' : '-';
+	            			addToRead(chr, strand, strand=='+' ? start : end);
+	            		}catch(NumberFormatException e){
+	            			//skip malformed alignments
+	            		}
 	    			}
-	            	lastID=ID;
-	        	}
-            }
-	        if(currRead!=null){
-    			currRead.setNumHits(currReadHitCount);
-    			//Add the hits to the data structure
-    			addHits(currRead);
-    		}
+		        }
+			}
+	        addRead(1/currReadHitCount);
 	        reader.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}//end of countReads method
+	
+	/**
+	 * Add the hits of the current read (see addToRead), each with the given weight
+	 */
+	private void addRead(float weight){
+		for(int i=0; i<readSize; i++)
+			addReadHit(readChroms[i], readStrands[i], readFivePrimes[i], weight);
+		readSize=0;
+	}
+	/**
+	 * Add a hit to the current read
+	 */
+	private void addToRead(String chrom, char strand, int fivePrime){
+		if(readSize==readChroms.length){
+			readChroms = Arrays.copyOf(readChroms, readSize*2);
+			readStrands = Arrays.copyOf(readStrands, readSize*2);
+			readFivePrimes = Arrays.copyOf(readFivePrimes, readSize*2);
+		}
+		readChroms[readSize]=chrom;
+		readStrands[readSize]=strand;
+		readFivePrimes[readSize]=fivePrime;
+		readSize++;
+	}
 
 }//end of NovoFileReader class
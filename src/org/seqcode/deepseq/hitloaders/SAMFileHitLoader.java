@@ -2,13 +2,22 @@ package org.seqcode.deepseq.hitloaders;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.seqcode.deepseq.HitPair;
-import org.seqcode.deepseq.Read;
-import org.seqcode.deepseq.ReadHit;
+import org.seqcode.genome.location.Region;
+import org.seqcode.gseutils.ParallelBGZFInputStream;
 
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.ValidationStringency;
@@ -20,12 +29,22 @@ import htsjdk.samtools.util.CloseableIterator;
  * SAMFileHitLoader: A FileHitLoader for SAM and BAM files.
  * Accounts for uniqueness of hits according to user-specified option. 
  * Ignores secondary & supplementary (i.e. chimeric) alignments.
+ * 
+ * BAM files are decompressed on a pool of threads (see ParallelBGZFInputStream) while records are decoded and
+ * filtered on the loading thread. Chromosome names are normalized once per reference sequence, and hits go straight
+ * into the HitLoader's primitive buffers without building ReadHit & Read objects.
  * @author mahony
  *
  */
 public class SAMFileHitLoader extends FileHitLoader{
 
 	private boolean useChimericReads=false; //Ignore chimeric mappings for now. 
+	private String[] chromNames; //Normalized chromosome names, indexed by reference sequence index
+	//Alignments of the current read (consecutive records with the same name)
+	private int groupSize=0;
+	private String[] groupChroms = new String[16];
+	private int[] groupStarts = new int[16], groupEnds = new int[16];
+	private boolean[] groupNeg = new boolean[16];
 	
 	public SAMFileHitLoader(File f, boolean nonUnique, boolean loadT1Reads, boolean loadT2Reads, boolean loadRead2, boolean loadPairs) {
     	super(f, nonUnique, true, false, loadRead2, loadPairs);
@@ -35,18 +54,81 @@ public class SAMFileHitLoader extends FileHitLoader{
     
     /**
 	 * Get the reads from the appropriate source (implementation-specific).
-	 * Loads data to the fivePrimesList and hitsCountList
+	 * Passes the hits to the HitSink (see HitLoader.addHits)
 	 * Loads pairs to hitPairsList
 	 */
 	public void sourceAllHits() {
-		this.initialize();
+		sourceHits(null, false);
+	}
+	
+	/**
+	 * Indexed BAM files can be queried by region
+	 */
+	public boolean canSourceRegions(){
+		SamReader reader = openReader();
+		boolean indexed = reader.hasIndex();
+		closeReader(reader);
+		return indexed;
+	}
+	
+	/**
+	 * Get the reads overlapping the regions, using the BAM index to seek to them. 
+	 * Loads everything if the file is not indexed.
+	 * @param regions
+	 */
+	public void sourceHits(List<Region> regions){
+		sourceHits(regions, canSourceRegions());
+	}
+	
+	private SamReader openReader(){
 		SamReaderFactory factory =
 		          SamReaderFactory.makeDefault()
 		              .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS, SamReaderFactory.Option.VALIDATE_CRC_CHECKSUMS)
 		              .validationStringency(ValidationStringency.SILENT);
-		SamReader reader = factory.open(file);
-		CloseableIterator<SAMRecord> iter = reader.iterator();
-		Collection<SAMRecord> byRead = new ArrayList<SAMRecord>();
+		return factory.open(file);
+	}
+	private void closeReader(SamReader reader){
+		try {
+			reader.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Load the reads in the regions (if queryRegions), or all reads
+	 */
+	private void sourceHits(List<Region> regions, boolean queryRegions) {
+		this.initialize();
+		SamReader reader = openReader();
+		SAMFileHeader header = reader.getFileHeader();
+		chromNames = new String[header.getSequenceDictionary().size()];
+		HashMap<String, Integer> chromIndex = new HashMap<String, Integer>();
+		for(int i=0; i<chromNames.length; i++){
+			chromNames[i] = normalizeChrom(header.getSequence(i).getSequenceName());
+			chromIndex.put(chromNames[i], i);
+		}
+		
+		CloseableIterator<SAMRecord> iter;
+		if(queryRegions && regions!=null){
+			List<QueryInterval> intervals = new ArrayList<QueryInterval>();
+			for(Region r : regions)
+				if(chromIndex.containsKey(r.getChrom()))
+					intervals.add(new QueryInterval(chromIndex.get(r.getChrom()), Math.max(1, r.getStart()), r.getEnd()));
+			QueryInterval[] qi = intervals.toArray(new QueryInterval[intervals.size()]);
+			Arrays.sort(qi);
+			iter = reader.query(QueryInterval.optimizeIntervals(qi), false);
+		}else if(numThreads>1 && ParallelBGZFInputStream.isBGZF(file)){
+			try {
+				iter = new ParallelBAMIterator(header);
+			} catch (IOException e) {
+				e.printStackTrace();
+				iter = reader.iterator();
+			}
+		}else
+			iter = reader.iterator();
+		
+		groupSize=0;
 		String lastread = null;
 		while (iter.hasNext()) {
 		    SAMRecord record = iter.next();
@@ -55,55 +137,143 @@ public class SAMFileHitLoader extends FileHitLoader{
 		    if(record.isSecondaryOrSupplementary() && !useChimericReads){continue;}
 		    if(record.getReadPairedFlag() && record.getSecondOfPairFlag() && !loadRead2){continue;}
 		    	
-		    if (lastread == null || !lastread.equals(record.getReadName())) {
-		    	processRead(byRead);
-		    	byRead.clear();
+		    String readName = record.getReadName();
+		    if (lastread == null || !lastread.equals(readName)) {
+		    	processRead();
 		    }
-		    lastread = record.getReadName();
+		    lastread = readName;
 		    
-		    byRead.add(record); //Filter by first or second of pair here if loading by type1/2?
+		    addToRead(record); //Filter by first or second of pair here if loading by type1/2?
 
 		    //load pair if this is a first mate, congruent, proper pair
 		    if(loadPairs && record.getFirstOfPairFlag() && record.getProperPairFlag()){
 		    	boolean neg = record.getReadNegativeStrandFlag();
                 boolean mateneg = record.getMateNegativeStrandFlag();
                 HitPair hp = new HitPair((neg ? record.getAlignmentEnd() : record.getAlignmentStart()),
-                		record.getMateReferenceName().replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", ""),
+                		chromName(record.getMateReferenceIndex(), record.getMateReferenceName()),
                 		(mateneg ? record.getMateAlignmentStart()+record.getReadLength()-1 : record.getMateAlignmentStart()), 
                 		mateneg ? 1 : 0,
                 		1);
-                addPair(record.getReferenceName().replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", ""), neg ? '-':'+', hp);
+                addPair(chromName(record.getReferenceIndex(), record.getReferenceName()), neg ? '-':'+', hp);
 		    }
 	    }
 
-		processRead(byRead);
+		processRead();
 		iter.close();
-		try {
-			reader.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		closeReader(reader);
+    }//end of sourceHits method
+	
+	/**
+	 * Strip the chromosome name prefixes
+	 */
+	private String normalizeChrom(String name){
+		return name.replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", "");
+	}
+	/**
+	 * Normalized chromosome name, from the per-reference cache where possible
+	 */
+	private String chromName(Integer refIndex, String refName){
+		if(refIndex!=null && refIndex>=0 && refIndex<chromNames.length)
+			return chromNames[refIndex];
+		return normalizeChrom(refName);
+	}
+	
+	/**
+	 * Add a record's alignment to the current read
+	 */
+	private void addToRead(SAMRecord record){
+		if(groupSize==groupChroms.length){
+			int cap = groupSize*2;
+			groupChroms = Arrays.copyOf(groupChroms, cap);
+			groupStarts = Arrays.copyOf(groupStarts, cap);
+			groupEnds = Arrays.copyOf(groupEnds, cap);
+			groupNeg = Arrays.copyOf(groupNeg, cap);
 		}
-    }//end of sourceAllHits method
+		groupChroms[groupSize] = chromName(record.getReferenceIndex(), record.getReferenceName());
+		groupStarts[groupSize] = record.getAlignmentStart();
+		groupEnds[groupSize] = record.getAlignmentEnd();
+		groupNeg[groupSize] = record.getReadNegativeStrandFlag();
+		groupSize++;
+	}
     
-    protected void processRead(Collection<SAMRecord> records) {
-        int mapcount = records.size();
+	/**
+	 * Add the hits of the current read, weighted by the number of alignments, and start a new read 
+	 */
+    protected void processRead() {
+        int mapcount = groupSize;
+        groupSize=0;
         if(mapcount == 0)
             return;
         if(!useNonUnique && mapcount > 1)
             return;
         
         float weight = 1 / ((float)mapcount);
-        Read currRead = new Read();
-		for (SAMRecord record : records) {
-		    int start = record.getAlignmentStart();
-		    int end = record.getAlignmentEnd();
-		    ReadHit currHit = new ReadHit(
-						  record.getReferenceName().replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr", ""), 
-						  start, end, 
-						  record.getReadNegativeStrandFlag() ? '-' : '+',
-						  weight);
-		    currRead.addHit(currHit);
-		}currRead.setNumHits(mapcount);
-		addHits(currRead);
+		for (int i=0; i<mapcount; i++) {
+			char strand = groupNeg[i] ? '-' : '+';
+			addReadHit(groupChroms[i], strand, strand=='+' ? groupStarts[i] : groupEnds[i], weight);
+		}
     }//end of processRead
+    
+    /**
+     * Iterates over the records of a BAM file, decoding records from a ParallelBGZFInputStream 
+     */
+    private class ParallelBAMIterator implements CloseableIterator<SAMRecord>{
+    	private InputStream in;
+    	private BAMRecordCodec codec;
+    	private SAMRecord next;
+    	
+    	public ParallelBAMIterator(SAMFileHeader header) throws IOException{
+    		in = new ParallelBGZFInputStream(file, numThreads, true);
+    		skipHeader();
+    		codec = new BAMRecordCodec(header);
+    		codec.setInputStream(in, file.getName());
+    		next = codec.decode();
+    	}
+    	
+    	/**
+    	 * Skip the BAM header (magic, header text & reference sequences) - the header itself comes from htsjdk
+    	 */
+    	private void skipHeader() throws IOException{
+    		byte[] magic = readBytes(4);
+    		if(magic[0]!='B' || magic[1]!='A' || magic[2]!='M' || magic[3]!=1)
+    			throw new IOException("Not a BAM file: "+file.getName());
+    		readBytes(readInt());
+    		int numRefs = readInt();
+    		for(int i=0; i<numRefs; i++){
+    			readBytes(readInt());
+    			readInt();
+    		}
+    	}
+    	private int readInt() throws IOException{
+    		return ByteBuffer.wrap(readBytes(4)).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    	}
+    	private byte[] readBytes(int n) throws IOException{
+    		byte[] b = new byte[n];
+    		int r=0;
+    		while(r<n){
+    			int x = in.read(b, r, n-r);
+    			if(x<0)
+    				throw new IOException("Truncated BAM header: "+file.getName());
+    			r+=x;
+    		}
+    		return b;
+    	}
+    	
+		public boolean hasNext() {return next!=null;}
+		public SAMRecord next() {
+			if(next==null)
+				throw new NoSuchElementException();
+			SAMRecord curr = next;
+			next = codec.decode();
+			return curr;
+		}
+		public void remove() {throw new UnsupportedOperationException();}
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+    }
 }
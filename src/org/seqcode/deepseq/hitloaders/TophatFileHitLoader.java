@@ -33,7 +33,7 @@ public class TophatFileHitLoader extends FileHitLoader{
 
     /**
 	 * Get the reads from the appropriate source (implementation-specific).
-	 * Loads data to the fivePrimesList and hitsCountList
+	 * Passes the hits to the HitSink (see HitLoader.addHits)
 	 * Loads pairs to hitPairsList
 	 */
 	public void sourceAllHits() {
@@ -23,6 +23,7 @@ public abstract class BackgroundModel {
 	protected char strand='.';
 	protected boolean useThisExpt=true;
 	protected double scaling=1;
+	protected WindowSums sums=null; //Prefix sums over the current landscape (local models only)
 	
 	public BackgroundModel(int mtype, double lc, double r, double rl, double mr, double bw, char str){this(mtype, lc, r, rl, mr, bw, str, 1, true);}
 	public BackgroundModel(int mtype, double lc, double r, double rl, double mr, double bw, char str, double sc, boolean ute){
@@ -54,6 +55,7 @@ public abstract class BackgroundModel {
 	protected abstract float calcExpectedCount();
 	
 	//Update the threshold (depends on the type of model... local, etc)
+	//Window totals come from prefix sums that are only recalculated when a new hitCounts array is passed in
 	public void updateModel(Region currReg, int currOffset, float [] thisExptHitCounts, float [] otherExptHitCounts, float hitCountBinStep){
 		float [] hitCounts = useThisExpt ? thisExptHitCounts : otherExptHitCounts; 
 		if(hitCounts!=null){
@@ -63,9 +65,10 @@ public abstract class BackgroundModel {
 					expectedCount = calcExpectedCount();
 				}
 			}else if(modelType==0){//Current region
-				float sum=1;//pseudo count
-				for(int i=0; i<hitCounts.length; i++)
-					sum+=hitCounts[i];
+				if(sums==null)
+					sums = new WindowSums();
+				sums.setCounts(hitCounts);
+				float sum=sums.total(1);//pseudo count
 				totalReads = scaling*sum;
 				regionLength = currReg.getWidth();
 				mappableRegion=1.0;//Big assumption
@@ -77,10 +80,10 @@ public abstract class BackgroundModel {
 				int istop = currOffset+(win/2)>=currReg.getWidth() ? currReg.getWidth()-1 :currOffset+(win/2);
 				int istartbin = (int)(istart/hitCountBinStep);
 				int istopbin = (int)(istop/hitCountBinStep);
-				float sum=1;//pseudo count
-				for(int i=istartbin; i<=istopbin; i++){
-					sum+=hitCounts[i]; 
-				}
+				if(sums==null)
+					sums = new WindowSums();
+				sums.setCounts(hitCounts);
+				float sum=sums.sum(istartbin, istopbin, 1);//pseudo count
 				totalReads = scaling*sum;
 				regionLength=istop-istart+1;
 				//mappableRegion=1.0; //any need for this assumption?
@@ -1,8 +1,5 @@
 package org.seqcode.deepseq.stats;
 
-import cern.jet.random.Poisson;
-import cern.jet.random.engine.DRand;
-
 /**
  * PoissonBackgroundModel: A BackgroundModel using the Poisson model
  * @author Shaun Mahony
@@ -11,6 +8,7 @@ import cern.jet.random.engine.DRand;
 public class PoissonBackgroundModel extends BackgroundModel{
 
 	double lambda; 
+	PoissonThresholdCache thresholds=null; //Shared by all models with the same confidence threshold
 	
 	public PoissonBackgroundModel(int modelType, double logconfidence, double totalReads, double genomeLength, double mappableGenome, double binWidth, char strand, double scaling, boolean useThisExpt) {
 		super(modelType, logconfidence, totalReads, genomeLength, mappableGenome, binWidth, strand, scaling, useThisExpt);
@@ -31,19 +29,12 @@ public class PoissonBackgroundModel extends BackgroundModel{
 			return false;
 	}
 
-	//Set Poisson thresholds
+	//Set Poisson thresholds (looked up in the shared threshold cache)
 	protected int calcCountThreshold(){
-		int countThres=0;
-		DRand re = new DRand();
-		Poisson P = new Poisson(0, re);
+		if(thresholds==null)
+			thresholds = PoissonThresholdCache.forConfidence(confThreshold);
 		lambda = (totalReads*binWidth)/(regionLength*mappableRegion); 
-		P.setMean(lambda);
-		double l=1;
-		for(int b=1; l>confThreshold; b++){
-			l=1-P.cdf(b);
-			countThres=b;
-		}
-		return(Math.max(1,countThres));
+		return thresholds.getThreshold(lambda);
 	}
 	
 	protected float calcExpectedCount(){
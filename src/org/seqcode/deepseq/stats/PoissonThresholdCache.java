@@ -0,0 +1,98 @@
+package org.seqcode.deepseq.stats;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import cern.jet.stat.Probability;
+
+/**
+ * PoissonThresholdCache: shared, thread-safe lookup of Poisson count thresholds.
+ *
+ * The threshold for a given Poisson mean (lambda) is the smallest count b for which the upper tail 1-cdf(b) is
+ * no greater than the confidence threshold (minimum 1). Computing it walks the CDF from b=1, so it gets expensive
+ * for large lambda, and the background models ask for it over and over.
+ *
+ * The threshold is a non-decreasing step function of lambda, so lambda is quantized into buckets of width QUANTUM.
+ * If the thresholds at both ends of a bucket are equal, every lambda in the bucket has that threshold.
+ * Buckets that contain a step are marked as such, and lambdas that fall in them are computed (and cached) exactly.
+ * Either way, the result is the same as calcThreshold(lambda, confThreshold).
+ *
+ * @version	%I%, %G%
+ */
+public class PoissonThresholdCache {
+
+	public static final double QUANTUM = 1.0/256; //Power of two, so bucket edges are exact
+	private static final int MAX_ENTRIES = 1<<20; //Entries per table before it is cleared
+	private static final int MIXED = -1; //Bucket contains a step
+	private static final ConcurrentHashMap<Double, PoissonThresholdCache> caches = new ConcurrentHashMap<Double, PoissonThresholdCache>();
+
+	private final double confThreshold;
+	private final ConcurrentHashMap<Long, Integer> buckets = new ConcurrentHashMap<Long, Integer>(); //bucket index -> threshold (or MIXED)
+	private final ConcurrentHashMap<Long, Integer> exact = new ConcurrentHashMap<Long, Integer>(); //lambda bits -> threshold, for lambdas in MIXED buckets
+
+	private PoissonThresholdCache(double confThreshold){
+		this.confThreshold = confThreshold;
+	}
+
+	/**
+	 * Get the shared cache for a confidence threshold
+	 * @param confThreshold : maximum upper tail probability
+	 * @return
+	 */
+	public static PoissonThresholdCache forConfidence(double confThreshold){
+		PoissonThresholdCache c = caches.get(confThreshold);
+		if(c==null){
+			caches.putIfAbsent(confThreshold, new PoissonThresholdCache(confThreshold));
+			c = caches.get(confThreshold);
+		}
+		return c;
+	}
+
+	/**
+	 * Count threshold for a Poisson mean
+	 * @param lambda
+	 * @return
+	 */
+	public int getThreshold(double lambda){
+		if(Double.isNaN(lambda) || Double.isInfinite(lambda) || lambda<0)
+			return calcThreshold(lambda, confThreshold);
+
+		long b = (long)Math.floor(lambda/QUANTUM);
+		Integer t = buckets.get(b);
+		if(t==null){
+			int lo = calcThreshold(b*QUANTUM, confThreshold);
+			int hi = calcThreshold((b+1)*QUANTUM, confThreshold);
+			t = lo==hi ? lo : MIXED;
+			if(buckets.size()>=MAX_ENTRIES)
+				buckets.clear();
+			buckets.put(b, t);
+		}
+		if(t!=MIXED)
+			return t;
+
+		long bits = Double.doubleToLongBits(lambda);
+		t = exact.get(bits);
+		if(t==null){
+			t = calcThreshold(lambda, confThreshold);
+			if(exact.size()>=MAX_ENTRIES)
+				exact.clear();
+			exact.put(bits, t);
+		}
+		return t;
+	}
+
+	/**
+	 * Count threshold for a Poisson mean, computed directly by walking the CDF
+	 * @param lambda
+	 * @param confThreshold : maximum upper tail probability
+	 * @return
+	 */
+	public static int calcThreshold(double lambda, double confThreshold){
+		int countThres=0;
+		double l=1;
+		for(int b=1; l>confThreshold; b++){
+			l=1-Probability.poisson(b, lambda);
+			countThres=b;
+		}
+		return(Math.max(1,countThres));
+	}
+}
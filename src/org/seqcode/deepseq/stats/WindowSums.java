@@ -0,0 +1,81 @@
+package org.seqcode.deepseq.stats;
+
+/**
+ * WindowSums: prefix sums over a binned hit count landscape, so that the total in any window of bins
+ * can be read in constant time instead of being re-summed for every window.
+ *
+ * Window totals must equal the float sums that the background models used to calculate window by window, 
+ * since thresholds can flip on the last bit. Prefix sums are accumulated in double precision, which is exact 
+ * when every count is a whole number and the counts add up to no more than 2^24 (so every float partial sum 
+ * is exact too). Other landscapes (e.g. smoothed or 1/mapcount weighted counts) are summed window by window 
+ * in float, in the same order as before.
+ *
+ * @version	%I%, %G%
+ */
+public class WindowSums {
+
+	private float[] counts=null;
+	private double[] prefix = new double[1];
+	private boolean wholeCounts=true; //every count is a whole number
+	private double absTotal=0; //sum of absolute counts, which bounds every partial sum
+	private static final double MAX_EXACT = 1<<24; //float represents all integers up to here
+
+	public WindowSums(){}
+
+	/**
+	 * Point at a landscape, recalculating the prefix sums if it is not the current one.
+	 * The landscape arrays must not be modified while they are in use.
+	 * @param hitCounts
+	 */
+	public void setCounts(float[] hitCounts){
+		if(hitCounts==counts)
+			return;
+		counts = hitCounts;
+		if(prefix.length<hitCounts.length+1)
+			prefix = new double[hitCounts.length+1];
+		prefix[0]=0;
+		absTotal=0;
+		wholeCounts=true;
+		for(int i=0; i<hitCounts.length; i++){
+			prefix[i+1] = prefix[i]+hitCounts[i];
+			absTotal += Math.abs(hitCounts[i]);
+			if(hitCounts[i]!=Math.rint(hitCounts[i]))
+				wholeCounts=false;
+		}
+	}
+
+	//Accessors
+	public float[] getCounts(){return counts;}
+	public int length(){return counts==null ? 0 : counts.length;}
+
+	/**
+	 * Sum of bins startBin to stopBin (inclusive), plus a pseudo count
+	 * @param startBin
+	 * @param stopBin
+	 * @param pseudo
+	 * @return
+	 */
+	public float sum(int startBin, int stopBin, float pseudo){
+		if(startBin<0 || stopBin>=counts.length)
+			throw new ArrayIndexOutOfBoundsException(startBin<0 ? startBin : stopBin);
+		if(stopBin<startBin)
+			return pseudo;
+		if(!wholeCounts || pseudo!=Math.rint(pseudo) || absTotal+Math.abs(pseudo)>MAX_EXACT){
+			//Prefix sums might differ from the float sum in the last bits, so sum the window as before
+			float sum=pseudo;
+			for(int i=startBin; i<=stopBin; i++)
+				sum+=counts[i];
+			return sum;
+		}
+		return (float)(pseudo + (prefix[stopBin+1]-prefix[startBin]));
+	}
+
+	/**
+	 * Sum of all bins, plus a pseudo count
+	 * @param pseudo
+	 * @return
+	 */
+	public float total(float pseudo){
+		return sum(0, counts.length-1, pseudo);
+	}
+}
@@ -0,0 +1,58 @@
+package org.seqcode.deepseq.stats.unittests;
+
+import java.util.*;
+import org.junit.*;
+import org.seqcode.deepseq.stats.WindowSums;
+
+import static org.junit.Assert.*;
+
+/* WindowSums gives bit-for-bit the window totals of the float loop that the background models used to run */
+public class TestWindowSums {
+
+	private static int BINS = 20000;
+
+	/* the old per-window calculation */
+	private static float floatSum(float[] counts, int start, int stop, float pseudo){
+		float sum=pseudo;
+		for(int i=start; i<=stop; i++)
+			sum+=counts[i];
+		return sum;
+	}
+
+	private static void checkWindows(float[] counts, Random random){
+		WindowSums sums = new WindowSums();
+		sums.setCounts(counts);
+		assertEquals(Float.floatToIntBits(floatSum(counts, 0, counts.length-1, 1)), Float.floatToIntBits(sums.total(1)));
+		for(int w=0; w<5000; w++){
+			int start = random.nextInt(counts.length);
+			int stop = Math.min(counts.length-1, start+random.nextInt(2000));
+			assertEquals(Float.floatToIntBits(floatSum(counts, start, stop, 1)), Float.floatToIntBits(sums.sum(start, stop, 1)));
+		}
+	}
+
+	@Test public void testWholeCounts(){
+		Random random = new Random(5);
+		float[] counts = new float[BINS];
+		for(int i=0; i<BINS; i++)
+			counts[i] = random.nextInt(20);
+		checkWindows(counts, random);
+	}
+
+	/* 1/mapcount weights and Gaussian smoothing give fractional counts */
+	@Test public void testFractionalCounts(){
+		Random random = new Random(7);
+		float[] counts = new float[BINS];
+		for(int i=0; i<BINS; i++)
+			counts[i] = random.nextInt(20)/(float)(1+random.nextInt(7)) + (float)Math.abs(random.nextGaussian());
+		checkWindows(counts, random);
+	}
+
+	/* partial sums past 2^24 are rounded by the float loop */
+	@Test public void testLargeCounts(){
+		Random random = new Random(11);
+		float[] counts = new float[BINS];
+		for(int i=0; i<BINS; i++)
+			counts[i] = random.nextInt(5000);
+		checkWindows(counts, random);
+	}
+}
@@ -0,0 +1,101 @@
+package org.seqcode.deepseq.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.seqcode.deepseq.StrandedBaseBuffer;
+import org.seqcode.deepseq.experiments.ControlledExperiment;
+import org.seqcode.deepseq.experiments.ExperimentCondition;
+import org.seqcode.deepseq.experiments.ExperimentManager;
+import org.seqcode.deepseq.experiments.ExptConfig;
+import org.seqcode.deepseq.hitloaders.BinaryHitFileWriter;
+import org.seqcode.genome.GenomeConfig;
+import org.seqcode.genome.location.NamedRegion;
+import org.seqcode.gsebricks.verbs.location.ChromRegionIterator;
+import org.seqcode.gseutils.Args;
+
+
+/**
+ * Outputs a sorted & indexed binary hit file (load with --format BHIT) for each replicate of a deep-seq experiment.
+ * Binary hit files load quickly, and can be loaded for a set of regions only (see ExptConfig --regionload).
+ *
+ * Hits are exported as they are held in the experiment's HitCache, so per-base filtering is applied unless
+ * --nopbfilter is given.
+ *
+ * @version	%I%, %G%
+ */
+public class BinaryHitExporter {
+	protected ExperimentManager manager;
+	protected GenomeConfig gcon=null;
+	protected ExptConfig econ=null;
+	protected String outName="out";
+
+
+	public static void main(String[] args) {
+
+		BinaryHitExporter exporter = new BinaryHitExporter(args);
+		exporter.execute();
+		exporter.close();
+
+	}
+
+
+	public BinaryHitExporter(String [] args) {
+		if(args.length==0){
+			System.err.println("BinaryHitExporter usage:\n" +
+					GenomeConfig.getArgsList()+"\n"+
+					ExptConfig.getArgsList()+"\n"+
+					"BinaryHitExporter:\n"+
+					"\t--out <output file root>\n");
+			System.exit(1);
+		}else{
+			gcon = new GenomeConfig(args);
+			econ = new ExptConfig(gcon.getGenome(), args);
+			manager = new ExperimentManager(econ);
+
+			outName = Args.parseString(args,"out",outName);
+		}
+	}
+
+	public void execute(){
+		for(ExperimentCondition c : manager.getConditions()){
+			for(ControlledExperiment rep : c.getReplicates()){
+				System.err.println("Condition "+c.getName()+":\tRep "+rep.getName());
+				try {
+					BinaryHitFileWriter writer = new BinaryHitFileWriter(new File(outName+"."+c.getName()+"."+rep.getName()+".bhit"));
+					try{
+						//The hit buffer and the section arrays are reused across chromosomes & strands
+						StrandedBaseBuffer hits = new StrandedBaseBuffer();
+						int[] pos = new int[0];
+						float[] counts = new float[0];
+						ChromRegionIterator chroms = new ChromRegionIterator(gcon.getGenome());
+						while(chroms.hasNext()){
+							NamedRegion currentRegion = chroms.next();
+							for(char strand : new char[]{'+', '-'}){
+								int n = rep.getSignal().getStrandedBases(currentRegion, strand, hits);
+								if(n>pos.length){
+									pos = new int[n];
+									counts = new float[n];
+								}
+								for(int i=0; i<n; i++){
+									pos[i]=hits.getCoordinate(i);
+									counts[i]=hits.getCount(i);
+								}
+								writer.addSection(currentRegion.getChrom(), strand, pos, counts, n);
+							}
+						}
+					}finally{
+						writer.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public void close(){
+		if(manager!=null)
+			manager.close();
+	}
+}
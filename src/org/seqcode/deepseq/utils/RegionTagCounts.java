@@ -45,6 +45,8 @@ public class RegionTagCounts {
 		gConfig = gcon;
 		eConfig = econ;
 		testRegs = regs;
+		if(eConfig.getRegionLoad())
+			eConfig.setInitialCachedRegions(regs); //Only the hits in the regions are needed
 		manager = new ExperimentManager(eConfig);
 		outName = out;
 	}
@@ -1,12 +1,30 @@
 package org.seqcode.deepseq.utils;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.seqcode.deepseq.ReadHit;
+import org.seqcode.data.io.BigWigWriter;
+import org.seqcode.deepseq.StrandedBaseBuffer;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.experiments.ExptConfig;
 import org.seqcode.deepseq.experiments.Sample;
@@ -19,11 +37,13 @@ import org.seqcode.gsebricks.verbs.location.ChromRegionIterator;
 import org.seqcode.gseutils.ArgParser;
 import org.seqcode.gseutils.Args;
 import org.seqcode.gseutils.NotFoundException;
-import org.seqcode.gseutils.Pair;
 
 
 /**
- * Outputs a fixed-step WIG format file for a deep-seq experiment.
+ * Outputs the read coverage of a deep-seq experiment as a fixed-step WIG, bedGraph, or bigWig file.
+ * 
+ * Coverage is the number (weight) of extended reads overlapping each window. Chromosomes are processed 
+ * independently (in parallel with --threads), streaming each one's reads straight into the output format.
  * 
  * @author Shaun Mahony
  * @version	%I%, %G%
@@ -32,7 +52,6 @@ public class WIGExporter {
 	private Species org;
 	private Genome gen;
 	private Sample sample;
-	protected int [] stackedHitCounts;
 	private int winSize=20, winStep=20;
 	private int readLength=1, read5PrimeExt=0, read3PrimeExt=200;
 	private String outName="out";
@@ -40,8 +59,8 @@ public class WIGExporter {
 	private String trackDesc="out";
 	private String trackColor="0,0,255";
 	private int trackYMax=-1;
-	private int perBaseMax=-1;
-	private boolean needlefiltering=false;
+	private String format="wig";
+	private int threads=1;
 	private boolean cacheAllData;	
 	
 	public static void main(String[] args) throws SQLException, NotFoundException {
@@ -67,6 +86,8 @@ public class WIGExporter {
 					"\t--description <string to use as track description>\n" +
 					"\t--ylimit <default track y max>\n" +
 					"\t--color <R,G,B>\n" +
+					"\t--format <wig/bedgraph/bigwig>\n" +
+					"\t--threads <number of chromosomes to process at once>\n" +
 					"\t--out <output file name>");
 			System.exit(1);
 		}
@@ -83,11 +104,15 @@ public class WIGExporter {
 		read3PrimeExt = Args.parseInteger(args,"read3ext",read3PrimeExt);
 		readLength = Args.parseInteger(args,"readlen",readLength);
 		winSize = Args.parseInteger(args,"winsize",winSize);
+		format = Args.parseString(args,"format",format).toLowerCase();
+		threads = Args.parseInteger(args,"threads",threads);
+		if(!format.equals("wig") && !format.equals("bedgraph") && !format.equals("bigwig")){
+			System.err.println("WIGExporter: unknown format "+format);
+			System.exit(1);
+		}
 		
 		//General options processed directly by ExptConfig
-		
-		perBaseMax = (int)c.getPerBaseMax();
-		if(perBaseMax != -1){needlefiltering=true;}
+		//(including the per-base read limits, which are applied to the counts in the hit cache)
 		if(ap.hasKey("ylimit")){trackYMax=Args.parseInteger(args,"ylimit",-1);}
 	    winStep=winSize;
 	    ExperimentManager manager = new ExperimentManager(c);
@@ -127,96 +152,305 @@ public class WIGExporter {
 	}
 	
 	public void execute(){
+		if(trackName.equals("out"))
+			trackName=outName;
+		if(trackDesc.equals("out"))
+			trackDesc=outName;
+		
+		List<NamedRegion> chroms = new ArrayList<NamedRegion>();
+		ChromRegionIterator chromIter = new ChromRegionIterator(gen);
+		while(chromIter.hasNext())
+			chroms.add(chromIter.next());
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
 		try {
-			FileWriter fw = new FileWriter(outName+".wig");
-			
-			double basesDone=0, printStep=10000000,  numPrint=0;
-			if(trackName.equals("out"))
-				trackName=outName;
-			if(trackDesc.equals("out"))
-				trackDesc=outName;
-			
+			if(format.equals("bigwig"))
+				writeBigWig(chroms, pool);
+			else
+				writeText(chroms, pool);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally{
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Write WIG or bedGraph. Each chromosome is written to its own temporary file by a worker, 
+	 * and the files are appended to the output in chromosome order.
+	 */
+	protected void writeText(List<NamedRegion> chroms, ExecutorService pool) throws IOException{
+		final boolean bedGraph = format.equals("bedgraph");
+		final File outFile = new File(outName+(bedGraph ? ".bedgraph" : ".wig"));
+		final File tmpDir = outFile.getAbsoluteFile().getParentFile();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile), 1<<16);
+		try{
 			//Print the header
-			fw.write("track type=wiggle_0 name=\""+trackName+"\" description=\""+trackDesc+" summary\""+" visibility=full color="+trackColor+" ");
+			String header = "track type="+(bedGraph ? "bedGraph" : "wiggle_0")+" name=\""+trackName+"\" description=\""+trackDesc+" summary\""+" visibility=full color="+trackColor+" ";
 			if(trackYMax >0)
-				fw.write("autoScale=off viewLimits=0:"+trackYMax+" ");
-			fw.write("\n");
-			       			
-			ChromRegionIterator chroms = new ChromRegionIterator(gen);
-			while(chroms.hasNext()){
-				NamedRegion currentRegion = chroms.next();
-				
-				//Split the job up into chunks of 100Mbp
-				for(int x=currentRegion.getStart(); x<=currentRegion.getEnd(); x+=100000000){
-					int y = x+100000000; 
-					if(y>currentRegion.getEnd()){y=currentRegion.getEnd();}
-					Region currSubRegion = new Region(gen, currentRegion.getChrom(), x, y);
-					
-					ArrayList<ReadHit> hits = new ArrayList<ReadHit>();
-                    hits.addAll(sample.exportExtReadHits(currSubRegion, readLength, 0, read5PrimeExt, read3PrimeExt));
-                    double stackedHitCounts[] = makeHitLandscape(hits, currSubRegion, perBaseMax, '.');
-                    
-                    boolean recording=false;
-	                //Scan regions
-					for(int i=currSubRegion.getStart(); i<currSubRegion.getEnd()-(int)winSize; i+=(int)winStep){
-						Region currWin = new Region(gen, currentRegion.getChrom(), i, (int)(i+winSize-1));
-						
-						int binid = (int)Math.max(0, ((double)(currWin.getStart()-currSubRegion.getStart())/winStep));
-						double winHits=(double)stackedHitCounts[binid];
-						
-						if(winHits>0){
-							if(!recording){
-								fw.write("fixedStep chrom=chr"+currSubRegion.getChrom()+" start="+(i+1)+" step="+winStep+" span="+winSize+"\n");
-								recording=true;
+				header = header+"autoScale=off viewLimits=0:"+trackYMax+" ";
+			out.write((header+"\n").getBytes());
+			
+			LinkedList<Future<File>> running = new LinkedList<Future<File>>();
+			int next=0, written=0;
+			while(next<chroms.size() || !running.isEmpty()){
+				//Keep the workers busy, but only a few chromosomes ahead of the writer
+				while(next<chroms.size() && running.size()<Math.max(1, threads)){
+					final NamedRegion chrom = chroms.get(next++);
+					running.add(pool.submit(new Callable<File>(){
+						public File call() throws IOException{
+							File f = File.createTempFile("wigexport", ".tmp", tmpDir);
+							f.deleteOnExit();
+							Writer w = new BufferedWriter(new FileWriter(f), 1<<16);
+							try{
+								sweepChromosome(chrom, bedGraph ? new BedGraphHandler(chrom, w) : new WIGHandler(chrom, w));
+							}finally{
+								w.close();
 							}
-							fw.write(String.format("%.1f\n", winHits));
-						}else{
-							recording=false;
+							return f;
 						}
-						
-						//Print out progress
-						basesDone+=winStep;
-						if(basesDone > numPrint*printStep){
-							if(numPrint%10==0){System.out.print(String.format("(%.0f)", (numPrint*printStep)));}
-							else{System.out.print(".");}
-							if(numPrint%50==0 && numPrint!=0){System.out.print("\n");}
-							numPrint++;
+					}));
+				}
+				File f = getResult(running.removeFirst());
+				appendFile(f, out);
+				f.delete();
+				System.out.print("("+chroms.get(written++).getChrom()+")"); //Progress, in chromosome order
+			}
+			System.out.print("\n");
+		}finally{
+			out.close();
+		}
+	}
+	
+	/**
+	 * Write bigWig. Workers fill the data for each chromosome, and the chromosomes are written in name order, 
+	 * as the format requires.
+	 */
+	protected void writeBigWig(List<NamedRegion> chroms, ExecutorService pool) throws IOException{
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		final Map<String, NamedRegion> byName = new HashMap<String, NamedRegion>();
+		int maxSize=0;
+		for(NamedRegion c : chroms){
+			sizes.put("chr"+c.getChrom(), c.getEnd());
+			byName.put("chr"+c.getChrom(), c);
+			maxSize = Math.max(maxSize, c.getEnd());
+		}
+		List<String> names = new ArrayList<String>(byName.keySet());
+		Collections.sort(names);
+		
+		//Zoom levels from 4 windows up, each 4x the last
+		List<Integer> reductions = new ArrayList<Integer>();
+		for(long red=Math.max(4*winSize, 40); red<maxSize && reductions.size()<BigWigWriter.MAX_ZOOM_LEVELS; red*=4)
+			reductions.add((int)red);
+		int[] red = new int[reductions.size()];
+		for(int z=0; z<red.length; z++)
+			red[z]=reductions.get(z);
+		
+		final BigWigWriter bw = new BigWigWriter(new File(outName+".bw"), sizes, red);
+		try{
+			LinkedList<Future<BigWigWriter.Chrom>> running = new LinkedList<Future<BigWigWriter.Chrom>>();
+			int next=0, written=0;
+			while(next<names.size() || !running.isEmpty()){
+				while(next<names.size() && running.size()<Math.max(1, threads)){
+					final String name = names.get(next++);
+					running.add(pool.submit(new Callable<BigWigWriter.Chrom>(){
+						public BigWigWriter.Chrom call() throws IOException{
+							BigWigWriter.Chrom c = bw.startChrom(name);
+							sweepChromosome(byName.get(name), new BigWigHandler(c));
+							c.finish();
+							return c;
 						}
-					}
+					}));
 				}
+				bw.write(getResult(running.removeFirst()));
+				System.out.print("("+byName.get(names.get(written++)).getChrom()+")"); //Progress, in chromosome order
 			}
 			System.out.print("\n");
-			fw.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		}finally{
+			bw.close();
+		}
+	}
+	
+	/**
+	 * Receives the coverage of a chromosome as runs of consecutive windows with the same value
+	 */
+	protected interface CoverageHandler{
+		/**
+		 * @param startBin first window of the run
+		 * @param endBin window after the last window of the run
+		 * @param value number (weight) of extended reads overlapping each window of the run
+		 */
+		public void run(int startBin, int endBin, double value) throws IOException;
+		public void finish() throws IOException;
+	}
+	
+	/**
+	 * Sweep the extended reads of a chromosome, reporting the number of reads overlapping each window.
+	 * Read extents only depend on their 5' positions, and the hits of each strand are sorted by 5' position, 
+	 * so the window where each read starts and the window after it ends are both sorted too. 
+	 * Merging those four streams gives the coverage change points without allocating per-read or per-base arrays.  
+	 */
+	protected void sweepChromosome(NamedRegion chrom, CoverageHandler h) throws IOException{
+		StrandedBaseBuffer plus = new StrandedBaseBuffer(), minus = new StrandedBaseBuffer();
+		Region r = new Region(gen, chrom.getChrom(), chrom.getStart(), chrom.getEnd());
+		sample.getStrandedBases(r, '+', plus);
+		sample.getStrandedBases(r, '-', minus);
+		int len = chrom.getEnd();
+		int np=plus.size(), nm=minus.size();
+		int ps=0, pe=0, ms=0, me=0;
+		int active=0, runStart=0;
+		double value=0;
+		while(pe<np || me<nm){
+			int next = Integer.MAX_VALUE;
+			if(ps<np) next = Math.min(next, startBin(plus.getCoordinate(ps), '+', len));
+			if(ms<nm) next = Math.min(next, startBin(minus.getCoordinate(ms), '-', len));
+			if(pe<np) next = Math.min(next, endBin(plus.getCoordinate(pe), '+', len));
+			if(me<nm) next = Math.min(next, endBin(minus.getCoordinate(me), '-', len));
+			
+			if(active>0 && value>0 && next>runStart)
+				h.run(runStart, next, value);
+			
+			while(ps<np && startBin(plus.getCoordinate(ps), '+', len)==next){ value+=plus.getCount(ps); active++; ps++; }
+			while(ms<nm && startBin(minus.getCoordinate(ms), '-', len)==next){ value+=minus.getCount(ms); active++; ms++; }
+			while(pe<np && endBin(plus.getCoordinate(pe), '+', len)==next){ value-=plus.getCount(pe); active--; pe++; }
+			while(me<nm && endBin(minus.getCoordinate(me), '-', len)==next){ value-=minus.getCount(me); active--; me++; }
+			if(active==0)
+				value=0; //Don't let rounding error accumulate between islands of reads
+			runStart=next;
+		}
+		h.finish();
+	}
+	//Window containing the first base of an extended read
+	private int startBin(int fivePrime, char strand, int chromLen){
+		int s = strand=='+' ? fivePrime-read5PrimeExt : fivePrime-readLength+1-read3PrimeExt;
+		return (inBounds(s, 1, chromLen)-1)/winStep;
+	}
+	//Window after the one containing the last base of an extended read
+	private int endBin(int fivePrime, char strand, int chromLen){
+		int e = strand=='+' ? fivePrime+readLength-1+read3PrimeExt : fivePrime+read5PrimeExt;
+		return (inBounds(e, 1, chromLen)-1)/winStep+1;
+	}
+	
+	/**
+	 * Fixed-step WIG lines, one per covered window. Windows that run past the end of the chromosome aren't written.  
+	 */
+	protected class WIGHandler implements CoverageHandler{
+		NamedRegion chrom;
+		Writer w;
+		int lastBin=-2, maxBins;
+		StringBuilder sb = new StringBuilder();
+		WIGHandler(NamedRegion chrom, Writer w){
+			this.chrom = chrom;
+			this.w = w;
+			maxBins = Math.max(0, (chrom.getEnd()-winSize-1+winStep-1)/winStep);
+		}
+		public void run(int startBin, int endBin, double value) throws IOException{
+			sb.setLength(0);
+			appendValue(sb, value);
+			sb.append('\n');
+			String line = sb.toString();
+			for(int b=startBin; b<Math.min(endBin, maxBins); b++){
+				if(b!=lastBin+1)
+					w.write("fixedStep chrom=chr"+chrom.getChrom()+" start="+(b*winStep+2)+" step="+winStep+" span="+winSize+"\n");
+				w.write(line);
+				lastBin=b;
+			}
+		}
+		public void finish(){}
+	}
+	
+	/**
+	 * bedGraph lines, merging adjacent windows with the same value
+	 */
+	protected class BedGraphHandler implements CoverageHandler{
+		NamedRegion chrom;
+		Writer w;
+		int start=-1, end=-1;
+		float value;
+		StringBuilder sb = new StringBuilder();
+		BedGraphHandler(NamedRegion chrom, Writer w){
+			this.chrom = chrom;
+			this.w = w;
+		}
+		public void run(int startBin, int endBin, double v) throws IOException{
+			int s = startBin*winStep, e = (int)Math.min((long)endBin*winStep, chrom.getEnd());
+			if(s==end && (float)v==value){
+				end=e;
+				return;
+			}
+			finish();
+			start=s; end=e; value=(float)v;
+		}
+		public void finish() throws IOException{
+			if(start<0)
+				return;
+			sb.setLength(0);
+			sb.append("chr").append(chrom.getChrom()).append('\t').append(start).append('\t').append(end).append('\t');
+			appendValue(sb, value);
+			sb.append('\n');
+			w.write(sb.toString());
+			start=-1;
+		}
+	}
+	
+	/**
+	 * bigWig intervals, merging adjacent windows with the same value
+	 */
+	protected class BigWigHandler implements CoverageHandler{
+		BigWigWriter.Chrom c;
+		int start=-1, end=-1;
+		float value;
+		BigWigHandler(BigWigWriter.Chrom c){
+			this.c = c;
+		}
+		public void run(int startBin, int endBin, double v){
+			int s = startBin*winStep, e = (int)Math.min((long)endBin*winStep, c.getSize());
+			if(s==end && (float)v==value){
+				end=e;
+				return;
+			}
+			finish();
+			start=s; end=e; value=(float)v;
+		}
+		public void finish(){
+			if(start>=0)
+				c.add(start, end, value);
+			start=-1;
+		}
+	}
+	
+	//Values are usually whole read counts, which don't need String.format
+	private static void appendValue(StringBuilder sb, double v){
+		if(v==Math.rint(v) && Math.abs(v)<1e15)
+			sb.append((long)v).append(".0");
+		else
+			sb.append(String.format("%.1f", v));
+	}
+	
+	private static <T> T getResult(Future<T> f) throws IOException{
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	private static void appendFile(File f, OutputStream out) throws IOException{
+		InputStream in = new FileInputStream(f);
+		try{
+			byte[] buf = new byte[1<<16];
+			int n;
+			while((n=in.read(buf))>0)
+				out.write(buf, 0, n);
+		}finally{
+			in.close();
 		}
 	}
 	
-	protected double[] makeHitLandscape(ArrayList<ReadHit> hits, Region currReg, int perBaseMax, char strand){
-        int numBins = (int)(currReg.getWidth()/winStep);
-        double[] landscape = new double[numBins+1];
-        double[] startcounts = new double[(int)currReg.getWidth()+1];
-        for(int i=0; i<=numBins; i++){landscape[i]=0;}
-        for(int i=0; i<=currReg.getWidth(); i++){startcounts[i]=0;}
-        for(ReadHit r : hits){
-            if(strand=='.' || r.getStrand()==strand){
-                int offset5=inBounds(r.getFivePrime()-currReg.getStart(),0,currReg.getWidth());
-                if(!needlefiltering || (startcounts[offset5] <= perBaseMax)){
-                    int binstart = inBounds((int)((double)(r.getStart()-currReg.getStart())/winStep), 0, numBins);
-                    int binend =  inBounds((int)((double)(r.getEnd()-currReg.getStart())/winStep), 0, numBins);
-                    for(int i=binstart; i<=binend; i++){
-                        landscape[i]+=r.getWeight();
-                    }
-                    if(needlefiltering && (startcounts[offset5]+r.getWeight() > perBaseMax))
-                    	startcounts[offset5]=perBaseMax;
-                    else
-                    	startcounts[offset5]+=r.getWeight();
-                }
-            }
-        }
-        return(landscape);
-    }
 	//keep the number in bounds
 	protected final double inBounds(double x, double min, double max){
 		if(x<min){return min;}
@@ -162,7 +162,7 @@ public class GenomeConfig {
 				"\tOR\n" +
 				"\t--geninfo <genome info file>" +
 				"Genome Sequence Caching:" +
-				"\t--seq <fasta seq directory>\n" +
+				"\t--seq <fasta seq directory, or packed genome file (see PackedGenomeSequence)>\n" +
 				""));
 	}
 }
@@ -0,0 +1,364 @@
+package org.seqcode.genome.sequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.seqcode.gseutils.ArgParser;
+
+
+/**
+ * <code>IndexedFastaSequence</code>: random access to a FASTA file through a samtools-compatible .fai index.
+ *
+ * The index is read from the FASTA path plus ".fai" if it is at least as new as the FASTA file.
+ * Otherwise it is built with one pass over the file and written there (if the directory is writable).
+ * As with samtools, every line of a sequence except the last must have the same length; gzipped FASTA can't be indexed.
+ *
+ * Regions are read with positioned reads on the file channel, through a bounded LRU cache of file blocks that is
+ * shared by all open FASTA files (see setCacheBlocks()). So no chromosome is held in memory, reading a region
+ * costs time in proportion to the region's width, and one instance can serve any number of threads.
+ *
+ * Sequence names are the header up to the first whitespace (as samtools), and chromosome names are those names
+ * with any chromosome/chrom/chr prefix removed, as in SequenceGenerator.
+ */
+public class IndexedFastaSequence {
+
+	public static final String INDEX_EXTENSION = ".fai";
+	public static final int BLOCK_BITS = 16; //64KB blocks
+	public static final int BLOCK_SIZE = 1<<BLOCK_BITS;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final AtomicInteger nextId = new AtomicInteger(0);
+	private static int maxCacheBlocks = 256; //16MB
+	private static final LinkedHashMap<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(1024, 0.75f, true){
+		protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest){
+			return size()>maxCacheBlocks;
+		}
+	};
+
+	private final int id = nextId.getAndIncrement();
+	private File file;
+	private FileChannel channel;
+	private long fileLength;
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(); //by chromosome name
+
+	public static void main(String[] args) {
+		ArgParser ap = new ArgParser(args);
+		if(!ap.hasKey("fasta")) {
+			System.err.println("Usage:\n" +
+					"IndexedFastaSequence " +
+					"--fasta <FASTA file> (writes the "+INDEX_EXTENSION+" index next to the file)");
+			return;
+		}
+		try {
+			File f = new File(ap.getKeyValue("fasta"));
+			List<Entry> index = buildIndex(f);
+			writeIndex(index, indexFile(f));
+			System.err.println("Indexed "+index.size()+" sequences in "+f.getName());
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Open an indexed FASTA file, reading or building its index
+	 * @param f
+	 * @throws IOException if the file can't be indexed
+	 */
+	public IndexedFastaSequence(File f) throws IOException{
+		file = f;
+		File fai = indexFile(f);
+		List<Entry> index;
+		if(fai.isFile() && fai.lastModified()>=f.lastModified()){
+			index = readIndex(fai);
+		}else{
+			index = buildIndex(f);
+			try{
+				writeIndex(index, fai);
+			}catch(IOException e){
+				System.err.println("Couldn't write FASTA index "+fai.getPath()+"; keeping it in memory");
+			}
+		}
+		for(Entry e : index){
+			String chrom = e.name.replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr","");
+			if(!entries.containsKey(chrom))
+				entries.put(chrom, e);
+		}
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		channel = raf.getChannel();
+		fileLength = channel.size();
+	}
+
+	/**
+	 * Set the number of blocks held by the shared block cache
+	 * @param n
+	 */
+	public static void setCacheBlocks(int n){
+		synchronized(blocks){
+			maxCacheBlocks = Math.max(1, n);
+			if(blocks.size()>maxCacheBlocks)
+				blocks.clear();
+		}
+	}
+
+	//Accessors
+	public File getFile(){return file;}
+	public boolean hasChrom(String chrom){return entries.containsKey(chrom);}
+	public List<String> getChromNames(){return new ArrayList<String>(entries.keySet());}
+	public int getChromLength(String chrom){return entries.containsKey(chrom) ? (int)entries.get(chrom).length : -1;}
+
+	/**
+	 * Get the sequence of part of a chromosome.
+	 * 1-based, including start and end (as SequenceGenerator)
+	 * @param chrom chromosome name
+	 * @param start
+	 * @param end
+	 * @return the sequence, or null if the chromosome is not in the file
+	 * @throws StringIndexOutOfBoundsException if the region is not within the chromosome
+	 * @throws IOException
+	 */
+	public String getSequence(String chrom, int start, int end) throws IOException{
+		Entry e = entries.get(chrom);
+		if(e==null)
+			return null;
+		long s0 = start-1, e0 = end; //0-based, end exclusive
+		if(s0<0 || e0>e.length || s0>e0)
+			throw new StringIndexOutOfBoundsException("Region "+chrom+":"+start+"-"+end+" is outside the chromosome (length "+e.length+")");
+		int n = (int)(e0-s0);
+		byte[] seq = new byte[n];
+		if(n==0)
+			return "";
+
+		long from = e.position(s0), to = e.position(e0-1)+1;
+		byte[] raw = read(from, (int)(to-from));
+		int col = (int)(s0%e.lineBases), i=0, r=0;
+		while(i<n){
+			int len = Math.min(e.lineBases-col, n-i);
+			System.arraycopy(raw, r, seq, i, len);
+			i+=len;
+			r+=len+(e.lineWidth-e.lineBases);
+			col=0;
+		}
+		return new String(seq, LATIN1);
+	}
+
+	/**
+	 * Read bytes from the file through the block cache
+	 */
+	private byte[] read(long pos, int len) throws IOException{
+		byte[] out = new byte[len];
+		int done=0;
+		while(done<len){
+			long p = pos+done;
+			byte[] b = getBlock(p>>BLOCK_BITS);
+			int off = (int)(p&(BLOCK_SIZE-1));
+			int n = Math.min(len-done, b.length-off);
+			if(n<=0)
+				throw new IOException("Unexpected end of "+file.getName());
+			System.arraycopy(b, off, out, done, n);
+			done+=n;
+		}
+		return out;
+	}
+
+	private byte[] getBlock(long b) throws IOException{
+		Long key = ((long)id<<40)|b;
+		synchronized(blocks){
+			byte[] x = blocks.get(key);
+			if(x!=null)
+				return x;
+		}
+		//Read outside the lock; positioned reads don't move the channel, so they are safe between threads
+		long start = b<<BLOCK_BITS;
+		ByteBuffer buf = ByteBuffer.allocate((int)Math.min(BLOCK_SIZE, fileLength-start));
+		while(buf.hasRemaining())
+			if(channel.read(buf, start+buf.position())<0)
+				break;
+		byte[] x = buf.array();
+		synchronized(blocks){
+			blocks.put(key, x);
+		}
+		return x;
+	}
+
+	public void close() throws IOException{
+		channel.close();
+		synchronized(blocks){
+			Iterator<Long> it = blocks.keySet().iterator();
+			while(it.hasNext())
+				if((it.next()>>>40)==id)
+					it.remove();
+		}
+	}
+
+	public static File indexFile(File fasta){return new File(fasta.getPath()+INDEX_EXTENSION);}
+
+	/**
+	 * Read a samtools .fai index
+	 * @param fai
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Entry> readIndex(File fai) throws IOException{
+		List<Entry> index = new ArrayList<Entry>();
+		BufferedReader br = new BufferedReader(new FileReader(fai));
+		try{
+			String line;
+			while((line = br.readLine())!=null){
+				if(line.length()==0)
+					continue;
+				String[] f = line.split("\t");
+				if(f.length<5)
+					throw new IOException("Malformed FASTA index line in "+fai.getName()+": "+line);
+				try{
+					index.add(new Entry(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), Integer.parseInt(f[3]), Integer.parseInt(f[4])));
+				}catch(NumberFormatException e){
+					throw new IOException("Malformed FASTA index line in "+fai.getName()+": "+line);
+				}
+			}
+		}finally{
+			br.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Write a samtools .fai index
+	 * @param index
+	 * @param fai
+	 * @throws IOException
+	 */
+	public static void writeIndex(List<Entry> index, File fai) throws IOException{
+		PrintWriter pw = new PrintWriter(new FileWriter(fai));
+		try{
+			for(Entry e : index)
+				pw.print(e.name+"\t"+e.length+"\t"+e.offset+"\t"+e.lineBases+"\t"+e.lineWidth+"\n");
+		}finally{
+			pw.close();
+		}
+		if(pw.checkError())
+			throw new IOException("Error writing "+fai.getPath());
+	}
+
+	/**
+	 * Build a .fai index with one pass over a FASTA file
+	 * @param f
+	 * @return
+	 * @throws IOException if the file is gzipped or its line lengths vary within a sequence
+	 */
+	public static List<Entry> buildIndex(File f) throws IOException{
+		if(f.getName().endsWith(".gz"))
+			throw new IOException("Can't index gzipped FASTA file "+f.getName());
+		List<Entry> index = new ArrayList<Entry>();
+		InputStream in = new BufferedInputStream(new FileInputStream(f), 1<<20);
+		try{
+			byte[] buf = new byte[1<<20];
+			StringBuilder header = null; //Non-null while reading a header line
+			Entry curr = null;
+			long pos=0;
+			long lineStart=0;
+			int lineBases=0; //Bases in the current line so far
+			boolean endOfSeq=false; //A short or blank line has been seen in the current sequence
+			int r;
+			while((r=in.read(buf))>0){
+				for(int i=0; i<r; i++, pos++){
+					byte c = buf[i];
+					if(header!=null){
+						if(c=='\n'){
+							curr = startEntry(header, pos+1);
+							index.add(curr);
+							header = null;
+							lineStart = pos+1;
+							lineBases=0;
+							endOfSeq=false;
+						}else if(c!='\r')
+							header.append((char)(c&0xff));
+					}else if(c=='\n'){
+						int width = (int)(pos+1-lineStart);
+						if(curr!=null)
+							endOfSeq = endLine(f, curr, lineBases, width, endOfSeq, false);
+						lineStart = pos+1;
+						lineBases=0;
+					}else if(c=='>' && pos==lineStart){
+						header = new StringBuilder();
+					}else if(c!='\r'){
+						if(curr!=null && endOfSeq)
+							throw new IOException("Different line length in sequence '"+curr.name+"' of "+f.getName());
+						lineBases++;
+					}
+				}
+			}
+			if(header!=null)
+				index.add(startEntry(header, pos));
+			else if(curr!=null && lineBases>0)
+				endLine(f, curr, lineBases, (int)(pos-lineStart), endOfSeq, true);
+		}finally{
+			in.close();
+		}
+		return index;
+	}
+
+	private static Entry startEntry(StringBuilder header, long offset){
+		String name = header.toString().trim().split("\\s+")[0];
+		return new Entry(name, 0, offset, 0, 0);
+	}
+
+	/**
+	 * Add a sequence line to an entry. The last line of the file may have no line terminator.
+	 * @return true if this line ends the sequence (it is shorter than the first line, or blank)
+	 */
+	private static boolean endLine(File f, Entry e, int lineBases, int width, boolean endOfSeq, boolean lastLine) throws IOException{
+		if(lineBases==0)
+			return true;
+		if(e.lineBases==0){
+			e.lineBases = lineBases;
+			e.lineWidth = width;
+		}else if(lineBases>e.lineBases || (lineBases==e.lineBases && width!=e.lineWidth && !lastLine))
+			throw new IOException("Different line length in sequence '"+e.name+"' of "+f.getName());
+		e.length += lineBases;
+		return endOfSeq || lineBases<e.lineBases;
+	}
+
+	/**
+	 * One line of a .fai index
+	 */
+	public static class Entry{
+		String name;
+		long length;
+		long offset; //File offset of the first base
+		int lineBases, lineWidth; //Bases per line, and bytes per line including the line terminator
+
+		Entry(String name, long length, long offset, int lineBases, int lineWidth){
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+		}
+
+		public String getName(){return name;}
+		public long getLength(){return length;}
+
+		/** file offset of a 0-based position */
+		long position(long p){
+			return offset + (p/lineBases)*lineWidth + p%lineBases;
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package org.seqcode.genome.sequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.seqcode.gseutils.ArgParser;
+
+
+/**
+ * <code>PackedGenomeSequence</code>: a genome sequence packed at 2 bits per base and memory-mapped.
+ *
+ * Build a packed genome once from FASTA with the main method, and give the packed file (or a directory holding
+ * DEFAULT_FILE_NAME) to SequenceGenerator.setGenomePath() or GenomeConfig --seq.
+ * Regions are read straight from the mapped file, so no chromosome is held in memory, and reading a region
+ * costs time in proportion to the region's width. Instances are immutable once opened, so one instance can
+ * serve any number of threads.
+ *
+ * Only A, C, G and T are packed. Any other character (N, IUPAC codes, etc.) is stored as a run of that character,
+ * and lowercase (soft-masked) bases are stored as runs, so getSequence() returns exactly the sequence in the FASTA file.
+ * Chromosome names are the FASTA headers with any chromosome/chrom/chr prefix removed, as in SequenceGenerator.
+ *
+ * Layout (big-endian):
+ * - Header: MAGIC, VERSION, number of chromosomes (ints), directory offset (long)
+ * - Bases: for each chromosome, (length+3)/4 bytes, 4 bases per byte with the first base in the high bits (A=0, C=1, G=2, T=3)
+ * - Directory: for each chromosome, the name (UTF), length (int), offset of the bases (long),
+ *   the other-character runs (count, then starts, lengths and characters) and the soft-mask runs (count, then starts and lengths).
+ *   Run starts are 0-based.
+ */
+public class PackedGenomeSequence {
+
+	public static final int MAGIC = 0x53514750; //"SQGP"
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 4+4+4+8;
+	public static final String DEFAULT_FILE_NAME = "genome.pgs";
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final byte[] BASES = {'A', 'C', 'G', 'T'};
+	private static final byte[][] DECODE = new byte[256][4];
+	static{
+		for(int b=0; b<256; b++)
+			for(int k=0; k<4; k++)
+				DECODE[b][k] = BASES[(b>>(6-2*k))&3];
+	}
+
+	private File file;
+	private LinkedHashMap<String, Chrom> chroms = new LinkedHashMap<String, Chrom>();
+
+	public static void main(String[] args) {
+		ArgParser ap = new ArgParser(args);
+		if(!ap.hasKey("fasta") || !ap.hasKey("out")) {
+			System.err.println("Usage:\n" +
+					"PackedGenomeSequence " +
+					"--fasta <FASTA file or directory of FASTA files (.fa, .fasta, optionally .gz)> " +
+					"--out <packed genome file (use "+DEFAULT_FILE_NAME+" to be found by directory)> ");
+			return;
+		}
+		File in = new File(ap.getKeyValue("fasta"));
+		List<File> fastas = new ArrayList<File>();
+		if(in.isDirectory()){
+			for(File f : in.listFiles()){
+				String name = f.getName().replaceFirst("\\.gz$", "");
+				if(f.isFile() && (name.endsWith(".fa") || name.endsWith(".fasta")))
+					fastas.add(f);
+			}
+			Collections.sort(fastas);
+		}else
+			fastas.add(in);
+		try {
+			build(fastas, new File(ap.getKeyValue("out")));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Open a packed genome, reading its directory and mapping its bases
+	 * @param f
+	 * @throws IOException
+	 */
+	public PackedGenomeSequence(File f) throws IOException{
+		file = f;
+		long dirOffset;
+		int numChroms;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+		try{
+			if(in.readInt()!=MAGIC)
+				throw new IOException(f.getName()+" is not a packed genome file");
+			int version = in.readInt();
+			if(version!=VERSION)
+				throw new IOException(f.getName()+" has unsupported packed genome version "+version);
+			numChroms = in.readInt();
+			dirOffset = in.readLong();
+			long skip = dirOffset-HEADER_BYTES;
+			while(skip>0){
+				long s = in.skip(skip);
+				if(s<=0)
+					throw new IOException("Truncated packed genome file "+f.getName());
+				skip-=s;
+			}
+			for(int i=0; i<numChroms; i++){
+				Chrom c = new Chrom();
+				c.name = in.readUTF();
+				c.length = in.readInt();
+				c.offset = in.readLong();
+				c.otherStarts = readInts(in, in.readInt());
+				c.otherLengths = readInts(in, c.otherStarts.length);
+				c.otherChars = new byte[c.otherStarts.length];
+				in.readFully(c.otherChars);
+				c.maskStarts = readInts(in, in.readInt());
+				c.maskLengths = readInts(in, c.maskStarts.length);
+				chroms.put(c.name, c);
+			}
+		}finally{
+			in.close();
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try{
+			FileChannel channel = raf.getChannel();
+			for(Chrom c : chroms.values())
+				c.bases = channel.map(FileChannel.MapMode.READ_ONLY, c.offset, ((long)c.length+3)/4);
+		}finally{
+			raf.close(); //Mappings stay valid after the channel is closed
+		}
+	}
+
+	/**
+	 * Does the file start with the packed genome magic number?
+	 * @param f
+	 * @return
+	 */
+	public static boolean isPackedGenome(File f){
+		try{
+			DataInputStream in = new DataInputStream(new FileInputStream(f));
+			try{
+				return in.readInt()==MAGIC;
+			}finally{
+				in.close();
+			}
+		}catch(IOException e){
+			return false;
+		}
+	}
+
+	//Accessors
+	public File getFile(){return file;}
+	public boolean hasChrom(String chrom){return chroms.containsKey(chrom);}
+	public List<String> getChromNames(){return new ArrayList<String>(chroms.keySet());}
+	public int getChromLength(String chrom){return chroms.containsKey(chrom) ? chroms.get(chrom).length : -1;}
+
+	/**
+	 * Get the sequence of part of a chromosome.
+	 * 1-based, including start and end (as SequenceGenerator)
+	 * @param chrom chromosome name
+	 * @param start
+	 * @param end
+	 * @return the sequence, or null if the chromosome is not in the genome
+	 * @throws StringIndexOutOfBoundsException if the region is not within the chromosome
+	 */
+	public String getSequence(String chrom, int start, int end){
+		Chrom c = chroms.get(chrom);
+		if(c==null)
+			return null;
+		int s0 = start-1, e0 = end; //0-based, end exclusive
+		if(s0<0 || e0>c.length || s0>e0)
+			throw new StringIndexOutOfBoundsException("Region "+chrom+":"+start+"-"+end+" is outside the chromosome (length "+c.length+")");
+		int n = e0-s0;
+		byte[] seq = new byte[n];
+
+		//Packed bases (absolute gets only, so the buffer is shared safely between threads)
+		int p=s0, i=0;
+		while(i<n){
+			byte[] d = DECODE[c.bases.get(p>>2)&0xff];
+			for(int k=p&3; k<4 && i<n; k++, p++)
+				seq[i++] = d[k];
+		}
+		//Other characters
+		for(int r=firstRun(c.otherStarts, c.otherLengths, s0); r<c.otherStarts.length && c.otherStarts[r]<e0; r++){
+			int rs = Math.max(s0, c.otherStarts[r]), re = Math.min(e0, c.otherStarts[r]+c.otherLengths[r]);
+			Arrays.fill(seq, rs-s0, re-s0, c.otherChars[r]);
+		}
+		//Soft-masking
+		for(int r=firstRun(c.maskStarts, c.maskLengths, s0); r<c.maskStarts.length && c.maskStarts[r]<e0; r++){
+			int rs = Math.max(s0, c.maskStarts[r]), re = Math.min(e0, c.maskStarts[r]+c.maskLengths[r]);
+			for(int x=rs-s0; x<re-s0; x++)
+				if(seq[x]>='A' && seq[x]<='Z')
+					seq[x] += 'a'-'A';
+		}
+		return new String(seq, LATIN1);
+	}
+
+	/**
+	 * Index of the first run that ends after pos (runs are sorted and don't overlap)
+	 */
+	private static int firstRun(int[] starts, int[] lengths, int pos){
+		int r = Arrays.binarySearch(starts, pos);
+		if(r<0)
+			r = -r-2; //Last run starting before pos
+		if(r<0)
+			return 0;
+		return starts[r]+lengths[r]>pos ? r : r+1;
+	}
+
+	private static int[] readInts(DataInputStream in, int n) throws IOException{
+		int[] x = new int[n];
+		for(int i=0; i<n; i++)
+			x[i] = in.readInt();
+		return x;
+	}
+
+	/**
+	 * Build a packed genome from FASTA files (optionally gzipped).
+	 * Lines are trimmed and joined as by FASTAStream. If a chromosome appears more than once, the first is kept.
+	 * @param fastas
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void build(List<File> fastas, File out) throws IOException{
+		Builder b = new Builder(out);
+		try{
+			for(File f : fastas){
+				System.err.println("Packing "+f.getName());
+				InputStream in = new BufferedInputStream(new FileInputStream(f), 1<<20);
+				if(f.getName().endsWith(".gz"))
+					in = new GZIPInputStream(in, 1<<16);
+				try{
+					b.read(in);
+				}finally{
+					in.close();
+				}
+			}
+		}finally{
+			b.close();
+		}
+		System.err.println("Packed "+b.written.size()+" chromosomes to "+out.getName());
+	}
+
+	/**
+	 * Streams FASTA bytes into a packed genome file, one chromosome at a time
+	 */
+	private static class Builder{
+		File file;
+		DataOutputStream out;
+		long offset=HEADER_BYTES;
+		List<Chrom> written = new ArrayList<Chrom>();
+		HashMap<String, Chrom> names = new HashMap<String, Chrom>();
+		//Current chromosome
+		Chrom curr=null;
+		boolean skip=false;
+		int length=0;
+		int packed=0;
+		RunList others, masks;
+
+		Builder(File f) throws IOException{
+			file = f;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<20));
+			out.write(new byte[HEADER_BYTES]);
+		}
+
+		/**
+		 * Read one FASTA stream. Lines end at '\n' or '\r' and are trimmed; whitespace inside a sequence line is kept.
+		 */
+		void read(InputStream in) throws IOException{
+			byte[] buf = new byte[1<<20];
+			byte[] header = new byte[256];
+			int headerLen=0;
+			int state=0; //0: line start, 1: header line, 2: sequence line
+			int pendingSpace=0;
+			byte[] spaces = new byte[256];
+			int r;
+			while((r=in.read(buf))>0){
+				for(int i=0; i<r; i++){
+					byte c = buf[i];
+					if(c=='\n' || c=='\r'){
+						if(state==1)
+							startChrom(header, headerLen);
+						state=0;
+						pendingSpace=0;
+					}else if(state==0){
+						if((c&0xff)<=' ')
+							continue;
+						if(c=='>'){
+							state=1;
+							headerLen=0;
+						}else{
+							state=2;
+							addBase(c);
+						}
+					}else if(state==1){
+						if(headerLen==header.length)
+							header = Arrays.copyOf(header, headerLen*2);
+						header[headerLen++]=c;
+					}else{
+						if((c&0xff)<=' '){ //Trailing whitespace is trimmed, so hold it until the next base
+							if(pendingSpace==spaces.length)
+								spaces = Arrays.copyOf(spaces, pendingSpace*2);
+							spaces[pendingSpace++]=c;
+						}else{
+							for(int k=0; k<pendingSpace; k++)
+								addBase(spaces[k]);
+							pendingSpace=0;
+							addBase(c);
+						}
+					}
+				}
+			}
+			if(state==1)
+				startChrom(header, headerLen);
+		}
+
+		void startChrom(byte[] header, int len) throws IOException{
+			endChrom();
+			while(len>0 && (header[len-1]&0xff)<=' ') //Only the end is trimmed, as by FASTAStream
+				len--;
+			String name = new String(header, 0, len, LATIN1).replaceFirst("^chromosome", "").replaceFirst("^chrom", "").replaceFirst("^chr","");
+			curr = new Chrom();
+			curr.name = name;
+			curr.offset = offset;
+			skip = names.containsKey(name);
+			if(skip)
+				System.err.println("Chromosome "+name+" appears more than once; keeping the first");
+			length=0;
+			packed=0;
+			others = new RunList();
+			masks = new RunList();
+		}
+
+		void addBase(byte c) throws IOException{
+			if(curr==null || skip) //Sequence before the first header is ignored, as by FASTAStream
+				return;
+			if(length==Integer.MAX_VALUE)
+				throw new IOException("Chromosome "+curr.name+" is too long to pack");
+			boolean lower = c>='a' && c<='z';
+			byte upper = lower ? (byte)(c-('a'-'A')) : c;
+			int code;
+			switch(upper){
+				case 'A': code=0; break;
+				case 'C': code=1; break;
+				case 'G': code=2; break;
+				case 'T': code=3; break;
+				default: code=0; others.add(length, upper);
+			}
+			if(lower)
+				masks.add(length, (byte)0);
+			packed = (packed<<2)|code;
+			length++;
+			if((length&3)==0){
+				out.write(packed);
+				packed=0;
+			}
+		}
+
+		void endChrom() throws IOException{
+			if(curr==null || skip)
+				return;
+			if((length&3)!=0)
+				out.write(packed<<(2*(4-(length&3))));
+			curr.length = length;
+			curr.otherStarts = Arrays.copyOf(others.starts, others.n);
+			curr.otherLengths = Arrays.copyOf(others.lengths, others.n);
+			curr.otherChars = Arrays.copyOf(others.chars, others.n);
+			curr.maskStarts = Arrays.copyOf(masks.starts, masks.n);
+			curr.maskLengths = Arrays.copyOf(masks.lengths, masks.n);
+			offset += ((long)length+3)/4;
+			written.add(curr);
+			names.put(curr.name, curr);
+			curr=null;
+			others=null;
+			masks=null;
+		}
+
+		/**
+		 * Write the directory and the real header, and close the file
+		 */
+		void close() throws IOException{
+			endChrom();
+			long dirOffset = offset;
+			for(Chrom c : written){
+				out.writeUTF(c.name);
+				out.writeInt(c.length);
+				out.writeLong(c.offset);
+				out.writeInt(c.otherStarts.length);
+				for(int x : c.otherStarts)
+					out.writeInt(x);
+				for(int x : c.otherLengths)
+					out.writeInt(x);
+				out.write(c.otherChars);
+				out.writeInt(c.maskStarts.length);
+				for(int x : c.maskStarts)
+					out.writeInt(x);
+				for(int x : c.maskLengths)
+					out.writeInt(x);
+			}
+			out.close();
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try{
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeInt(written.size());
+				raf.writeLong(dirOffset);
+			}finally{
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Runs of a character, built a base at a time
+	 */
+	private static class RunList{
+		int n=0;
+		int[] starts = new int[64], lengths = new int[64];
+		byte[] chars = new byte[64];
+
+		void add(int pos, byte c){
+			if(n>0 && chars[n-1]==c && starts[n-1]+lengths[n-1]==pos){
+				lengths[n-1]++;
+				return;
+			}
+			if(n==starts.length){
+				starts = Arrays.copyOf(starts, n*2);
+				lengths = Arrays.copyOf(lengths, n*2);
+				chars = Arrays.copyOf(chars, n*2);
+			}
+			starts[n]=pos;
+			lengths[n]=1;
+			chars[n]=c;
+			n++;
+		}
+	}
+
+	private static class Chrom{
+		String name;
+		int length;
+		long offset;
+		MappedByteBuffer bases;
+		int[] otherStarts, otherLengths;
+		byte[] otherChars;
+		int[] maskStarts, maskLengths;
+	}
+}
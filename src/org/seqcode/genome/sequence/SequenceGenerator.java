@@ -3,6 +3,7 @@ package org.seqcode.genome.sequence;
 import java.io.IOException;
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.sql.*;
 
 import org.seqcode.data.connections.DatabaseConnectionManager;
@@ -22,6 +23,11 @@ import org.seqcode.gseutils.*;
  * sequence included in that Region.
  * 
  * 1-based genome
+ * 
+ * If the genome path is a packed genome (see PackedGenomeSequence), or a directory holding one,
+ * local sequence is read from the packed genome a region at a time, and whole chromosomes are not cached.
+ * Otherwise, local FASTA files are read a region at a time through their .fai index (see IndexedFastaSequence),
+ * which is built if it doesn't exist. Files that can't be indexed (e.g. gzipped) are cached a chromosome at a time, as before.
  */
 public class SequenceGenerator<X extends Region> implements Mapper<X,String>, SelfDescribingVerb {
 
@@ -32,6 +38,11 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     private String genomePath = null;
     private boolean genomePathIsFullGenomeFile=false;
     private int maxQuery = -1;
+    private PackedGenomeSequence packed = null;
+    private static Map<String,PackedGenomeSequence> packedGenomes = new HashMap<String,PackedGenomeSequence>();
+    private static Map<String,IndexedFastaSequence> indexedFastas = new HashMap<String,IndexedFastaSequence>(); //null if the file can't be indexed
+    private Map<String,IndexedFastaSequence> chromFastas = new ConcurrentHashMap<String,IndexedFastaSequence>(); //indexed FASTA per chromosome
+    private Set<String> chromsWithoutFasta = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>()); //chromosomes without one
 
     private static Map<String, String[]> regionCache;
     private static Map<String, int[]> regionStarts;
@@ -62,6 +73,8 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     }
     public void setGenomePath(String genomePath){
     	this.genomePath = genomePath;
+    	chromFastas.clear();
+    	chromsWithoutFasta.clear();
     	File test = new File(genomePath);
     	if(!test.exists()){
     		System.err.println("Genome sequence directory/file does not exist!");
@@ -72,9 +85,95 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     		//	genomePathIsFullGenomeFile=true;
     		if(test.isFile())
     			genomePathIsFullGenomeFile=true;
+    		File packedFile = test.isDirectory() ? new File(test, PackedGenomeSequence.DEFAULT_FILE_NAME) : test;
+    		if(packedFile.isFile() && PackedGenomeSequence.isPackedGenome(packedFile))
+    			packed = openPackedGenome(packedFile);
+    	}
+    }
+    
+    /** open a packed genome, sharing one mapping per file between generators */
+    private static PackedGenomeSequence openPackedGenome(File f){
+    	synchronized(packedGenomes) {
+    		String key = f.getAbsolutePath();
+    		if (!packedGenomes.containsKey(key)) {
+    			try {
+    				packedGenomes.put(key, new PackedGenomeSequence(f));
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    				System.exit(1);
+    			}
+    		}
+    		return packedGenomes.get(key);
+    	}
+    }
+    
+    /** open an indexed FASTA file, sharing one index per file between generators */
+    private static IndexedFastaSequence openIndexedFasta(File f){
+    	synchronized(indexedFastas) {
+    		String key = f.getAbsolutePath();
+    		if (!indexedFastas.containsKey(key)) {
+    			IndexedFastaSequence fasta = null;
+    			try {
+    				fasta = new IndexedFastaSequence(f);
+    			} catch (IOException e) {
+    				System.err.println("Can't index "+f.getName()+" ("+e.getMessage()+"); caching whole chromosomes instead");
+    			}
+    			indexedFastas.put(key, fasta);
+    		}
+    		return indexedFastas.get(key);
     	}
     }
     
+    /** the local FASTA file that should hold this chromosome */
+    private File chromFile(Genome g, String chrom){
+    	if (genomePath==null)
+    		genomePath = "/scratch/" + g.getVersion();
+    	File f=null;
+        if(genomePathIsFullGenomeFile){
+        	f = new File(genomePath);
+        }else{
+        	f = new File( genomePath + "/chr" + chrom + ".fa");
+            if (!f.exists())
+                f = new File( genomePath+ "/chr" + chrom + ".fasta");
+            if (!f.exists())
+                f = new File( genomePath+ "/" + chrom + ".fa");
+            if (!f.exists())
+                f = new File( genomePath+ "/" + chrom + ".fasta");
+            if (!f.exists())
+                f = new File( genomePath+ "/chromosome" + chrom + ".fa");
+            if (!f.exists())
+                f = new File( genomePath+ "/chromosome" + chrom + ".fasta");
+            if (!f.exists())
+                f = new File( genomePath+ "/chrom" + chrom + ".fa");
+            if (!f.exists())
+                f = new File( genomePath+ "/chrom" + chrom + ".fasta");
+        }
+        return f;
+    }
+    
+    /** the indexed local FASTA file for this chromosome, or null if there isn't one (looked up once per chromosome) */
+    private IndexedFastaSequence indexedFasta(Genome g, String chrom){
+    	IndexedFastaSequence fasta = chromFastas.get(chrom);
+    	if (fasta != null || chromsWithoutFasta.contains(chrom))
+    		return fasta;
+    	File f = chromFile(g, chrom);
+    	fasta = f.isFile() ? openIndexedFasta(f) : null;
+    	if (fasta != null)
+    		chromFastas.put(chrom, fasta);
+    	else
+    		chromsWithoutFasta.add(chrom);
+    	return fasta;
+    }
+    
+    /** can regions be read from local files without caching whole chromosomes? */
+    private boolean hasRegionAccess(Region r){
+    	if (!useLocalFiles)
+    		return false;
+    	if (packed != null)
+    		return true;
+    	return indexedFasta(r.getGenome(), r.getChrom()) != null;
+    }
+    
     /** cache the whole chromosome of this region */
     private void cache(X region) throws SQLException, IOException {
         int chromid = region.getGenome().getChromID(region.getChrom());
@@ -85,28 +184,7 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
         }
         String chromseq = null;
         if (useLocalFiles) {
-        	if (genomePath==null)
-        		genomePath = "/scratch/" + region.getGenome().getVersion();
-        	File f=null;
-            if(genomePathIsFullGenomeFile){
-            	f = new File(genomePath);
-            }else{
-	        	f = new File( genomePath + "/chr" + region.getChrom() + ".fa");
-	            if (!f.exists())
-	                f = new File( genomePath+ "/chr" + region.getChrom() + ".fasta");
-	            if (!f.exists())
-	                f = new File( genomePath+ "/" + region.getChrom() + ".fa");
-	            if (!f.exists())
-	                f = new File( genomePath+ "/" + region.getChrom() + ".fasta");
-	            if (!f.exists())
-	                f = new File( genomePath+ "/chromosome" + region.getChrom() + ".fa");
-	            if (!f.exists())
-	                f = new File( genomePath+ "/chromosome" + region.getChrom() + ".fasta");
-	            if (!f.exists())
-	                f = new File( genomePath+ "/chrom" + region.getChrom() + ".fa");
-	            if (!f.exists())
-	                f = new File( genomePath+ "/chrom" + region.getChrom() + ".fasta");
-            }
+        	File f = chromFile(region.getGenome(), region.getChrom());
             
             if (f.exists()) {
                 FASTAStream stream = new FASTAStream(f);
@@ -160,7 +238,16 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
 	        try {
 	            Genome genome = region.getGenome();
 	            int chromid = genome.getChromID(chromname);
-	            if (useCache) {
+	            IndexedFastaSequence fasta = null;
+	            if (packed != null && useLocalFiles) {
+	            	//Read only this region from the packed genome (falls back to the database for missing chromosomes)
+	            	if (packed.hasChrom(chromname))
+	            		result = packed.getSequence(chromname, region.getStart(), region.getEnd());
+	            } else if (useLocalFiles && (fasta = indexedFasta(genome, chromname)) != null) {
+	            	//Read only this region from the indexed FASTA (falls back to the database for missing chromosomes)
+	            	if (fasta.hasChrom(chromname))
+	            		result = fasta.getSequence(chromname, region.getStart(), region.getEnd());
+	            } else if (useCache) {
 	                cache(region);
 	                String chromString = null;
 	                synchronized(cache) {
@@ -219,6 +306,8 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
      * Setup light-weight region cache of genome sequences, cover only the specified regions<br>
      * So that it does not cache the whole chromosome, save memory space. <br>
      * At the same time, retrieve some one-time sequences in rs.
+     * If regions can be read directly from a packed genome or indexed FASTA file, nothing is cached, 
+     * and only the one-time sequences are retrieved.
      * @param regions sorted, non-overlapping regions for cache
      * @param rs regions for one-time sequence retrieval
      */
@@ -226,6 +315,15 @@ public class SequenceGenerator<X extends Region> implements Mapper<X,String>, Se
     	ArrayList<String> seqs = new ArrayList<String>();
     	if (regions==null||regions.isEmpty())
     		return null;    	
+    	if (hasRegionAccess(regions.get(0))){
+    		String[] result = new String[rs.size()];
+    		for (int i=0;i<result.length;i++){
+    			@SuppressWarnings("unchecked")
+    			X r = (X)rs.get(i);
+    			result[i]=execute(r);
+    		}
+    		return result;
+    	}
     	Collections.sort(regions);
     	
 		// group one-time regions by chrom
@@ -1,55 +1,52 @@
 package org.seqcode.gsebricks.verbs.motifs;
 
 import org.seqcode.data.motifdb.*;
-import org.seqcode.genome.location.Region;
-import org.seqcode.genome.sequence.SequenceUtils;
 import org.seqcode.gsebricks.verbs.Mapper;
 
 public class PerBaseMotifMatch implements Mapper<String,Double[]> {
 	 
     private WeightMatrix matrix;
+    private WeightMatrixMultiScanner scanner;
     private char[] hitStrands;
     
     public PerBaseMotifMatch(WeightMatrix matrix) {
         this.matrix = matrix;
+        scanner = new WeightMatrixMultiScanner(matrix, Float.NEGATIVE_INFINITY);
     }
 
     public Double[] execute(String sequence) {
-        return execute(sequence.toCharArray());
+        return execute(WeightMatrixMultiScanner.encode(sequence));
     }
     public Double[] execute(char[] sequence) {
+        return execute(WeightMatrixMultiScanner.encode(sequence));
+    }
+    /**
+     * Scores both strands of an encoded sequence (see WeightMatrixMultiScanner.encode()).
+     * Index i holds the best score of the windows starting at i; the last length entries are 0 
+     * unless the reverse strand scores above 0 at the last window.
+     */
+    public Double[] execute(byte[] sequence) {
         Double[] results = new Double[sequence.length];
         hitStrands = new char[sequence.length];
 
-        /* scan through the sequence */
         int length = matrix.length();
+        int n = Math.max(0, sequence.length - length + 1);
+        float[] fscores = new float[n], rscores = new float[n];
+        scanner.scoreAll(sequence, 0, fscores, rscores);
         for (int i = 0; i < sequence.length - length; i++) {
-            double score = 0;
-            for (int j = 0; j < length; j++) {
-                score += matrix.matrix[j][sequence[i+j]];
-            }
-            results[i] = score;
+            results[i] = (double)fscores[i];
             hitStrands[i]='+';
         }
-        for (int i = sequence.length - length; i < sequence.length; i++) {
+        for (int i = Math.max(0, sequence.length - length); i < sequence.length; i++) {
             results[i] = 0.0;
         }
-        /* now reverse complement the sequence and scan that.
-           basically the same as before but with slightly different
-           computation of the hit coordinates */
-        SequenceUtils.reverseComplement(sequence);
-        for (int i = 0; i < sequence.length - length; i++) {
-            double score = 0;
-            for (int j = 0; j < length; j++) {
-                score += matrix.matrix[j][sequence[i+j]];
+        // reverse strand windows, as scanned on the reverse complement (which never reaches the first window)
+        for (int i = 1; i < n; i++) {
+            if (rscores[i] > results[i]) {
+                results[i] = (double)rscores[i];
+                hitStrands[i]='-';
             }
-            int realindex = sequence.length - i - length;
-            if (score > results[realindex]) {
-                results[realindex] = score;
-                hitStrands[realindex]='-';
-            }
-        }        
-        SequenceUtils.reverseComplement(sequence);
+        }
         return results;
     }
     public char [] getHitStrands(){return hitStrands;}
@@ -5,7 +5,6 @@ import java.util.*;
 import org.seqcode.data.motifdb.*;
 import org.seqcode.genome.location.Region;
 import org.seqcode.genome.sequence.SequenceGenerator;
-import org.seqcode.genome.sequence.SequenceUtils;
 import org.seqcode.gsebricks.verbs.Expander;
 import org.seqcode.gsebricks.verbs.Mapper;
 
@@ -14,7 +13,8 @@ public class WeightMatrixExpander implements Expander<Region,WeightMatrixHit> {
 
     private Vector<WeightMatrix> matrices;
     private Vector<Float> cutoffs;
-    private SequenceGenerator seqgen;
+    private SequenceGenerator<Region> seqgen;
+    private WeightMatrixMultiScanner scanner = null;
     
     public WeightMatrixExpander(WeightMatrix m, float c) {
         matrices = new Vector<WeightMatrix>();
@@ -25,13 +25,13 @@ public class WeightMatrixExpander implements Expander<Region,WeightMatrixHit> {
 
         matrices.add(m);
         cutoffs.add(c);
-        seqgen = new SequenceGenerator();
+        seqgen = new SequenceGenerator<Region>();
     }
     
     public WeightMatrixExpander() {
         matrices = new Vector<WeightMatrix>();
         cutoffs = new Vector<Float>();
-        seqgen = new SequenceGenerator();
+        seqgen = new SequenceGenerator<Region>();
     }
     
     public void addWeightMatrix(WeightMatrix m, float c) { 
@@ -40,56 +40,32 @@ public class WeightMatrixExpander implements Expander<Region,WeightMatrixHit> {
         }
         matrices.add(m);
         cutoffs.add(c);
+        scanner = null;
     }
     
+    /**
+     * Scans all matrices over both strands of the region in one pass
+     */
     public Iterator<WeightMatrixHit> execute(Region r) { 
-    	LinkedList<WeightMatrixHit> hits = new LinkedList<WeightMatrixHit>();
-
-        String seq = seqgen.execute(r);
-        float[] scores = null;
-        int s = r.getStart();
-
-        try { 
-            for(int k = 0; k < matrices.size(); k++) {
-                WeightMatrix matrix = matrices.get(k);
-                int width = matrix.matrix.length;
-                float cutoff = cutoffs.get(k);
-
-                scores = score(matrix, seq.toCharArray());
-
-                for(int i = 0; i < scores.length; i++) { 
-                    if(scores[i] >= cutoff) { 
-                        WeightMatrixHit hit = new WeightMatrixHit(r.getGenome(), r.getChrom(),
-                                s+i, s+i+width-1, (double)scores[i], '+', matrix);
-                        hits.add(hit);
-                    }
-                }
-            }
-
-            seq = SequenceUtils.reverseComplement(seq);
-
-            for(int k = 0; k < matrices.size(); k++) { 
-                WeightMatrix matrix = matrices.get(k);
-                int width = matrix.matrix.length;
-                float cutoff = cutoffs.get(k);
-                scores = score(matrix, seq.toCharArray());
-
-                // i = seq.length - ip - width + 1
-
-                for(int ip = 0; ip < scores.length; ip++) { 
-                    if(scores[ip] >= cutoff) {
-                        int i = scores.length - ip - width;
-                        WeightMatrixHit hit = new WeightMatrixHit(r.getGenome(), r.getChrom(),
-                                s+i, s+i+width-1, (double)scores[ip], '-', matrix);
-                        hits.add(hit);
-                    }
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) { 
-            e.printStackTrace(System.err);
-        }
-       	
-    	return hits.iterator();
+    	return getScanner().scanRegion(r, seqgen).iterator();
+    }
+    
+    /**
+     * Scans all matrices over a batch of regions
+     */
+    public List<WeightMatrixHit> execute(Collection<? extends Region> regions) {
+    	return getScanner().scanRegions(regions, seqgen);
+    }
+    
+    /** the scanner for the current matrices, built when first needed */
+    private synchronized WeightMatrixMultiScanner getScanner() {
+    	if (scanner == null) {
+    		float[] c = new float[cutoffs.size()];
+    		for (int k = 0; k < c.length; k++)
+    			c[k] = cutoffs.get(k);
+    		scanner = new WeightMatrixMultiScanner(matrices, c);
+    	}
+    	return scanner;
     }
 
     public float[] score(WeightMatrix matrix, char[] sequence) {
@@ -0,0 +1,283 @@
+package org.seqcode.gsebricks.verbs.motifs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.seqcode.data.motifdb.WeightMatrix;
+import org.seqcode.genome.location.Region;
+import org.seqcode.genome.sequence.SequenceGenerator;
+
+
+/**
+ * <code>WeightMatrixMultiScanner</code>: scores any number of weight matrices against a sequence in one pass.
+ *
+ * Sequences are encoded once into bytes (A=0, C=1, G=2, T=3, anything else=4; case is ignored), and both strands
+ * of every matrix are precomputed into one flat table of scores indexed by matrix position and base code.
+ * Non-ACGT bases score as the matrix's 'N' entry.
+ *
+ * scan() slides along the sequence once, scoring every matrix on both strands at each position. A window is abandoned
+ * as soon as the score so far plus the best possible score of the remaining positions falls below the matrix's cutoff.
+ * Scores are summed as floats in the same order as scoring the (reverse-complemented) sequence directly, so they match
+ * the scores from WeightMatrixScanner.scanSequence() and WeightMatrixScorer.
+ *
+ * Hit positions are the 0-based start of the window on the forward strand, for either strand.
+ * The tables are built when the scanner is made, so changes to the matrices afterwards (e.g. toLogOdds()) aren't seen.
+ * Scanners are immutable once made, so one instance can serve any number of threads.
+ */
+public class WeightMatrixMultiScanner {
+
+	public static final int CODES = 5;
+	public static final byte N = 4;
+	private static final byte[] ENCODE = new byte[256];
+	static{
+		for(int i=0; i<256; i++)
+			ENCODE[i]=N;
+		ENCODE['A']=ENCODE['a']=0;
+		ENCODE['C']=ENCODE['c']=1;
+		ENCODE['G']=ENCODE['g']=2;
+		ENCODE['T']=ENCODE['t']=3;
+	}
+	private static final byte[] COMPLEMENT = {3, 2, 1, 0, N};
+	private static final char[] LETTERS = {'A', 'C', 'G', 'T', 'N'};
+
+	private WeightMatrix[] matrices;
+	private float[] cutoffs;
+	private int[] lengths;
+	private int[] offsets;  //Start of each matrix's rows in fwd, rev and maxLeft
+	private float[] fwd;    //Row j: score of each code at window position j
+	private float[] rev;    //Row j: score of each code's complement at matrix position j (applied to window position length-1-j)
+	private float[] maxLeft; //Best possible score of rows j..length-1 (one more entry per matrix)
+	private int minLength;
+
+	/**
+	 * Receives hits from scan()
+	 */
+	public interface HitHandler{
+		/**
+		 * @param matrix index of the matrix in the scanner
+		 * @param pos 0-based start of the window in the scanned sequence
+		 * @param strand '+' or '-'
+		 * @param score
+		 */
+		public void hit(int matrix, int pos, char strand, float score);
+	}
+
+	/**
+	 * Scanner that reports every window (no cutoff)
+	 * @param matrices
+	 */
+	public WeightMatrixMultiScanner(List<WeightMatrix> matrices){
+		this(matrices, null);
+	}
+
+	/**
+	 * @param matrices
+	 * @param cutoffs minimum score of a hit for each matrix (null for no cutoffs)
+	 */
+	public WeightMatrixMultiScanner(List<WeightMatrix> matrices, float[] cutoffs){
+		int n = matrices.size();
+		if(cutoffs!=null && cutoffs.length!=n)
+			throw new IllegalArgumentException("Need one cutoff per matrix");
+		this.matrices = matrices.toArray(new WeightMatrix[n]);
+		this.cutoffs = new float[n];
+		lengths = new int[n];
+		offsets = new int[n+1];
+		minLength = n==0 ? 0 : Integer.MAX_VALUE;
+		for(int m=0; m<n; m++){
+			this.cutoffs[m] = cutoffs==null ? Float.NEGATIVE_INFINITY : cutoffs[m];
+			lengths[m] = this.matrices[m].length();
+			offsets[m+1] = offsets[m]+lengths[m]+1;
+			minLength = Math.min(minLength, lengths[m]);
+		}
+		fwd = new float[offsets[n]*CODES];
+		rev = new float[offsets[n]*CODES];
+		maxLeft = new float[offsets[n]];
+		for(int m=0; m<n; m++){
+			float[][] w = this.matrices[m].matrix;
+			int o = offsets[m], len = lengths[m];
+			for(int j=0; j<len; j++)
+				for(int c=0; c<CODES; c++){
+					fwd[(o+j)*CODES+c] = w[j][LETTERS[c]];
+					rev[(o+j)*CODES+c] = w[j][LETTERS[COMPLEMENT[c]]];
+				}
+			maxLeft[o+len] = 0;
+			for(int j=len-1; j>=0; j--){
+				float max = Float.NEGATIVE_INFINITY;
+				for(int c=0; c<CODES; c++)
+					max = Math.max(max, fwd[(o+j)*CODES+c]);
+				maxLeft[o+j] = maxLeft[o+j+1]+max;
+			}
+		}
+	}
+
+	/**
+	 * Scanner for a single matrix
+	 * @param matrix
+	 * @param cutoff minimum score of a hit
+	 */
+	public WeightMatrixMultiScanner(WeightMatrix matrix, float cutoff){
+		this(singleton(matrix), new float[]{cutoff});
+	}
+
+	private static List<WeightMatrix> singleton(WeightMatrix matrix){
+		List<WeightMatrix> l = new ArrayList<WeightMatrix>();
+		l.add(matrix);
+		return l;
+	}
+
+	//Accessors
+	public int numMatrices(){return matrices.length;}
+	public WeightMatrix getMatrix(int m){return matrices[m];}
+	public float getCutoff(int m){return cutoffs[m];}
+
+	/**
+	 * Encode a sequence for scanning
+	 */
+	public static byte[] encode(String seq){
+		byte[] b = new byte[seq.length()];
+		for(int i=0; i<b.length; i++)
+			b[i] = ENCODE[seq.charAt(i)&0xff];
+		return b;
+	}
+	public static byte[] encode(char[] seq){
+		byte[] b = new byte[seq.length];
+		for(int i=0; i<b.length; i++)
+			b[i] = ENCODE[seq[i]&0xff];
+		return b;
+	}
+
+	/**
+	 * Scan an encoded sequence with every matrix on both strands, reporting windows that score at least the cutoff.
+	 * Hits are reported in order of position, then matrix, then strand ('+' first).
+	 * @param seq encoded sequence
+	 * @param from first window start
+	 * @param to end of the scanned part of the sequence (exclusive); windows lie entirely before this
+	 * @param handler
+	 */
+	public void scan(byte[] seq, int from, int to, HitHandler handler){
+		int nm = matrices.length;
+		for(int p=from; p+minLength<=to; p++){
+			for(int m=0; m<nm; m++){
+				int len = lengths[m];
+				if(p+len>to)
+					continue;
+				float cutoff = cutoffs[m];
+				int o = offsets[m];
+				if(maxLeft[o]<cutoff)
+					continue;
+
+				//Forward strand
+				float score = 0;
+				int j=0;
+				for(; j<len; j++){
+					if(score+maxLeft[o+j]<cutoff)
+						break;
+					score += fwd[(o+j)*CODES+seq[p+j]];
+				}
+				if(j==len && score>=cutoff)
+					handler.hit(m, p, '+', score);
+
+				//Reverse strand
+				score = 0;
+				j=0;
+				for(; j<len; j++){
+					if(score+maxLeft[o+j]<cutoff)
+						break;
+					score += rev[(o+j)*CODES+seq[p+len-1-j]];
+				}
+				if(j==len && score>=cutoff)
+					handler.hit(m, p, '-', score);
+			}
+		}
+	}
+	public void scan(byte[] seq, HitHandler handler){
+		scan(seq, 0, seq.length, handler);
+	}
+
+	/**
+	 * Score every window of an encoded sequence with one matrix, on both strands (no cutoff).
+	 * Entries from seq.length-length+1 on aren't written.
+	 * @param seq encoded sequence
+	 * @param m index of the matrix
+	 * @param fscores forward strand scores by window start (or null)
+	 * @param rscores reverse strand scores by window start (or null)
+	 */
+	public void scoreAll(byte[] seq, int m, float[] fscores, float[] rscores){
+		int len = lengths[m], o = offsets[m]*CODES;
+		for(int p=0; p+len<=seq.length; p++){
+			if(fscores!=null){
+				float score = 0;
+				for(int j=0, t=o; j<len; j++, t+=CODES)
+					score += fwd[t+seq[p+j]];
+				fscores[p] = score;
+			}
+			if(rscores!=null){
+				float score = 0;
+				for(int j=0, t=o; j<len; j++, t+=CODES)
+					score += rev[t+seq[p+len-1-j]];
+				rscores[p] = score;
+			}
+		}
+	}
+
+	/**
+	 * Best score of one matrix over both strands of an encoded sequence
+	 * @return the best score, or NEGATIVE_INFINITY if the sequence is shorter than the matrix
+	 */
+	public float maxScore(byte[] seq, int m){
+		int n = Math.max(0, seq.length-lengths[m]+1);
+		float[] f = new float[n], r = new float[n];
+		scoreAll(seq, m, f, r);
+		float max = Float.NEGATIVE_INFINITY;
+		for(int p=0; p<n; p++)
+			max = Math.max(max, Math.max(f[p], r[p]));
+		return max;
+	}
+
+	/**
+	 * Scan the sequence of one region
+	 * @param r
+	 * @param seqgen
+	 * @return hits in genome coordinates
+	 */
+	public List<WeightMatrixHit> scanRegion(Region r, SequenceGenerator<Region> seqgen){
+		List<WeightMatrixHit> hits = new ArrayList<WeightMatrixHit>();
+		String seq = seqgen.execute(r);
+		if(seq!=null)
+			scan(encode(seq), new RegionHitCollector(r, hits));
+		return hits;
+	}
+
+	/**
+	 * Scan the sequences of a batch of regions
+	 * @param regions
+	 * @param seqgen
+	 * @return hits in genome coordinates, in the order of the regions
+	 */
+	public List<WeightMatrixHit> scanRegions(Collection<? extends Region> regions, SequenceGenerator<Region> seqgen){
+		List<WeightMatrixHit> hits = new ArrayList<WeightMatrixHit>();
+		for(Region r : regions){
+			String seq = seqgen.execute(r);
+			if(seq!=null)
+				scan(encode(seq), new RegionHitCollector(r, hits));
+		}
+		return hits;
+	}
+
+	/**
+	 * Turns hits in a region's sequence into WeightMatrixHits
+	 */
+	private class RegionHitCollector implements HitHandler{
+		Region r;
+		List<WeightMatrixHit> hits;
+		RegionHitCollector(Region r, List<WeightMatrixHit> hits){
+			this.r = r;
+			this.hits = hits;
+		}
+		public void hit(int m, int pos, char strand, float score){
+			int s = r.getStart()+pos;
+			hits.add(new WeightMatrixHit(r.getGenome(), r.getChrom(), s, s+lengths[m]-1, (double)score, strand, matrices[m]));
+		}
+	}
+}
@@ -8,48 +8,42 @@ import org.seqcode.genome.sequence.SequenceGenerator;
 import org.seqcode.genome.sequence.SequenceUtils;
 import org.seqcode.gsebricks.verbs.Expander;
 import org.seqcode.gsebricks.verbs.Mapper;
-import org.seqcode.gseutils.Pair;
-import org.seqcode.math.stats.StatUtil;
 
 
 public class WeightMatrixScorer implements Mapper<Region,WeightMatrixScoreProfile> {
 
     private WeightMatrix matrix;
     private SequenceGenerator seqgen;
+    private WeightMatrixMultiScanner scanner;
     
     public WeightMatrixScorer(WeightMatrix m) {
-    	matrix = m;
-        seqgen = new SequenceGenerator();
+    	this(m, new SequenceGenerator());
     }
     
     public WeightMatrixScorer(WeightMatrix m, SequenceGenerator sg) {
     	matrix = m;
         seqgen = sg;
+        scanner = new WeightMatrixMultiScanner(m, Float.NEGATIVE_INFINITY);
     }
     
     public WeightMatrixScoreProfile execute(Region r) { 
-        String seq = seqgen.execute(r);
-        seq = seq.toUpperCase();
-        double[] fscores = null, rscores = null;
-
-        try { 
-        	fscores = score(matrix, seq.toCharArray(), '+');
-            seq = SequenceUtils.reverseComplement(seq);
-            rscores = score(matrix, seq.toCharArray(), '-');
-
-        } catch (ArrayIndexOutOfBoundsException e) { 
-            e.printStackTrace(System.err);
-        }
-       	
-        return new WeightMatrixScoreProfile(matrix, fscores, rscores);
+        return execute(seqgen.execute(r));
     }
     
+    /**
+     * Scores both strands from one encoding of the sequence (no reverse complement is made)
+     */
     public WeightMatrixScoreProfile execute(String seq) { 
-    	seq = seq.toUpperCase();
-        double[] fscores = null, rscores = null;
-    	fscores = score(matrix, seq.toCharArray(), '+');
-        seq = SequenceUtils.reverseComplement(seq);
-        rscores = score(matrix, seq.toCharArray(), '-');
+        byte[] encoded = WeightMatrixMultiScanner.encode(seq);
+        int n = Math.max(0, encoded.length-matrix.length()+1);
+        float[] f = new float[n], r = new float[n];
+        scanner.scoreAll(encoded, 0, f, r);
+        double[] fscores = new double[encoded.length], rscores = new double[encoded.length];
+        double minScore = (float)matrix.getMinScore();
+        for (int i = 0; i < encoded.length; i++) {
+        	fscores[i] = i<n ? f[i] : minScore;
+        	rscores[i] = i<n ? r[i] : minScore;
+        }
         return new WeightMatrixScoreProfile(matrix, fscores, rscores);
     }
 
@@ -63,16 +57,13 @@ public class WeightMatrixScorer implements Mapper<Region,WeightMatrixScoreProfil
        	if (sequence.length<length)
      		return results;
        	
-        for (int i = 0; i <= sequence.length - length; i++) {
-            float score = (float)0.0;
-            for (int j = 0; j < length; j++) {
-                score += matrix.matrix[j][sequence[i+j]];
-            }
-            
+       	float[] scores = new float[sequence.length - length + 1];
+       	new WeightMatrixMultiScanner(matrix, Float.NEGATIVE_INFINITY).scoreAll(WeightMatrixMultiScanner.encode(sequence), 0, scores, null);
+        for (int i = 0; i < scores.length; i++) {
             if(strand=='-') { 
-            	results[sequence.length-length-i] = score;
+            	results[sequence.length-length-i] = scores[i];
             } else { 
-            	results[i] = score;
+            	results[i] = scores[i];
             }
         }
         return results;
@@ -88,13 +79,7 @@ public class WeightMatrixScorer implements Mapper<Region,WeightMatrixScoreProfil
     	if (sequence.length()<matrix.length())
     		return matrix.getMinScore();
     	
-    	double[] scores = score(matrix, sequence.toCharArray(), '+');
-    	Pair<Double, TreeSet<Integer>> max = StatUtil.findMax(scores);
-    	double maxScore = max.car();
-    	scores = score(matrix, SequenceUtils.reverseComplement(sequence).toCharArray(), '-');
-    	max = StatUtil.findMax(scores);
-    	maxScore = Math.max(maxScore, max.car());
-    	return maxScore;
+    	return new WeightMatrixMultiScanner(matrix, Float.NEGATIVE_INFINITY).maxScore(WeightMatrixMultiScanner.encode(sequence), 0);
     }
     
     /**
@@ -0,0 +1,231 @@
+package org.seqcode.gseutils;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * ParallelBGZFInputStream: reads the decompressed contents of a BGZF file (e.g. a BAM file),
+ * inflating blocks on a pool of threads.
+ *
+ * BGZF files are series of independent gzip blocks of at most 64KB each, so blocks can be inflated in any order.
+ * The stream reads ahead, keeping up to READ_AHEAD blocks per thread in flight, and hands the inflated
+ * blocks to the reader in file order. CRC32 checksums are verified if requested.
+ *
+ * Not thread-safe: one reader per stream.
+ */
+public class ParallelBGZFInputStream extends InputStream {
+
+	public static final int READ_AHEAD=4; //Blocks in flight per thread
+
+	private InputStream in;
+	private ExecutorService pool;
+	private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private int maxPending;
+	private boolean checkCRC;
+	private boolean eof=false;
+	private byte[] block = new byte[0];
+	private int blockPos=0;
+	private byte[] header = new byte[12];
+
+	/**
+	 * Constructor
+	 * @param f : BGZF file
+	 * @param numThreads : number of inflating threads
+	 * @param checkCRC : verify the CRC32 of each block
+	 * @throws IOException
+	 */
+	public ParallelBGZFInputStream(File f, int numThreads, boolean checkCRC) throws IOException{
+		in = new BufferedInputStream(new FileInputStream(f), 1<<20);
+		this.checkCRC = checkCRC;
+		maxPending = Math.max(1, numThreads)*READ_AHEAD;
+		pool = Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "bgzf-inflate");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Does the file start with a BGZF block header?
+	 * @param f
+	 * @return
+	 */
+	public static boolean isBGZF(File f){
+		byte[] b = new byte[16];
+		try{
+			InputStream is = new FileInputStream(f);
+			try{
+				int n=0, r;
+				while(n<b.length && (r=is.read(b, n, b.length-n))>0)
+					n+=r;
+				if(n<b.length)
+					return false;
+			}finally{
+				is.close();
+			}
+		}catch(IOException e){
+			return false;
+		}
+		return (b[0]&0xff)==31 && (b[1]&0xff)==139 && b[2]==8 && (b[3]&4)!=0 && b[12]=='B' && b[13]=='C';
+	}
+
+	public int read() throws IOException{
+		if(!fill())
+			return -1;
+		return block[blockPos++]&0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException{
+		if(len==0)
+			return 0;
+		if(!fill())
+			return -1;
+		int n = Math.min(len, block.length-blockPos);
+		System.arraycopy(block, blockPos, b, off, n);
+		blockPos+=n;
+		return n;
+	}
+
+	public int available(){
+		return block.length-blockPos;
+	}
+
+	public void close() throws IOException{
+		pool.shutdownNow();
+		pending.clear();
+		in.close();
+	}
+
+	/**
+	 * Make sure that the current block has unread bytes
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException{
+		while(blockPos>=block.length){
+			submitBlocks();
+			if(pending.isEmpty())
+				return false;
+			try{
+				block = pending.poll().get();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while inflating BGZF block");
+			}catch(ExecutionException e){
+				throw new IOException("Unable to inflate BGZF block", e.getCause());
+			}
+			blockPos=0;
+		}
+		return true;
+	}
+
+	/**
+	 * Read compressed blocks and queue them for inflation until the read-ahead window is full
+	 */
+	private void submitBlocks() throws IOException{
+		while(!eof && pending.size()<maxPending){
+			final byte[] cdata = readBlock();
+			if(cdata==null){
+				eof=true;
+				break;
+			}
+			pending.add(pool.submit(new Callable<byte[]>(){
+				public byte[] call() throws Exception{
+					return inflate(cdata);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Read the next raw block: the deflated data followed by the CRC32 and uncompressed size
+	 * @return null at the end of the file
+	 */
+	private byte[] readBlock() throws IOException{
+		int n = readFully(header, 0, 12, true);
+		if(n==0)
+			return null;
+		if((header[0]&0xff)!=31 || (header[1]&0xff)!=139 || header[2]!=8 || (header[3]&4)==0)
+			throw new IOException("Invalid BGZF block header");
+		int xlen = (header[10]&0xff) | ((header[11]&0xff)<<8);
+		byte[] extra = new byte[xlen];
+		readFully(extra, 0, xlen, false);
+		int bsize=-1;
+		for(int i=0; i+4<=xlen; ){
+			int slen = (extra[i+2]&0xff) | ((extra[i+3]&0xff)<<8);
+			if(extra[i]=='B' && extra[i+1]=='C' && slen==2 && i+6<=xlen)
+				bsize = (extra[i+4]&0xff) | ((extra[i+5]&0xff)<<8);
+			i+=4+slen;
+		}
+		if(bsize<0)
+			throw new IOException("BGZF block has no block size field");
+		byte[] rest = new byte[bsize+1-12-xlen];
+		readFully(rest, 0, rest.length, false);
+		return rest;
+	}
+
+	private int readFully(byte[] b, int off, int len, boolean eofOK) throws IOException{
+		int n=0;
+		while(n<len){
+			int r = in.read(b, off+n, len-n);
+			if(r<0){
+				if(eofOK && n==0)
+					return 0;
+				throw new EOFException("Truncated BGZF block");
+			}
+			n+=r;
+		}
+		return n;
+	}
+
+	/**
+	 * Inflate one raw block (called on the pool threads)
+	 */
+	private byte[] inflate(byte[] rest) throws IOException{
+		int cdataLen = rest.length-8;
+		int crc = (rest[cdataLen]&0xff) | ((rest[cdataLen+1]&0xff)<<8) | ((rest[cdataLen+2]&0xff)<<16) | ((rest[cdataLen+3]&0xff)<<24);
+		int isize = (rest[cdataLen+4]&0xff) | ((rest[cdataLen+5]&0xff)<<8) | ((rest[cdataLen+6]&0xff)<<16) | ((rest[cdataLen+7]&0xff)<<24);
+		byte[] out = new byte[isize];
+		if(isize==0)
+			return out;
+		Inflater inflater = new Inflater(true);
+		try{
+			inflater.setInput(rest, 0, cdataLen);
+			int n=0;
+			while(n<isize){
+				int r = inflater.inflate(out, n, isize-n);
+				if(r==0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				n+=r;
+			}
+			if(n!=isize)
+				throw new IOException("BGZF block inflated to "+n+" bytes, expected "+isize);
+		}catch(DataFormatException e){
+			throw new IOException("Corrupt BGZF block", e);
+		}finally{
+			inflater.end();
+		}
+		if(checkCRC){
+			CRC32 c = new CRC32();
+			c.update(out, 0, isize);
+			if((int)c.getValue()!=crc)
+				throw new IOException("BGZF block CRC32 mismatch");
+		}
+		return out;
+	}
+}
@@ -24,6 +24,7 @@ import org.seqcode.genome.location.Point;
 import org.seqcode.genome.location.Region;
 import org.seqcode.genome.sequence.RandomSequenceGenerator;
 import org.seqcode.genome.sequence.SequenceUtils;
+import org.seqcode.gsebricks.verbs.motifs.WeightMatrixMultiScanner;
 import org.seqcode.gsebricks.verbs.motifs.WeightMatrixScoreProfile;
 import org.seqcode.gsebricks.verbs.motifs.WeightMatrixScorer;
 import org.seqcode.gseutils.ArgParser;
@@ -186,18 +187,27 @@ public class MotifAnalysisMultiMotif {
 	///////////////////////////////////////////////////////////////////////
 
 	//Simple printing of peak lines that contain ANY of the motifs
+	//All motifs are scanned together, once per sequence
 	public void printPeaksWithMotifs(){
-		boolean [] contains = new boolean[posSet.size()];
+		final boolean [] contains = new boolean[posSet.size()];
 		for(int i=0; i<posSet.size(); i++){contains[i]=false;}
-		for(WeightMatrix m : motifs){
-			WeightMatrixScorer scorer = new WeightMatrixScorer(m);
-			
-			for(int s=0; s<posSeq.size(); s++){
-				String seq = posSeq.get(s);
-				WeightMatrixScoreProfile profiler = scorer.execute(seq);
-				if(profiler.getMaxScore()>= motifThresholds.get(m.getName()))
-					contains[s]=true;
-			}
+		final double [] thres = new double[motifs.size()];
+		float [] cutoffs = new float[motifs.size()];
+		for(int m=0; m<motifs.size(); m++){
+			thres[m] = motifThresholds.get(motifs.get(m).getName());
+			cutoffs[m] = (float)thres[m];
+			if(cutoffs[m]>thres[m])
+				cutoffs[m] = Math.nextDown(cutoffs[m]);
+		}
+		WeightMatrixMultiScanner scanner = new WeightMatrixMultiScanner(motifs, cutoffs);
+		for(int s=0; s<posSeq.size(); s++){
+			final int seqIndex = s;
+			scanner.scan(WeightMatrixMultiScanner.encode(posSeq.get(s)), new WeightMatrixMultiScanner.HitHandler(){
+				public void hit(int m, int pos, char strand, float score){
+					if(score>=thres[m])
+						contains[seqIndex]=true;
+				}
+			});
 		}
 		for(int i=0; i<posSet.size(); i++){
 			if(contains[i])
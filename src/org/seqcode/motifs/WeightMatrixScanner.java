@@ -8,6 +8,10 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.seqcode.data.connections.DatabaseConnectionManager;
 import org.seqcode.data.connections.DatabaseException;
@@ -17,9 +21,9 @@ import org.seqcode.data.motifdb.*;
 import org.seqcode.genome.Genome;
 import org.seqcode.genome.location.Region;
 import org.seqcode.genome.sequence.SequenceGenerator;
-import org.seqcode.genome.sequence.SequenceUtils;
 import org.seqcode.gsebricks.verbs.Sink;
 import org.seqcode.gsebricks.verbs.motifs.PerBaseMotifMatch;
+import org.seqcode.gsebricks.verbs.motifs.WeightMatrixMultiScanner;
 import org.seqcode.gseutils.*;
 
 
@@ -33,7 +37,13 @@ import org.seqcode.gseutils.*;
  * --wm, --acceptwm, --rejectwm, --acceptwmver, --rejectwmver, --acceptwmtype, --rejectwmtype used to specify set of matrices
  * [--print]  print results rather than storing to db
  * [--loadfile foo.txt]  load results from file rather than doing a new scan
- * [--cutoff .9] as a fraction of maximum log-odds score
+ * [--cutoff .9] as a fraction of maximum log-odds score (as a raw score with --loadfile, since loaded hits have no matrix)
+ *
+ * [--threads 8]  scan regions in parallel: all matrices are scanned together, chunk by chunk, on this many threads,
+ *                and hits are stored with batched inserts (or printed).  Not used with --fasta or --loadfile.
+ * [--chunk 1000000]  size of the chunks scanned in parallel
+ * [--seq genome.pgs]  read sequence from a local packed genome, FASTA file or directory of FASTA files rather than the database
+ * [--bed hits.bed]  with --print and --threads, write hits as BED (name is the matrix, score is the motif score)
  */
 
 public class WeightMatrixScanner {
@@ -52,6 +62,12 @@ public class WeightMatrixScanner {
     private boolean print;
     private WMConsumer consumer;
     private String outfile;
+    private int threads;
+    private int chunksize;
+    private String seqpath, bedfile;
+
+    public static final int INSERT_BATCH = 1000;
+    public static final long PROGRESS_MS = 10000;
 
     public static void main(String args[]) throws Exception {
         WeightMatrixScanner scanner = new WeightMatrixScanner();
@@ -93,6 +109,10 @@ public class WeightMatrixScanner {
         print = Args.parseFlags(args).contains("print");
         regions = Args.parseRegionsOrDefault(args);
         outfile = Args.parseString(args, "outfile", "");
+        threads = Args.parseInteger(args, "threads", 1);
+        chunksize = Args.parseInteger(args, "chunk", 1000000);
+        seqpath = Args.parseString(args, "seq", null);
+        bedfile = Args.parseString(args, "bed", null);
 
         if (!print) {            
             if (scanname == null) {
@@ -128,6 +148,8 @@ public class WeightMatrixScanner {
         /* load file thing here */
         if (loadfile != null) {
             loadFile();
+        } else if (threads > 1 && fastafiles.size() == 0) {
+            scanParallel();
         } else {
             scanMatrices();
         }
@@ -155,7 +177,7 @@ public class WeightMatrixScanner {
     	int count = 0;
         for (WeightMatrix matrix : matrices) {
             int scanid;
-            float cutoffscore =(float) (matrix.getMaxScore() * cutoff);
+            float cutoffscore = cutoffScore(matrix, cutoff);
 
             if (print) {
                 scanid = -1;
@@ -199,7 +221,7 @@ public class WeightMatrixScanner {
                     scanFromDB(genome,
                                matrix,
                                consumer,
-                               (float)cutoff,
+                               cutoffscore,
                                regions);
                 } catch (NotFoundException ex) {
                     ex.printStackTrace();
@@ -215,6 +237,203 @@ public class WeightMatrixScanner {
         }
     }
     
+    /* Scans all the matrices over the regions in parallel.  The regions are split into chunks (overlapping
+       by the longest matrix), and worker threads fetch, encode and scan each chunk with every matrix at once.
+       Hits go back through a bounded queue to this thread, which writes them in region order, batching
+       the database inserts.  Progress and throughput are reported every PROGRESS_MS.
+    */
+    public void scanParallel() throws SQLException, IOException, InterruptedException {
+        final int n = matrices.size();
+        float[] cutoffs = new float[n];
+        final int[] scanids = new int[n];
+        for (int m = 0; m < n; m++) {
+            WeightMatrix matrix = matrices.get(m);
+            cutoffs[m] = cutoffScore(matrix, cutoff);
+            scanids[m] = -1;
+            if (!print) {
+                scanids[m] = getScanID(matrix.dbid,scanname,cutoffs[m]);
+                getScannedGenome.setInt(1,scanids[m]);
+                getScannedGenome.setInt(2,genome.getDBID());
+                ResultSet rs = getScannedGenome.executeQuery();
+                rs.next();
+                if (rs.getInt(1) == 0) {
+                    insertScannedGenome.setInt(1,scanids[m]);
+                    insertScannedGenome.setInt(2,genome.getDBID());
+                    insertScannedGenome.execute();
+                }
+                rs.close();
+            }
+        }
+        if (print) {
+            if (bedfile != null) {
+                consumer = new BEDConsumer(genome, bedfile);
+            } else if (!outfile.equals("")) {
+                consumer = new PrintConsumer(genome, null, outfile);
+            } else {
+                consumer = new PrintConsumer(genome, null);
+            }
+        } else {
+            insertHit = cxn.prepareStatement("insert into wms_hits(scan,chromosome,startpos,stoppos,strand,score) " +
+                                             " values (?,?,?,?,?,?)");
+            consumer = new BatchStoreConsumer(cxn, insertHit);
+        }
+
+        final SequenceGenerator<Region> seqgen = new SequenceGenerator<Region>(genome);
+        if (seqpath != null) {
+            seqgen.useLocalFiles(true);
+            seqgen.setGenomePath(seqpath);
+        }
+        scanChunks(genome, regions, matrices, cutoffs, scanids, seqgen, threads, chunksize, new ChunkConsumer() {
+                public void consume(int m, List<WMHit> hits) {
+                    consumer.setMatrix(matrices.get(m));
+                    consumer.consume(hits);
+                }
+            });
+        consumer.close(); // writes any batched inserts
+        if (!print) {
+            for (int m = 0; m < n; m++) {
+                storeRegionList(genome,scanids[m],regions);
+            }
+        }
+    }
+
+    /* the cutoff score for a matrix: the --cutoff fraction of its maximum score */
+    public static float cutoffScore(WeightMatrix matrix, double cutoff) {
+        return (float)(matrix.getMaxScore() * cutoff);
+    }
+
+    /* receives the hits of each chunk for one matrix, in region order */
+    public interface ChunkConsumer {
+        public void consume(int matrix, List<WMHit> hits);
+    }
+
+    /* Scans all the matrices over the regions on a pool of threads (see scanParallel).  Each window is scanned
+       in exactly one chunk, so the hits don't depend on the number of threads or the chunk size.
+    */
+    public static void scanChunks(final Genome genome,
+                                  List<Region> regions,
+                                  final List<WeightMatrix> matrices,
+                                  float[] cutoffs,
+                                  final int[] scanids,
+                                  final SequenceGenerator<Region> seqgen,
+                                  int threads,
+                                  int chunksize,
+                                  ChunkConsumer sink) throws InterruptedException {
+        final int n = matrices.size();
+        final WeightMatrixMultiScanner scanner = new WeightMatrixMultiScanner(matrices, cutoffs);
+        int maxLength = 1;
+        for (WeightMatrix matrix : matrices) {
+            maxLength = Math.max(maxLength, matrix.length());
+        }
+
+        // chunks own the windows starting in [start,ownedEnd]; their sequence runs on to the end of the last window
+        final List<Region> chunks = new ArrayList<Region>();
+        final List<Integer> owned = new ArrayList<Integer>();
+        long totalBases = 0;
+        for (Region r : regions) {
+            for (int start = r.getStart(); start <= r.getEnd(); start += chunksize) {
+                int ownedEnd = Math.min(start + chunksize - 1, r.getEnd());
+                int end = Math.min(ownedEnd + maxLength - 1, r.getEnd());
+                chunks.add(new Region(r.getGenome(), r.getChrom(), start, end));
+                owned.add(ownedEnd - start + 1);
+                totalBases += ownedEnd - start + 1;
+            }
+        }
+
+        final int window = threads * 4;
+        final ArrayBlockingQueue<ChunkHits> queue = new ArrayBlockingQueue<ChunkHits>(window);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Map<Integer,ChunkHits> pending = new HashMap<Integer,ChunkHits>();
+        int submitted = 0, written = 0;
+        long bases = 0, hits = 0;
+        long startTime = System.currentTimeMillis(), lastReport = startTime;
+        try {
+            while (written < chunks.size()) {
+                // keep a bounded number of chunks in flight, so that out-of-order results can't pile up
+                while (submitted < chunks.size() && submitted - written < window) {
+                    final int c = submitted++;
+                    pool.execute(new Runnable() {
+                            public void run() {
+                                ChunkHits result = new ChunkHits(c, n);
+                                try {
+                                    Region chunk = chunks.get(c);
+                                    final int ownedLength = owned.get(c);
+                                    final int chromid = genome.getChromID(chunk.getChrom());
+                                    final int start = chunk.getStart();
+                                    final List<List<WMHit>> results = result.hits;
+                                    String seq = seqgen.execute(chunk);
+                                    scanner.scan(WeightMatrixMultiScanner.encode(seq), new WeightMatrixMultiScanner.HitHandler() {
+                                            public void hit(int m, int pos, char strand, float score) {
+                                                if (pos < ownedLength) {
+                                                    results.get(m).add(new WMHit(scanids[m], chromid, start + pos,
+                                                                                 start + pos + matrices.get(m).length() - 1,
+                                                                                 strand == '+' ? "+" : "-", score));
+                                                }
+                                            }
+                                        });
+                                    result.bases = ownedLength;
+                                } catch (RuntimeException ex) {
+                                    result.error = ex;
+                                }
+                                try {
+                                    queue.put(result);
+                                } catch (InterruptedException ex) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        });
+                }
+                ChunkHits result = queue.poll(PROGRESS_MS, TimeUnit.MILLISECONDS);
+                if (result != null) {
+                    if (result.error != null) {
+                        throw new RuntimeException("Error scanning " + chunks.get(result.index), result.error);
+                    }
+                    pending.put(result.index, result);
+                }
+                // write in chunk order
+                while (pending.containsKey(written)) {
+                    ChunkHits done = pending.remove(written++);
+                    for (int m = 0; m < n; m++) {
+                        if (done.hits.get(m).size() > 0) {
+                            sink.consume(m, done.hits.get(m));
+                            hits += done.hits.get(m).size();
+                        }
+                    }
+                    bases += done.bases;
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_MS || written == chunks.size()) {
+                    reportProgress(bases, totalBases, hits, now - startTime);
+                    lastReport = now;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void reportProgress(long bases, long totalBases, long hits, long ms) {
+        double secs = Math.max(ms, 1) / 1000.0;
+        System.err.println(String.format("Scanned %d of %d bp (%.1f%%), %d hits in %.0fs: %.0f bp/s, %.0f hits/s",
+                                         bases, totalBases, totalBases == 0 ? 100.0 : 100.0 * bases / totalBases,
+                                         hits, secs, bases / secs, hits / secs));
+    }
+
+    /* the hits found in one chunk, for each matrix */
+    private static class ChunkHits {
+        int index;
+        long bases = 0;
+        List<List<WMHit>> hits;
+        RuntimeException error = null;
+        ChunkHits(int index, int n) {
+            this.index = index;
+            hits = new ArrayList<List<WMHit>>(n);
+            for (int m = 0; m < n; m++) {
+                hits.add(new ArrayList<WMHit>());
+            }
+        }
+    }
+
     /* sets up SQL statements.  Must be called before anything else is done */
     public void setup() throws SQLException {
         getScan = cxn.prepareStatement("select id from weightmatrixscan where weightmatrix = ? and name = ?");            
@@ -455,7 +674,7 @@ public class WeightMatrixScanner {
                     rend = region.getEnd();
                 }
                 System.err.println("Working on " + rstart + " to " + rend);
-                if (rend - rstart < length) {break;}
+                if (rend - rstart + 1 < length) {break;}
                 char[] bytes = seqgen.execute(new Region(region.getGenome(), region.getChrom(), rstart,rend)).toCharArray();
                 for (WMHit hit : scanSequence(matrix,
                                               scorecutoff,
@@ -465,7 +684,8 @@ public class WeightMatrixScanner {
                     hit.end += rstart;
                     results.add(hit);
                 }
-                rstart = rend - length + 1;
+                // the next piece starts with the first window that didn't fit in this one
+                rstart = rend - length + 2;
             }
             consumer.consume(results);
         }
@@ -526,58 +746,42 @@ public class WeightMatrixScanner {
     
     /* returns a list of WMHits.  Since this doesn't know the chromosome or
        scanid, it just fills those in with -1 for someone else to fix later.
+       Forward strand hits come first, then reverse strand hits, each in order along their strand.
+       Every window is scanned on both strands, as in scanChunks (scanFromDB's chunks overlap to match).
     */
     public static List<WMHit> scanSequence(WeightMatrix matrix,
                                            float scorecutoff,
                                            char[] sequence) {
-        ArrayList<WMHit> results = new ArrayList<WMHit>();
-        float[] scoreleft = new float[matrix.matrix.length + 1];
-        scoreleft[scoreleft.length - 1] = 0;
-        for (int i = scoreleft.length - 2; i >= 0; i--) {
-            double maxval = Double.NEGATIVE_INFINITY;
-            if (matrix.matrix[i]['A'] > maxval) {
-                maxval = matrix.matrix[i]['A'];
-            }
-            if (matrix.matrix[i]['C'] > maxval) {
-                maxval = matrix.matrix[i]['C'];
-            }
-            if (matrix.matrix[i]['T'] > maxval) {
-                maxval = matrix.matrix[i]['T'];
-            }
-            if (matrix.matrix[i]['G'] > maxval) {
-                maxval = matrix.matrix[i]['G'];
-            }
-            scoreleft[i] = scoreleft[i+1] + (float)maxval;
-        }
+        List<WeightMatrix> m = new ArrayList<WeightMatrix>();
+        m.add(matrix);
+        return scanSequence(new WeightMatrixMultiScanner(m, new float[]{scorecutoff}),
+                            WeightMatrixMultiScanner.encode(sequence)).get(0);
+    }
 
-        /* scan through the sequence */
-        int length = matrix.length();
-        for (int i = 0; i < sequence.length - length; i++) {
-            float score = 0;
-            for (int j = 0; j < length && scoreleft[j] + score > scorecutoff; j++) {
-                score += matrix.matrix[j][sequence[i+j]];
-            }
-            // save the hit
-            if (score >= scorecutoff) {
-                results.add(new WMHit(-1,-1,i,i + length - 1,"+",score));
-            }
+    /* scans an encoded sequence with all of a scanner's matrices in one pass.  
+       Returns a list of WMHits for each matrix, with chromosome and scanid -1 as above.
+    */
+    public static List<List<WMHit>> scanSequence(WeightMatrixMultiScanner scanner,
+                                                 final byte[] sequence) {
+        final int n = scanner.numMatrices();
+        final List<List<WMHit>> forward = new ArrayList<List<WMHit>>(), reverse = new ArrayList<List<WMHit>>();
+        final int[] lengths = new int[n];
+        for (int m = 0; m < n; m++) {
+            forward.add(new ArrayList<WMHit>());
+            reverse.add(new ArrayList<WMHit>());
+            lengths[m] = scanner.getMatrix(m).length();
         }
-        /* now reverse complement the sequence and scan that.
-           basically the same as before but with slightly different
-           computation of the hit coordinates */
-        SequenceUtils.reverseComplement(sequence);
-        for (int i = 0; i < sequence.length - length; i++) {
-            float score = 0;
-            for (int j = 0; j < length && scoreleft[j] + score > scorecutoff; j++) {
-                score += matrix.matrix[j][sequence[i+j]];
-            }
-            if (score >= scorecutoff) {
-                results.add(new WMHit(-1,-1,sequence.length - i - length,sequence.length - i -1,"-",score));
-            }
+        scanner.scan(sequence, new WeightMatrixMultiScanner.HitHandler() {
+                public void hit(int m, int pos, char strand, float score) {
+                    (strand == '+' ? forward : reverse).get(m).add(new WMHit(-1,-1,pos,pos + lengths[m] - 1,
+                                                                             strand == '+' ? "+" : "-",score));
+                }
+            });
+        for (int m = 0; m < n; m++) {
+            Collections.reverse(reverse.get(m)); // reverse strand hits in order along the reverse strand
+            forward.get(m).addAll(reverse.get(m));
         }
-        SequenceUtils.reverseComplement(sequence); // put the sequence back the way we found it
-
-        return results;
+        return forward;
     }
 
     /* returns an array of scores that describe how well the matrix
@@ -666,6 +870,113 @@ class PrintConsumer extends WMConsumer {
     }
 }
 
+/* writes hits as BED lines: chrom, 0-based start, end, matrix, score, strand */
+class BEDConsumer extends WMConsumer {
+
+    private Genome genome;
+    private WeightMatrix matrix;
+    private PrintStream out;
+
+    public BEDConsumer(Genome g, String bedfile) throws FileNotFoundException {
+        genome = g;
+        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(bedfile), 1<<16));
+    }
+
+    public void setMatrix(WeightMatrix m) {
+        matrix = m;
+    }
+
+    public void consume(WMHit hit) {
+        String chromname = hit.chromid < 0 ? madeupChromMap.get(hit.chromid) : genome.getChromName(hit.chromid);
+        out.println("chr" + chromname + "\t" +
+                    (hit.start - 1) + "\t" +
+                    hit.end + "\t" +
+                    matrix.getName() + "\t" +
+                    hit.score + "\t" +
+                    hit.strand);
+    }
+
+    public void consume(Iterator<WMHit> hits) {
+        while(hits.hasNext()) { consume(hits.next()); }
+    }
+
+    public void finish() {
+    }
+
+    public void close() {
+        out.flush();
+        out.close();
+    }
+
+    public void init() {
+    }
+}
+
+/* stores hits with batched inserts.  The statement takes the scan id as its first parameter */
+class BatchStoreConsumer extends WMConsumer {
+
+    private int pending;
+    private java.sql.Connection cxn;
+    private PreparedStatement insertHit;
+
+    public BatchStoreConsumer(java.sql.Connection c,
+                              PreparedStatement i) {
+        cxn = c;
+        insertHit = i;
+        pending = 0;
+    }
+
+    public void consume(WMHit hit) {
+        if (hit.chromid < 1) {
+            throw new RuntimeException("chromid == -1");
+        }
+        try {
+            insertHit.setInt(1,hit.scanid);
+            insertHit.setInt(2,hit.chromid);
+            insertHit.setInt(3,hit.start);
+            insertHit.setInt(4,hit.end);
+            insertHit.setString(5,hit.strand);
+            insertHit.setFloat(6,hit.score);
+            insertHit.addBatch();
+            if (++pending >= INSERT_BATCH) {
+                flush();
+            }
+        } catch (SQLException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public void consume(Iterator<WMHit> hits) {
+        while(hits.hasNext()) { consume(hits.next()); }
+    }
+
+    private void flush() throws SQLException {
+        if (pending > 0) {
+            insertHit.executeBatch();
+            cxn.commit();
+            pending = 0;
+        }
+    }
+
+    public void finish() {
+    }
+
+    public void init() {
+    }
+
+    public void close() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void setMatrix(WeightMatrix m) {
+    }
+}
+
 class StoreConsumer extends WMConsumer {
     
     private int done;
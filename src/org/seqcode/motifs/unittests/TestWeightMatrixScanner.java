@@ -0,0 +1,138 @@
+package org.seqcode.motifs.unittests;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import org.seqcode.data.motifdb.WMHit;
+import org.seqcode.data.motifdb.WeightMatrix;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+import org.seqcode.genome.sequence.SequenceGenerator;
+import org.seqcode.motifs.WeightMatrixScanner;
+
+import static org.junit.Assert.*;
+
+/* The parallel WeightMatrixScanner finds the same hits, in the same order, on one thread as on several,
+   and the same hits as scanning each region with scanSequence */
+public class TestWeightMatrixScanner {
+
+    private static int LENGTH = 60000;
+
+    private File dir;
+    private Genome genome;
+    private List<Region> regions;
+    private List<WeightMatrix> matrices;
+    private float[] cutoffs;
+
+    @Before public void setUp() throws IOException {
+        Random random = new Random(17);
+        dir = File.createTempFile("wmscan", "");
+        dir.delete();
+        dir.mkdirs();
+        File fasta = new File(dir, "genome.fa");
+        PrintWriter pw = new PrintWriter(new FileWriter(fasta));
+        Map<String,Integer> lengths = new HashMap<String,Integer>();
+        String bases = "ACGTacgtN";
+        for (String chrom : new String[]{"1", "2"}) {
+            pw.println(">chr" + chrom);
+            for (int i = 0; i < LENGTH; i++) {
+                pw.print(bases.charAt(random.nextInt(i % 5000 < 100 ? bases.length() : 4)));
+                if (i % 60 == 59) {
+                    pw.println();
+                }
+            }
+            pw.println();
+            lengths.put(chrom, LENGTH);
+        }
+        pw.close();
+        genome = new Genome("test", lengths);
+        regions = new ArrayList<Region>();
+        regions.add(new Region(genome, "1", 1, LENGTH));
+        regions.add(new Region(genome, "2", 5001, 40000));
+
+        matrices = new ArrayList<WeightMatrix>();
+        int[] widths = {6, 9, 12};
+        cutoffs = new float[widths.length];
+        for (int m = 0; m < widths.length; m++) {
+            float[][] pwm = new float[widths[m]][WeightMatrix.MAXLETTERVAL];
+            for (int i = 0; i < widths[m]; i++) {
+                for (char letter : WeightMatrix.letters) {
+                    float weight = (float)(random.nextGaussian() * 2);
+                    pwm[i][letter] = weight;
+                    pwm[i][Character.toLowerCase(letter)] = weight;
+                }
+            }
+            matrices.add(new WeightMatrix(pwm));
+            cutoffs[m] = WeightMatrixScanner.cutoffScore(matrices.get(m), .6);
+        }
+    }
+
+    @After public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private SequenceGenerator<Region> sequences() {
+        SequenceGenerator<Region> seqgen = new SequenceGenerator<Region>(genome);
+        seqgen.useLocalFiles(true);
+        seqgen.setGenomePath(new File(dir, "genome.fa").getPath());
+        return seqgen;
+    }
+
+    private static String describe(WMHit hit) {
+        return hit.chromid + ":" + hit.start + "-" + hit.end + ":" + hit.strand + ":" + hit.score;
+    }
+
+    private List<List<String>> scan(int threads, int chunksize) throws InterruptedException {
+        final List<List<String>> hits = new ArrayList<List<String>>();
+        for (int m = 0; m < matrices.size(); m++) {
+            hits.add(new ArrayList<String>());
+        }
+        SequenceGenerator<Region> seqgen = sequences();
+        int[] scanids = new int[matrices.size()];
+        WeightMatrixScanner.scanChunks(genome, regions, matrices, cutoffs, scanids, seqgen, threads, chunksize,
+                                       new WeightMatrixScanner.ChunkConsumer() {
+                                           public void consume(int m, List<WMHit> chunkHits) {
+                                               for (WMHit hit : chunkHits) {
+                                                   hits.get(m).add(describe(hit));
+                                               }
+                                           }
+                                       });
+        return hits;
+    }
+
+    @Test public void testThreads() throws InterruptedException {
+        List<List<String>> serial = scan(1, 1000000);
+        for (int m = 0; m < matrices.size(); m++) {
+            assertTrue(serial.get(m).size() > 0);
+        }
+        assertEquals(serial, scan(1, 997));
+        assertEquals(serial, scan(4, 997));
+        assertEquals(serial, scan(8, 7919));
+    }
+
+    /* scanSequence scores the same windows as the chunked scan, including the last one of each region on both strands */
+    @Test public void testScanSequence() throws InterruptedException {
+        Arrays.fill(cutoffs, -1000); // every window is a hit
+        List<List<String>> chunked = scan(4, 997);
+        SequenceGenerator<Region> seqgen = sequences();
+        for (int m = 0; m < matrices.size(); m++) {
+            Set<String> hits = new HashSet<String>();
+            int windows = 0;
+            for (Region r : regions) {
+                windows += 2 * (r.getWidth() - matrices.get(m).length() + 1);
+                for (WMHit hit : WeightMatrixScanner.scanSequence(matrices.get(m), cutoffs[m], seqgen.execute(r).toCharArray())) {
+                    hit.chromid = genome.getChromID(r.getChrom());
+                    hit.start += r.getStart();
+                    hit.end += r.getStart();
+                    assertTrue(hits.add(describe(hit)));
+                }
+            }
+            assertEquals(windows, hits.size());
+            assertEquals(new HashSet<String>(chunked.get(m)), hits);
+            assertEquals(chunked.get(m).size(), hits.size());
+        }
+    }
+}
@@ -6,12 +6,16 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.seqcode.deepseq.StrandedBaseBuffer;
 import org.seqcode.deepseq.StrandedBaseCount;
 import org.seqcode.deepseq.experiments.ExperimentCondition;
 import org.seqcode.deepseq.experiments.ExperimentManager;
@@ -97,41 +101,41 @@ public abstract class FeatureDetection {
 	 * @return : Lists of final Features
 	 */
 	public Map<ExperimentCondition, List<Feature>> execute(){
-		//Split the jobs into the allowed number of threads
+		//Split the genome into MAXSECTION-sized tasks. Larger chromosomes go first so that the 
+		//small ones fill in at the end, and each chromosome's tasks are kept together so that threads
+		//working off file-cached hits tend to query the same parts of the cache files. 
+		List<Region> chroms = new ArrayList<Region>();
 		Iterator<Region> testRegions = new ChromosomeGenerator().execute(gen);
-		//Threading divides analysis over entire chromosomes. This approach is not compatible with file caching. 
-		int numThreads = econfig.getCacheAllData() ? sconfig.getMaxThreads() : 1;
-				
+		while(testRegions.hasNext())
+			chroms.add(testRegions.next());
+		Collections.sort(chroms, new Comparator<Region>(){
+			public int compare(Region a, Region b){
+				return a.getWidth()>b.getWidth() ? -1 : (a.getWidth()==b.getWidth() ? 0 : 1);
+			}
+		});
+		ConcurrentLinkedQueue<Region> tasks = new ConcurrentLinkedQueue<Region>();
+		for(Region r : chroms)
+			tasks.addAll(splitRegion(r));
+		
+		//HitCache queries are thread-safe whether hits are cached in memory or in local files,
+		//so each thread takes the next task as soon as it is free
+		int numThreads = Math.max(1, Math.min(sconfig.getMaxThreads(), tasks.size()));
 		Thread[] threads = new Thread[numThreads];
-        List<Region> threadRegions[] = new ArrayList[numThreads];
-        int i = 0;
-        for (i = 0 ; i < threads.length; i++) {
-            threadRegions[i] = new ArrayList<Region>();
-        }
-        while(testRegions.hasNext()){
-        	Region r = testRegions.next(); 
-            threadRegions[(i++) % numThreads].add(r);
-        }
-
-        for (i = 0 ; i < threads.length; i++) {
-        	//Implementation-specific part is in thread's findFeatures method
-            Thread t = new Thread(getMyThread(threadRegions[i]));
-            t.start();
-            threads[i] = t;
-        }
-        boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) { }
-            for (i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
-            }
-        }
+		for (int i = 0 ; i < threads.length; i++) {
+			//Implementation-specific part is in thread's findFeatures method
+			FeatureDetectionThread fdt = getMyThread(new ArrayList<Region>());
+			fdt.setTaskQueue(tasks);
+			threads[i] = new Thread(fdt);
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
         //Sort the features
         for(ExperimentCondition c : manager.getConditions())
         	Collections.sort(features.get(c));
@@ -143,6 +147,21 @@ public abstract class FeatureDetection {
 	}
 	
 	
+	/**
+	 * Split a region into sub-regions of at most MAXSECTION bp, which are the units of work for the threads
+	 * @param r
+	 * @return
+	 */
+	protected List<Region> splitRegion(Region r){
+		List<Region> subRegions = new ArrayList<Region>();
+		for(int x=r.getStart(); x<=r.getEnd(); x+=sconfig.MAXSECTION){
+			int y = (int) (x+sconfig.MAXSECTION);
+			if(y>r.getEnd()){y=r.getEnd();}
+			subRegions.add(new Region(gen, r.getChrom(), x, y));
+		}
+		return subRegions;
+	}
+	
 	/* Java doesn't allow me to impose this, but it would also be good practise to include in each subclass a 
 	 * static method that returns a String describing the command-line arguments. 
 	 * The main method in the subclass can then draw on that String if no args are provided. 
@@ -229,9 +248,10 @@ public abstract class FeatureDetection {
 	 */
 	public abstract class FeatureDetectionThread implements Runnable {
         protected Collection<Region> runRegions;
+        protected Queue<Region> taskQueue=null;		//Shared sub-region tasks (set by execute); if null, runRegions is processed instead
         //Hits maintained in separate lists per strands - it's easier to do feature trimming & quantification this way 
-        protected Map<Sample, List<StrandedBaseCount>> hitsPos; 	//Lists of positive strand tags in the current region. Indexed by Sample.
-        protected Map<Sample, List<StrandedBaseCount>> hitsNeg; 	//Lists of negative strand tags in the current region. Indexed by Sample.
+        protected Map<Sample, StrandedBaseBuffer> hitsPos; 	//Positive strand tags in the current region. Indexed by Sample. Buffers are reused from region to region.
+        protected Map<Sample, StrandedBaseBuffer> hitsNeg; 	//Negative strand tags in the current region. Indexed by Sample. Buffers are reused from region to region.
         protected float[][][] landscape=null;  		//Binned tag density in the current region after shifting and extending. Indexed by Sample, base, strand
         protected Map<ExperimentCondition, BackgroundCollection> conditionBackgrounds; //Backgrounds are in here for thread safety during background model updates
     	protected Map<Sample, BackgroundCollection> sampleBackgrounds;
@@ -243,51 +263,34 @@ public abstract class FeatureDetection {
         	threadFeatures = new HashMap<ExperimentCondition, List<Feature>>();
         	for(ExperimentCondition c : manager.getConditions())
         		threadFeatures.put(c,  new ArrayList<Feature>());
+        	hitsPos = new HashMap<Sample, StrandedBaseBuffer>();
+        	hitsNeg = new HashMap<Sample, StrandedBaseBuffer>();
+        	for(Sample samp : manager.getSamples()){
+        		hitsPos.put(samp, new StrandedBaseBuffer());
+        		hitsNeg.put(samp, new StrandedBaseBuffer());
+        	}
     		initializeBackgrounds();
         }
         /**
-         * Run the thread, executing feature detection on each listed region.
-         * @param regs : regions that this thread examines
+         * Take sub-region tasks from a queue shared with other threads, instead of processing runRegions
+         * @param tasks
+         */
+        public void setTaskQueue(Queue<Region> tasks){taskQueue = tasks;}
+        
+        /**
+         * Run the thread, executing feature detection on each sub-region it takes from the task queue,
+         * or on each listed region if there is no queue.
          */
 		public void run(){ //declare as final if not overloaded (guarantees that landscapes is correctly set)
-			//Run over each region
-			for (Region currentRegion : runRegions) {
-                //Split the job up into large chunks
-                for(int x=currentRegion.getStart(); x<=currentRegion.getEnd(); x+=sconfig.MAXSECTION){
-                    int y = (int) (x+sconfig.MAXSECTION);
-                    if(y>currentRegion.getEnd()){y=currentRegion.getEnd();}
-                    Region currSubRegion = new Region(gen, currentRegion.getChrom(), x, y);
-                    
-                    hitsPos = new HashMap<Sample, List<StrandedBaseCount>>();
-                    hitsNeg = new HashMap<Sample, List<StrandedBaseCount>>();
-                
-                    //Initialize & sort the read lists per Sample
-                	for(Sample samp : manager.getSamples()){
-                		synchronized(manager){//hitCache requires thread safety
-                			List<StrandedBaseCount> sampHitsP = samp.getStrandedBases(currSubRegion, '+'); 
-                			List<StrandedBaseCount> sampHitsN = samp.getStrandedBases(currSubRegion, '-');
-                			Collections.sort(sampHitsP); Collections.sort(sampHitsN); //This might be pointless - the hits should be sorted in the cache already
-                			hitsPos.put(samp, sampHitsP);
-                			hitsNeg.put(samp, sampHitsN);
-                		}
-                	}
-                	//makeHitLandscape & make GaussianLandscape populate the landscape data structure
-                	//execute can therefore assume that these structures are updated, unless run() is overloaded
-                    if(sconfig.getBinWidth()==1 && sconfig.getTagGaussSigma()>0)
-                    	makeGaussianLandscape(hitsPos, hitsNeg, currSubRegion, sconfig.getTagGaussSigma(), sconfig.getTagGaussWidth());
-                    else
-                    	makeHitLandscape(hitsPos, hitsNeg, currSubRegion, sconfig.getBinWidth(), sconfig.getBinStep());
-                    
-                    //Implementation-specific execution
-                    Map<ExperimentCondition, List<Feature>> currFeatures = findFeatures(currSubRegion);
-                    
-                    //Add to thread's features
-                    for(ExperimentCondition cond : manager.getConditions())
-                    	threadFeatures.get(cond).addAll(currFeatures.get(cond));
-                    
-                    //TODO: Progress print (replace with some kind of percentage update)
-        			System.err.print(".");
-                }
+			if(taskQueue!=null){
+				Region currSubRegion;
+				while((currSubRegion = taskQueue.poll())!=null)
+					processSubRegion(currSubRegion);
+			}else{
+				//Split the job up into large chunks
+				for (Region currentRegion : runRegions)
+					for(Region currSubRegion : splitRegion(currentRegion))
+						processSubRegion(currSubRegion);
 			}
 			//Filter excluded regions (if necessary)
 			threadFeatures = filterExcluded(threadFeatures);
@@ -299,6 +302,35 @@ public abstract class FeatureDetection {
 			}
 		}
 		
+		/**
+		 * Load the hits & landscape for one sub-region, and add the features found there to the thread's features
+		 * @param currSubRegion : Region of at most MAXSECTION bp
+		 */
+		protected void processSubRegion(Region currSubRegion){
+            //Refill the read buffers per Sample (hits come out of the cache sorted)
+        	for(Sample samp : manager.getSamples()){
+        		//HitCache queries are thread-safe, so threads don't need to take turns here
+        		samp.getStrandedBases(currSubRegion, '+', hitsPos.get(samp)); 
+        		samp.getStrandedBases(currSubRegion, '-', hitsNeg.get(samp));
+        	}
+        	//makeHitLandscape & make GaussianLandscape populate the landscape data structure
+        	//execute can therefore assume that these structures are updated, unless run() is overloaded
+            if(sconfig.getBinWidth()==1 && sconfig.getTagGaussSigma()>0)
+            	makeGaussianLandscape(hitsPos, hitsNeg, currSubRegion, sconfig.getTagGaussSigma(), sconfig.getTagGaussWidth());
+            else
+            	makeHitLandscape(hitsPos, hitsNeg, currSubRegion, sconfig.getBinWidth(), sconfig.getBinStep());
+            
+            //Implementation-specific execution
+            Map<ExperimentCondition, List<Feature>> currFeatures = findFeatures(currSubRegion);
+            
+            //Add to thread's features
+            for(ExperimentCondition cond : manager.getConditions())
+            	threadFeatures.get(cond).addAll(currFeatures.get(cond));
+            
+            //TODO: Progress print (replace with some kind of percentage update)
+			System.err.print(".");
+		}
+		
 		/**
 		 * The core functionality in any event finder should be implemented in this method.
 		 * Assumes hits, landscape has been initialized
@@ -314,12 +346,12 @@ public abstract class FeatureDetection {
          * 	  and may also be shifted or extended here, depending on the event detection strategy
          * No needlefiltering here as that is taken care of during tag loading (i.e. in Sample)
          * 
-         * @param hits  : Lists of StrandedBaseCounts, indexed by Sample (sorted within each sample)
+         * @param hits  : StrandedBaseBuffers, indexed by Sample (sorted within each sample)
          * @param currReg
          * @param binWidth
          * @param binStep
          */
-    	protected void makeHitLandscape(Map<Sample, List<StrandedBaseCount>> hitsPos, Map<Sample, List<StrandedBaseCount>> hitsNeg, Region currReg, int binWidth, int binStep){
+    	protected void makeHitLandscape(Map<Sample, StrandedBaseBuffer> hitsPos, Map<Sample, StrandedBaseBuffer> hitsNeg, Region currReg, int binWidth, int binStep){
     		int numBins = (int)(currReg.getWidth()/binStep);
     		landscape = new float[hitsPos.size()][numBins+1][2];
     		int halfWidth = binWidth/2;
@@ -330,13 +362,14 @@ public abstract class FeatureDetection {
     					landscape[samp.getIndex()][i][s]=0;
     			
     			for(int strand=0; strand<=1; strand++){
-	        		List<StrandedBaseCount> currHits = strand==0 ? hitsPos.get(samp) : hitsNeg.get(samp);
+	        		StrandedBaseBuffer currHits = strand==0 ? hitsPos.get(samp) : hitsNeg.get(samp);
+	    			char str = currHits.getStrand();
 	    			
-		    		for(StrandedBaseCount h : currHits){
+		    		for(int h=0; h<currHits.size(); h++){
 		    			
 		    			//landscape array
-		    			int left = getLeft(h);
-		    			int right = getRight(h);
+		    			int left = getLeft(str, currHits.getCoordinate(h));
+		    			int right = getRight(str, currHits.getCoordinate(h));
 		    			if(left <= currReg.getEnd() && right>=currReg.getStart()){
 			    			int offsetL=inBounds(left-currReg.getStart(),0,currReg.getWidth());
 			    			int offsetR=inBounds(right-currReg.getStart(),0,currReg.getWidth());
@@ -344,7 +377,7 @@ public abstract class FeatureDetection {
 			    			int binstart = inBounds(((offsetL-halfWidth)/binStep), 0, numBins);
 		    				int binend = inBounds(((offsetR/binStep)), 0, numBins);
 		    				for(int b=binstart; b<=binend; b++)
-		    					landscape[samp.getIndex()][b][strand]+=h.getCount();
+		    					landscape[samp.getIndex()][b][strand]+=currHits.getCount(h);
 		    			}
 	            	}
     			}
@@ -357,12 +390,12 @@ public abstract class FeatureDetection {
          * Tags are gaussian smoothed over the landscape, and may also be shifted, depending on the event detection strategy
          * No needlefiltering here as that is taken care of during tag loading (i.e. in Sample)
          * 
-         * @param hits  : Lists of StrandedBaseCounts, indexed by Sample
+         * @param hits  : StrandedBaseBuffers, indexed by Sample
          * @param currReg
          * @param gaussSigma: Gaussian sigma (std dev)
          * @param gaussWidth: width over which to 'extend' each tag
     	 */
-    	protected void makeGaussianLandscape(Map<Sample, List<StrandedBaseCount>> hitsPos, Map<Sample, List<StrandedBaseCount>> hitsNeg, Region currReg, float gaussSigma, int gaussWidth){
+    	protected void makeGaussianLandscape(Map<Sample, StrandedBaseBuffer> hitsPos, Map<Sample, StrandedBaseBuffer> hitsNeg, Region currReg, float gaussSigma, int gaussWidth){
     		int length = (int)currReg.getWidth();
     		landscape = new float[hitsPos.size()][length+1][2];
     		float [][][] fivePrimes = new float[hitsPos.size()][length+1][2];
@@ -374,13 +407,14 @@ public abstract class FeatureDetection {
     					landscape[samp.getIndex()][i][s]=0; fivePrimes[samp.getIndex()][i][s]=0;
     				}
     			for(int strand=0; strand<=1; strand++){
-	        		List<StrandedBaseCount> currHits = strand==0 ? hitsPos.get(samp) : hitsNeg.get(samp);
+	        		StrandedBaseBuffer currHits = strand==0 ? hitsPos.get(samp) : hitsNeg.get(samp);
+	    			char str = currHits.getStrand();
 	    			
-		    		for(StrandedBaseCount h : currHits){
+		    		for(int h=0; h<currHits.size(); h++){
 		    			//(shifted) fivePrimes array
-		    			int offset5=inBounds(getShifted5Prime(h)-currReg.getStart(),0,currReg.getWidth());
+		    			int offset5=inBounds(getShifted5Prime(str, currHits.getCoordinate(h))-currReg.getStart(),0,currReg.getWidth());
 		    			int binoff5 = inBounds((int)(offset5), 0, length);
-		    			fivePrimes[samp.getIndex()][binoff5][strand]+=h.getCount();
+		    			fivePrimes[samp.getIndex()][binoff5][strand]+=currHits.getCount(h);
 		    		}
 		    		//landscape array is fivePrime * gaussian 
 		    		float total=0;
@@ -413,19 +447,28 @@ public abstract class FeatureDetection {
     		return x;
     	}
     	protected final int getShifted5Prime(StrandedBaseCount h){
-    		return(h.getStrand()=='+' ? 
-    				h.getCoordinate()+shift : 
-    				h.getCoordinate()-shift);
+    		return getShifted5Prime(h.getStrand(), h.getCoordinate());
+    	}
+    	protected final int getShifted5Prime(char strand, int coord){
+    		return(strand=='+' ? 
+    				coord+shift : 
+    				coord-shift);
     	}
     	protected final int getLeft(StrandedBaseCount h){
-    		return(h.getStrand()=='+' ? 
-    				h.getCoordinate()+shift-hit5Extend : 
-    				h.getCoordinate()-shift-hit3Extend);
+    		return getLeft(h.getStrand(), h.getCoordinate());
+    	}
+    	protected final int getLeft(char strand, int coord){
+    		return(strand=='+' ? 
+    				coord+shift-hit5Extend : 
+    				coord-shift-hit3Extend);
     	}
     	protected final int getRight(StrandedBaseCount h){
-    		return(h.getStrand()=='+' ? 
-    				h.getCoordinate()+shift+hit3Extend : 
-    				h.getCoordinate()-shift+hit5Extend);
+    		return getRight(h.getStrand(), h.getCoordinate());
+    	}
+    	protected final int getRight(char strand, int coord){
+    		return(strand=='+' ? 
+    				coord+shift+hit3Extend : 
+    				coord-shift+hit5Extend);
     	}
     	/**
     	 * Initializes half of a Gaussian
@@ -477,37 +520,39 @@ public abstract class FeatureDetection {
     	
     	/**
     	 * Uses a rough, inexact binary search to find StrandedBaseCounts that overlap a given feature in each Sample
-    	 * @param sameStrHits : Lists of StrandedBaseCounts, all from same strand, indexed by Sample - assumes sorted
+    	 * Only the overlapping hits are turned into StrandedBaseCount objects.
+    	 * @param sameStrHits : StrandedBaseBuffers, all from same strand, indexed by Sample - assumes sorted
     	 * @param f : Feature
     	 * @return : Lists of StrandedBaseCounts that overlap the feature coordinates
     	 */
-    	protected Map<Sample, List<StrandedBaseCount>> overlappingHits(Map<Sample, List<StrandedBaseCount>> sameStrHits, Feature f){
+    	protected Map<Sample, List<StrandedBaseCount>> overlappingHits(Map<Sample, StrandedBaseBuffer> sameStrHits, Feature f){
     		Map<Sample, List<StrandedBaseCount>> subHits = new HashMap<Sample, List<StrandedBaseCount>>();
     		for(Sample samp : manager.getSamples()){
     			List<StrandedBaseCount> sub = new ArrayList<StrandedBaseCount>();
+    			StrandedBaseBuffer hits = sameStrHits.get(samp);
+    			char hitStr = hits.getStrand();
 	    		int l = 0;
-	            int r = sameStrHits.get(samp).size();
+	            int r = hits.size();
 	            int featureStart = f.getCoords().getStart();
 	            int featureEnd= f.getCoords().getEnd();
 	            char str = f.getCoords().getStrand();
 	            while (r - l > 10) {
 	                int c = (l + r) / 2;
-	                if (featureStart > getRight(sameStrHits.get(samp).get(c))) {
+	                if (featureStart > getRight(hitStr, hits.getCoordinate(c))) {
 	                    l = c;
 	                } else {
 	                    r = c;
 	                }
 	            }
-	            while (l > 0 && (getRight(sameStrHits.get(samp).get(l)) >= featureStart)) {
+	            while (l > 0 && (getRight(hitStr, hits.getCoordinate(l)) >= featureStart)) {
 	                l--;
 	            }
-	            while (l < sameStrHits.get(samp).size() && getLeft(sameStrHits.get(samp).get(l)) <= featureEnd){
-	            	StrandedBaseCount hit = sameStrHits.get(samp).get(l);
-	            	int hitL = getLeft(hit);
-	            	int hitR = getRight(hit);
+	            while (l < hits.size() && getLeft(hitStr, hits.getCoordinate(l)) <= featureEnd){
+	            	int hitL = getLeft(hitStr, hits.getCoordinate(l));
+	            	int hitR = getRight(hitStr, hits.getCoordinate(l));
 	    			if(f.getCoords().overlaps(hitL, hitR) 
-	    					&& (str=='.' || str==hit.getStrand())){
-	    				sub.add(hit);
+	    					&& (str=='.' || str==hitStr)){
+	    				sub.add(hits.get(l));
 	    			}			
 	                l++;
 	            }
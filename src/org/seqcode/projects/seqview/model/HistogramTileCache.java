@@ -0,0 +1,358 @@
+package org.seqcode.projects.seqview.model;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.seqcode.data.readdb.*;
+
+/**
+ * Histogram tiles shared by the SeqView histogram models, so that panning and zooming reuse what has
+ * already been fetched from ReadDB rather than fetching the whole region again.
+ *
+ * <p>A tile is one strand of one alignment's histogram (weights, or counts as weights) over TILEBINS bins
+ * of a given bin width, aligned to a multiple of its span on the chromosome.  Tiles are fetched through a
+ * ClientPool and kept, least recently used first out, until they take more than maxBytes.  Several models
+ * asking for the same tile share one fetch.
+ *
+ * <p>Fetches wait in a queue until fewer than MAXSENT are outstanding on the pool.  Fetches for a view go
+ * ahead of prefetches.  cancelViews() drops the queued view fetches that only the cancelled owner wanted
+ * and cancels the futures get() gave it, so a model moved to a new region stops waiting on the old one.
+ * Its prefetches stay queued until cancelPrefetches(), so that the new region can claim the ones it
+ * wants first.  Fetches that were already sent are still cached when they arrive.
+ */
+public class HistogramTileCache {
+
+    /** number of bins in a tile */
+    public static final int TILEBINS = 512;
+    public static final long DEFAULT_MAXBYTES = 64L * 1024 * 1024;
+    private static final int POOLSIZE = 4;
+    /* below the pool's own limit on requests in flight, so sending from a completion never blocks the pool */
+    private static final int MAXSENT = POOLSIZE * 4;
+    /* when reads are extended by their own length, how far a read from a neighboring tile may reach */
+    private static final int READLENGTHPAD = 1000;
+    /* rough size of a cached tile beyond its arrays */
+    private static final int TILEOVERHEAD = 128;
+
+    private static HistogramTileCache defaultCache = null;
+
+    /**
+     * The cache shared by the models, connected as specified by ~/.readdb_passwd (see Client())
+     */
+    public static synchronized HistogramTileCache getDefault() throws IOException, ClientException {
+        if (defaultCache == null) {
+            defaultCache = new HistogramTileCache(new ClientPool(POOLSIZE), DEFAULT_MAXBYTES);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Identifies a tile: the alignment, chromosome, and kind of histogram, its bin width, and the tile's
+     * index along the chromosome.  Tile i covers [i * binWidth * TILEBINS, (i+1) * binWidth * TILEBINS).
+     */
+    public static class TileKey {
+        public final String alignid;
+        public final int chromid, extension, binWidth, dedup, tile;
+        public final boolean isType2, paired, useWeights, plusStrand;
+
+        public TileKey(String alignid, int chromid, boolean isType2, boolean paired, boolean useWeights, boolean plusStrand,
+                       int extension, int binWidth, int dedup, int tile) {
+            this.alignid = alignid;
+            this.chromid = chromid;
+            this.isType2 = isType2;
+            this.paired = paired;
+            this.useWeights = useWeights;
+            this.plusStrand = plusStrand;
+            this.extension = extension;
+            this.binWidth = binWidth;
+            this.dedup = dedup;
+            this.tile = tile;
+        }
+        public int getStart() {return tile * binWidth * TILEBINS;}
+        public int getEnd() {return (tile + 1) * binWidth * TILEBINS - 1;}
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey k = (TileKey)o;
+            return alignid.equals(k.alignid) && chromid == k.chromid && isType2 == k.isType2 && paired == k.paired &&
+                useWeights == k.useWeights && plusStrand == k.plusStrand && extension == k.extension &&
+                binWidth == k.binWidth && dedup == k.dedup && tile == k.tile;
+        }
+        public int hashCode() {
+            int h = alignid.hashCode();
+            h = h * 31 + chromid;
+            h = h * 31 + binWidth;
+            h = h * 31 + tile;
+            h = h * 31 + extension;
+            h = h * 31 + dedup;
+            h = h * 16 + (isType2 ? 8 : 0) + (paired ? 4 : 0) + (useWeights ? 2 : 0) + (plusStrand ? 1 : 0);
+            return h;
+        }
+        public String toString() {
+            return String.format("%s chrom %d tile %d binwidth %d%s%s%s%s ext %d dedup %d", alignid, chromid, tile, binWidth,
+                                 isType2 ? " type2" : "", paired ? " paired" : "", useWeights ? " weights" : " counts",
+                                 plusStrand ? " +" : " -", extension, dedup);
+        }
+    }
+
+    /* a tile being fetched, and the owners that want it */
+    private class Fetch {
+        TileKey key;
+        CompletableFuture<FloatHistogram> result = new CompletableFuture<FloatHistogram>();
+        Set<Object> owners = new HashSet<Object>();
+        boolean prefetch, sent = false;
+        Fetch(TileKey k, boolean p) {
+            key = k;
+            prefetch = p;
+        }
+    }
+
+    private ClientPool pool;
+    private long maxBytes, bytes;
+    private LinkedHashMap<TileKey,FloatHistogram> tiles;
+    /* fetches that are queued or sent, by tile */
+    private HashMap<TileKey,Fetch> fetches;
+    /* fetches not yet sent: fetches for views, then prefetches */
+    private LinkedList<Fetch> queue;
+    private int sent;
+    /* the futures that get() handed to each owner and that haven't completed */
+    private HashMap<Object,Set<CompletableFuture<FloatHistogram>>> waiting;
+
+    public HistogramTileCache(ClientPool pool, long maxBytes) {
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+        bytes = 0;
+        tiles = new LinkedHashMap<TileKey,FloatHistogram>(256, .75f, true);
+        fetches = new HashMap<TileKey,Fetch>();
+        queue = new LinkedList<Fetch>();
+        sent = 0;
+        waiting = new HashMap<Object,Set<CompletableFuture<FloatHistogram>>>();
+    }
+
+    public synchronized long getBytes() {return bytes;}
+    public synchronized int getNumTiles() {return tiles.size();}
+    public synchronized void setMaxBytes(long m) {
+        maxBytes = m;
+        evict();
+    }
+    public synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+    /** the tile if it's cached, or null */
+    public synchronized FloatHistogram getCached(TileKey key) {
+        return tiles.get(key);
+    }
+    /**
+     * Returns a future for the tile on behalf of owner.  The future is cancelled if cancel(owner) is
+     * called before it completes.  A failed fetch completes the future exceptionally with the
+     * IOException or ClientException.
+     */
+    public synchronized CompletableFuture<FloatHistogram> get(TileKey key, final Object owner) {
+        FloatHistogram h = tiles.get(key);
+        if (h != null) {
+            return CompletableFuture.completedFuture(h);
+        }
+        Fetch f = fetches.get(key);
+        if (f == null) {
+            f = new Fetch(key, false);
+            fetches.put(key, f);
+            addToQueue(f);
+        } else if (f.prefetch) {
+            /* wanted for a view now, so it goes ahead of the prefetches */
+            f.prefetch = false;
+            if (!f.sent) {
+                queue.remove(f);
+                addToQueue(f);
+            }
+        }
+        f.owners.add(owner);
+        final CompletableFuture<FloatHistogram> mine = new CompletableFuture<FloatHistogram>();
+        Set<CompletableFuture<FloatHistogram>> w = waiting.get(owner);
+        if (w == null) {
+            w = new HashSet<CompletableFuture<FloatHistogram>>();
+            waiting.put(owner, w);
+        }
+        w.add(mine);
+        f.result.whenComplete(new BiConsumer<FloatHistogram,Throwable>() {
+                public void accept(FloatHistogram h, Throwable t) {
+                    if (t == null) {
+                        mine.complete(h);
+                    } else {
+                        mine.completeExceptionally(t);
+                    }
+                    done(owner, mine);
+                }
+            });
+        dispatch();
+        return mine;
+    }
+    /**
+     * Fetches the tile in the background, after any fetches for views, unless it's already cached or
+     * being fetched.
+     */
+    public synchronized void prefetch(TileKey key, Object owner) {
+        if (tiles.containsKey(key)) {
+            return;
+        }
+        Fetch f = fetches.get(key);
+        if (f == null) {
+            f = new Fetch(key, true);
+            fetches.put(key, f);
+            queue.addLast(f);
+        }
+        f.owners.add(owner);
+        dispatch();
+    }
+    /**
+     * Cancels the futures that get() returned to owner, and drops the queued fetches that no one
+     * else wants.
+     */
+    public void cancel(Object owner) {
+        cancel(owner, true, true);
+    }
+    /**
+     * Cancels the futures that get() returned to owner, and drops the queued fetches for views that no
+     * one else wants.  The owner's prefetches stay queued, so that get() can still claim them.
+     */
+    public void cancelViews(Object owner) {
+        cancel(owner, true, false);
+    }
+    /**
+     * Drops the owner's queued prefetches that no one else wants
+     */
+    public void cancelPrefetches(Object owner) {
+        cancel(owner, false, true);
+    }
+    private void cancel(Object owner, boolean views, boolean prefetches) {
+        Set<CompletableFuture<FloatHistogram>> w = null;
+        synchronized(this) {
+            Iterator<Fetch> iter = queue.iterator();
+            while (iter.hasNext()) {
+                Fetch f = iter.next();
+                if ((f.prefetch ? prefetches : views) && f.owners.remove(owner) && f.owners.isEmpty()) {
+                    iter.remove();
+                    fetches.remove(f.key);
+                    f.result.cancel(false);
+                }
+            }
+            for (Fetch f : fetches.values()) {
+                if (f.prefetch ? prefetches : views) {
+                    f.owners.remove(owner);
+                }
+            }
+            if (views) {
+                w = waiting.remove(owner);
+            }
+        }
+        if (w != null) {
+            for (CompletableFuture<FloatHistogram> f : w) {
+                f.cancel(false);
+            }
+        }
+    }
+    private synchronized void done(Object owner, CompletableFuture<FloatHistogram> f) {
+        Set<CompletableFuture<FloatHistogram>> w = waiting.get(owner);
+        if (w != null) {
+            w.remove(f);
+            if (w.isEmpty()) {
+                waiting.remove(owner);
+            }
+        }
+    }
+    /* puts a fetch for a view after the other fetches for views */
+    private void addToQueue(Fetch f) {
+        ListIterator<Fetch> iter = queue.listIterator();
+        while (iter.hasNext()) {
+            if (iter.next().prefetch) {
+                iter.previous();
+                break;
+            }
+        }
+        iter.add(f);
+    }
+    /* sends queued fetches while there's room.  Call while synchronized */
+    private void dispatch() {
+        while (sent < MAXSENT && !queue.isEmpty()) {
+            final Fetch f = queue.removeFirst();
+            f.sent = true;
+            sent++;
+            fetch(f.key).whenComplete(new BiConsumer<FloatHistogram,Throwable>() {
+                    public void accept(FloatHistogram h, Throwable t) {
+                        while (t instanceof CompletionException && t.getCause() != null) {
+                            t = t.getCause();
+                        }
+                        if (t instanceof ClientException) {
+                            /* the server refused, eg no such alignment, so the answer won't change */
+                            h = FloatHistogram.empty();
+                            t = null;
+                        }
+                        synchronized(HistogramTileCache.this) {
+                            sent--;
+                            fetches.remove(f.key);
+                            if (h != null) {
+                                put(f.key, h);
+                            }
+                            dispatch();
+                        }
+                        if (t == null) {
+                            f.result.complete(h);
+                        } else {
+                            f.result.completeExceptionally(t);
+                        }
+                    }
+                });
+        }
+    }
+    private void put(TileKey key, FloatHistogram h) {
+        FloatHistogram old = tiles.put(key, h);
+        if (old != null) {
+            bytes -= size(old);
+        }
+        bytes += size(h);
+        evict();
+    }
+    private void evict() {
+        Iterator<FloatHistogram> iter = tiles.values().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            bytes -= size(iter.next());
+            iter.remove();
+        }
+    }
+    private static long size(FloatHistogram h) {
+        return TILEOVERHEAD + 8L * h.size();
+    }
+
+    /* requests a tile from the pool.  Extended reads can reach into a tile from its neighbors, so the request
+       covers that much more on each side, in whole bins, and the extra bins are dropped */
+    private CompletableFuture<FloatHistogram> fetch(final TileKey key) {
+        int w = key.binWidth;
+        int pad = key.extension > 0 ? key.extension : (key.extension < 0 ? READLENGTHPAD : 0);
+        pad = (pad + w - 1) / w * w;
+        int start = Math.max(0, key.getStart() - pad);
+        int end = key.getEnd() + pad;
+        final int tileStart = key.getStart(), tileEnd = key.getEnd();
+        List<String> ids = Collections.singletonList(key.alignid);
+        if (key.useWeights) {
+            return pool.getWeightHistogramAsync(ids, key.chromid, key.isType2, key.paired, key.extension, w, key.dedup,
+                                                start, end, null, key.plusStrand)
+                .thenApply(new Function<TreeMap<Integer,Float>,FloatHistogram>() {
+                        public FloatHistogram apply(TreeMap<Integer,Float> map) {
+                            return map == null ? FloatHistogram.empty() : FloatHistogram.fromMap(map).range(tileStart, tileEnd);
+                        }
+                    });
+        } else {
+            return pool.getHistogramAsync(ids, key.chromid, key.isType2, key.paired, key.extension, w, key.dedup,
+                                          start, end, null, key.plusStrand)
+                .thenApply(new Function<TreeMap<Integer,Integer>,FloatHistogram>() {
+                        public FloatHistogram apply(TreeMap<Integer,Integer> map) {
+                            return map == null ? FloatHistogram.empty() : FloatHistogram.fromCounts(IntHistogram.fromMap(map)).range(tileStart, tileEnd);
+                        }
+                    });
+        }
+    }
+}
@@ -2,6 +2,9 @@ package org.seqcode.projects.seqview.model;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import org.seqcode.data.readdb.*;
 import org.seqcode.data.seqdata.*;
@@ -11,6 +14,13 @@ import org.seqcode.genome.location.Region;
 /**
  * Data model for chipseq histogram.  Separate methods for retrieving
  * plus and minus strand results
+ *
+ * Histograms are assembled from tiles in the shared HistogramTileCache.  Once a region
+ * has more than MaxBinsPerRegion bins of BinWidth, it's binned at the smallest power-of-two
+ * multiple of BinWidth that brings it under, so wide regions cost about the same as narrow
+ * ones; getBinWidth() is the width actually used.  After a region is loaded, the tiles on
+ * either side and at the neighboring bin widths are prefetched.  A new region cancels the
+ * fetches still outstanding for the old one.
  */
 public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runnable {
     
@@ -20,8 +30,12 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
     private Set<String> ids;
     private SeqHistogramModelProperties props;
 
+    private HistogramTileCache cache;
     private Region region;
     private boolean newinput;
+    /* counts regions set, so that results for a superseded region are thrown away */
+    private int generation;
+    private int binWidth;
     
     public SeqHistogramModel (SeqAlignment a) throws IOException, ClientException {
         alignments = new HashSet<SeqAlignment>();
@@ -29,6 +43,9 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
         props = new SeqHistogramModelProperties();
         region = null;
         newinput = false;
+        generation = 0;
+        binWidth = 1;
+        cache = HistogramTileCache.getDefault();
         client = new Client();
         ids = new HashSet<String>();
         ids.add(Integer.toString(a.getDBID()));
@@ -43,6 +60,9 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
         props = new SeqHistogramModelProperties();
         region = null;
         newinput = false;
+        generation = 0;
+        binWidth = 1;
+        cache = HistogramTileCache.getDefault();
         client = new Client();
         ids = new HashSet<String>();
         for (SeqAlignment align : alignments) {
@@ -63,252 +83,181 @@ public class SeqHistogramModel extends SeqViewModel implements RegionModel, Runn
     }
     public Region getRegion() {return region;}
     
-    public void setRegion(Region r) {
-        if (newinput == false) {
-            if (!r.equals(region)) {
-                region = r;
-                newinput = true;
-            } else {
-                notifyListeners();
-            }
+    public synchronized void setRegion(Region r) {
+        if (!r.equals(region)) {
+            region = r;
+            newRegion();
+        } else if (!newinput) {
+            notifyListeners();
         }
     }
     //Forces getting data for region again, even if same region (good for model properties updates). 
-    public void resetRegion(Region r) {
-        if (newinput == false) {
-        	region = r;
-        	newinput = true;
-        }
+    public synchronized void resetRegion(Region r) {
+        region = r;
+        newRegion();
+    }
+    /* abandons whatever is being fetched for the old region's view and wakes run().  The old region's
+       prefetches are dropped once run() has claimed the ones the new region needs */
+    private void newRegion() {
+        newinput = true;
+        generation++;
+        cache.cancelViews(this);
+        notifyAll();
+    }
+    public void stopRunning() {
+        super.stopRunning();
+        cache.cancel(this);
     }
-    
     
     public boolean isReady() {return !newinput;}
     public Map<Integer,Float> getPlus() {return resultsPlus;}
     public Map<Integer,Float> getMinus() {return resultsMinus;}
     public Map<Integer,Float> getPval() {return resultsPval;}
-    public synchronized void run() {
+    /** the bin width of the current results */
+    public int getBinWidth() {return binWidth;}
+    public void run() {
         while(keepRunning()) {
-            try {
+            Region r;
+            int gen;
+            synchronized(this) {
                 if (!newinput) {
-                    wait();
-                }
-            } catch (InterruptedException ex) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
 
-            }
-            if (newinput) {
-                try {
-                    int width = props.BinWidth;
-                    int extension = props.ReadExtension;
-                    // for GaussianKernel, get 1bp resolution data
-                    if (props.GaussianKernelVariance!=0 && region.getWidth()<=1000){ 
-                    	width = 1;
                     }
-                    resultsPlus = null;
-                    resultsMinus = null;
-                    resultsPval = null;
-                    if (props.UseWeights) {
-                        if (!props.ShowPairedReads || props.ShowSingleReads) {
-                        	try{
-                        		if(props.ShowType1Reads){
-                        			resultsPlus = Aggregator.mergeHistogramsFF(resultsPlus,
-	                                                                       client.getWeightHistogram(ids,
-	                                                                                                 region.getGenome().getChromID(region.getChrom()),
-	                                                                                                 false, //type1
-	                                                                                                 false,
-	                                                                                                 extension,
-	                                                                                                 width,
-	                                                                                                 (int)props.DeDuplicate,
-	                                                                                                 region.getStart(),
-	                                                                                                 region.getEnd(),
-	                                                                                                 null,
-	                                                                                                 true));
-	                            
-                        			resultsMinus = Aggregator.mergeHistogramsFF(resultsMinus,
-	                                                                        client.getWeightHistogram(ids,
-	                                                                                                  region.getGenome().getChromID(region.getChrom()),
-	                                                                                                  false, //type1
-	                                                                                                  false,
-	                                                                                                  extension,
-	                                                                                                  width,
-	                                                                                                  (int)props.DeDuplicate,
-	                                                                                                  region.getStart(),
-	                                                                                                  region.getEnd(),
-	                                                                                                  null,
-	                                                                                                  false));
-                        		}
-                        		if(props.ShowType2Reads){
-                        			resultsPlus = Aggregator.mergeHistogramsFF(resultsPlus,
-	                                                                       client.getWeightHistogram(ids,
-	                                                                                                 region.getGenome().getChromID(region.getChrom()),
-	                                                                                                 true, //type2
-	                                                                                                 false,
-	                                                                                                 extension,
-	                                                                                                 width,
-	                                                                                                 (int)props.DeDuplicate,
-	                                                                                                 region.getStart(),
-	                                                                                                 region.getEnd(),
-	                                                                                                 null,
-	                                                                                                 true));
-	                            
-                        			resultsMinus = Aggregator.mergeHistogramsFF(resultsMinus,
-	                                                                        client.getWeightHistogram(ids,
-	                                                                                                  region.getGenome().getChromID(region.getChrom()),
-	                                                                                                  true, //type2
-	                                                                                                  false,
-	                                                                                                  extension,
-	                                                                                                  width,
-	                                                                                                  (int)props.DeDuplicate,
-	                                                                                                  region.getStart(),
-	                                                                                                  region.getEnd(),
-	                                                                                                  null,
-	                                                                                                  false));
-                        		}
-                        	}catch (Exception ex) {
-                                //Fail silently if there are no single read alignments
-                            }
-                        }
-                        if (props.ShowPairedReads) {
-                        	try{
-	                            resultsPlus = Aggregator.mergeHistogramsFF(resultsPlus,
-	                                                                    client.getWeightHistogram(ids,
-	                                                                                              region.getGenome().getChromID(region.getChrom()),
-	                                                                                              false,
-	                                                                                              true,
-	                                                                                              extension,
-	                                                                                              width,
-	                                                                                              (int)props.DeDuplicate,
-	                                                                                              region.getStart(),
-	                                                                                              region.getEnd(),
-	                                                                                              null,
-	                                                                                              true));
-	                            
-	                            resultsMinus = Aggregator.mergeHistogramsFF(resultsMinus,
-	                                                                     client.getWeightHistogram(ids,
-	                                                                                               region.getGenome().getChromID(region.getChrom()),
-	                                                                                               false,
-	                                                                                               true,
-	                                                                                               extension,
-	                                                                                               width,
-	                                                                                               (int)props.DeDuplicate,
-	                                                                                               region.getStart(),
-	                                                                                               region.getEnd(),
-	                                                                                               null,
-	                                                                                               false));
-                        	}catch (Exception ex) {
-                                //Fail silently if there are no paired read alignments
-                            }
-                        }
-
-                    } else {
-                        if (!props.ShowPairedReads || props.ShowSingleReads) {
-                        	try{
-                        		if(props.ShowType1Reads){
-                        			resultsPlus = Aggregator.mergeHistogramsIF(client.getHistogram(ids,
-	                                                                                           region.getGenome().getChromID(region.getChrom()),
-	                                                                                           false, //type1
-	                                                                                           false,
-	                                                                                           extension,
-	                                                                                           width,
-	                                                                                           (int)props.DeDuplicate,
-	                                                                                           region.getStart(),
-	                                                                                           region.getEnd(),
-	                                                                                           null,
-	                                                                                           true),
-	                                                                    resultsPlus);
-	                            
-                        			resultsMinus = Aggregator.mergeHistogramsIF(client.getHistogram(ids,
-	                                                                                            region.getGenome().getChromID(region.getChrom()),
-	                                                                                            false, //type1
-	                                                                                            false,
-	                                                                                            extension,
-	                                                                                            width,
-	                                                                                            (int)props.DeDuplicate,
-	                                                                                            region.getStart(),
-	                                                                                            region.getEnd(),
-	                                                                                            null,
-	                                                                                            false),
-	                                                                     resultsMinus);
-                        		}
-                        		if(props.ShowType2Reads){
-                        			resultsPlus = Aggregator.mergeHistogramsIF(client.getHistogram(ids,
-	                                                                                           region.getGenome().getChromID(region.getChrom()),
-	                                                                                           true, //type2
-	                                                                                           false,
-	                                                                                           extension,
-	                                                                                           width,
-	                                                                                           (int)props.DeDuplicate,
-	                                                                                           region.getStart(),
-	                                                                                           region.getEnd(),
-	                                                                                           null,
-	                                                                                           true),
-	                                                                    resultsPlus);
-	                            
-                        			resultsMinus = Aggregator.mergeHistogramsIF(client.getHistogram(ids,
-	                                                                                            region.getGenome().getChromID(region.getChrom()),
-	                                                                                            true, //type2
-	                                                                                            false,
-	                                                                                            extension,
-	                                                                                            width,
-	                                                                                            (int)props.DeDuplicate,
-	                                                                                            region.getStart(),
-	                                                                                            region.getEnd(),
-	                                                                                            null,
-	                                                                                            false),
-	                                                                     resultsMinus);
-                        		}
-                        	}catch (Exception ex) {
-                                //Fail silently if there are no single read alignments
-                            }
-                        }
-                        if (props.ShowPairedReads) {
-                        	try{
-	                            resultsPlus = Aggregator.mergeHistogramsIF(
-	                                                                    client.getHistogram(ids,
-	                                                                                        region.getGenome().getChromID(region.getChrom()),
-	                                                                                        false,
-	                                                                                        true,
-	                                                                                        extension,
-	                                                                                        width,
-	                                                                                        (int)props.DeDuplicate,
-	                                                                                        region.getStart(),
-	                                                                                        region.getEnd(),
-	                                                                                        null,
-	                                                                                        true),
-	                                                                       resultsPlus);
-	                            
-	                            resultsMinus = Aggregator.mergeHistogramsIF(
-	                                                                     client.getHistogram(ids,
-	                                                                                         region.getGenome().getChromID(region.getChrom()),
-	                                                                                         false,
-	                                                                                         true,
-	                                                                                         extension,
-	                                                                                         width,
-	                                                                                         (int)props.DeDuplicate,
-	                                                                                         region.getStart(),
-	                                                                                         region.getEnd(),
-	                                                                                         null,
-	                                                                                         false),
-	                                                                       resultsMinus);
-                        	}catch (Exception ex) {
-                                //Fail silently if there are no paired read alignments
-                            }
-                        }
-                    }
-                } catch (Exception ex) {
-                    //ex.printStackTrace();
                 }
-                if(resultsPlus==null || resultsMinus==null){
-                    // assign empty output.  This is useful because Client
-                    // throws an exception for non-existant chromosomes, such
-                    // as those for which there were no alignment results
-                    resultsPlus = new TreeMap<Integer,Float>();
-                    resultsMinus = resultsPlus;
+                if (!newinput) {
+                    continue;
                 }
-
+                r = region;
+                gen = generation;
+            }
+            /* the monitor isn't held while fetching, so that setRegion() can cancel the fetch */
+            int width = chooseBinWidth(r.getWidth());
+            FloatHistogram plus = null, minus = null;
+            try {
+                int chromid = r.getGenome().getChromID(r.getChrom());
+                List<CompletableFuture<FloatHistogram>> plusTiles = getTiles(r, chromid, width, true);
+                List<CompletableFuture<FloatHistogram>> minusTiles = getTiles(r, chromid, width, false);
+                cache.cancelPrefetches(this);
+                plus = getHistogram(r, plusTiles);
+                minus = plus == null ? null : getHistogram(r, minusTiles);
+            } catch (Exception ex) {
+                //ex.printStackTrace();
+                plus = FloatHistogram.empty();
+                minus = plus;
+            }
+            synchronized(this) {
+                if (gen != generation || plus == null || minus == null) {
+                    //superseded by a new region
+                    continue;
+                }
+                // assign empty output for chromosomes without hits, as the painters expect maps
+                resultsPlus = plus.toTreeMap();
+                resultsMinus = minus.toTreeMap();
+                resultsPval = null;
+                binWidth = width;
                 newinput = false;
-                notifyListeners();
+            }
+            notifyListeners();
+            try {
+                prefetch(r, width);
+            } catch (Exception ex) {
+                //prefetching is only an optimization
             }
         }
+        cache.cancel(this);
         client.close();
     }
+    /* BinWidth, or a power-of-two multiple of it once a region this wide has more than MaxBinsPerRegion bins */
+    private int chooseBinWidth(int regionWidth) {
+        int width = props.BinWidth;
+        // for GaussianKernel, get 1bp resolution data
+        if (props.GaussianKernelVariance!=0 && regionWidth<=1000){ 
+            width = 1;
+        }
+        width = Math.max(1, width);
+        if (props.MaxBinsPerRegion != null && props.MaxBinsPerRegion > 0) {
+            while (regionWidth / width > props.MaxBinsPerRegion) {
+                width *= 2;
+            }
+        }
+        return width;
+    }
+    /* the kinds of hits to show, as {isType2, paired} */
+    private List<boolean[]> getHitTypes() {
+        List<boolean[]> types = new ArrayList<boolean[]>();
+        if (!props.ShowPairedReads || props.ShowSingleReads) {
+            if (props.ShowType1Reads) {
+                types.add(new boolean[]{false, false});
+            }
+            if (props.ShowType2Reads) {
+                types.add(new boolean[]{true, false});
+            }
+        }
+        if (props.ShowPairedReads) {
+            types.add(new boolean[]{false, true});
+        }
+        return types;
+    }
+    private HistogramTileCache.TileKey getKey(String id, int chromid, boolean[] type, boolean plusStrand, int width, int tile) {
+        return new HistogramTileCache.TileKey(id, chromid, type[0], type[1], props.UseWeights, plusStrand,
+                                              props.ReadExtension, width, (int)props.DeDuplicate, tile);
+    }
+    /* requests the tiles of one strand of all the alignments over r, as weights or counts depending on
+       the properties.  Queued prefetches of these tiles are claimed for the view */
+    private List<CompletableFuture<FloatHistogram>> getTiles(Region r, int chromid, int width, boolean plusStrand) {
+        int span = width * HistogramTileCache.TILEBINS;
+        List<CompletableFuture<FloatHistogram>> futures = new ArrayList<CompletableFuture<FloatHistogram>>();
+        for (boolean[] type : getHitTypes()) {
+            for (String id : ids) {
+                for (int t = r.getStart() / span; t <= r.getEnd() / span; t++) {
+                    futures.add(cache.get(getKey(id, chromid, type, plusStrand, width, t), this));
+                }
+            }
+        }
+        return futures;
+    }
+    /* the summed histogram of the tiles over r, or null if the fetch was cancelled.  Tiles that fail to
+       load are left out */
+    private FloatHistogram getHistogram(Region r, List<CompletableFuture<FloatHistogram>> futures) throws InterruptedException {
+        List<FloatHistogram> parts = new ArrayList<FloatHistogram>();
+        for (CompletableFuture<FloatHistogram> f : futures) {
+            try {
+                parts.add(f.get());
+            } catch (CancellationException ex) {
+                return null;
+            } catch (ExecutionException ex) {
+                //Fail silently, as for alignments without that kind of read
+            }
+        }
+        FloatHistogram h = FloatHistogram.merge(parts);
+        return h == null ? FloatHistogram.empty() : h.range(r.getStart(), r.getEnd());
+    }
+    /* queues the tiles for a view's width on either side of r, and for zooming in or out by two
+       as RegionPanel does */
+    private void prefetch(Region r, int width) {
+        int chromid = r.getGenome().getChromID(r.getChrom());
+        int w = r.getWidth();
+        int[][] ranges = {{r.getStart() - w, r.getStart() - 1, width},
+                          {r.getEnd() + 1, r.getEnd() + w, width},
+                          {r.getStart() - w / 2, r.getEnd() + w / 2, chooseBinWidth(w * 2)},
+                          {r.getStart() + w / 4, r.getEnd() - w / 4, chooseBinWidth(w / 2)}};
+        for (int[] range : ranges) {
+            int start = Math.max(0, range[0]), end = range[1], bw = range[2];
+            if (end < start) {
+                continue;
+            }
+            int span = bw * HistogramTileCache.TILEBINS;
+            for (boolean[] type : getHitTypes()) {
+                for (String id : ids) {
+                    for (int t = start / span; t <= end / span; t++) {
+                        cache.prefetch(getKey(id, chromid, type, true, bw, t), this);
+                        cache.prefetch(getKey(id, chromid, type, false, bw, t), this);
+                    }
+                }
+            }
+        }
+    }
  }
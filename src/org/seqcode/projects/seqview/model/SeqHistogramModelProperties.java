@@ -4,6 +4,7 @@ package org.seqcode.projects.seqview.model;
 public class SeqHistogramModelProperties extends ModelProperties {
 
     public Integer BinWidth = 1;
+    public Integer MaxBinsPerRegion = 4096;
     public Integer DeDuplicate = 0;
     public Boolean UseWeights = true;
     public Integer GaussianKernelVariance = 0;
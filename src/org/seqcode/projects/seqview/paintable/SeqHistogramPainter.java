@@ -161,20 +161,20 @@ public class SeqHistogramPainter extends RegionPaintable {
 		Stroke oldStroke = g.getStroke();
 		int linewidth = getProperties().getLineWidth();
 		if (linewidth < 0) {
-			linewidth = trackWidth / (histomodel.getRegion().getWidth() / histomodel.getProperties().BinWidth);
+			linewidth = trackWidth / (histomodel.getRegion().getWidth() / histomodel.getBinWidth());
 		}
 		if (linewidth < 1) {
 			linewidth = 1;
 		}
-		int actualBinWidth = histomodel.getProperties().BinWidth;
+		int actualBinWidth = histomodel.getBinWidth();
 		if(autoUpdateBins){
-			if (trackWidth / linewidth < histomodel.getRegion().getWidth() / histomodel.getProperties().BinWidth) {
+			if (trackWidth / linewidth < histomodel.getRegion().getWidth() / histomodel.getBinWidth()) {
 				actualBinWidth = histomodel.getRegion().getWidth() / (trackWidth / linewidth);
 				combineBins(plus, actualBinWidth);
 				combineBins(minus, actualBinWidth);
 			}
 		}
-		int binPixels = trackWidth/(histomodel.getRegion().getWidth() / histomodel.getProperties().BinWidth);
+		int binPixels = trackWidth/(histomodel.getRegion().getWidth() / histomodel.getBinWidth());
 		if(binPixels<1)
 			binPixels=1;
 
@@ -3,6 +3,7 @@ package org.seqcode.viz.compositeplot;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.seqcode.data.io.RegionFileUtilities;
@@ -11,6 +12,7 @@ import org.seqcode.deepseq.experiments.ExperimentCondition;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.experiments.ExptConfig;
 import org.seqcode.genome.GenomeConfig;
+import org.seqcode.genome.location.Region;
 import org.seqcode.genome.location.StrandedPoint;
 import org.seqcode.gseutils.Args;
 
@@ -28,6 +30,13 @@ public class MakeTagProfile {
 	public MakeTagProfile(GenomeConfig gcon, ExptConfig econ, List<StrandedPoint> pts, int win, String out){
 		gconfig = gcon;
 		econfig = econ;
+		if(econfig.getRegionLoad()){
+			//Only the hits in the windows are needed
+			List<Region> regs = new ArrayList<Region>();
+			for(StrandedPoint pt : pts)
+				regs.add(pt.expand(win/2+1));
+			econfig.setInitialCachedRegions(regs);
+		}
 		manager = new ExperimentManager(econ);
 		winSize = win;
 		points = pts;